@@ -0,0 +1,25 @@
+package net.wpm.llvm;
+
+/**
+ * How the methods of the invocation interface of a {@link LLVMProgram} are bound to the native functions.
+ * 
+ * @author Nico Hezel
+ */
+public enum LLVMBinding {
+
+	/**
+	 * JNR generates a class implementing the invocation interface for every program.
+	 * Fast calls but slow to create and every program adds a class to the metaspace.
+	 */
+	JNR,
+
+	/**
+	 * Every function is bound to a {@link java.lang.invoke.MethodHandle}, using the foreign function API on 
+	 * Java 22+ and the jffi invoker of JNR otherwise. The invocation interface is implemented by a class 
+	 * calling the handles with invokeExact, which is generated once and shared by all programs with the same 
+	 * interface, see {@link LLVMInvocationGenerator}. No classes are generated per program. The handles are 
+	 * instance fields and therefore not constant for the JIT, for the fastest calls use 
+	 * {@link LLVMProgram#getMethodHandle(String)} and keep the handle in a static final field.
+	 */
+	METHOD_HANDLE
+}
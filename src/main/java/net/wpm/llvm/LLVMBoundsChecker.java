@@ -0,0 +1,437 @@
+package net.wpm.llvm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.LLVMAttributeRef;
+import org.bytedeco.llvm.LLVM.LLVMBasicBlockRef;
+import org.bytedeco.llvm.LLVM.LLVMBuilderRef;
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMTypeRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import jnr.ffi.Struct;
+
+/**
+ * Instruments the exported functions of a module to check every memory access through their
+ * pointer parameters against the size of the argument. An out of bounds access does not touch
+ * the memory, it is redirected to a scratch buffer and reported as {@link IndexOutOfBoundsException}
+ * after the function returns.
+ *
+ * An instrumented function gets an additional last parameter, a pointer to a bounds block with
+ * the violation flag followed by the byte size of every parameter. The method handles created by
+ * {@link #guard(String, MethodHandle)} fill the block from the Java arguments: arrays, {@link Struct}s,
+ * direct buffers (from their position), memory segments and pointers of allocated memory have a known
+ * size, all other pointers are not limited. The
+ * original function stays available for calls inside the module without any checks.
+ *
+ * Only accesses whose pointer is derived from a parameter of the exported function via address
+ * computations are checked. Accesses inside called functions, through pointers loaded from memory
+ * or by memory intrinsics are not checked.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMBoundsChecker {
+
+	/**
+	 * String attribute of the instrumented functions
+	 */
+	public static final String CHECKED_ATTRIBUTE = "llvm-jnr-checked";
+
+	/**
+	 * Out of bounds accesses are redirected to this global
+	 */
+	protected static final String SCRATCH_NAME = "llvm_jnr.bounds_scratch";
+	protected static final int SCRATCH_SIZE = 1024;
+
+	protected static final MethodHandle INVOKE_CHECKED;
+	static {
+		try {
+			INVOKE_CHECKED = MethodHandles.lookup().findStatic(LLVMBoundsChecker.class, "invokeChecked", MethodType.methodType(Object.class, String.class, MethodHandle.class, Object[].class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Bounds blocks of the current thread, one per nested call
+	 */
+	protected static final ThreadLocal<List<Pointer>> BOUNDS_BLOCKS = ThreadLocal.withInitial(ArrayList::new);
+	protected static final ThreadLocal<int[]> CALL_DEPTH = ThreadLocal.withInitial(() -> new int[1]);
+
+	/**
+	 * Instrument all exported functions with pointer parameters
+	 *
+	 * @param module LLVM module
+	 */
+	public static void instrument(LLVMModuleRef module) {
+		final List<LLVMValueRef> entries = new ArrayList<>();
+		for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(module); isNull(func) == false; func = LLVM.LLVMGetNextFunction(func))
+			if(LLVM.LLVMIsDeclaration(func) == 0 && LLVM.LLVMGetLinkage(func) == LLVM.LLVMExternalLinkage && isChecked(func) == false && LLVMStructAdapter.isAdapter(func) == false && hasPointerParam(func))
+				entries.add(func);
+
+		final LLVMBuilderRef builder = LLVM.LLVMCreateBuilder();
+		try {
+			for (LLVMValueRef func : entries)
+				instrumentFunction(module, builder, func);
+		} finally {
+			LLVM.LLVMDisposeBuilder(builder);
+		}
+	}
+
+	/**
+	 * Is the function instrumented and expects a bounds block as last parameter
+	 *
+	 * @param func LLVM function
+	 * @return true if instrumented
+	 */
+	public static boolean isChecked(LLVMValueRef func) {
+		return isNull(LLVM.LLVMGetStringAttributeAtIndex(func, LLVM.LLVMAttributeFunctionIndex, CHECKED_ATTRIBUTE, CHECKED_ATTRIBUTE.length())) == false;
+	}
+
+	/**
+	 * Create a method handle without the bounds block parameter, which checks for out of bounds accesses.
+	 *
+	 * @param funcName name of the native function
+	 * @param nativeHandle handle of the instrumented function, the last parameter is the bounds block
+	 * @return method handle with the java signature of the function
+	 */
+	public static MethodHandle guard(String funcName, MethodHandle nativeHandle) {
+		final MethodType nativeType = nativeHandle.type();
+		final int parameterCount = nativeType.parameterCount() - 1;
+		final MethodType javaType = nativeType.dropParameterTypes(parameterCount, parameterCount + 1);
+		final MethodHandle spreader = nativeHandle.asSpreader(Object[].class, parameterCount + 1);
+		return MethodHandles.insertArguments(INVOKE_CHECKED, 0, funcName, spreader)
+				.asCollector(Object[].class, parameterCount)
+				.asType(javaType);
+	}
+
+	/**
+	 * Call the instrumented function with a bounds block of the current thread
+	 *
+	 * @param funcName name of the native function
+	 * @param spreader native function taking all arguments as an array
+	 * @param args java arguments
+	 * @return the return value of the function
+	 * @throws IndexOutOfBoundsException if the function accessed memory out of bounds
+	 */
+	protected static Object invokeChecked(String funcName, MethodHandle spreader, Object[] args) throws Throwable {
+		final int[] depth = CALL_DEPTH.get();
+		final Pointer block = getBoundsBlock(depth[0], args.length);
+		block.putLong(0, 0);
+		for (int i = 0; i < args.length; i++)
+			block.putLong((i + 1) * Long.BYTES, sizeOf(args[i]));
+
+		final Object[] nativeArgs = Arrays.copyOf(args, args.length + 1);
+		nativeArgs[args.length] = block;
+		final Object result;
+		depth[0]++;
+		try {
+			result = spreader.invoke(nativeArgs);
+		} finally {
+			depth[0]--;
+		}
+
+		final long violation = block.getLong(0);
+		if(violation != 0)
+			throw new IndexOutOfBoundsException("Out of bounds memory access through parameter "+(violation - 1)+" of the native function "+funcName);
+		return result;
+	}
+
+	/**
+	 * Bounds block of the current thread for the given call depth
+	 *
+	 * @param depth number of checked calls already running on this thread
+	 * @param parameterCount number of parameters of the function
+	 * @return direct memory with room for the violation flag and all sizes
+	 */
+	protected static Pointer getBoundsBlock(int depth, int parameterCount) {
+		final List<Pointer> blocks = BOUNDS_BLOCKS.get();
+		final long size = (parameterCount + 1) * Long.BYTES;
+		if(blocks.size() <= depth)
+			blocks.add(null);
+		Pointer block = blocks.get(depth);
+		if(block == null || block.size() < size) {
+			block = Memory.allocateDirect(Runtime.getSystemRuntime(), Math.max(size, 16 * Long.BYTES));
+			blocks.set(depth, block);
+		}
+		return block;
+	}
+
+	/**
+	 * Byte size of the memory behind an argument
+	 *
+	 * @param arg java argument
+	 * @return size in bytes or -1 for unlimited
+	 */
+	protected static long sizeOf(Object arg) {
+		if(arg == null)
+			return 0;
+		else if(arg instanceof byte[])
+			return ((byte[]) arg).length;
+		else if(arg instanceof boolean[])
+			return ((boolean[]) arg).length;
+		else if(arg instanceof short[])
+			return ((short[]) arg).length * (long) Short.BYTES;
+		else if(arg instanceof char[])
+			return ((char[]) arg).length * (long) Character.BYTES;
+		else if(arg instanceof int[])
+			return ((int[]) arg).length * (long) Integer.BYTES;
+		else if(arg instanceof float[])
+			return ((float[]) arg).length * (long) Float.BYTES;
+		else if(arg instanceof long[])
+			return ((long[]) arg).length * (long) Long.BYTES;
+		else if(arg instanceof double[])
+			return ((double[]) arg).length * (long) Double.BYTES;
+		else if(arg instanceof Struct)
+			return Struct.size((Struct) arg);
+		else if(arg instanceof Pointer)
+			return ((Pointer) arg).size();
+		else if(arg instanceof Buffer) {
+			// the native function gets the address of the buffer position
+			final Buffer buffer = (Buffer) arg;
+			final int shift = LLVMMethodHandleBinder.getBufferElementShift(buffer.getClass());
+			if(buffer.isDirect() && shift >= 0)
+				return (long) buffer.remaining() << shift;
+		} else if(LLVMMethodHandleBinder.ForeignLinker.MEMORY_SEGMENT != null && LLVMMethodHandleBinder.ForeignLinker.MEMORY_SEGMENT.isInstance(arg))
+			return LLVMMethodHandleBinder.getSegmentSize(arg);
+		return -1;
+	}
+
+
+
+	// --------------------------------------------------------------------------------------------------------------
+	// -------------------------------------------- Instrumentation -------------------------------------------------
+	// --------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Move the body of the function into a new function with an additional bounds block parameter
+	 * and check all memory accesses through the parameters. The original function calls the new
+	 * one with an unlimited bounds block.
+	 *
+	 * @param module LLVM module
+	 * @param builder instruction builder
+	 * @param func exported function
+	 */
+	protected static void instrumentFunction(LLVMModuleRef module, LLVMBuilderRef builder, LLVMValueRef func) {
+		final LLVMContextRef context = LLVM.LLVMGetModuleContext(module);
+		final LLVMTypeRef int64 = LLVM.LLVMInt64TypeInContext(context);
+		final String name = LLVM.LLVMGetValueName(func).getString();
+		final LLVMTypeRef funcType = LLVMProgram.getFunctionType(func);
+		final LLVMTypeRef returnType = LLVM.LLVMGetReturnType(funcType);
+		final int parameterCount = LLVM.LLVMCountParamTypes(funcType);
+
+		// function type with the additional bounds block
+		final LLVMTypeRef[] paramTypes = new LLVMTypeRef[parameterCount + 1];
+		final PointerPointer<LLVMTypeRef> ptr = new PointerPointer<>(new LLVMTypeRef[parameterCount]);
+		LLVM.LLVMGetParamTypes(funcType, ptr);
+		for (int i = 0; i < parameterCount; i++)
+			paramTypes[i] = new LLVMTypeRef(ptr.get(i));
+		paramTypes[parameterCount] = LLVM.LLVMPointerType(int64, 0);
+		final LLVMTypeRef checkedType = LLVM.LLVMFunctionType(returnType, new PointerPointer<>(paramTypes), paramTypes.length, LLVM.LLVMIsFunctionVarArg(funcType));
+
+		// the checked function takes over the name
+		final String uncheckedName = name + ".unchecked";
+		LLVM.LLVMSetValueName2(func, uncheckedName, uncheckedName.length());
+		LLVM.LLVMSetLinkage(func, LLVM.LLVMInternalLinkage);
+		final LLVMValueRef checked = LLVM.LLVMAddFunction(module, name, checkedType);
+		LLVM.LLVMSetFunctionCallConv(checked, LLVM.LLVMGetFunctionCallConv(func));
+		copyAttributes(func, checked, LLVM.LLVMAttributeFunctionIndex);
+		for (int i = 0; i <= parameterCount; i++)
+			copyAttributes(func, checked, i);
+		LLVM.LLVMAddAttributeAtIndex(checked, LLVM.LLVMAttributeFunctionIndex, LLVM.LLVMCreateStringAttribute(context, CHECKED_ATTRIBUTE, CHECKED_ATTRIBUTE.length(), "", 0));
+		final int noAlias = LLVM.LLVMGetEnumAttributeKindForName("noalias", 7);
+		LLVM.LLVMAddAttributeAtIndex(checked, parameterCount + 1, LLVM.LLVMCreateEnumAttribute(context, noAlias, 0));
+
+		// move the body
+		for (LLVMBasicBlockRef block = LLVM.LLVMGetFirstBasicBlock(func); isNull(block) == false; block = LLVM.LLVMGetFirstBasicBlock(func)) {
+			LLVM.LLVMRemoveBasicBlockFromParent(block);
+			LLVM.LLVMAppendExistingBasicBlock(checked, block);
+		}
+		for (int i = 0; i < parameterCount; i++)
+			LLVM.LLVMReplaceAllUsesWith(LLVM.LLVMGetParam(func, i), LLVM.LLVMGetParam(checked, i));
+
+		// the original function calls the checked one without limits
+		final LLVMValueRef[] sizes = new LLVMValueRef[parameterCount + 1];
+		sizes[0] = LLVM.LLVMConstInt(int64, 0, 0);
+		for (int i = 1; i < sizes.length; i++)
+			sizes[i] = LLVM.LLVMConstInt(int64, -1, 1);
+		final LLVMValueRef unlimited = LLVM.LLVMAddGlobal(module, LLVM.LLVMArrayType(int64, sizes.length), name + ".unchecked_bounds");
+		LLVM.LLVMSetInitializer(unlimited, LLVM.LLVMConstArray(int64, new PointerPointer<>(sizes), sizes.length));
+		LLVM.LLVMSetLinkage(unlimited, LLVM.LLVMInternalLinkage);
+		final LLVMValueRef[] zeros = { LLVM.LLVMConstInt(int64, 0, 0), LLVM.LLVMConstInt(int64, 0, 0) };
+
+		final LLVMValueRef[] args = new LLVMValueRef[parameterCount + 1];
+		for (int i = 0; i < parameterCount; i++)
+			args[i] = LLVM.LLVMGetParam(func, i);
+		args[parameterCount] = LLVM.LLVMConstInBoundsGEP(unlimited, new PointerPointer<>(zeros), 2);
+		LLVM.LLVMPositionBuilderAtEnd(builder, LLVM.LLVMAppendBasicBlockInContext(context, func, "entry"));
+		final boolean isVoid = LLVM.LLVMGetTypeKind(returnType) == LLVM.LLVMVoidTypeKind;
+		final LLVMValueRef call = LLVM.LLVMBuildCall(builder, checked, new PointerPointer<>(args), args.length, "");
+		LLVM.LLVMSetInstructionCallConv(call, LLVM.LLVMGetFunctionCallConv(func));
+		if(isVoid)
+			LLVM.LLVMBuildRetVoid(builder);
+		else
+			LLVM.LLVMBuildRet(builder, call);
+
+		instrumentAccesses(module, builder, checked, parameterCount);
+	}
+
+	/**
+	 * Check all loads and stores through pointers derived from the parameters
+	 *
+	 * @param module LLVM module
+	 * @param builder instruction builder
+	 * @param func instrumented function
+	 * @param parameterCount number of parameters without the bounds block
+	 */
+	protected static void instrumentAccesses(LLVMModuleRef module, LLVMBuilderRef builder, LLVMValueRef func, int parameterCount) {
+		final LLVMContextRef context = LLVM.LLVMGetModuleContext(module);
+		final LLVMTypeRef int64 = LLVM.LLVMInt64TypeInContext(context);
+		final LLVMValueRef bounds = LLVM.LLVMGetParam(func, parameterCount);
+		final LLVMValueRef scratch = getScratch(module);
+
+		// collect the accesses before adding new instructions,
+		// out of bounds addresses must not be assumed to be impossible
+		final List<LLVMValueRef> accesses = new ArrayList<>();
+		for (LLVMBasicBlockRef block = LLVM.LLVMGetFirstBasicBlock(func); isNull(block) == false; block = LLVM.LLVMGetNextBasicBlock(block)) {
+			for (LLVMValueRef inst = LLVM.LLVMGetFirstInstruction(block); isNull(inst) == false; inst = LLVM.LLVMGetNextInstruction(inst)) {
+				final int opcode = LLVM.LLVMGetInstructionOpcode(inst);
+				if(opcode == LLVM.LLVMLoad || opcode == LLVM.LLVMStore)
+					accesses.add(inst);
+				else if(opcode == LLVM.LLVMGetElementPtr)
+					LLVM.LLVMSetIsInBounds(inst, 0);
+			}
+		}
+
+		for (LLVMValueRef inst : accesses) {
+			final boolean isLoad = LLVM.LLVMGetInstructionOpcode(inst) == LLVM.LLVMLoad;
+			final int pointerOperand = isLoad ? 0 : 1;
+			final LLVMValueRef pointer = LLVM.LLVMGetOperand(inst, pointerOperand);
+			final int paramIndex = getOrigin(func, pointer, parameterCount, new HashSet<>());
+			if(paramIndex < 0)
+				continue;
+
+			// offset of the access relative to the parameter
+			LLVM.LLVMPositionBuilderBefore(builder, inst);
+			final LLVMTypeRef accessType = isLoad ? LLVM.LLVMTypeOf(inst) : LLVM.LLVMTypeOf(LLVM.LLVMGetOperand(inst, 0));
+			final LLVMValueRef base = LLVM.LLVMBuildPtrToInt(builder, LLVM.LLVMGetParam(func, paramIndex), int64, "");
+			final LLVMValueRef offset = LLVM.LLVMBuildSub(builder, LLVM.LLVMBuildPtrToInt(builder, pointer, int64, ""), base, "");
+			final LLVMValueRef end = LLVM.LLVMBuildAdd(builder, offset, LLVM.LLVMSizeOf(accessType), "");
+
+			// compare unsigned, negative offsets are huge
+			final LLVMValueRef[] sizeIndex = { LLVM.LLVMConstInt(int64, paramIndex + 1, 0) };
+			final LLVMValueRef size = LLVM.LLVMBuildLoad(builder, LLVM.LLVMBuildGEP(builder, bounds, new PointerPointer<>(sizeIndex), 1, ""), "");
+			final LLVMValueRef inBounds = LLVM.LLVMBuildAnd(builder,
+					LLVM.LLVMBuildICmp(builder, LLVM.LLVMIntULT, offset, size, ""),
+					LLVM.LLVMBuildICmp(builder, LLVM.LLVMIntULE, end, size, ""), "");
+
+			// redirect the access and report the parameter
+			final LLVMValueRef scratchPointer = LLVM.LLVMBuildBitCast(builder, scratch, LLVM.LLVMTypeOf(pointer), "");
+			LLVM.LLVMSetOperand(inst, pointerOperand, LLVM.LLVMBuildSelect(builder, inBounds, pointer, scratchPointer, ""));
+			final LLVMValueRef scratchFlag = LLVM.LLVMBuildBitCast(builder, scratch, LLVM.LLVMPointerType(int64, 0), "");
+			final LLVMValueRef flag = LLVM.LLVMBuildSelect(builder, inBounds, scratchFlag, bounds, "");
+			LLVM.LLVMBuildStore(builder, LLVM.LLVMConstInt(int64, paramIndex + 1, 0), flag);
+		}
+	}
+
+	/**
+	 * The parameter from which the pointer is derived
+	 *
+	 * @param func function
+	 * @param pointer pointer value
+	 * @param parameterCount number of parameters without the bounds block
+	 * @param visited values already visited, to stop at cycles of phi nodes
+	 * @return parameter index, -1 if unknown or -2 if all paths are cycles
+	 */
+	protected static int getOrigin(LLVMValueRef func, LLVMValueRef pointer, int parameterCount, Set<LLVMValueRef> visited) {
+		if(visited.add(pointer) == false)
+			return -2;
+
+		if(isNull(LLVM.LLVMIsAArgument(pointer)) == false) {
+			for (int i = 0; i < parameterCount; i++)
+				if(LLVM.LLVMGetParam(func, i).equals(pointer))
+					return i;
+			return -1;
+		} else if(isNull(LLVM.LLVMIsAGetElementPtrInst(pointer)) == false || isNull(LLVM.LLVMIsABitCastInst(pointer)) == false) {
+			return getOrigin(func, LLVM.LLVMGetOperand(pointer, 0), parameterCount, visited);
+		} else if(isNull(LLVM.LLVMIsAConstantExpr(pointer)) == false) {
+			final int opcode = LLVM.LLVMGetConstOpcode(pointer);
+			if(opcode == LLVM.LLVMGetElementPtr || opcode == LLVM.LLVMBitCast)
+				return getOrigin(func, LLVM.LLVMGetOperand(pointer, 0), parameterCount, visited);
+		} else if(isNull(LLVM.LLVMIsAPHINode(pointer)) == false) {
+			final LLVMValueRef[] incoming = new LLVMValueRef[LLVM.LLVMCountIncoming(pointer)];
+			for (int i = 0; i < incoming.length; i++)
+				incoming[i] = LLVM.LLVMGetIncomingValue(pointer, i);
+			return getCommonOrigin(func, incoming, parameterCount, visited);
+		} else if(isNull(LLVM.LLVMIsASelectInst(pointer)) == false) {
+			final LLVMValueRef[] choices = { LLVM.LLVMGetOperand(pointer, 1), LLVM.LLVMGetOperand(pointer, 2) };
+			return getCommonOrigin(func, choices, parameterCount, visited);
+		}
+		return -1;
+	}
+
+	/**
+	 * The parameter from which all values are derived
+	 */
+	protected static int getCommonOrigin(LLVMValueRef func, LLVMValueRef[] values, int parameterCount, Set<LLVMValueRef> visited) {
+		int origin = -2;
+		for (LLVMValueRef value : values) {
+			final int valueOrigin = getOrigin(func, value, parameterCount, visited);
+			if(valueOrigin == -1 || (valueOrigin >= 0 && origin >= 0 && valueOrigin != origin))
+				return -1;
+			if(valueOrigin >= 0)
+				origin = valueOrigin;
+		}
+		return origin;
+	}
+
+	/**
+	 * Global scratch memory of the module, large enough for any vector access
+	 */
+	protected static LLVMValueRef getScratch(LLVMModuleRef module) {
+		LLVMValueRef scratch = LLVM.LLVMGetNamedGlobal(module, SCRATCH_NAME);
+		if(isNull(scratch)) {
+			final LLVMTypeRef type = LLVM.LLVMArrayType(LLVM.LLVMInt8TypeInContext(LLVM.LLVMGetModuleContext(module)), SCRATCH_SIZE);
+			scratch = LLVM.LLVMAddGlobal(module, type, SCRATCH_NAME);
+			LLVM.LLVMSetInitializer(scratch, LLVM.LLVMConstNull(type));
+			LLVM.LLVMSetLinkage(scratch, LLVM.LLVMInternalLinkage);
+			LLVM.LLVMSetAlignment(scratch, 64);
+		}
+		return scratch;
+	}
+
+	protected static void copyAttributes(LLVMValueRef from, LLVMValueRef to, int index) {
+		final int count = LLVM.LLVMGetAttributeCountAtIndex(from, index);
+		if(count == 0)
+			return;
+		final PointerPointer<LLVMAttributeRef> attributes = new PointerPointer<>(count);
+		LLVM.LLVMGetAttributesAtIndex(from, index, attributes);
+		for (int i = 0; i < count; i++)
+			LLVM.LLVMAddAttributeAtIndex(to, index, new LLVMAttributeRef(attributes.get(i)));
+	}
+
+	protected static boolean hasPointerParam(LLVMValueRef func) {
+		for (int i = 0; i < LLVM.LLVMCountParams(func); i++)
+			if(LLVM.LLVMGetTypeKind(LLVM.LLVMTypeOf(LLVM.LLVMGetParam(func, i))) == LLVM.LLVMPointerTypeKind)
+				return true;
+		return false;
+	}
+
+	protected static boolean isNull(org.bytedeco.javacpp.Pointer pointer) {
+		return pointer == null || pointer.isNull();
+	}
+}
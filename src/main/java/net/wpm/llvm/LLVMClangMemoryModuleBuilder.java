@@ -0,0 +1,55 @@
+package net.wpm.llvm;
+
+import java.nio.charset.StandardCharsets;
+
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+
+
+/**
+ * Compile C code to a LLVM module without writing any file to disk and provides it via the {@link LLVMModuleBuilder#build()} method.
+ * The C code is piped to clang and the resulting bitcode is parsed directly from memory by a {@link LLVMMemoryModuleBuilder}.
+ * <br><br>
+ * Unlike the {@link LLVMClangModuleBuilder} nothing is cached, every call to {@link #build()} runs clang again.
+ *
+ * @author Nico Hezel
+ *
+ * @param <T> invocation interface
+ */
+public class LLVMClangMemoryModuleBuilder<T> implements LLVMModuleBuilder<T> {
+
+	protected final String cCode;
+	protected final Class<T> invocationInterface;
+	protected final String[] clangParams;
+
+	/**
+	 * Compile the c code to a LLVM module in memory
+	 *
+	 * @param cCode string with c code
+	 * @param invocationInterface invocation interface
+	 * @param clangParams additional commands for clang
+	 */
+	public LLVMClangMemoryModuleBuilder(String cCode, Class<T> invocationInterface, String ... clangParams) {
+		this.cCode = cCode;
+		this.invocationInterface = invocationInterface;
+		this.clangParams = clangParams;
+	}
+
+	public String getCCode() {
+		return cCode;
+	}
+
+	@Override
+	public LLVMModuleRef build() {
+		try {
+			final byte[] bitcode = LLVMClangModuleBuilder.runClang(cCode.getBytes(StandardCharsets.UTF_8), clangParams);
+			return new LLVMMemoryModuleBuilder<>(bitcode, "clang", invocationInterface).build();
+		} catch (Exception e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public Class<T> getInvocationInterface() {
+		return invocationInterface;
+	}
+}
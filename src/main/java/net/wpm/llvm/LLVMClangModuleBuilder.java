@@ -1,6 +1,12 @@
 package net.wpm.llvm;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
@@ -12,6 +18,9 @@ import org.bytedeco.llvm.LLVM.LLVMModuleRef;
 
 /**
  * Compile C code to a LLVM module and provides it via the {@link LLVMModuleBuilder#build()} method.  
+ * The bitcode produced by clang is stored in a {@link LLVMModuleCache} and so is the optimized module
+ * after the first compilation with a {@link LLVMCompiler}. Later builds skip clang, the IR text parser 
+ * and the optimization passes.
  * 
  * @author Nico Hezel
  *
@@ -19,13 +28,21 @@ import org.bytedeco.llvm.LLVM.LLVMModuleRef;
  */
 public class LLVMClangModuleBuilder<T> extends LLVMStoredModuleBuilder<T> {
 
+	public static final String SOURCE_EXTENSION = ".c";
+	public static final String BITCODE_EXTENSION = ".bc";
+	public static final String OPTIMIZED_EXTENSION = ".opt.bc";
+
 	protected static String clang;
+	protected static String clangVersion;
 	
 	protected final Path cFile;
+	protected final byte[] cCode;
 	protected final String[] clangParams;
+	protected final LLVMModuleCache cache;
+	protected final String cacheKey;
 	
 	/**
-	 * Compile a c file to a LLVM module
+	 * Compile a c file to a LLVM module, the result is stored in the default cache {@link LLVMModuleCache#getDefault()}
 	 * 
 	 * @param cFile containing c code
 	 * @param invocationInterface invocation interface 
@@ -34,7 +51,7 @@ public class LLVMClangModuleBuilder<T> extends LLVMStoredModuleBuilder<T> {
 	 * @throws IOException could not read the c file 
 	 */
 	public LLVMClangModuleBuilder(Path cFile, Class<T> invocationInterface, String ... clangParams) throws NoSuchAlgorithmException, IOException {
-		this(cFile, null, invocationInterface, clangParams);
+		this(cFile, (Path) null, invocationInterface, clangParams);
 	}
 	
 	public LLVMClangModuleBuilder(Path cFile, Path cacheDir, Class<T> invocationInterface, String ... clangParams) throws NoSuchAlgorithmException, IOException {
@@ -42,9 +59,23 @@ public class LLVMClangModuleBuilder<T> extends LLVMStoredModuleBuilder<T> {
 	}
 	
 	public LLVMClangModuleBuilder(Path cFile, String fileHash, Path cacheDir, Class<T> invocationInterface, String ... clangParams) throws NoSuchAlgorithmException, IOException  {
-		super(llvmFile(cFile, fileHash, cacheDir), invocationInterface);
-		this.cFile = cFile;
-		this.clangParams = clangParams;
+		this(cFile, fileHash, toCache(cacheDir), invocationInterface, clangParams);
+	}
+	
+	/**
+	 * Compile a c file to a LLVM module and store the result in the cache. The cache key 
+	 * contains the hash of the file, the clang parameters and the clang version.
+	 * 
+	 * @param cFile containing c code
+	 * @param fileHash hash of the content of the c file
+	 * @param cache shared cache for the LLVM files
+	 * @param invocationInterface invocation interface 
+	 * @param clangParams additional commands for clang
+	 * @throws NoSuchAlgorithmException unable to create the cache key
+	 * @throws IOException could not determine the clang version
+	 */
+	public LLVMClangModuleBuilder(Path cFile, String fileHash, LLVMModuleCache cache, Class<T> invocationInterface, String ... clangParams) throws NoSuchAlgorithmException, IOException  {
+		this(cFile, null, cache, computeCacheKey(fileHash, clangParams), invocationInterface, clangParams);
 	}
 	
 	/**
@@ -61,63 +92,124 @@ public class LLVMClangModuleBuilder<T> extends LLVMStoredModuleBuilder<T> {
 	}
 	
 	public LLVMClangModuleBuilder(String cCode, Path cacheDir, Class<T> invocationInterface, String ... clangParams) throws NoSuchAlgorithmException, IOException  {
-		this(toCFile(cCode, cacheDir), "", cacheDir, invocationInterface);
+		this(cCode.getBytes(), toCache(cacheDir), computeCacheKey(computeHash(cCode), clangParams), invocationInterface, clangParams);
+	}
+	
+	/**
+	 * The c code is stored under the same key as its bitcode, the cache evicts them together.
+	 */
+	protected LLVMClangModuleBuilder(byte[] cCode, LLVMModuleCache cache, String cacheKey, Class<T> invocationInterface, String ... clangParams) throws IOException  {
+		this(storeSource(cache, cacheKey, cCode), cCode, cache, cacheKey, invocationInterface, clangParams);
+	}
+	
+	/**
+	 * @param cFile containing c code
+	 * @param cCode content of the c file if it is stored in the cache, otherwise null
+	 * @param cache shared cache for the LLVM files
+	 * @param cacheKey key of the bitcode
+	 * @param invocationInterface invocation interface 
+	 * @param clangParams additional commands for clang
+	 */
+	protected LLVMClangModuleBuilder(Path cFile, byte[] cCode, LLVMModuleCache cache, String cacheKey, Class<T> invocationInterface, String ... clangParams) {
+		super(llvmFile(cache, cacheKey), invocationInterface);
+		this.cFile = cFile;
+		this.cCode = cCode;
+		this.clangParams = clangParams;
+		this.cache = cache;
+		this.cacheKey = cacheKey;
 	}
 	
 	public Path getCFile() {
 		return cFile;
 	}
 	
+	public LLVMModuleCache getCache() {
+		return cache;
+	}
+	
+	public String getCacheKey() {
+		return cacheKey;
+	}
+	
 	/**
 	 * Get output llvm file name
 	 * 
 	 * @param cFile file with c-code
-	 * @param cacheDir output directory
-	 * @return output file containing llvm assembly
+	 * @param fileHash hash of the content of the c file
+	 * @param cacheDir output directory, null for the default cache
+	 * @param clangParams additional commands for clang
+	 * @return output file containing llvm bitcode
 	 * @throws IOException
 	 * @throws NoSuchAlgorithmException
 	 */
-	public static Path llvmFile(Path cFile, String fileHash, Path cacheDir) throws IOException, NoSuchAlgorithmException {
-		
-		// without a cache directory use a temporary directory
-		if(cacheDir == null)
-			cacheDir = Files.createTempDirectory("llvm_jnr");
-
-		// where should the output file be stored
-		String filename = cFile.getFileName().toString();
-		
-		// check if a binary version already exists
-		String bcFilename = filename.substring(0, filename.lastIndexOf('.')) + fileHash + ".bc";
-		final Path bcOutputPath = cacheDir.resolve(bcFilename);	
-		if(Files.exists(bcOutputPath))
-			return bcOutputPath;
-		
-		// check if a text version already exists
-		String irFilename = filename.substring(0, filename.lastIndexOf('.')) + fileHash + ".ll";		
-		return cacheDir.resolve(irFilename);
+	public static Path llvmFile(Path cFile, String fileHash, Path cacheDir, String ... clangParams) throws IOException, NoSuchAlgorithmException {
+		return llvmFile(toCache(cacheDir), computeCacheKey(fileHash, clangParams));
+	}
+	
+	/**
+	 * Get output llvm file name
+	 * 
+	 * @param cache shared cache for the LLVM files
+	 * @param cacheKey key of the module
+	 * @return output file containing llvm bitcode
+	 */
+	protected static Path llvmFile(LLVMModuleCache cache, String cacheKey) {
+		return cache.resolve(cacheKey, BITCODE_EXTENSION);
 	}
 	
 	/**
 	 * Store c code to file
 	 * 
 	 * @param cCode
-	 * @param cacheDir
+	 * @param cacheDir output directory, null for the default cache
 	 * @return
 	 * @throws IOException
 	 * @throws NoSuchAlgorithmException
 	 */
 	public static Path toCFile(String cCode, Path cacheDir) throws IOException, NoSuchAlgorithmException {
-		String hash = computeHash(cCode);
-		
-		// without a cache directory use a temporary directory
-		if(cacheDir == null)
-			cacheDir = Files.createTempDirectory("llvm_jnr");
-
-		// where should the output file be stored
-		final Path cFile = cacheDir.resolve(hash + ".c");
-		Files.write(cFile, cCode.getBytes());
-		
-		return cFile;
+		final byte[] content = cCode.getBytes();
+		return toCache(cacheDir).computeIfAbsent(computeHash(cCode), SOURCE_EXTENSION, file -> Files.write(file, content));
+	}
+	
+	/**
+	 * Store c code in the cache next to the bitcode of the given key
+	 * 
+	 * @param cache shared cache for the LLVM files
+	 * @param cacheKey key of the bitcode
+	 * @param cCode content of the c file
+	 * @return c file
+	 * @throws IOException could not store the c file
+	 */
+	protected static Path storeSource(LLVMModuleCache cache, String cacheKey, byte[] cCode) throws IOException {
+		return cache.computeIfAbsent(cacheKey, SOURCE_EXTENSION, file -> Files.write(file, cCode));
+	}
+	
+	/**
+	 * Cache in the given directory or the default cache. Both are limited to {@link LLVMModuleCache#DEFAULT_MAX_SIZE}.
+	 * 
+	 * @param cacheDir cache directory or null
+	 * @return cache
+	 * @throws IOException could not create the cache directory
+	 */
+	protected static LLVMModuleCache toCache(Path cacheDir) throws IOException {
+		return (cacheDir == null) ? LLVMModuleCache.getDefault() : new LLVMModuleCache(cacheDir, LLVMModuleCache.DEFAULT_MAX_SIZE);
+	}
+	
+	/**
+	 * Compute the cache key of a compiled c file
+	 * 
+	 * @param fileHash hash of the content of the c file
+	 * @param clangParams additional commands for clang
+	 * @return cache key
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException could not determine the clang version
+	 */
+	protected static String computeCacheKey(String fileHash, String ... clangParams) throws NoSuchAlgorithmException, IOException {
+		final String[] parts = new String[clangParams.length + 2];
+		parts[0] = fileHash;
+		parts[1] = getClangVersion();
+		System.arraycopy(clangParams, 0, parts, 2, clangParams.length);
+		return LLVMModuleCache.computeKey(parts);
 	}
 	
 	/**
@@ -165,10 +257,10 @@ public class LLVMClangModuleBuilder<T> extends LLVMStoredModuleBuilder<T> {
 	
 	
 	/**
-	 * Compile the input c file into a LLVM IR file.
+	 * Compile the input c file into a LLVM bitcode file.
 	 * 
 	 * @param inputFile path to the c file
-	 * @param outputFile to the LLVM IR file
+	 * @param outputFile to the LLVM bitcode file
 	 * @param clangParams additional commands for clang
 	 * @throws InterruptedException clang compiler error
 	 * @throws IOException could not store the c file
@@ -176,8 +268,7 @@ public class LLVMClangModuleBuilder<T> extends LLVMStoredModuleBuilder<T> {
 	protected static void runClang(String inputFile, String outputFile, String ... clangParams) throws InterruptedException, IOException {
 		
 		// lazy initialization of clang
-		if(clang == null)
-			clang = Loader.load(org.bytedeco.llvm.program.clang.class);
+		final String clang = getClang();
 		
 		// no parameters, add at least optimization options
 		// https://clang.llvm.org/docs/genindex.html
@@ -185,10 +276,10 @@ public class LLVMClangModuleBuilder<T> extends LLVMStoredModuleBuilder<T> {
 		if(clangParams.length == 0)
 			clangParams = new String[] { "-O3" };
 		
-		// translate c code to LLVM IR
+		// translate c code to LLVM bitcode
 		String[] commands = new String[clangParams.length+6];
 		commands[0] = clang;
-		commands[1] = "-S";
+		commands[1] = "-c";
 		commands[2] = "-emit-llvm";
 		commands[3] = inputFile;
 		commands[4] = "-o";
@@ -196,21 +287,137 @@ public class LLVMClangModuleBuilder<T> extends LLVMStoredModuleBuilder<T> {
 		System.arraycopy(clangParams, 0, commands, 6, clangParams.length);
 		System.out.println(String.join(" ", commands));
 		ProcessBuilder pb = new ProcessBuilder(commands);
-		pb.inheritIO().start().waitFor();
-
+		final int exitCode = pb.inheritIO().start().waitFor();
+		if(exitCode != 0)
+			throw new IOException("clang failed with exit code "+exitCode);
 	}
 	
-	@Override
-	public LLVMModuleRef build() {
+	/**
+	 * Compile the c code into LLVM bitcode without touching the disk. The code is piped
+	 * into the standard input of clang and the bitcode is read from its standard output.
+	 * 
+	 * @param cCode c code
+	 * @param clangParams additional commands for clang
+	 * @return LLVM bitcode
+	 * @throws InterruptedException clang compiler error
+	 * @throws IOException could not communicate with clang or clang failed to compile the code
+	 */
+	protected static byte[] runClang(byte[] cCode, String ... clangParams) throws InterruptedException, IOException {
+		final String clang = getClang();
 		
-		if(Files.exists(super.getLLVMFile()) == false) {
-			try {
-				runClang(cFile.toString(), super.getLLVMFile().toString(), clangParams);			
-			} catch (Exception e) {
-				throw new RuntimeException(e.getMessage(), e);
-			}
+		// no parameters, add at least optimization options
+		if(clangParams.length == 0)
+			clangParams = new String[] { "-O3" };
+		
+		// translate c code from stdin to LLVM bitcode on stdout
+		String[] commands = new String[clangParams.length+8];
+		commands[0] = clang;
+		commands[1] = "-c";
+		commands[2] = "-emit-llvm";
+		commands[3] = "-x";
+		commands[4] = "c";
+		commands[5] = "-";
+		commands[6] = "-o";
+		commands[7] = "-";
+		System.arraycopy(clangParams, 0, commands, 8, clangParams.length);
+		ProcessBuilder pb = new ProcessBuilder(commands);
+		pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+		final Process process = pb.start();
+		
+		// clang reads the entire input before it emits any output 
+		try(OutputStream stdin = process.getOutputStream()) {
+			stdin.write(cCode);
 		}
 		
-		return super.build();
+		final ByteArrayOutputStream bitcode = new ByteArrayOutputStream();
+		try(InputStream stdout = process.getInputStream()) {
+			final byte[] buffer = new byte[8192];
+			for (int read = stdout.read(buffer); read != -1; read = stdout.read(buffer)) 
+				bitcode.write(buffer, 0, read);
+		}
+		
+		final int exitCode = process.waitFor();
+		if(exitCode != 0)
+			throw new IOException("clang failed with exit code "+exitCode);
+		
+		return bitcode.toByteArray();
+	}
+	
+	/**
+	 * Path to the clang executable of the LLVM presets, loaded on first use.
+	 * 
+	 * @return path to clang
+	 */
+	protected static synchronized String getClang() {
+		if(clang == null)
+			clang = Loader.load(org.bytedeco.llvm.program.clang.class);
+		return clang;
+	}
+	
+	/**
+	 * The version string of the clang executable, part of every cache key.
+	 * 
+	 * @return first line of "clang --version"
+	 * @throws IOException could not run clang
+	 */
+	protected static synchronized String getClangVersion() throws IOException {
+		if(clangVersion == null) {
+			final Process process = new ProcessBuilder(getClang(), "--version").redirectErrorStream(true).start();
+			try(BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+				clangVersion = String.valueOf(reader.readLine());
+				while(reader.readLine() != null);
+			}
+		}
+		return clangVersion;
+	}
+	
+	@Override
+	public LLVMModuleRef build() {
+		try {
+			final Path llvmFile = cache.computeIfAbsent(cacheKey, BITCODE_EXTENSION, file -> {
+				try {
+					
+					// the c code in the cache might have been evicted before the first build
+					if(cCode != null && Files.exists(cFile) == false)
+						cache.put(cacheKey, SOURCE_EXTENSION, source -> Files.write(source, cCode));
+					runClang(cFile.toString(), file.toString(), clangParams);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(e.getMessage());
+				}
+			});
+			return readModule(llvmFile);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+	
+	@Override
+	public LLVMModuleRef buildOptimized(String compilerKey) {
+		final Path optimizedFile = cache.get(optimizedCacheKey(compilerKey), OPTIMIZED_EXTENSION);
+		return (optimizedFile == null) ? null : readModule(optimizedFile);
+	}
+	
+	@Override
+	public void storeOptimized(LLVMModuleRef module, String compilerKey) {
+		try {
+			cache.computeIfAbsent(optimizedCacheKey(compilerKey), OPTIMIZED_EXTENSION, file -> storeBitcode(module, file));
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Cache key of the optimized module
+	 * 
+	 * @param compilerKey configuration of the compiler see {@link LLVMCompiler#getConfigurationKey()}
+	 * @return cache key
+	 */
+	protected String optimizedCacheKey(String compilerKey) {
+		try {
+			return LLVMModuleCache.computeKey(cacheKey, compilerKey);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
 	}
 }
\ No newline at end of file
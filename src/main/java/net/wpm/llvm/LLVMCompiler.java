@@ -1,14 +1,33 @@
 package net.wpm.llvm;
 
 
+import java.io.IOException;
 import java.lang.instrument.IllegalClassFormatException;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 import org.bytedeco.javacpp.BytePointer;
-import org.bytedeco.javacpp.Loader;
 import org.bytedeco.javacpp.Pointer;
 import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.LLVMAttributeRef;
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
 import org.bytedeco.llvm.LLVM.LLVMExecutionEngineRef;
+import org.bytedeco.llvm.LLVM.LLVMMCJITCompilerOptions;
+import org.bytedeco.llvm.LLVM.LLVMMCJITMemoryManagerRef;
 import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMPassManagerRef;
+import org.bytedeco.llvm.LLVM.LLVMTargetDataRef;
+import org.bytedeco.llvm.LLVM.LLVMTargetMachineRef;
+import org.bytedeco.llvm.LLVM.LLVMTargetRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
 import org.bytedeco.llvm.global.LLVM;
 
 
@@ -20,7 +39,30 @@ import org.bytedeco.llvm.global.LLVM;
  */
 public class LLVMCompiler {
 
+	/**
+	 * Runs the optimizations of compilations with a time budget and of tiered programs. The number of
+	 * threads and waiting optimizations is bounded, further optimizations are rejected. 
+	 */
+	protected static final int OPTIMIZER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	protected static final ThreadPoolExecutor OPTIMIZER = new ThreadPoolExecutor(OPTIMIZER_THREADS, OPTIMIZER_THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(OPTIMIZER_THREADS * 4), runnable -> {
+		final Thread thread = new Thread(runnable, "llvm-optimizer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	static {
+		OPTIMIZER.allowCoreThreadTimeOut(true);
+	}
+
 	protected final BytePointer device;	
+	protected final boolean usePolly;
+	protected final boolean usePollyParallel;
+	protected final LLVMSymbols symbols;
+	protected final boolean isChecked;
+	protected volatile LLVMPerfMap perfMap;
+	protected volatile LLVMMemoryManager memoryManager;
+	protected volatile LLVMMemoryGroup memoryGroup;
+	protected volatile long interpreterMaxCalls = 1;
+	protected volatile long interpreterMaxInstructions = 10_000;
 
 	/**
 	 * Setup the compiler and decide if polly should be used for loop optimizations.
@@ -29,8 +71,160 @@ public class LLVMCompiler {
 	 * @param usePollyParallel use polly parallel optimization or not
 	 */
 	public LLVMCompiler(boolean usePolly, boolean usePollyParallel) {
+		this(usePolly, usePollyParallel, new LLVMSymbols());
+	}
+
+	/**
+	 * Setup the compiler and decide if polly should be used for loop optimizations.
+	 * External declarations in the compiled modules are resolved with the symbols.
+	 * 
+	 * Polly parallel needs the OpenMP runtime, if it is not available the loops are 
+	 * not parallelized see {@link #isParallel()} and {@link LLVMOpenMP#getUnavailabilityReason()}.
+	 * 
+	 * @param usePolly use polly optimization or not
+	 * @param usePollyParallel use polly parallel optimization or not
+	 * @param symbols external symbols available to all compiled modules
+	 */
+	public LLVMCompiler(boolean usePolly, boolean usePollyParallel, LLVMSymbols symbols) {
+		this(usePolly, usePollyParallel, symbols, false);
+	}
+
+	/**
+	 * Setup the compiler and decide if polly should be used for loop optimizations.
+	 * External declarations in the compiled modules are resolved with the symbols.
+	 * 
+	 * In checked mode all memory accesses through the pointer parameters of exported functions 
+	 * are checked against the size of the arguments. An out of bounds access throws an 
+	 * {@link IndexOutOfBoundsException} instead of crashing the JVM, see {@link LLVMBoundsChecker}.
+	 * 
+	 * @param usePolly use polly optimization or not
+	 * @param usePollyParallel use polly parallel optimization or not
+	 * @param symbols external symbols available to all compiled modules
+	 * @param isChecked instrument the modules with bounds checks
+	 */
+	public LLVMCompiler(boolean usePolly, boolean usePollyParallel, LLVMSymbols symbols, boolean isChecked) {
+		usePollyParallel = usePolly && usePollyParallel && LLVMOpenMP.load();
 		initialize(usePolly, usePollyParallel);
 		device = LLVM.LLVMGetHostCPUName();
+		this.usePolly = usePolly;
+		this.usePollyParallel = usePollyParallel;
+		this.symbols = symbols;
+		this.isChecked = isChecked;
+	}
+
+	/**
+	 * @return true if the compiled modules are instrumented with bounds checks
+	 */
+	public boolean isChecked() {
+		return isChecked;
+	}
+
+	/**
+	 * Are loops parallelized with polly and executed by the OpenMP runtime
+	 * 
+	 * @return true if polly parallel is used
+	 */
+	public boolean isParallel() {
+		return usePollyParallel;
+	}
+
+	/**
+	 * Write the function addresses of all programs compiled afterwards into the perf map, 
+	 * so that profilers can name the machine code of the programs.
+	 * 
+	 * @param perfMap e.g. {@link LLVMPerfMap#getDefault()} or null to stop writing
+	 * @return this
+	 */
+	public LLVMCompiler setPerfMap(LLVMPerfMap perfMap) {
+		this.perfMap = perfMap;
+		return this;
+	}
+	
+	public LLVMPerfMap getPerfMap() {
+		return perfMap;
+	}
+
+	/**
+	 * Place the machine code of all programs compiled afterwards into the arenas of the memory manager.
+	 * Programs of different compilers can share the same memory manager.
+	 * 
+	 * @param memoryManager memory manager or null to use the default memory manager of every execution engine
+	 * @return this
+	 */
+	public LLVMCompiler setMemoryManager(LLVMMemoryManager memoryManager) {
+		this.memoryManager = memoryManager;
+		return this;
+	}
+
+	public LLVMMemoryManager getMemoryManager() {
+		return memoryManager;
+	}
+
+	/**
+	 * Account the memory of all programs compiled afterwards in the group and enforce its quota.
+	 * Requires a memory manager, see {@link #setMemoryManager(LLVMMemoryManager)}. Tenants sharing 
+	 * a memory manager use one compiler per tenant.
+	 * 
+	 * @param memoryGroup group of the following programs or null
+	 * @return this
+	 */
+	public LLVMCompiler setMemoryGroup(LLVMMemoryGroup memoryGroup) {
+		this.memoryGroup = memoryGroup;
+		return this;
+	}
+
+	public LLVMMemoryGroup getMemoryGroup() {
+		return memoryGroup;
+	}
+
+	/**
+	 * Modules expected to be called at most maxCalls times and with at most maxInstructions 
+	 * get interpreted instead of compiled, see {@link #compile(LLVMModuleRef, Class, long)}.
+	 * By default modules called once with up to 10000 instructions are interpreted.
+	 * 
+	 * @param maxCalls maximal expected number of calls, 0 to always compile
+	 * @param maxInstructions maximal number of instructions in the module
+	 * @return this
+	 */
+	public LLVMCompiler setInterpreterThresholds(long maxCalls, long maxInstructions) {
+		this.interpreterMaxCalls = maxCalls;
+		this.interpreterMaxInstructions = maxInstructions;
+		return this;
+	}
+
+	/**
+	 * External symbols available to all compiled modules. Symbols can be added at any time, 
+	 * they are used by all following compilations.
+	 * 
+	 * @return symbols of the compiler
+	 */
+	public LLVMSymbols getSymbols() {
+		return symbols;
+	}
+
+	/**
+	 * A string describing everything which influences the optimized LLVM code of this compiler. 
+	 * Optimized modules can only be reused by compilers with the same configuration key.
+	 * 
+	 * @return configuration key
+	 */
+	public String getConfigurationKey() {
+		return getTargetKey() + ";libraries=" + symbols.getLibraryKey() + ";checked=" + isChecked;
+	}
+	
+	/**
+	 * A string describing the target cpu and the optimizations of this compiler, 
+	 * without the libraries and instrumentations added to the compiled modules.
+	 * 
+	 * @return target key
+	 */
+	public String getTargetKey() {
+		final BytePointer features = LLVM.LLVMGetHostCPUFeatures();
+		try {
+			return device.getString() + ";" + features.getString() + ";polly=" + usePolly + ";pollyParallel=" + usePollyParallel;
+		} finally {
+			LLVM.LLVMDisposeMessage(features);
+		}
 	}
 
 	
@@ -41,6 +235,10 @@ public class LLVMCompiler {
 	 * 
 	 * This methods returns an {@link LLVMProgram} containing the LLVM module and java code to call 
 	 * native functions inside of this module. The program must be disposed when no longer used. 
+	 * 
+	 * If the module builder provides an optimized module for this compiler configuration 
+	 * (see {@link LLVMModuleBuilder#buildOptimized(String)}) the optimization is skipped. 
+	 * Otherwise the optimized module is handed back to the builder to be stored.
 	 *  
 	 * @param <T> invocation interface 
 	 * @param moduleBuilder module builder 
@@ -49,7 +247,7 @@ public class LLVMCompiler {
 	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
 	 */
 	public <T> LLVMProgram<T> compile(LLVMModuleBuilder<T> moduleBuilder) throws NoSuchMethodException, IllegalClassFormatException {
-		return compile(moduleBuilder.build(), moduleBuilder.getInvocationInterface(), false);
+		return compile(moduleBuilder, false);
 	}
 	
 	/**
@@ -68,7 +266,34 @@ public class LLVMCompiler {
 	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
 	 */
 	public <T> LLVMProgram<T> compile(LLVMModuleBuilder<T> moduleBuilder, boolean isOptimized) throws NoSuchMethodException, IllegalClassFormatException {
-		return compile(moduleBuilder.build(), moduleBuilder.getInvocationInterface(), isOptimized);
+		return compile(moduleBuilder, isOptimized, LLVMBinding.JNR);
+	}
+	
+	/**
+	 * Same as {@link #compile(LLVMModuleBuilder, boolean)} but with a choice how the 
+	 * invocation interface of the program gets implemented.
+	 *  
+	 * @param <T> invocation interface 
+	 * @param moduleBuilder module builder
+	 * @param isOptimized is this module already optimized
+	 * @param binding implementation of the invocation interface
+	 * @return the {@link LLVMProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	public <T> LLVMProgram<T> compile(LLVMModuleBuilder<T> moduleBuilder, boolean isOptimized, LLVMBinding binding) throws NoSuchMethodException, IllegalClassFormatException {
+		if(isOptimized)
+			return compileInPlace(moduleBuilder.build(), moduleBuilder.getInvocationInterface(), true, binding);
+		
+		// use an optimized module from a previous compilation
+		final String compilerKey = getConfigurationKey();
+		final LLVMModuleRef optimizedModule = moduleBuilder.buildOptimized(compilerKey);
+		if(optimizedModule != null)
+			return compileInPlace(optimizedModule, moduleBuilder.getInvocationInterface(), true, binding);
+		
+		final LLVMProgram<T> program = compileInPlace(moduleBuilder.build(), moduleBuilder.getInvocationInterface(), false, binding);
+		moduleBuilder.storeOptimized(program.getOptimizedModule(), compilerKey);
+		return program;
 	}
 		
 	/**
@@ -88,21 +313,746 @@ public class LLVMCompiler {
 	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
 	 */
 	public <T> LLVMProgram<T> compile(LLVMModuleRef module, Class<T> invocationInterface, boolean isOptimized) throws NoSuchMethodException, IllegalClassFormatException {
+		return compile(module, invocationInterface, isOptimized, LLVMBinding.JNR);
+	}
+	
+	/**
+	 * Same as {@link #compile(LLVMModuleRef, Class, boolean)} but with a choice how the 
+	 * invocation interface of the program gets implemented.
+	 * 
+	 * The program gets compiled from a copy of the module, the caller keeps ownership of the module.
+	 * Use {@link #compileInPlace(LLVMModuleRef, Class, boolean, LLVMBinding)} to avoid the copy.
+	 * 
+	 * @param <T> invocation interface 
+	 * @param module containing llvm assembly
+	 * @param invocationInterface class
+	 * @param isOptimized is this module already optimized
+	 * @param binding implementation of the invocation interface
+	 * @return the {@link LLVMProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	public <T> LLVMProgram<T> compile(LLVMModuleRef module, Class<T> invocationInterface, boolean isOptimized, LLVMBinding binding) throws NoSuchMethodException, IllegalClassFormatException {
 		
 		// verify the LLVM code
 		verifyModule(module);
+		return compileModule(LLVM.LLVMCloneModule(module), invocationInterface, isOptimized, binding, null);
+	}
+
+	/**
+	 * Same as {@link #compile(LLVMModuleRef, Class, boolean, LLVMBinding)} but the module is optimized and 
+	 * compiled in place instead of a copy. The program takes ownership of the module, it must not be used 
+	 * or disposed by the caller afterwards, not even if the compilation fails. This saves the time and 
+	 * memory of copying large modules.
+	 * 
+	 * @param <T> invocation interface 
+	 * @param module containing llvm assembly, owned by the program afterwards
+	 * @param invocationInterface class or null
+	 * @param isOptimized is this module already optimized
+	 * @param binding implementation of the invocation interface
+	 * @return the {@link LLVMProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	public <T> LLVMProgram<T> compileInPlace(LLVMModuleRef module, Class<T> invocationInterface, boolean isOptimized, LLVMBinding binding) throws NoSuchMethodException, IllegalClassFormatException {
+		return compileInPlace(module, invocationInterface, isOptimized, binding, false);
+	}
+
+	/**
+	 * Same as {@link #compileInPlace(LLVMModuleRef, Class, boolean, LLVMBinding)} with the option to keep a copy 
+	 * of the module as it was before the compilation, see {@link LLVMProgram#getSourceModule()}. E.g. to specialize 
+	 * the unoptimized code again later on.
+	 * 
+	 * @param <T> invocation interface 
+	 * @param module containing llvm assembly, owned by the program afterwards
+	 * @param invocationInterface class or null
+	 * @param isOptimized is this module already optimized
+	 * @param binding implementation of the invocation interface
+	 * @param retainSource keep a copy of the module before it gets linked, instrumented and optimized
+	 * @return the {@link LLVMProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	public <T> LLVMProgram<T> compileInPlace(LLVMModuleRef module, Class<T> invocationInterface, boolean isOptimized, LLVMBinding binding, boolean retainSource) throws NoSuchMethodException, IllegalClassFormatException {
+		try {
+			verifyModule(module);
+		} catch (RuntimeException e) {
+			LLVM.LLVMDisposeModule(module);
+			throw e;
+		}
+		final LLVMModuleRef sourceModule = retainSource ? LLVM.LLVMCloneModule(module) : null;
+		return compileModule(module, invocationInterface, isOptimized, binding, sourceModule);
+	}
+
+	/**
+	 * Link, optimize and compile the verified module in place. The module and the source module
+	 * belong to the new program or are disposed if the compilation fails.
+	 * 
+	 * @param <T> invocation interface 
+	 * @param module verified module
+	 * @param invocationInterface class or null
+	 * @param isOptimized is this module already optimized
+	 * @param binding implementation of the invocation interface
+	 * @param sourceModule unoptimized copy of the module for {@link LLVMProgram#getSourceModule()} or null
+	 * @return the {@link LLVMProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	protected <T> LLVMProgram<T> compileModule(LLVMModuleRef module, Class<T> invocationInterface, boolean isOptimized, LLVMBinding binding, LLVMModuleRef sourceModule) throws NoSuchMethodException, IllegalClassFormatException {
+		try {
+			// optimized modules contain the libraries and bounds checks already
+			if(isOptimized == false) {
+				symbols.link(module);
+				if(isChecked)
+					LLVMBoundsChecker.instrument(module);
+				symbols.deduplicate(module);
+				setHostTarget(module, device);
+				optimizeModule(module, device);
+			}
+		} catch (RuntimeException e) {
+			LLVM.LLVMDisposeModule(module);
+			if(sourceModule != null)
+				LLVM.LLVMDisposeModule(sourceModule);
+			throw e;
+		}
+		
+		// generate machine code for the host cpu
+		return createProgram(module, invocationInterface, binding, 3, sourceModule);
+	}
+
+	/**
+	 * Generate machine code for the module and create a registered program. The program owns 
+	 * the module and the source module, both are disposed if anything fails.
+	 * 
+	 * @param <T> invocation interface 
+	 * @param module optimized module
+	 * @param invocationInterface class or null
+	 * @param binding implementation of the invocation interface
+	 * @param optLevel 0 (none) to 3 (aggressive)
+	 * @param sourceModule unoptimized copy of the module for {@link LLVMProgram#getSourceModule()} or null
+	 * @return the {@link LLVMProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	protected <T> LLVMProgram<T> createProgram(LLVMModuleRef module, Class<T> invocationInterface, LLVMBinding binding, int optLevel, LLVMModuleRef sourceModule) throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMProgram<T> program;
+		try {
+			// LLVM does not pass structs by value like C, they are passed via adapters
+			try {
+				LLVMStructAdapter.addAdapters(module);
+			} catch (RuntimeException e) {
+				LLVM.LLVMDisposeModule(module);
+				throw e;
+			}
+			
+			// the execution engine owns the module afterwards and a failed compilation disposes the module
+			final LLVMExecutionEngineRef engine = new LLVMExecutionEngineRef();
+			jitCompile(engine, module, optLevel);
+			try {
+				// resolve external declarations before any function address is requested
+				symbols.map(engine, module);
+				LLVMMemoryManager.checkAllocation(engine, module);
+				program = new LLVMProgram<>(engine, module, invocationInterface, binding);
+			} catch (NoSuchMethodException | IllegalClassFormatException | RuntimeException e) {
+				LLVM.LLVMDisposeExecutionEngine(engine);
+				throw e;
+			}
+		} catch (NoSuchMethodException | IllegalClassFormatException | RuntimeException e) {
+			if(sourceModule != null)
+				LLVM.LLVMDisposeModule(sourceModule);
+			throw e;
+		}
+		program.sourceModule = sourceModule;
+		
+		// a program rejected by its memory group is disposed already, disposing twice does nothing
+		try {
+			registerProgram(program);
+		} catch (RuntimeException e) {
+			program.dispose();
+			throw e;
+		}
+		return program;
+	}
 
-		// create an execution engine to run the module
-		final LLVMModuleRef optModule = LLVM.LLVMCloneModule(module);
-		final LLVMExecutionEngineRef engine = createExecutionEngine(optModule);
-		if(isOptimized == false) {
-			optimizeModule(optModule, device);
-			jitCompileModule(engine, optModule, device);
+	/**
+	 * Optimize and compile the module without an invocation interface. All exported functions 
+	 * of the module are accessible via {@link LLVMProgram#getMethodHandle(String)}, their java 
+	 * signatures are derived from the LLVM function types.
+	 * 
+	 * @param module containing llvm assembly
+	 * @param isOptimized is this module already optimized
+	 * @return the {@link LLVMProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 */
+	public LLVMProgram<Void> compile(LLVMModuleRef module, boolean isOptimized) {
+		try {
+			return compile(module, (Class<Void>) null, isOptimized);
+		} catch (NoSuchMethodException | IllegalClassFormatException e) {
+			// can not happen without an invocation interface
+			throw new RuntimeException(e.getMessage(), e);
 		}
+	}
 
-		return new LLVMProgram<>(engine, optModule, invocationInterface);
+	/**
+	 * Build the LLVM module from the moduleBuilder and interpret or compile it, see 
+	 * {@link #compile(LLVMModuleRef, Class, long)}. An optimized module from a previous 
+	 * compilation is always compiled.
+	 * 
+	 * @param <T> invocation interface 
+	 * @param moduleBuilder module builder
+	 * @param expectedCalls how often the functions of the program are expected to be called
+	 * @return the {@link LLVMProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	public <T> LLVMProgram<T> compile(LLVMModuleBuilder<T> moduleBuilder, long expectedCalls) throws NoSuchMethodException, IllegalClassFormatException {
+		final String compilerKey = getConfigurationKey();
+		final LLVMModuleRef optimizedModule = moduleBuilder.buildOptimized(compilerKey);
+		if(optimizedModule != null)
+			return compileInPlace(optimizedModule, moduleBuilder.getInvocationInterface(), true, LLVMBinding.JNR);
+		final LLVMModuleRef module = moduleBuilder.build();
+		final LLVMProgram<T> program;
+		try {
+			program = compile(module, moduleBuilder.getInvocationInterface(), expectedCalls);
+		} finally {
+			LLVM.LLVMDisposeModule(module);
+		}
+		
+		// the module of an interpreted program is not optimized
+		if(program instanceof LLVMInterpretedProgram == false)
+			moduleBuilder.storeOptimized(program.getOptimizedModule(), compilerKey);
+		return program;
+	}
+
+	/**
+	 * Interpret small modules which are expected to be called only a few times, compile all others like 
+	 * {@link #compile(LLVMModuleRef, Class, boolean)}. The thresholds are set with 
+	 * {@link #setInterpreterThresholds(long, long)}. Modules the interpreter can not execute and 
+	 * modules of a checked compiler are always compiled.
+	 * 
+	 * @param <T> invocation interface 
+	 * @param module containing llvm assembly
+	 * @param invocationInterface class or null
+	 * @param expectedCalls how often the functions of the program are expected to be called
+	 * @return a {@link LLVMInterpretedProgram} or a compiled {@link LLVMProgram}, should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	public <T> LLVMProgram<T> compile(LLVMModuleRef module, Class<T> invocationInterface, long expectedCalls) throws NoSuchMethodException, IllegalClassFormatException {
+		if(isChecked == false && expectedCalls <= interpreterMaxCalls && LLVMInterpretedProgram.countInstructions(module) <= interpreterMaxInstructions) {
+			verifyModule(module);
+			final LLVMModuleRef linkedModule = linkForInterpreter(module);
+			if(linkedModule != null)
+				return interpretModule(linkedModule, invocationInterface);
+		}
+		return compile(module, invocationInterface, false);
+	}
+
+	/**
+	 * Run the module in the LLVM interpreter without any optimization or code generation, see {@link LLVMInterpretedProgram}.
+	 * 
+	 * @param <T> invocation interface 
+	 * @param module containing llvm assembly
+	 * @param invocationInterface class or null
+	 * @return the {@link LLVMInterpretedProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 * @throws IllegalArgumentException if the interpreter can not execute the module
+	 * @throws IllegalStateException if the compiler is checked, the interpreter does not check memory accesses
+	 */
+	public <T> LLVMInterpretedProgram<T> interpret(LLVMModuleRef module, Class<T> invocationInterface) throws NoSuchMethodException, IllegalClassFormatException {
+		if(isChecked)
+			throw new IllegalStateException("The interpreter does not support bounds checks");
+		verifyModule(module);
+		final LLVMModuleRef linkedModule = linkForInterpreter(module);
+		if(linkedModule == null)
+			throw new IllegalArgumentException("The LLVM interpreter can not execute the module, it calls external functions or passes structs by value");
+		return interpretModule(linkedModule, invocationInterface);
 	}
 
+	/**
+	 * Link the libraries into a copy of the module if the interpreter can execute the result
+	 * 
+	 * @param module verified module
+	 * @return copy of the module with all libraries or null if it can not be interpreted
+	 */
+	protected LLVMModuleRef linkForInterpreter(LLVMModuleRef module) {
+		final LLVMModuleRef linkedModule = LLVM.LLVMCloneModule(module);
+		symbols.link(linkedModule);
+		if(LLVMInterpretedProgram.isInterpretable(linkedModule))
+			return linkedModule;
+		LLVM.LLVMDisposeModule(linkedModule);
+		return null;
+	}
+
+	protected <T> LLVMInterpretedProgram<T> interpretModule(LLVMModuleRef module, Class<T> invocationInterface) throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMExecutionEngineRef engine = new LLVMExecutionEngineRef();
+		final BytePointer error = new BytePointer((Pointer) null);
+		try {
+			// a failed creation disposes the module
+			if (LLVM.LLVMCreateInterpreterForModule(engine, module, error) != 0)
+				throw new RuntimeException(error.getString());
+		} finally {
+			LLVM.LLVMDisposeMessage(error);
+		}
+
+		final LLVMInterpretedProgram<T> program;
+		try {
+			symbols.map(engine, module);
+			program = new LLVMInterpretedProgram<>(this, engine, module, invocationInterface);
+		} catch (NoSuchMethodException | IllegalClassFormatException | RuntimeException e) {
+			LLVM.LLVMDisposeExecutionEngine(engine);
+			throw e;
+		}
+		try {
+			registerProgram(program);
+		} catch (RuntimeException e) {
+			program.dispose();
+			throw e;
+		}
+		return program;
+	}
+
+	/**
+	 * Optimize and compile a copy of a module which contains all libraries already, 
+	 * e.g. the module of a {@link LLVMInterpretedProgram}.
+	 * 
+	 * @param module verified module with all libraries
+	 * @return program of the copy, all exported functions are accessible
+	 * @throws IllegalClassFormatException if the LLVM functions have unsupported signatures
+	 * @throws NoSuchMethodException if there is no machine code for an exported function
+	 */
+	protected LLVMProgram<Void> compileLinkedCopy(LLVMModuleRef module) throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMModuleRef copy = LLVM.LLVMCloneModule(module);
+		try {
+			symbols.deduplicate(copy);
+			setHostTarget(copy, device);
+			optimizeModule(copy, device);
+		} catch (RuntimeException e) {
+			LLVM.LLVMDisposeModule(copy);
+			throw e;
+		}
+		return createProgram(copy, null, LLVMBinding.METHOD_HANDLE, 3, null);
+	}
+
+	/**
+	 * Build the LLVM module from the moduleBuilder and compile it within a time budget, 
+	 * see {@link #compile(LLVMModuleRef, Class, LLVMBinding, long, TimeUnit)}. An optimized 
+	 * module from a previous compilation is used without any optimization. Otherwise the result 
+	 * of the full optimization is handed to the builder to be stored, even if it finishes after 
+	 * the budget. Following compilations of the same module will then be fully optimized.
+	 * 
+	 * @param <T> invocation interface 
+	 * @param moduleBuilder module builder
+	 * @param binding implementation of the invocation interface
+	 * @param budget time budget for the optimization
+	 * @param unit unit of the budget
+	 * @return the {@link LLVMProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 * @throws CancellationException if the calling thread got interrupted
+	 */
+	public <T> LLVMProgram<T> compile(LLVMModuleBuilder<T> moduleBuilder, LLVMBinding binding, long budget, TimeUnit unit) throws NoSuchMethodException, IllegalClassFormatException {
+		final String compilerKey = getConfigurationKey();
+		final LLVMModuleRef optimizedModule = moduleBuilder.buildOptimized(compilerKey);
+		if(optimizedModule != null)
+			return compileInPlace(optimizedModule, moduleBuilder.getInvocationInterface(), true, binding);
+		final LLVMModuleRef module = moduleBuilder.build();
+		try {
+			return compile(module, moduleBuilder.getInvocationInterface(), binding, budget, unit, optimized -> moduleBuilder.storeOptimized(optimized, compilerKey));
+		} finally {
+			LLVM.LLVMDisposeModule(module);
+		}
+	}
+	
+	/**
+	 * Optimize and compile the module within a time budget. The optimization runs on a background thread 
+	 * with its own LLVM context. If it does not finish within the budget, the module gets compiled after a 
+	 * few fast optimizations without polly instead, see {@link LLVMProgram#isQuickOptimized()}. An abandoned 
+	 * optimization which is still waiting for a thread gets cancelled, a running one can not be stopped. 
+	 * It finishes in the background and its result is discarded. If all optimizer threads are busy and 
+	 * too many optimizations are waiting, the fast optimizations are used right away.
+	 * 
+	 * @param <T> invocation interface 
+	 * @param module containing llvm assembly
+	 * @param invocationInterface class
+	 * @param binding implementation of the invocation interface
+	 * @param budget time budget for the optimization
+	 * @param unit unit of the budget
+	 * @return the {@link LLVMProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 * @throws CancellationException if the calling thread got interrupted
+	 */
+	public <T> LLVMProgram<T> compile(LLVMModuleRef module, Class<T> invocationInterface, LLVMBinding binding, long budget, TimeUnit unit) throws NoSuchMethodException, IllegalClassFormatException {
+		return compile(module, invocationInterface, binding, budget, unit, null);
+	}
+	
+	protected <T> LLVMProgram<T> compile(LLVMModuleRef module, Class<T> invocationInterface, LLVMBinding binding, long budget, TimeUnit unit, Consumer<LLVMModuleRef> onOptimized) throws NoSuchMethodException, IllegalClassFormatException {
+		
+		// verify the LLVM code
+		verifyModule(module);
+		
+		final LLVMModuleRef workModule = LLVM.LLVMCloneModule(module);
+		final byte[] bitcode;
+		try {
+			symbols.link(workModule);
+			if(isChecked)
+				LLVMBoundsChecker.instrument(workModule);
+			symbols.deduplicate(workModule);
+			
+			// the LLVM context is not thread safe, the background thread works on its own copy
+			bitcode = LLVMStoredModuleBuilder.writeBitcode(workModule);
+		} catch (RuntimeException e) {
+			LLVM.LLVMDisposeModule(workModule);
+			throw e;
+		}
+		Future<byte[]> optimization;
+		try {
+			optimization = OPTIMIZER.submit(() -> optimizeInPrivateContext(bitcode, onOptimized));
+		} catch (RejectedExecutionException e) {
+			optimization = null;
+		}
+		
+		LLVMModuleRef optModule = null;
+		if(optimization != null) {
+			try {
+				final byte[] optimized = optimization.get(budget, unit);
+				LLVM.LLVMDisposeModule(workModule);
+				optModule = LLVMStoredModuleBuilder.readBitcode(optimized, LLVM.LLVMGetGlobalContext());
+			} catch (TimeoutException e) {
+				optimization.cancel(false);
+			} catch (InterruptedException e) {
+				optimization.cancel(false);
+				LLVM.LLVMDisposeModule(workModule);
+				Thread.currentThread().interrupt();
+				throw new CancellationException("The compilation got interrupted");
+			} catch (ExecutionException e) {
+				LLVM.LLVMDisposeModule(workModule);
+				throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+			}
+		}
+		
+		// over budget or the optimizer is busy
+		final boolean quickOptimized = (optModule == null);
+		if(quickOptimized) {
+			optModule = workModule;
+			try {
+				quickOptimizeModule(optModule);
+			} catch (RuntimeException e) {
+				LLVM.LLVMDisposeModule(optModule);
+				throw e;
+			}
+		}
+		
+		// generate machine code for the host cpu
+		final LLVMProgram<T> program = createProgram(optModule, invocationInterface, binding, 3, null);
+		program.quickOptimized = quickOptimized;
+		return program;
+	}
+	
+	/**
+	 * Build the LLVM module from the moduleBuilder and compile it into a shared library,
+	 * see {@link #compile(LLVMModuleRef, Class, LLVMSharedCodeCache, LLVMBinding)}.
+	 * 
+	 * @param <T> invocation interface
+	 * @param moduleBuilder module builder
+	 * @param codeCache stores the shared libraries
+	 * @param binding implementation of the invocation interface
+	 * @return the {@link LLVMProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 * @throws IOException could not compile, link or store the shared library
+	 */
+	public <T> LLVMProgram<T> compile(LLVMModuleBuilder<T> moduleBuilder, LLVMSharedCodeCache codeCache, LLVMBinding binding) throws NoSuchMethodException, IllegalClassFormatException, IOException {
+		final LLVMModuleRef module = moduleBuilder.build();
+		try {
+			return compile(module, moduleBuilder.getInvocationInterface(), codeCache, binding);
+		} finally {
+			LLVM.LLVMDisposeModule(module);
+		}
+	}
+	
+	/**
+	 * Optimize and compile the module into a shared library of the code cache, unless the cache contains 
+	 * the library already, e.g. compiled by another process. The library gets loaded into this process, its 
+	 * code pages are shared with all other processes using the same library. 
+	 * 
+	 * The module must not use symbols which are mapped to addresses of this process, see {@link LLVMSharedCodeCache}.
+	 * The optimized module of the returned program is the unoptimized module the library was compiled from.
+	 * 
+	 * @param <T> invocation interface
+	 * @param module containing llvm assembly
+	 * @param invocationInterface class or null
+	 * @param codeCache stores the shared libraries
+	 * @param binding implementation of the invocation interface
+	 * @return the {@link LLVMProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 * @throws IOException could not compile, link or store the shared library
+	 * @throws IllegalArgumentException if the module uses symbols of this process
+	 */
+	public <T> LLVMProgram<T> compile(LLVMModuleRef module, Class<T> invocationInterface, LLVMSharedCodeCache codeCache, LLVMBinding binding) throws NoSuchMethodException, IllegalClassFormatException, IOException {
+		
+		// verify the LLVM code
+		verifyModule(module);
+		
+		final LLVMModuleRef workModule = LLVM.LLVMCloneModule(module);
+		try {
+			symbols.link(workModule);
+			if(isChecked)
+				LLVMBoundsChecker.instrument(workModule);
+			LLVMStructAdapter.addAdapters(workModule);
+			LLVMSharedCodeCache.verifyModule(workModule, symbols);
+			
+			// the libraries and instrumentations are part of the module content
+			final String key = LLVMSharedCodeCache.computeKey(workModule, getTargetKey());
+			final Path library = codeCache.computeIfAbsent(key, workModule, device);
+			return codeCache.load(library, workModule, invocationInterface, binding);
+		} catch (NoSuchMethodException | IllegalClassFormatException | IOException | RuntimeException e) {
+			LLVM.LLVMDisposeModule(workModule);
+			throw e;
+		}
+	}
+
+	/**
+	 * Build the LLVM module from the moduleBuilder and compile it as a tiered program, see
+	 * {@link #compileTiered(LLVMModuleRef, Class, long, long, TimeUnit)}. An optimized module
+	 * from a previous compilation is used directly without a first tier. Otherwise the result of
+	 * the recompilation is handed to the builder to be stored.
+	 *
+	 * @param <T> invocation interface
+	 * @param moduleBuilder module builder
+	 * @param callThreshold number of calls of a function until the program gets recompiled
+	 * @param timeThreshold time spent in a function until the program gets recompiled
+	 * @param unit unit of the time threshold
+	 * @return the {@link LLVMTieredProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	public <T> LLVMTieredProgram<T> compileTiered(LLVMModuleBuilder<T> moduleBuilder, long callThreshold, long timeThreshold, TimeUnit unit) throws NoSuchMethodException, IllegalClassFormatException {
+		final String compilerKey = getConfigurationKey();
+		final LLVMModuleRef optimizedModule = moduleBuilder.buildOptimized(compilerKey);
+		if(optimizedModule != null)
+			return new LLVMTieredProgram<>(compileInPlace(optimizedModule, moduleBuilder.getInvocationInterface(), true, LLVMBinding.METHOD_HANDLE), moduleBuilder.getInvocationInterface());
+		final LLVMModuleRef module = moduleBuilder.build();
+		try {
+			return compileTiered(module, moduleBuilder.getInvocationInterface(), callThreshold, timeThreshold, unit, optimized -> moduleBuilder.storeOptimized(optimized, compilerKey));
+		} finally {
+			LLVM.LLVMDisposeModule(module);
+		}
+	}
+
+	/**
+	 * Compile the module after a few fast optimizations without polly and with a low optimization
+	 * level of the code generator. Once a function of the program got called callThreshold times or
+	 * ran for timeThreshold in total, the program gets recompiled in the background with all
+	 * optimizations of this compiler. Afterwards all calls execute the new machine code.
+	 *
+	 * @param <T> invocation interface
+	 * @param module containing llvm assembly
+	 * @param invocationInterface class or null
+	 * @param callThreshold number of calls of a function until the program gets recompiled
+	 * @param timeThreshold time spent in a function until the program gets recompiled
+	 * @param unit unit of the time threshold
+	 * @return the {@link LLVMTieredProgram} provides access to the LLVM functions and should be disposed when no longer needed.
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	public <T> LLVMTieredProgram<T> compileTiered(LLVMModuleRef module, Class<T> invocationInterface, long callThreshold, long timeThreshold, TimeUnit unit) throws NoSuchMethodException, IllegalClassFormatException {
+		return compileTiered(module, invocationInterface, callThreshold, timeThreshold, unit, null);
+	}
+
+	protected <T> LLVMTieredProgram<T> compileTiered(LLVMModuleRef module, Class<T> invocationInterface, long callThreshold, long timeThreshold, TimeUnit unit, Consumer<LLVMModuleRef> onOptimized) throws NoSuchMethodException, IllegalClassFormatException {
+
+		// verify the LLVM code
+		verifyModule(module);
+
+		final LLVMModuleRef workModule = LLVM.LLVMCloneModule(module);
+		final byte[] bitcode;
+		try {
+			symbols.link(workModule);
+			if(isChecked)
+				LLVMBoundsChecker.instrument(workModule);
+			symbols.deduplicate(workModule);
+
+			// the second tier gets compiled from this state on its own LLVM context
+			bitcode = LLVMStoredModuleBuilder.writeBitcode(workModule);
+
+			// fast first tier
+			quickOptimizeModule(workModule);
+		} catch (RuntimeException e) {
+			LLVM.LLVMDisposeModule(workModule);
+			throw e;
+		}
+		final LLVMProgram<T> tier1 = createProgram(workModule, invocationInterface, LLVMBinding.METHOD_HANDLE, 1, null);
+		tier1.quickOptimized = true;
+		try {
+			return new LLVMTieredProgram<>(this, tier1, invocationInterface, bitcode, callThreshold, unit.toNanos(timeThreshold), onOptimized);
+		} catch (RuntimeException e) {
+			tier1.dispose();
+			throw e;
+		}
+	}
+
+	/**
+	 * Optimize and compile the module in the given LLVM context. The context must
+	 * be disposed after the returned program.
+	 *
+	 * @param <T> invocation interface
+	 * @param bitcode of the module with all libraries and instrumentations
+	 * @param context private LLVM context
+	 * @param invocationInterface class or null
+	 * @param onOptimized gets the optimized module, can be null
+	 * @return the program in the private context
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	protected <T> LLVMProgram<T> compileInPrivateContext(byte[] bitcode, LLVMContextRef context, Class<T> invocationInterface, Consumer<LLVMModuleRef> onOptimized) throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMModuleRef module = LLVMStoredModuleBuilder.readBitcode(bitcode, context);
+		try {
+			optimizeModule(module, device);
+			if(onOptimized != null)
+				onOptimized.accept(module);
+		} catch (RuntimeException e) {
+			LLVM.LLVMDisposeModule(module);
+			throw e;
+		}
+		return createProgram(module, invocationInterface, LLVMBinding.METHOD_HANDLE, 3, null);
+	}
+
+	/**
+	 * Generate machine code for the host cpu, with the memory manager of this compiler if there is one.
+	 * The engine owns the module afterwards, if the compilation fails the module gets disposed.
+	 * 
+	 * @param engine execution engine of the module
+	 * @param module LLVM module
+	 * @param optLevel 0 (none) to 3 (aggressive)
+	 */
+	protected void jitCompile(LLVMExecutionEngineRef engine, LLVMModuleRef module, int optLevel) {
+		final LLVMMemoryManager manager = memoryManager;
+		final LLVMMemoryGroup group = memoryGroup;
+		if(manager != null)
+			manager.createJITCompiler(engine, module, device, optLevel, group);
+		else if(group != null) {
+			LLVM.LLVMDisposeModule(module);
+			throw new IllegalStateException("The memory group "+group.getName()+" requires a memory manager");
+		} else
+			createJITCompiler(engine, module, device, optLevel, null);
+	}
+
+	/**
+	 * Create a MCJIT execution engine for the module. In contrast to {@link #jitCompileModule(LLVMExecutionEngineRef, LLVMModuleRef, BytePointer, int)} 
+	 * the machine code is generated when the first function address is requested. External declarations can therefore be 
+	 * mapped to addresses before, see {@link LLVMSymbols#map(LLVMExecutionEngineRef, LLVMModuleRef)}. Relocations against 
+	 * symbols mapped after the code was finalized would be written into executable pages. MCJIT does not get the target 
+	 * cpu via the C API, therefore every function is annotated with the cpu and its features. The engine owns the module 
+	 * afterwards, if the creation fails the module and the memory manager get disposed.
+	 * 
+	 * @param engine reference to be filled with the new engine
+	 * @param module LLVM module
+	 * @param device target cpu
+	 * @param optLevel 0 (none) to 3 (aggressive)
+	 * @param memoryManager places the machine code, null for the default memory manager of MCJIT
+	 * @throws RuntimeException if the engine could not be created
+	 */
+	protected static void createJITCompiler(LLVMExecutionEngineRef engine, LLVMModuleRef module, BytePointer device, int optLevel, LLVMMCJITMemoryManagerRef memoryManager) {
+		final BytePointer features = LLVM.LLVMGetHostCPUFeatures();
+		try {
+			setTargetAttributes(module, device, features);
+		} finally {
+			LLVM.LLVMDisposeMessage(features);
+		}
+
+		final LLVMMCJITCompilerOptions options = new LLVMMCJITCompilerOptions();
+		final BytePointer error = new BytePointer((Pointer) null);
+		try {
+			LLVM.LLVMInitializeMCJITCompilerOptions(options, options.sizeof());
+			options.OptLevel(optLevel);
+			if(memoryManager != null)
+				options.MCJMM(memoryManager);
+			if (LLVM.LLVMCreateMCJITCompilerForModule(engine, module, options, options.sizeof(), error) != 0)
+				throw new RuntimeException(error.getString());
+		} finally {
+			LLVM.LLVMDisposeMessage(error);
+			options.close();
+		}
+	}
+
+	/**
+	 * Annotate all defined functions without a target cpu with the cpu and its features
+	 *
+	 * @param module LLVM module
+	 * @param device target cpu
+	 * @param features of the target cpu
+	 */
+	protected static void setTargetAttributes(LLVMModuleRef module, BytePointer device, BytePointer features) {
+		final LLVMContextRef context = LLVM.LLVMGetModuleContext(module);
+		final String cpuKey = "target-cpu", cpuValue = device.getString();
+		final String featuresKey = "target-features", featuresValue = features.getString();
+		final LLVMAttributeRef cpu = LLVM.LLVMCreateStringAttribute(context, cpuKey, cpuKey.length(), cpuValue, cpuValue.length());
+		final LLVMAttributeRef cpuFeatures = LLVM.LLVMCreateStringAttribute(context, featuresKey, featuresKey.length(), featuresValue, featuresValue.length());
+		for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(module); func != null && func.isNull() == false; func = LLVM.LLVMGetNextFunction(func)) {
+			if(LLVM.LLVMIsDeclaration(func) != 0)
+				continue;
+			final LLVMAttributeRef existing = LLVM.LLVMGetStringAttributeAtIndex(func, LLVM.LLVMAttributeFunctionIndex, cpuKey, cpuKey.length());
+			if(existing == null || existing.isNull()) {
+				LLVM.LLVMAddAttributeAtIndex(func, LLVM.LLVMAttributeFunctionIndex, cpu);
+				LLVM.LLVMAddAttributeAtIndex(func, LLVM.LLVMAttributeFunctionIndex, cpuFeatures);
+			}
+		}
+	}
+
+	/**
+	 * Account the memory of the new program in its group, let it use and provide 
+	 * shared functions and add it to the perf map
+	 * 
+	 * @param program new program of this compiler
+	 * @throws IllegalStateException if the memory group of the program rejected it
+	 */
+	protected void registerProgram(LLVMProgram<?> program) {
+		program.memoryUsage = LLVMMemoryManager.getAllocation(program.engine);
+		final LLVMMemoryGroup group = (program.memoryUsage == null) ? null : program.memoryUsage.group;
+		if(group != null)
+			group.add(program);
+		symbols.attach(program);
+
+		// an interpreted program has no machine code, its compiled copy is registered on its own
+		final LLVMPerfMap map = perfMap;
+		if(map != null && program instanceof LLVMInterpretedProgram == false)
+			map.write(program);
+	}
+
+	/**
+	 * Optimize a copy of the module in a new LLVM context.
+	 * 
+	 * @param bitcode of the module
+	 * @param onOptimized gets the optimized module before it is disposed, can be null
+	 * @return bitcode of the optimized module
+	 */
+	protected byte[] optimizeInPrivateContext(byte[] bitcode, Consumer<LLVMModuleRef> onOptimized) {
+		final LLVMContextRef context = LLVM.LLVMContextCreate();
+		try {
+			final LLVMModuleRef module = LLVMStoredModuleBuilder.readBitcode(bitcode, context);
+			try {
+				optimizeModule(module, device);
+				if(onOptimized != null)
+					onOptimized.accept(module);
+				return LLVMStoredModuleBuilder.writeBitcode(module);
+			} finally {
+				LLVM.LLVMDisposeModule(module);
+			}
+		} finally {
+			LLVM.LLVMContextDispose(context);
+		}
+	}
+
+	/**
+	 * Create a general execution engine owning the module. Not needed before {@link #jitCompileModule(LLVMExecutionEngineRef, LLVMModuleRef, BytePointer)},
+	 * which creates its own engine.
+	 * 
+	 * @param module LLVM module
+	 * @return execution engine
+	 */
 	public static LLVMExecutionEngineRef createExecutionEngine(LLVMModuleRef module) {
 		LLVMExecutionEngineRef engine = new LLVMExecutionEngineRef();
 		BytePointer error = new BytePointer((Pointer) null);
@@ -119,6 +1069,34 @@ public class LLVMCompiler {
 		return engine;
 	}
 
+	/**
+	 * Set the target triple and data layout of the host cpu. The optimizations depend on them, 
+	 * the execution engine would set them only afterwards.
+	 * 
+	 * @param module LLVM module
+	 * @param device target cpu
+	 */
+	protected static void setHostTarget(LLVMModuleRef module, BytePointer device) {
+		final BytePointer triple = LLVM.LLVMGetDefaultTargetTriple();
+		final BytePointer features = LLVM.LLVMGetHostCPUFeatures();
+		final LLVMTargetRef target = new LLVMTargetRef();
+		final BytePointer error = new BytePointer((Pointer) null);
+		try {
+			if (LLVM.LLVMGetTargetFromTriple(triple, target, error) != 0)
+				throw new RuntimeException("Failed to get target from triple: " + error.getString());
+			final LLVMTargetMachineRef machine = LLVM.LLVMCreateTargetMachine(target, triple, device, features, LLVM.LLVMCodeGenLevelAggressive, LLVM.LLVMRelocDefault, LLVM.LLVMCodeModelJITDefault);
+			final LLVMTargetDataRef dataLayout = LLVM.LLVMCreateTargetDataLayout(machine);
+			LLVM.LLVMSetTarget(module, triple);
+			LLVM.LLVMSetModuleDataLayout(module, dataLayout);
+			LLVM.LLVMDisposeTargetData(dataLayout);
+			LLVM.LLVMDisposeTargetMachine(machine);
+		} finally {
+			LLVM.LLVMDisposeMessage(error);
+			LLVM.LLVMDisposeMessage(features);
+			LLVM.LLVMDisposeMessage(triple);
+		}
+	}
+
 	protected static void verifyModule(LLVMModuleRef module) {
 		BytePointer error = new BytePointer((Pointer) null);
 		try {
@@ -134,8 +1112,39 @@ public class LLVMCompiler {
 		LLVM.optimizeModule(module, device, 3, 0);
 	}
 
+	/**
+	 * A few fast optimizations without polly, used if there is no time for {@link #optimizeModule(LLVMModuleRef, BytePointer)}.
+	 * 
+	 * @param module LLVM module
+	 */
+	public static void quickOptimizeModule(LLVMModuleRef module) {
+		final LLVMPassManagerRef passManager = LLVM.LLVMCreatePassManager();
+		try {
+			LLVM.LLVMAddPromoteMemoryToRegisterPass(passManager);
+			LLVM.LLVMAddInstructionCombiningPass(passManager);
+			LLVM.LLVMAddReassociatePass(passManager);
+			LLVM.LLVMAddGVNPass(passManager);
+			LLVM.LLVMAddCFGSimplificationPass(passManager);
+			LLVM.LLVMRunPassManager(passManager, module);
+		} finally {
+			LLVM.LLVMDisposePassManager(passManager);
+		}
+	}
+
 	public static void jitCompileModule(LLVMExecutionEngineRef engine, LLVMModuleRef module, BytePointer device) {
-		LLVM.createOptimizedJITCompilerForModule(engine, module, device, 3);
+		jitCompileModule(engine, module, device, 3);
+	}
+
+	/**
+	 * Generate machine code with the given optimization level of the code generator.
+	 * 
+	 * @param engine execution engine of the module
+	 * @param module LLVM module
+	 * @param device target cpu
+	 * @param optLevel 0 (none) to 3 (aggressive)
+	 */
+	public static void jitCompileModule(LLVMExecutionEngineRef engine, LLVMModuleRef module, BytePointer device, int optLevel) {
+		LLVM.createOptimizedJITCompilerForModule(engine, module, device, optLevel);
 	}
 
 	/**
@@ -147,17 +1156,6 @@ public class LLVMCompiler {
 	protected static void initialize(boolean usePolly, boolean usePollyParallel) {
 		if (usePolly) {
 			if (usePollyParallel) {
-				String platform = Loader.getPlatform();
-				String omplib = platform.startsWith("linux") ? "libiomp5.so"
-						: platform.startsWith("macosx") ? "libiomp5.dylib"
-								: platform.startsWith("windows") ? "libiomp5md.dll"
-										: null;
-				if (omplib != null) {
-					int error = LLVM.LLVMLoadLibraryPermanently(omplib);
-					if(error == 1)
-
-						System.out.println("openmp error"+ error);
-				}
 				// https://polly.llvm.org/docs/UsingPollyWithClang.html
 				setLLVMCommandLineOptions("",
 						"-mllvm", "-polly",
@@ -190,7 +1188,7 @@ public class LLVMCompiler {
 		// Initialize the LLVM libraries and MCJIT back-end 
 		// https://www.doof.me.uk/2017/05/11/using-orc-with-llvms-c-api/
 		LLVM.LLVMLinkInMCJIT();
-//		LLVM.LLVMLinkInInterpreter();
+		LLVM.LLVMLinkInInterpreter();
 
 		// The main program should call this function to initialize the printer for the native target corresponding to the host.
 		LLVM.LLVMInitializeNativeAsmPrinter();
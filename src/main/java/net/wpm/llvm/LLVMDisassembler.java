@@ -0,0 +1,156 @@
+package net.wpm.llvm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.llvm.LLVM.LLVMDisasmContextRef;
+import org.bytedeco.llvm.global.LLVM;
+
+import com.kenai.jffi.MemoryIO;
+import com.kenai.jffi.PageManager;
+
+/**
+ * Disassembles machine code of the host cpu with the native disassembler of LLVM, which
+ * gets initialized by the {@link LLVMCompiler}. The instructions are printed in AT&amp;T syntax
+ * or optionally in Intel syntax. A disassembler must not be used by multiple threads at once.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMDisassembler implements AutoCloseable {
+
+	protected final LLVMDisasmContextRef context;
+	protected final BytePointer text;
+
+	/**
+	 * Disassembler for the host cpu in AT&amp;T syntax
+	 */
+	public LLVMDisassembler() {
+		this(false);
+	}
+
+	/**
+	 * @param intelSyntax print the instructions in Intel instead of AT&amp;T syntax
+	 * @throws IllegalStateException if there is no disassembler for the host cpu
+	 */
+	public LLVMDisassembler(boolean intelSyntax) {
+		final BytePointer triple = LLVM.LLVMGetDefaultTargetTriple();
+		final BytePointer cpu = LLVM.LLVMGetHostCPUName();
+		final BytePointer features = LLVM.LLVMGetHostCPUFeatures();
+		try {
+			this.context = LLVM.LLVMCreateDisasmCPUFeatures(triple, cpu, features, null, 0, null, null);
+			if(context == null || context.isNull())
+				throw new IllegalStateException("There is no disassembler for "+triple.getString());
+		} finally {
+			LLVM.LLVMDisposeMessage(features);
+			LLVM.LLVMDisposeMessage(cpu);
+			LLVM.LLVMDisposeMessage(triple);
+		}
+
+		final long options = LLVM.LLVMDisassembler_Option_PrintImmHex | (intelSyntax ? LLVM.LLVMDisassembler_Option_AsmPrinterVariant : 0);
+		LLVM.LLVMSetDisasmOptions(context, options);
+		this.text = new BytePointer(256);
+	}
+
+	/**
+	 * Disassemble the machine code in the address range, one instruction per line
+	 * starting with its address in hex.
+	 *
+	 * @param address start of the machine code
+	 * @param size number of bytes
+	 * @return instructions
+	 */
+	public String disassemble(long address, long size) {
+		final BytePointer code = wrap(address, size);
+		final StringBuilder sb = new StringBuilder();
+		for (long offset = 0; offset < size; ) {
+			final long length = LLVM.LLVMDisasmInstruction(context, code.position(offset), size - offset, address + offset, text, text.capacity());
+			sb.append(Long.toHexString(address + offset)).append(':');
+			if(length == 0) {
+				sb.append("\t<invalid>\n");
+				offset++;
+			} else {
+				sb.append(text.getString()).append('\n');
+				offset += length;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Length of the machine code starting at the address, up to the first instruction consisting
+	 * of zero bytes only. The default memory manager of MCJIT maps separate memory for the code of 
+	 * every execution engine, which is zero filled behind the code. Code placed by a {@link LLVMMemoryManager}
+	 * might be followed by other data, see {@link LLVMProgram#getCodeSizes()}.
+	 *
+	 * @param address start of the machine code
+	 * @param maxSize readable bytes after the address
+	 * @return number of bytes
+	 */
+	public long measure(long address, long maxSize) {
+		final BytePointer code = wrap(address, maxSize);
+		long offset = 0;
+		while(offset < maxSize) {
+			final long length = LLVM.LLVMDisasmInstruction(context, code.position(offset), maxSize - offset, address + offset, text, text.capacity());
+			if(length == 0 || isZero(address + offset, length))
+				break;
+			offset += length;
+		}
+		return offset;
+	}
+
+	/**
+	 * End of the memory mapping containing the address, according to /proc/self/maps.
+	 * Without this file the end of the memory page is returned.
+	 *
+	 * @param address in a mapping of the process
+	 * @return address behind the mapping
+	 */
+	public static long getMappingEnd(long address) {
+		final Path maps = Paths.get("/proc/self/maps");
+		if(Files.isReadable(maps)) {
+			try(Stream<String> lines = Files.lines(maps)) {
+				final Optional<Long> end = lines.map(line -> line.substring(0, line.indexOf(' ')).split("-"))
+					.filter(range -> Long.compareUnsigned(Long.parseUnsignedLong(range[0], 16), address) <= 0 && Long.compareUnsigned(address, Long.parseUnsignedLong(range[1], 16)) < 0)
+					.map(range -> Long.parseUnsignedLong(range[1], 16))
+					.findFirst();
+				if(end.isPresent())
+					return end.get();
+			} catch (IOException e) {
+				// fall back to the end of the page
+			}
+		}
+		final long pageSize = PageManager.getInstance().pageSize();
+		return (address / pageSize + 1) * pageSize;
+	}
+
+	protected static boolean isZero(long address, long length) {
+		final MemoryIO memory = MemoryIO.getInstance();
+		for (long i = 0; i < length; i++)
+			if(memory.getByte(address + i) != 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Pointer to native memory
+	 *
+	 * @param start address of the memory
+	 * @param size number of bytes
+	 * @return pointer with the capacity of the size
+	 */
+	protected static BytePointer wrap(long start, long size) {
+		return new BytePointer(new Pointer() {{ this.address = start; }}).capacity(size);
+	}
+
+	@Override
+	public void close() {
+		LLVM.LLVMDisasmDispose(context);
+		text.close();
+	}
+}
@@ -0,0 +1,315 @@
+package net.wpm.llvm;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import com.kenai.jffi.Library;
+import com.kenai.jffi.MemoryIO;
+import com.kenai.jffi.PageManager;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+
+/**
+ * Streams a file through a kernel in chunks of a fixed size, e.g. a native function process(ptr, len, state)
+ * running over a multi-GB column file. Every chunk is memory mapped with {@link FileChannel#map} and passed
+ * by address, nothing gets copied. The kernel carries its state from one chunk to the next via a pointer
+ * to native memory.
+ *
+ * While a chunk is processed, the kernel is advised to read ahead the next one (MADV_WILLNEED). Processed
+ * chunks are released from the process (MADV_DONTNEED), the file content stays in the page cache. On
+ * platforms without madvise the chunks are only mapped. The chunk size should be a multiple of the record
+ * size of the file and the page size, so that no record spans two chunks. The last chunk can be shorter.
+ *
+ * A parallel scan splits the chunks into consecutive partitions, one per thread of the {@link ForkJoinPool}.
+ * Every partition works on its own copy of the initial state. Afterwards the states of the partitions are
+ * merged in file order into the state given by the caller.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMFileScan {
+
+	public static final long DEFAULT_CHUNK_SIZE = 64 << 20;
+
+	protected static final int MADV_SEQUENTIAL = 2, MADV_WILLNEED = 3, MADV_DONTNEED = 4;
+
+	protected static MethodHandle madvise;
+	protected static boolean initialized;
+
+	/**
+	 * Processes the length bytes at the chunk pointer and updates the state
+	 */
+	@FunctionalInterface
+	public static interface ChunkKernel {
+		public void run(Pointer chunk, long length, Pointer state) throws Throwable;
+	}
+
+	/**
+	 * Merges the state of a later partition of the file into the target state
+	 */
+	@FunctionalInterface
+	public static interface MergeKernel {
+		public void run(Pointer target, Pointer source) throws Throwable;
+	}
+
+	protected final ForkJoinPool pool;
+	protected final long chunkSize;
+
+	/**
+	 * Parallel scans use the common pool.
+	 *
+	 * @param chunkSize number of bytes passed to the kernel at once
+	 */
+	public LLVMFileScan(long chunkSize) {
+		this(ForkJoinPool.commonPool(), chunkSize);
+	}
+
+	/**
+	 * @param pool executes the partitions of a parallel scan
+	 * @param chunkSize number of bytes passed to the kernel at once, at most {@link Integer#MAX_VALUE}
+	 */
+	public LLVMFileScan(ForkJoinPool pool, long chunkSize) {
+		if(chunkSize < 1 || chunkSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The chunk size must be between 1 and "+Integer.MAX_VALUE+" bytes, got "+chunkSize);
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+		initialize();
+	}
+
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	public long getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Bind madvise of the C library if there is one. The advice is optional, 
+	 * if the binding fails the files are scanned without it.
+	 */
+	protected static synchronized void initialize() {
+		if(initialized)
+			return;
+		initialized = true;
+
+		try {
+			final Library library = Library.getDefault();
+			final long address = (library == null) ? 0 : library.getSymbolAddress("madvise");
+			if(address != 0)
+				madvise = LLVMMethodHandleBinder.bind(address, MethodType.methodType(int.class, long.class, long.class, int.class));
+		} catch (RuntimeException | LinkageError e) {
+			madvise = null;
+		}
+	}
+
+	/**
+	 * A chunk kernel calling a native function process(ptr, len, state) with two pointer
+	 * parameters and an int or long length. A return value gets ignored.
+	 *
+	 * @param handle native function e.g. {@link LLVMProgram#getMethodHandle(String)}
+	 * @return kernel for {@link #scan(Path, ChunkKernel, Pointer)}
+	 */
+	public static ChunkKernel of(MethodHandle handle) {
+		final MethodType type = handle.type();
+		if(type.parameterCount() != 3 || type.parameterType(0) != Pointer.class || type.parameterType(2) != Pointer.class 
+				|| (type.parameterType(1) != long.class && type.parameterType(1) != int.class))
+			throw new IllegalArgumentException("Expected a native function with the parameters (Pointer, long, Pointer), got "+type);
+
+		// the chunk size fits into an int
+		final MethodHandle kernel = MethodHandles.explicitCastArguments(handle, MethodType.methodType(void.class, Pointer.class, long.class, Pointer.class));
+		return (chunk, length, state) -> { kernel.invokeExact(chunk, length, state); };
+	}
+
+	/**
+	 * A chunk kernel calling a function of the program, see {@link #of(MethodHandle)}. The program 
+	 * is pinned while a chunk gets processed and can not be evicted by its {@link LLVMMemoryGroup}.
+	 *
+	 * @param program containing the function
+	 * @param funcName name of the native function
+	 * @return kernel for {@link #scan(Path, ChunkKernel, Pointer)}, fails if the program got disposed or evicted
+	 */
+	public static ChunkKernel of(LLVMProgram<?> program, String funcName) {
+		final ChunkKernel kernel = of(program.getMethodHandle(funcName));
+		return (chunk, length, state) -> {
+			program.pin();
+			try {
+				kernel.run(chunk, length, state);
+			} finally {
+				program.unpin();
+			}
+		};
+	}
+
+	/**
+	 * Run the kernel on all chunks of the file, one after the other
+	 *
+	 * @param file to scan
+	 * @param kernel processes a chunk
+	 * @param state native memory with the state of the kernel
+	 * @throws IOException could not open or map the file
+	 * @throws RuntimeException if the kernel failed
+	 */
+	public void scan(Path file, ChunkKernel kernel, Pointer state) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			scan(channel, 0, size, kernel, state);
+		}
+	}
+
+	/**
+	 * Run the kernel on all chunks of the file in parallel. Each partition of the file starts
+	 * with a copy of the initial state, their results are merged in file order.
+	 *
+	 * @param file to scan
+	 * @param kernel processes a chunk
+	 * @param state native memory with the initial state, contains the merged state afterwards
+	 * @param stateSize number of bytes of the state
+	 * @param merge merges the state of a partition into the state of the previous partitions
+	 * @throws IOException could not open or map the file
+	 * @throws RuntimeException if the kernel or the merge failed
+	 */
+	public void scanParallel(Path file, ChunkKernel kernel, Pointer state, long stateSize, MergeKernel merge) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			final long chunkCount = (size + chunkSize - 1) / chunkSize;
+			final int partitionCount = (int) Math.max(1, Math.min(pool.getParallelism(), chunkCount));
+
+			// the first partition works on the state of the caller, all others on a copy of the initial state
+			final Pointer[] states = new Pointer[partitionCount];
+			states[0] = state;
+			for (int i = 1; i < partitionCount; i++) {
+				states[i] = Memory.allocateDirect(Runtime.getSystemRuntime(), stateSize);
+				state.transferTo(0, states[i], 0, stateSize);
+			}
+
+			final List<ForkJoinTask<Void>> tasks = new ArrayList<>(partitionCount);
+			for (int i = 0; i < partitionCount; i++) {
+				final long start = chunkCount * i / partitionCount * chunkSize;
+				final long end = Math.min(size, chunkCount * (i + 1) / partitionCount * chunkSize);
+				final Pointer partitionState = states[i];
+				tasks.add(pool.submit(() -> {
+					scan(channel, start, end, kernel, partitionState);
+					return null;
+				}));
+			}
+			for (ForkJoinTask<Void> task : tasks)
+				task.join();
+
+			for (int i = 1; i < partitionCount; i++)
+				merge.run(state, states[i]);
+		} catch (RuntimeException | Error | IOException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Run the kernel on the chunks of a range of the file and read ahead the next chunk while the current one is processed
+	 *
+	 * @param channel opened file
+	 * @param start first byte of the range, a multiple of the chunk size
+	 * @param end end of the range (exclusive)
+	 * @param kernel processes a chunk
+	 * @param state native memory with the state of the kernel
+	 * @throws IOException could not map the file
+	 */
+	protected void scan(FileChannel channel, long start, long end, ChunkKernel kernel, Pointer state) throws IOException {
+		Chunk next = (start < end) ? map(channel, start, end) : null;
+		while(next != null) {
+			final Chunk chunk = next;
+			next = (chunk.end < end) ? map(channel, chunk.end, end) : null;
+			if(next != null)
+				advise(next.address, next.length, MADV_WILLNEED);
+
+			try {
+				kernel.run(Pointer.wrap(Runtime.getSystemRuntime(), chunk.address), chunk.length, state);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new RuntimeException(e.getMessage(), e);
+			} finally {
+				chunk.release();
+			}
+		}
+	}
+
+	/**
+	 * Map the chunk starting at the position
+	 *
+	 * @param channel opened file
+	 * @param position first byte of the chunk
+	 * @param end end of the scanned range
+	 * @return mapped chunk
+	 * @throws IOException could not map the file
+	 */
+	protected Chunk map(FileChannel channel, long position, long end) throws IOException {
+		final long length = Math.min(chunkSize, end - position);
+		final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+		final Chunk chunk = new Chunk(buffer, position + length);
+		advise(chunk.address, chunk.length, MADV_SEQUENTIAL);
+		return chunk;
+	}
+
+	/**
+	 * The advice is only a hint, it gets ignored if there is no madvise.
+	 * The address is aligned down to the start of its page.
+	 *
+	 * @param address start of the memory
+	 * @param length number of bytes
+	 * @param advice MADV_* constant
+	 * @return true if the kernel accepted the advice
+	 */
+	protected static boolean advise(long address, long length, int advice) {
+		if(madvise == null || length == 0)
+			return false;
+		final long pageSize = PageManager.getInstance().pageSize();
+		final long pageStart = address / pageSize * pageSize;
+		try {
+			return (int) madvise.invokeExact(pageStart, length + address - pageStart, advice) == 0;
+		} catch (Throwable e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * A mapped chunk of the file. The mapping exists as long as the buffer is reachable.
+	 *
+	 * @author Nico Hezel
+	 */
+	protected static class Chunk {
+
+		protected MappedByteBuffer buffer;
+		protected final long address;
+		protected final long length;
+		protected final long end;
+
+		protected Chunk(MappedByteBuffer buffer, long end) {
+			this.buffer = buffer;
+			this.address = MemoryIO.getInstance().getDirectBufferAddress(buffer);
+			this.length = buffer.capacity();
+			this.end = end;
+		}
+
+		/**
+		 * Drop the pages from the process, the mapping itself is removed once the buffer got garbage collected
+		 */
+		protected void release() {
+			if(buffer != null)
+				advise(address, length, MADV_DONTNEED);
+			buffer = null;
+		}
+	}
+}
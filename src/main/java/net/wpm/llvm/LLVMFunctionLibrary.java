@@ -0,0 +1,407 @@
+package net.wpm.llvm;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.LLVMAttributeRef;
+import org.bytedeco.llvm.LLVM.LLVMBasicBlockRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+
+/**
+ * Shares identical helper functions between the programs of a compiler, see
+ * {@link LLVMSymbols#setFunctionLibrary(LLVMFunctionLibrary)}. Functions are identified by
+ * a hash of their IR, the used struct types and the hashes of the called functions. The first
+ * program containing a function provides it to all programs compiled afterwards. In their
+ * modules the function becomes a declaration of the provided machine code before the module
+ * gets optimized, so it is neither optimized nor compiled again.
+ *
+ * Only functions which are not visible outside of their module (internal, private, linkonce_odr
+ * or weak_odr linkage, e.g. functions of the library modules) and have at least a minimum number
+ * of instructions are shared. Functions using global variables, marked as alwaysinline or calling
+ * themselves indirectly stay in the module. Shared functions can not be inlined anymore.
+ *
+ * The library keeps the providing programs alive, every program using a shared function retains
+ * its provider. {@link #clear()} releases the providers, programs compiled before are not affected.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMFunctionLibrary {
+
+	/**
+	 * Name prefix of shared functions, followed by the hash of the function
+	 */
+	public static final String SHARED_PREFIX = "llvm_jnr.shared.";
+
+	protected static final Pattern NAMED_TYPE = Pattern.compile("%(\"[^\"]*\"|[-a-zA-Z$._0-9]+)");
+	protected static final Pattern ATTRIBUTE_GROUP = Pattern.compile(" #[0-9]+");
+
+	protected final int minInstructions;
+	protected final Map<String, Long> nameToAddress;
+	protected final Map<String, LLVMProgram<?>> nameToProvider;
+	protected final Map<LLVMProgram<?>, Boolean> providers;
+	protected String key;
+
+	/**
+	 * Share functions with at least 16 instructions
+	 */
+	public LLVMFunctionLibrary() {
+		this(16);
+	}
+
+	/**
+	 * @param minInstructions smaller functions are not shared, they are better inlined
+	 */
+	public LLVMFunctionLibrary(int minInstructions) {
+		this.minInstructions = minInstructions;
+		this.nameToAddress = new ConcurrentHashMap<>();
+		this.nameToProvider = new HashMap<>();
+		this.providers = new IdentityHashMap<>();
+		this.key = UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Modules optimized with this library depend on the programs of the library.
+	 * The key changes when the library gets cleared.
+	 *
+	 * @return identifier of the library content
+	 */
+	public synchronized String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return number of shared functions
+	 */
+	public int size() {
+		return nameToAddress.size();
+	}
+
+	/**
+	 * @return names of all shared functions
+	 */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(nameToAddress.keySet());
+	}
+
+	/**
+	 * Native address of a shared function
+	 *
+	 * @param name name of the shared function
+	 * @return address or null if the function is unknown
+	 */
+	public Long getAddress(String name) {
+		return nameToAddress.get(name);
+	}
+
+	/**
+	 * Remove all functions and release the providing programs.
+	 * Must not be called while a module gets compiled.
+	 */
+	public synchronized void clear() {
+		nameToAddress.clear();
+		nameToProvider.clear();
+		for (LLVMProgram<?> provider : providers.keySet())
+			provider.dispose();
+		providers.clear();
+		key = UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Replace all functions of the module, which are already provided by the library, with declarations.
+	 * All other sharable functions get a shared name and external linkage, to be provided by the
+	 * program of this module, see {@link #attach(LLVMProgram)}.
+	 *
+	 * @param module unoptimized module
+	 */
+	protected synchronized void deduplicate(LLVMModuleRef module) {
+		final Map<String, String> typeDefinitions = getTypeDefinitions(module);
+		final String target = LLVM.LLVMGetTarget(module).getString() + ";" + LLVM.LLVMGetDataLayoutStr(module).getString();
+
+		final List<LLVMValueRef> functions = new ArrayList<>();
+		for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(module); isNull(func) == false; func = LLVM.LLVMGetNextFunction(func))
+			functions.add(func);
+
+		// the callees get their shared names first and are part of the hash of the caller
+		final Map<Long, String> visited = new HashMap<>();
+		for (LLVMValueRef func : functions)
+			share(module, func, visited, typeDefinitions, target);
+	}
+
+	/**
+	 * Share the function if possible.
+	 *
+	 * @param module containing the function
+	 * @param func function definition
+	 * @param visited function address to its shared name, null if the function is not sharable or in progress
+	 * @param typeDefinitions named struct types of the module
+	 * @param target triple and data layout of the module
+	 * @return shared name or null
+	 */
+	protected String share(LLVMModuleRef module, LLVMValueRef func, Map<Long, String> visited, Map<String, String> typeDefinitions, String target) {
+		if(visited.containsKey(func.address()))
+			return visited.get(func.address());
+		if(LLVM.LLVMIsDeclaration(func) != 0)
+			return null;
+		visited.put(func.address(), null);
+		if(isCandidate(func) == false)
+			return null;
+
+		final List<LLVMValueRef> callees = new ArrayList<>();
+		if(collectCallees(func, callees) == false)
+			return null;
+		for (LLVMValueRef callee : callees) {
+
+			// callees might be replaced by declarations already, check if they are known first
+			if(visited.containsKey(callee.address())) {
+				if(visited.get(callee.address()) == null)
+					return null;
+			} else if(LLVM.LLVMIsDeclaration(callee) == 0 && share(module, callee, visited, typeDefinitions, target) == null)
+				return null;
+		}
+
+		final String name = SHARED_PREFIX + computeHash(func, typeDefinitions, target);
+		final LLVMValueRef existing = LLVM.LLVMGetNamedFunction(module, name);
+		if(nameToAddress.containsKey(name) || isNull(existing) == false) {
+
+			// use the machine code of another program or an identical function of this module
+			final LLVMValueRef declaration = isNull(existing) ? declare(module, name, func) : existing;
+			LLVM.LLVMReplaceAllUsesWith(func, declaration);
+			LLVM.LLVMDeleteFunction(func);
+		} else {
+
+			// this module provides the function
+			LLVM.LLVMSetValueName2(func, name, name.length());
+			LLVM.LLVMSetLinkage(func, LLVM.LLVMExternalLinkage);
+			LLVM.LLVMSetVisibility(func, LLVM.LLVMDefaultVisibility);
+		}
+		visited.put(func.address(), name);
+		return name;
+	}
+
+	/**
+	 * Declaration of a shared function with the calling convention and the return and parameter
+	 * attributes of the definition. Attributes like signext or byval are part of the calling convention.
+	 *
+	 * @param module containing the function
+	 * @param name shared name
+	 * @param func function definition
+	 * @return declaration
+	 */
+	protected static LLVMValueRef declare(LLVMModuleRef module, String name, LLVMValueRef func) {
+		final LLVMValueRef declaration = LLVM.LLVMAddFunction(module, name, LLVM.LLVMGlobalGetValueType(func));
+		LLVM.LLVMSetFunctionCallConv(declaration, LLVM.LLVMGetFunctionCallConv(func));
+
+		final int params = LLVM.LLVMCountParams(func);
+		for (int index = LLVM.LLVMAttributeReturnIndex; index <= params; index++) {
+			final int count = LLVM.LLVMGetAttributeCountAtIndex(func, index);
+			if(count == 0)
+				continue;
+			final PointerPointer<LLVMAttributeRef> attributes = new PointerPointer<>(count);
+			try {
+				LLVM.LLVMGetAttributesAtIndex(func, index, attributes);
+				for (int i = 0; i < count; i++)
+					LLVM.LLVMAddAttributeAtIndex(declaration, index, attributes.get(LLVMAttributeRef.class, i));
+			} finally {
+				attributes.close();
+			}
+		}
+		return declaration;
+	}
+
+	/**
+	 * Only definitions which are not visible outside of the module and have enough instructions can be shared.
+	 *
+	 * @param func function
+	 * @return true if the function can be shared
+	 */
+	protected boolean isCandidate(LLVMValueRef func) {
+		final int linkage = LLVM.LLVMGetLinkage(func);
+		if(linkage != LLVM.LLVMInternalLinkage && linkage != LLVM.LLVMPrivateLinkage && linkage != LLVM.LLVMLinkOnceODRLinkage && linkage != LLVM.LLVMWeakODRLinkage)
+			return false;
+
+		final int alwaysInline = LLVM.LLVMGetEnumAttributeKindForName("alwaysinline", "alwaysinline".length());
+		if(isNull(LLVM.LLVMGetEnumAttributeAtIndex(func, LLVM.LLVMAttributeFunctionIndex, alwaysInline)) == false)
+			return false;
+
+		int instructions = 0;
+		for (LLVMBasicBlockRef block = LLVM.LLVMGetFirstBasicBlock(func); isNull(block) == false; block = LLVM.LLVMGetNextBasicBlock(block))
+			for (LLVMValueRef inst = LLVM.LLVMGetFirstInstruction(block); isNull(inst) == false; inst = LLVM.LLVMGetNextInstruction(inst))
+				instructions++;
+		return instructions >= minInstructions;
+	}
+
+	/**
+	 * Collect all functions referenced by the function.
+	 *
+	 * @param func function definition
+	 * @param callees referenced functions except the function itself
+	 * @return false if the function references a global variable
+	 */
+	protected static boolean collectCallees(LLVMValueRef func, List<LLVMValueRef> callees) {
+		for (LLVMBasicBlockRef block = LLVM.LLVMGetFirstBasicBlock(func); isNull(block) == false; block = LLVM.LLVMGetNextBasicBlock(block))
+			for (LLVMValueRef inst = LLVM.LLVMGetFirstInstruction(block); isNull(inst) == false; inst = LLVM.LLVMGetNextInstruction(inst))
+				if(collectReferences(func, inst, callees) == false)
+					return false;
+		return true;
+	}
+
+	protected static boolean collectReferences(LLVMValueRef func, LLVMValueRef user, List<LLVMValueRef> callees) {
+		final int operands = LLVM.LLVMGetNumOperands(user);
+		for (int i = 0; i < operands; i++) {
+			final LLVMValueRef operand = LLVM.LLVMGetOperand(user, i);
+			if(isNull(operand))
+				continue;
+			if(isNull(LLVM.LLVMIsAGlobalVariable(operand)) == false || isNull(LLVM.LLVMIsAGlobalAlias(operand)) == false || isNull(LLVM.LLVMIsAGlobalIFunc(operand)) == false)
+				return false;
+			if(isNull(LLVM.LLVMIsAFunction(operand)) == false) {
+				if(operand.address() != func.address())
+					callees.add(operand);
+			} else if(isNull(LLVM.LLVMIsAConstantExpr(operand)) == false && collectReferences(func, operand, callees) == false)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Hash of the function IR without its name and attribute group references, combined with
+	 * the definitions of all used struct types. Called functions are referenced by their shared
+	 * name, which contains their hash.
+	 *
+	 * @param func function definition
+	 * @param typeDefinitions named struct types of the module
+	 * @param target triple and data layout of the module
+	 * @return hash
+	 */
+	protected static String computeHash(LLVMValueRef func, Map<String, String> typeDefinitions, String target) {
+		final String name = LLVM.LLVMGetValueName(func).getString();
+		final BytePointer ir = LLVM.LLVMPrintValueToString(func);
+		String code;
+		try {
+			code = ir.getString();
+		} finally {
+			LLVM.LLVMDisposeMessage(ir);
+		}
+		code = code.replace("@" + name + "(", "@(").replace("@\"" + name + "\"(", "@(");
+		code = ATTRIBUTE_GROUP.matcher(code).replaceAll("");
+
+		// definitions of the used struct types including nested ones
+		final Map<String, String> usedTypes = new TreeMap<>();
+		final List<String> pending = new ArrayList<>();
+		pending.add(code);
+		while(pending.isEmpty() == false) {
+			final Matcher matcher = NAMED_TYPE.matcher(pending.remove(pending.size() - 1));
+			while(matcher.find()) {
+				final String definition = typeDefinitions.get(matcher.group());
+				if(definition != null && usedTypes.put(matcher.group(), definition) == null)
+					pending.add(definition);
+			}
+		}
+
+		try {
+			return LLVMModuleCache.computeKey(target, code, String.join("\n", usedTypes.values()));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Named struct types of the module
+	 *
+	 * @param module LLVM module
+	 * @return type name to definition
+	 */
+	protected static Map<String, String> getTypeDefinitions(LLVMModuleRef module) {
+		final Map<String, String> definitions = new HashMap<>();
+		final BytePointer ir = LLVM.LLVMPrintModuleToString(module);
+		try {
+			for (String line : ir.getString().split("\n"))
+				if(line.startsWith("%") && line.contains(" = type "))
+					definitions.put(line.substring(0, line.indexOf(" = type ")), line);
+		} finally {
+			LLVM.LLVMDisposeMessage(ir);
+		}
+		return definitions;
+	}
+
+	/**
+	 * The program depends on the providers of the shared functions it declares and
+	 * provides its own shared functions, if they are not yet in the library.
+	 *
+	 * @param program compiled program
+	 * @throws IllegalStateException if a used shared function is no longer in the library
+	 */
+	protected synchronized void attach(LLVMProgram<?> program) {
+		for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(program.module); isNull(func) == false; func = LLVM.LLVMGetNextFunction(func)) {
+			final String name = LLVM.LLVMGetValueName(func).getString();
+			if(name.startsWith(SHARED_PREFIX) == false)
+				continue;
+
+			if(LLVM.LLVMIsDeclaration(func) != 0) {
+				final LLVMProgram<?> provider = nameToProvider.get(name);
+				if(provider == null)
+					throw new IllegalStateException("The shared function "+name+" is no longer in the library");
+				program.addDependency(provider);
+			} else if(nameToAddress.containsKey(name) == false) {
+				final long address = program.getSymbolAddress(name);
+				if(address == 0)
+					continue;
+				if(providers.containsKey(program) == false)
+					providers.put(program.retain(), Boolean.TRUE);
+				nameToProvider.put(name, program);
+				nameToAddress.put(name, address);
+			}
+		}
+	}
+
+	/**
+	 * The replacement provides all shared functions of the program it replaces, e.g. the optimized
+	 * tier of a {@link LLVMTieredProgram}. Programs compiled afterwards use the machine code of the
+	 * replacement, programs compiled before keep their dependency on the replaced program.
+	 *
+	 * @param program current provider
+	 * @param replacement compiled from the same module as the program
+	 */
+	protected synchronized void replaceProvider(LLVMProgram<?> program, LLVMProgram<?> replacement) {
+		if(providers.containsKey(program) == false)
+			return;
+
+		boolean stillProviding = false;
+		for (Map.Entry<String, LLVMProgram<?>> entry : nameToProvider.entrySet()) {
+			if(entry.getValue() != program)
+				continue;
+			final long address = replacement.getSymbolAddress(entry.getKey());
+			if(address == 0) {
+				stillProviding = true;
+				continue;
+			}
+			if(providers.containsKey(replacement) == false)
+				providers.put(replacement.retain(), Boolean.TRUE);
+			entry.setValue(replacement);
+			nameToAddress.put(entry.getKey(), address);
+		}
+
+		if(stillProviding == false) {
+			providers.remove(program);
+			program.dispose();
+		}
+	}
+
+	protected static boolean isNull(org.bytedeco.javacpp.Pointer pointer) {
+		return pointer == null || pointer.isNull();
+	}
+}
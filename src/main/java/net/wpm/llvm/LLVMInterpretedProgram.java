@@ -0,0 +1,400 @@
+package net.wpm.llvm;
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.LLVMBasicBlockRef;
+import org.bytedeco.llvm.LLVM.LLVMExecutionEngineRef;
+import org.bytedeco.llvm.LLVM.LLVMGenericValueRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMTypeRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+
+import com.kenai.jffi.MemoryIO;
+
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import jnr.ffi.provider.ParameterFlags;
+
+/**
+ * A program whose functions are executed by the LLVM interpreter instead of machine code, see
+ * {@link LLVMCompiler#interpret(LLVMModuleRef, Class)}. There is no optimization and no code generation,
+ * which makes it the fastest way to run a kernel once over a small input. Every call is much slower
+ * than a call of compiled machine code.
+ *
+ * The interpreter can not call external functions, except memcpy and memset. Only modules whose declarations
+ * are limited to these and a few intrinsics can be interpreted, see {@link #isInterpretable(LLVMModuleRef)}.
+ * Structs passed by value are not supported. Arrays are copied into native memory before every call and back
+ * afterwards. The interpreter runs one call at a time, concurrent calls of the program are serialized.
+ *
+ * The invocation interface and the method handles behave like those of a compiled program. The interpreter has
+ * no native function addresses, the first request of an address, symbol or code size compiles a copy of the module.
+ * Its machine code is pinned and disposed together with this program.
+ *
+ * @author Nico Hezel
+ *
+ * @param <T> invocation interface
+ */
+public class LLVMInterpretedProgram<T> extends LLVMProgram<T> {
+
+	protected static final MethodHandle INTERPRET;
+	static {
+		try {
+			INTERPRET = MethodHandles.lookup().findVirtual(LLVMInterpretedProgram.class, "interpret", MethodType.methodType(Object.class, Interpretation.class, Object[].class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Intrinsics the interpreter lowers itself or into calls of memcpy and memset
+	 */
+	protected static final String[] SUPPORTED_INTRINSICS = {
+			"llvm.dbg.", "llvm.lifetime.", "llvm.invariant.", "llvm.assume", "llvm.expect.",
+			"llvm.memcpy.", "llvm.memset.", "llvm.ctpop.", "llvm.ctlz.", "llvm.cttz.", "llvm.bswap.",
+			"llvm.stacksave", "llvm.stackrestore", "llvm.va_start", "llvm.va_end", "llvm.va_copy",
+			"llvm.var.annotation", "llvm.ptr.annotation", "llvm.annotation" };
+
+	/**
+	 * External functions the interpreter implements itself
+	 */
+	protected static final String[] SUPPORTED_FUNCTIONS = { "memcpy", "memset" };
+
+	protected final LLVMCompiler compiler;
+	protected final Object compileLock = new Object();
+	protected volatile LLVMProgram<Void> compiledCopy;
+
+	/**
+	 * @param engine LLVM interpreter of the module
+	 * @param module the module inside the interpreter
+	 * @param invocationInterface invocation interface with method names and signature identical to the functions in the module,
+	 * 			or null to make all exported functions of the module available via {@link #getMethodHandle(String)}
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	public LLVMInterpretedProgram(LLVMExecutionEngineRef engine, LLVMModuleRef module, Class<T> invocationInterface) throws NoSuchMethodException, IllegalClassFormatException {
+		this(null, engine, module, invocationInterface);
+	}
+
+	/**
+	 * @param compiler compiles a copy of the module if a native address is requested, null for a default compiler
+	 * @param engine LLVM interpreter of the module
+	 * @param module the module inside the interpreter, with all libraries linked
+	 * @param invocationInterface invocation interface with method names and signature identical to the functions in the module,
+	 * 			or null to make all exported functions of the module available via {@link #getMethodHandle(String)}
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	protected LLVMInterpretedProgram(LLVMCompiler compiler, LLVMExecutionEngineRef engine, LLVMModuleRef module, Class<T> invocationInterface) throws NoSuchMethodException, IllegalClassFormatException {
+		super(engine, module, invocationInterface, LLVMBinding.METHOD_HANDLE, null);
+		this.compiler = compiler;
+	}
+
+	/**
+	 * Can the LLVM interpreter execute the module. All called external functions must be implemented by the
+	 * interpreter and the exported functions must not pass structs by value.
+	 *
+	 * @param module LLVM module with all libraries linked
+	 * @return true if the module can be interpreted
+	 */
+	public static boolean isInterpretable(LLVMModuleRef module) {
+		for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(module); func != null && func.isNull() == false; func = LLVM.LLVMGetNextFunction(func)) {
+			final String name = LLVM.LLVMGetValueName(func).getString();
+			if(LLVM.LLVMIsDeclaration(func) != 0) {
+				if(isSupported(name, (LLVM.LLVMGetIntrinsicID(func) != 0) ? SUPPORTED_INTRINSICS : SUPPORTED_FUNCTIONS) == false)
+					return false;
+			} else if(LLVM.LLVMGetLinkage(func) == LLVM.LLVMExternalLinkage) {
+				final MethodType type = toMethodType(getFunctionType(func));
+				if(type != null && (type.returnType() == ByteBuffer.class || type.parameterList().contains(ByteBuffer.class)))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	protected static boolean isSupported(String name, String[] supported) {
+		for (String prefix : supported)
+			if(name.equals(prefix) || (prefix.endsWith(".") && name.startsWith(prefix)))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Number of instructions of all functions defined in the module
+	 *
+	 * @param module LLVM module
+	 * @return instruction count
+	 */
+	public static long countInstructions(LLVMModuleRef module) {
+		long instructions = 0;
+		for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(module); func != null && func.isNull() == false; func = LLVM.LLVMGetNextFunction(func))
+			for (LLVMBasicBlockRef block = LLVM.LLVMGetFirstBasicBlock(func); block != null && block.isNull() == false; block = LLVM.LLVMGetNextBasicBlock(block))
+				for (LLVMValueRef inst = LLVM.LLVMGetFirstInstruction(block); inst != null && inst.isNull() == false; inst = LLVM.LLVMGetNextInstruction(inst))
+					instructions++;
+		return instructions;
+	}
+
+	/**
+	 * Machine code of the module, compiled on the first request
+	 *
+	 * @return compiled copy of the module
+	 * @throws IllegalStateException if the program is disposed
+	 * @throws RuntimeException if the copy could not be compiled
+	 */
+	protected LLVMProgram<Void> getCompiledCopy() {
+		LLVMProgram<Void> copy = compiledCopy;
+		if(copy != null)
+			return copy;
+
+		synchronized (compileLock) {
+			if(compiledCopy != null)
+				return compiledCopy;
+			if(isDisposed())
+				throw new IllegalStateException("The LLVM program is already disposed");
+			try {
+				copy = ((compiler == null) ? new LLVMCompiler(false, false) : compiler).compileLinkedCopy(module);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new RuntimeException(e.getMessage(), e);
+			}
+
+			// the copy must not be evicted while this program hands out its addresses
+			final LLVMProgram<Void> pinned = copy.pin();
+			addDisposeListener(() -> {
+				pinned.unpin();
+				pinned.dispose();
+			});
+			compiledCopy = copy;
+			return copy;
+		}
+	}
+
+	/**
+	 * Native address of the function in the compiled copy of the module
+	 *
+	 * @param funcName name of an accessible function
+	 * @return address of the function
+	 */
+	@Override
+	public long getAddress(String funcName) {
+		if(funcNameToType.containsKey(funcName) == false)
+			throw new IllegalArgumentException("There is no accessible function "+funcName+" in the LLVM program");
+		return getCompiledCopy().getSymbolAddress(funcName);
+	}
+
+	@Override
+	public long getSymbolAddress(String name) {
+		return getCompiledCopy().getSymbolAddress(name);
+	}
+
+	@Override
+	public Map<String, Long> getSymbols() {
+		return getCompiledCopy().getSymbols();
+	}
+
+	@Override
+	public Map<String, Long> getCodeSizes() {
+		return getCompiledCopy().getCodeSizes();
+	}
+
+	/**
+	 * Method handle running the function in the interpreter. The type of the handle is the signature
+	 * of the method in the invocation interface or the one derived from the LLVM function.
+	 *
+	 * @param funcName name of the function
+	 * @return method handle of the function
+	 * @throws IllegalArgumentException if there is no such function in the program
+	 */
+	@Override
+	public MethodHandle getMethodHandle(String funcName) {
+		final MethodType type = funcNameToType.get(funcName);
+		if(type == null)
+			throw new IllegalArgumentException("There is no accessible function "+funcName+" in the LLVM program");
+		lastUsed = System.nanoTime();
+		return funcNameToHandle.computeIfAbsent(funcName, name -> {
+			final Interpretation interpretation = new Interpretation(LLVM.LLVMGetNamedFunction(module, name), type);
+			return MethodHandles.insertArguments(INTERPRET, 0, this, interpretation)
+					.asCollector(Object[].class, type.parameterCount())
+					.asType(type);
+		});
+	}
+
+	/**
+	 * Run the function in the interpreter
+	 *
+	 * @param interpretation function and its types
+	 * @param args boxed arguments
+	 * @return boxed return value or null
+	 */
+	protected Object interpret(Interpretation interpretation, Object[] args) {
+		final LLVMGenericValueRef[] values = new LLVMGenericValueRef[args.length];
+		final List<Runnable> afterCall = new ArrayList<>();
+		try {
+			for (int i = 0; i < args.length; i++)
+				values[i] = toGenericValue(interpretation.paramTypes[i], interpretation.type.parameterType(i), args[i], afterCall);
+
+			final LLVMGenericValueRef result;
+			synchronized (this) {
+				result = LLVM.LLVMRunFunction(engine, interpretation.func, args.length, new PointerPointer<>(values));
+			}
+			try {
+				return fromGenericValue(interpretation.returnType, interpretation.type.returnType(), result);
+			} finally {
+				LLVM.LLVMDisposeGenericValue(result);
+			}
+		} finally {
+			for (LLVMGenericValueRef value : values)
+				if(value != null)
+					LLVM.LLVMDisposeGenericValue(value);
+			for (Runnable runnable : afterCall)
+				runnable.run();
+		}
+	}
+
+	/**
+	 * Convert an argument into a generic value of the interpreter. Arrays are copied into native memory,
+	 * the copy back and the release of the memory is added to afterCall.
+	 *
+	 * @param llvmType LLVM type of the parameter
+	 * @param javaType declared parameter type
+	 * @param arg argument value
+	 * @param afterCall actions after the call
+	 * @return generic value
+	 */
+	protected static LLVMGenericValueRef toGenericValue(LLVMTypeRef llvmType, Class<?> javaType, Object arg, List<Runnable> afterCall) {
+		if(javaType == boolean.class)
+			return LLVM.LLVMCreateGenericValueOfInt(llvmType, ((Boolean) arg) ? 1 : 0, 0);
+		else if(javaType == byte.class || javaType == short.class || javaType == int.class || javaType == long.class)
+			return LLVM.LLVMCreateGenericValueOfInt(llvmType, ((Number) arg).longValue(), 1);
+		else if(javaType == float.class || javaType == double.class)
+			return LLVM.LLVMCreateGenericValueOfFloat(llvmType, ((Number) arg).doubleValue());
+		else if(arg == null)
+			return toGenericPointer(0);
+		else if(javaType == Pointer.class) {
+			final Pointer pointer = (Pointer) arg;
+			if(pointer.isDirect() == false)
+				throw new IllegalArgumentException("Only direct pointers can be passed to native functions");
+			return toGenericPointer(pointer.address());
+		} else if(jnr.ffi.Struct.class.isAssignableFrom(javaType))
+			return toGenericPointer(jnr.ffi.Struct.getMemory((jnr.ffi.Struct) arg, ParameterFlags.DIRECT).address());
+		else if(arg instanceof Buffer)
+			return toGenericPointer(LLVMMethodHandleBinder.getAddress((Buffer) arg));
+		else if(LLVMMethodHandleBinder.isMemorySegment(javaType))
+			return toGenericPointer(LLVMMethodHandleBinder.getSegmentAddress(arg));
+		else if(javaType.isArray() && javaType.getComponentType().isPrimitive() && javaType != boolean[].class && javaType != char[].class)
+			return toGenericPointer(copyToNative(arg, afterCall));
+		throw new IllegalArgumentException("Unsupported parameter type "+javaType+" in interpreted function signature");
+	}
+
+	protected static LLVMGenericValueRef toGenericPointer(long start) {
+		return LLVM.LLVMCreateGenericValueOfPointer(new org.bytedeco.javacpp.Pointer() {{ this.address = start; }});
+	}
+
+	/**
+	 * Copy a primitive array into new native memory
+	 *
+	 * @param array primitive array
+	 * @param afterCall gets the copy back into the array and the release of the memory
+	 * @return address of the native memory
+	 */
+	protected static long copyToNative(Object array, List<Runnable> afterCall) {
+		final MemoryIO memory = MemoryIO.getInstance();
+		final int length = java.lang.reflect.Array.getLength(array);
+		final Class<?> componentType = array.getClass().getComponentType();
+		final long bytes = Math.max(1, (long) length * sizeOf(componentType));
+		final long address = memory.allocateMemory(bytes, true);
+		if(address == 0)
+			throw new OutOfMemoryError("Could not allocate "+bytes+" bytes for an array argument");
+		afterCall.add(() -> {
+			if(componentType == byte.class) memory.getByteArray(address, (byte[]) array, 0, length);
+			else if(componentType == short.class) memory.getShortArray(address, (short[]) array, 0, length);
+			else if(componentType == int.class) memory.getIntArray(address, (int[]) array, 0, length);
+			else if(componentType == long.class) memory.getLongArray(address, (long[]) array, 0, length);
+			else if(componentType == float.class) memory.getFloatArray(address, (float[]) array, 0, length);
+			else memory.getDoubleArray(address, (double[]) array, 0, length);
+			memory.freeMemory(address);
+		});
+
+		if(componentType == byte.class) memory.putByteArray(address, (byte[]) array, 0, length);
+		else if(componentType == short.class) memory.putShortArray(address, (short[]) array, 0, length);
+		else if(componentType == int.class) memory.putIntArray(address, (int[]) array, 0, length);
+		else if(componentType == long.class) memory.putLongArray(address, (long[]) array, 0, length);
+		else if(componentType == float.class) memory.putFloatArray(address, (float[]) array, 0, length);
+		else memory.putDoubleArray(address, (double[]) array, 0, length);
+		return address;
+	}
+
+	protected static int sizeOf(Class<?> primitiveType) {
+		if(primitiveType == byte.class) return Byte.BYTES;
+		if(primitiveType == short.class) return Short.BYTES;
+		if(primitiveType == int.class || primitiveType == float.class) return Integer.BYTES;
+		return Long.BYTES;
+	}
+
+	/**
+	 * Convert the generic value returned by the interpreter into the boxed java type
+	 *
+	 * @param llvmType LLVM return type
+	 * @param javaType declared return type
+	 * @param value generic value
+	 * @return boxed value or null
+	 */
+	protected static Object fromGenericValue(LLVMTypeRef llvmType, Class<?> javaType, LLVMGenericValueRef value) {
+		if(javaType == void.class)
+			return null;
+		else if(javaType == boolean.class)
+			return LLVM.LLVMGenericValueToInt(value, 0) != 0;
+		else if(javaType == byte.class)
+			return (byte) LLVM.LLVMGenericValueToInt(value, 1);
+		else if(javaType == short.class)
+			return (short) LLVM.LLVMGenericValueToInt(value, 1);
+		else if(javaType == int.class)
+			return (int) LLVM.LLVMGenericValueToInt(value, 1);
+		else if(javaType == long.class)
+			return LLVM.LLVMGenericValueToInt(value, 1);
+		else if(javaType == float.class)
+			return (float) LLVM.LLVMGenericValueToFloat(llvmType, value);
+		else if(javaType == double.class)
+			return LLVM.LLVMGenericValueToFloat(llvmType, value);
+		else if(javaType == Pointer.class) {
+			final org.bytedeco.javacpp.Pointer pointer = LLVM.LLVMGenericValueToPointer(value);
+			return Pointer.wrap(Runtime.getSystemRuntime(), (pointer == null) ? 0 : pointer.address());
+		}
+		throw new IllegalArgumentException("Unsupported return type "+javaType+" in interpreted function signature");
+	}
+
+	/**
+	 * A function of the module with its LLVM and java types
+	 *
+	 * @author Nico Hezel
+	 */
+	protected static class Interpretation {
+		protected final LLVMValueRef func;
+		protected final MethodType type;
+		protected final LLVMTypeRef returnType;
+		protected final LLVMTypeRef[] paramTypes;
+
+		protected Interpretation(LLVMValueRef func, MethodType type) {
+			this.func = func;
+			this.type = type;
+
+			final LLVMTypeRef funcType = getFunctionType(func);
+			this.returnType = LLVM.LLVMGetReturnType(funcType);
+			final PointerPointer<LLVMTypeRef> ptr = new PointerPointer<>(new LLVMTypeRef[LLVM.LLVMCountParamTypes(funcType)]);
+			LLVM.LLVMGetParamTypes(funcType, ptr);
+			this.paramTypes = new LLVMTypeRef[type.parameterCount()];
+			for (int i = 0; i < paramTypes.length; i++)
+				paramTypes[i] = new LLVMTypeRef(ptr.get(i));
+		}
+	}
+}
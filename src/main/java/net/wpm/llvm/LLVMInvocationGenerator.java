@@ -0,0 +1,158 @@
+package net.wpm.llvm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.function.Function;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Generates implementations of invocation interfaces which call a {@link MethodHandle} per method
+ * with invokeExact. Arguments and return values are neither boxed nor collected into arrays.
+ *
+ * Only one class is generated per interface, every program creates an instance of it with its own
+ * method handles. Like for JNR the interface must be public, since the class is defined by another
+ * class loader.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMInvocationGenerator {
+
+	protected static final String HANDLE_DESCRIPTOR = Type.getDescriptor(MethodHandle.class);
+
+	/**
+	 * Generated class of every interface
+	 */
+	protected static final ClassValue<Implementation> IMPLEMENTATIONS = new ClassValue<Implementation>() {
+		@Override
+		protected Implementation computeValue(Class<?> invocationInterface) {
+			return new Implementation(invocationInterface);
+		}
+	};
+
+	/**
+	 * Create an implementation of the interface, calling the method handle of the function
+	 * with the same name as the method. The handles are requested once.
+	 *
+	 * @param <T> invocation interface
+	 * @param invocationInterface public interface
+	 * @param funcNameToHandle method handle of a function, its type must match the method
+	 * @return implementation of the interface
+	 * @throws IllegalArgumentException if the interface is not public
+	 */
+	public static <T> T implement(Class<T> invocationInterface, Function<String, MethodHandle> funcNameToHandle) {
+		if(invocationInterface.isInterface() == false || Modifier.isPublic(invocationInterface.getModifiers()) == false)
+			throw new IllegalArgumentException(invocationInterface.getCanonicalName()+" is not a public interface");
+
+		final Implementation implementation = IMPLEMENTATIONS.get(invocationInterface);
+		final MethodHandle[] handles = new MethodHandle[implementation.methods.length];
+		for (int i = 0; i < handles.length; i++) {
+			final Method method = implementation.methods[i];
+			handles[i] = funcNameToHandle.apply(method.getName()).asType(MethodType.methodType(method.getReturnType(), method.getParameterTypes()));
+		}
+
+		try {
+			return invocationInterface.cast(implementation.constructor.newInstance((Object) handles));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Could not create an implementation of "+invocationInterface.getCanonicalName(), e);
+		}
+	}
+
+	/**
+	 * Generated class implementing an interface and the order of its method handles
+	 *
+	 * @author Nico Hezel
+	 */
+	protected static class Implementation {
+
+		protected final Method[] methods;
+		protected final Constructor<?> constructor;
+
+		protected Implementation(Class<?> invocationInterface) {
+			this.methods = invocationInterface.getMethods();
+			final String className = invocationInterface.getName() + "$LLVMInvocation";
+			final byte[] bytecode = generate(className.replace('.', '/'), invocationInterface, methods);
+			final ClassLoader parent = (invocationInterface.getClassLoader() == null) ? LLVMInvocationGenerator.class.getClassLoader() : invocationInterface.getClassLoader();
+			try {
+				this.constructor = new GeneratorClassLoader(parent).define(className, bytecode).getConstructor(MethodHandle[].class);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Defines the generated classes, one loader per interface
+	 *
+	 * @author Nico Hezel
+	 */
+	protected static class GeneratorClassLoader extends ClassLoader {
+
+		protected GeneratorClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		protected Class<?> define(String className, byte[] bytecode) {
+			return defineClass(className, bytecode, 0, bytecode.length);
+		}
+	}
+
+	/**
+	 * Bytecode of a final class with one final method handle field per method.
+	 * The constructor takes the handles as an array in the order of the methods.
+	 *
+	 * @param internalName class name with slashes
+	 * @param invocationInterface interface to implement
+	 * @param methods all methods of the interface
+	 * @return class file
+	 */
+	protected static byte[] generate(String internalName, Class<?> invocationInterface, Method[] methods) {
+		final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, internalName, null, "java/lang/Object", new String[] { Type.getInternalName(invocationInterface) });
+		for (int i = 0; i < methods.length; i++)
+			cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "handle" + i, HANDLE_DESCRIPTOR, null, null).visitEnd();
+
+		// public Impl(MethodHandle[] handles)
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "([" + HANDLE_DESCRIPTOR + ")V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		for (int i = 0; i < methods.length; i++) {
+			mv.visitVarInsn(Opcodes.ALOAD, 0);
+			mv.visitVarInsn(Opcodes.ALOAD, 1);
+			mv.visitLdcInsn(i);
+			mv.visitInsn(Opcodes.AALOAD);
+			mv.visitFieldInsn(Opcodes.PUTFIELD, internalName, "handle" + i, HANDLE_DESCRIPTOR);
+		}
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		// every method calls its handle with exactly the same signature
+		for (int i = 0; i < methods.length; i++) {
+			final String descriptor = Type.getMethodDescriptor(methods[i]);
+			mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, methods[i].getName(), descriptor, null, null);
+			mv.visitCode();
+			mv.visitVarInsn(Opcodes.ALOAD, 0);
+			mv.visitFieldInsn(Opcodes.GETFIELD, internalName, "handle" + i, HANDLE_DESCRIPTOR);
+			int slot = 1;
+			for (Type paramType : Type.getArgumentTypes(descriptor)) {
+				mv.visitVarInsn(paramType.getOpcode(Opcodes.ILOAD), slot);
+				slot += paramType.getSize();
+			}
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact", descriptor, false);
+			mv.visitInsn(Type.getReturnType(descriptor).getOpcode(Opcodes.IRETURN));
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+}
@@ -0,0 +1,723 @@
+package net.wpm.llvm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.LLVMBasicBlockRef;
+import org.bytedeco.llvm.LLVM.LLVMBuilderRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMTypeRef;
+import org.bytedeco.llvm.LLVM.LLVMUseRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+
+
+/**
+ * Fluent builder for LLVM modules with common kernel patterns like counted loops, reductions,
+ * conditionals, array indexing and vector operations. All the basic blocks and phi nodes
+ * are managed by the builder.
+ * <br><br>
+ * A matrix multiplication looks like this:
+ *
+ * <pre>
+ * {@code
+ * new LLVMKernelBuilder<>("matmul_module", MatMulInterface.class)
+ *	.function("matmul", voidType(), params(pointerType(floatType()), pointerType(floatType()), pointerType(floatType()), int32Type(), int32Type(), int32Type()), code -> {
+ *		LLVMValueRef a = code.param(0), b = code.param(1), c = code.param(2);
+ *		LLVMValueRef M = code.param(3), N = code.param(4), K = code.param(5);
+ *		code.forLoop(code.constant(0), M, m ->
+ *			code.forLoop(code.constant(0), N, n -> {
+ *				LLVMValueRef s = code.reduce(code.constant(0), K, code.constant(0f), (k, acc) ->
+ *					code.add(acc, code.mul(code.load(a, code.add(code.mul(m, K), k)), code.load(b, code.add(code.mul(k, N), n)))));
+ *				code.store(c, code.add(code.mul(m, N), n), s);
+ *			}));
+ *	});
+ * }
+ * </pre>
+ *
+ * The arithmetic and comparison methods choose the integer or floating point instruction
+ * depending on the type of the operands, this includes vector types.
+ *
+ * @author Nico Hezel
+ *
+ * @param <T> invocation interface
+ */
+public class LLVMKernelBuilder<T> implements LLVMModuleBuilder<T> {
+
+	/**
+	 * Generates the instructions of a function
+	 */
+	@FunctionalInterface
+	public static interface FunctionBody {
+		public void build(Code code);
+	}
+
+	/**
+	 * Generates the instructions of a loop iteration
+	 */
+	@FunctionalInterface
+	public static interface LoopBody {
+		public void build(LLVMValueRef index);
+	}
+
+	/**
+	 * Generates the instructions of a loop iteration and returns the values for the next iteration
+	 */
+	@FunctionalInterface
+	public static interface LoopCarriedBody {
+		public LLVMValueRef[] build(LLVMValueRef index, LLVMValueRef[] carried);
+	}
+
+	/**
+	 * Generates the instructions of a loop iteration and returns the new accumulator value
+	 */
+	@FunctionalInterface
+	public static interface ReductionBody {
+		public LLVMValueRef build(LLVMValueRef index, LLVMValueRef accumulator);
+	}
+
+	/**
+	 * Signature and body of a function in the module
+	 */
+	protected static class FunctionDefinition {
+		protected final String name;
+		protected final LLVMTypeRef returnType;
+		protected final LLVMTypeRef[] paramTypes;
+		protected final FunctionBody body;
+
+		protected FunctionDefinition(String name, LLVMTypeRef returnType, LLVMTypeRef[] paramTypes, FunctionBody body) {
+			this.name = name;
+			this.returnType = returnType;
+			this.paramTypes = paramTypes;
+			this.body = body;
+		}
+	}
+
+	protected final String moduleName;
+	protected final Class<T> invocationInterface;
+	protected final List<FunctionDefinition> functions;
+
+	/**
+	 * An empty module, add functions with {@link #function(String, LLVMTypeRef, LLVMTypeRef[], FunctionBody)}
+	 *
+	 * @param moduleName name of the LLVM module
+	 * @param invocationInterface invocation interface
+	 */
+	public LLVMKernelBuilder(String moduleName, Class<T> invocationInterface) {
+		this.moduleName = moduleName;
+		this.invocationInterface = invocationInterface;
+		this.functions = new ArrayList<>();
+	}
+
+	/**
+	 * Add a function to the module. The body is generated when the module gets build.
+	 * Functions can call each other regardless of the order they are added.
+	 *
+	 * @param name function name
+	 * @param returnType return type of the function
+	 * @param paramTypes parameter types see {@link #params(LLVMTypeRef...)}
+	 * @param body generates the instructions of the function
+	 * @return this builder
+	 */
+	public LLVMKernelBuilder<T> function(String name, LLVMTypeRef returnType, LLVMTypeRef[] paramTypes, FunctionBody body) {
+		functions.add(new FunctionDefinition(name, returnType, paramTypes, body));
+		return this;
+	}
+
+	/**
+	 * Declare an external function, which can be called by the functions of the module.
+	 * The address of the function must be provided at compile time see {@link LLVMSymbols}.
+	 *
+	 * @param name function name
+	 * @param returnType return type of the function
+	 * @param paramTypes parameter types see {@link #params(LLVMTypeRef...)}
+	 * @return this builder
+	 */
+	public LLVMKernelBuilder<T> declare(String name, LLVMTypeRef returnType, LLVMTypeRef[] paramTypes) {
+		functions.add(new FunctionDefinition(name, returnType, paramTypes, null));
+		return this;
+	}
+
+	@Override
+	public LLVMModuleRef build() {
+		final LLVMModuleRef module = LLVM.LLVMModuleCreateWithName(moduleName);
+
+		// declare all functions first, so they can call each other
+		final LLVMValueRef[] funcs = new LLVMValueRef[functions.size()];
+		for (int i = 0; i < funcs.length; i++) {
+			final FunctionDefinition def = functions.get(i);
+			final LLVMTypeRef funcType = LLVM.LLVMFunctionType(def.returnType, new PointerPointer<>(def.paramTypes), def.paramTypes.length, 0);
+			funcs[i] = LLVM.LLVMAddFunction(module, def.name, funcType);
+			LLVM.LLVMSetFunctionCallConv(funcs[i], LLVM.LLVMCCallConv);
+		}
+
+		final LLVMBuilderRef builder = LLVM.LLVMCreateBuilder();
+		try {
+			for (int i = 0; i < funcs.length; i++) {
+				final FunctionDefinition def = functions.get(i);
+				if(def.body == null)
+					continue;
+				LLVM.LLVMPositionBuilderAtEnd(builder, LLVM.LLVMAppendBasicBlock(funcs[i], "entry"));
+				def.body.build(new Code(module, funcs[i], builder));
+
+				// implicit return at the end of void functions
+				final LLVMBasicBlockRef last = LLVM.LLVMGetInsertBlock(builder);
+				final LLVMValueRef terminator = LLVM.LLVMGetBasicBlockTerminator(last);
+				if(terminator == null || terminator.isNull()) {
+					final LLVMUseRef firstUse = LLVM.LLVMGetFirstUse(LLVM.LLVMBasicBlockAsValue(last));
+					if(LLVM.LLVMGetTypeKind(def.returnType) == LLVM.LLVMVoidTypeKind)
+						LLVM.LLVMBuildRetVoid(builder);
+
+					// all branches of a conditional returned, nothing jumps to the merge block
+					else if((firstUse == null || firstUse.isNull()) && LLVM.LLVMGetEntryBasicBlock(funcs[i]).equals(last) == false)
+						LLVM.LLVMBuildUnreachable(builder);
+				}
+			}
+		} finally {
+			LLVM.LLVMDisposeBuilder(builder);
+		}
+
+		return module;
+	}
+
+	@Override
+	public Class<T> getInvocationInterface() {
+		return invocationInterface;
+	}
+
+
+
+
+	// --------------------------------------------------------------------------------------------------------------
+	// ----------------------------------------------- Types --------------------------------------------------------
+	// --------------------------------------------------------------------------------------------------------------
+
+	public static LLVMTypeRef[] params(LLVMTypeRef ... types) {
+		return types;
+	}
+
+	public static LLVMTypeRef voidType() {
+		return LLVM.LLVMVoidType();
+	}
+
+	public static LLVMTypeRef boolType() {
+		return LLVM.LLVMInt1Type();
+	}
+
+	public static LLVMTypeRef int8Type() {
+		return LLVM.LLVMInt8Type();
+	}
+
+	public static LLVMTypeRef int16Type() {
+		return LLVM.LLVMInt16Type();
+	}
+
+	public static LLVMTypeRef int32Type() {
+		return LLVM.LLVMInt32Type();
+	}
+
+	public static LLVMTypeRef int64Type() {
+		return LLVM.LLVMInt64Type();
+	}
+
+	public static LLVMTypeRef floatType() {
+		return LLVM.LLVMFloatType();
+	}
+
+	public static LLVMTypeRef doubleType() {
+		return LLVM.LLVMDoubleType();
+	}
+
+	public static LLVMTypeRef pointerType(LLVMTypeRef elementType) {
+		return LLVM.LLVMPointerType(elementType, 0);
+	}
+
+	public static LLVMTypeRef vectorType(LLVMTypeRef elementType, int width) {
+		return LLVM.LLVMVectorType(elementType, width);
+	}
+
+	public static LLVMTypeRef structType(LLVMTypeRef ... fieldTypes) {
+		return LLVM.LLVMStructType(new PointerPointer<>(fieldTypes), fieldTypes.length, 0);
+	}
+
+
+
+
+	// --------------------------------------------------------------------------------------------------------------
+	// ----------------------------------------------- Code ---------------------------------------------------------
+	// --------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Generates the instructions of a single function at the current position of the builder.
+	 *
+	 * @author Nico Hezel
+	 */
+	public static class Code {
+
+		protected final LLVMModuleRef module;
+		protected final LLVMValueRef function;
+		protected final LLVMBuilderRef builder;
+
+		protected Code(LLVMModuleRef module, LLVMValueRef function, LLVMBuilderRef builder) {
+			this.module = module;
+			this.function = function;
+			this.builder = builder;
+		}
+
+		public LLVMModuleRef getModule() {
+			return module;
+		}
+
+		public LLVMValueRef getFunction() {
+			return function;
+		}
+
+		/**
+		 * The underlying LLVM builder, to generate instructions which are not covered by this class.
+		 *
+		 * @return LLVM builder
+		 */
+		public LLVMBuilderRef getBuilder() {
+			return builder;
+		}
+
+		public LLVMValueRef param(int index) {
+			return LLVM.LLVMGetParam(function, index);
+		}
+
+		// ------------------------------------------- constants ------------------------------------------------
+
+		public LLVMValueRef constant(boolean value) {
+			return LLVM.LLVMConstInt(boolType(), value ? 1 : 0, 0);
+		}
+
+		public LLVMValueRef constant(int value) {
+			return LLVM.LLVMConstInt(int32Type(), value, 1);
+		}
+
+		public LLVMValueRef constant(long value) {
+			return LLVM.LLVMConstInt(int64Type(), value, 1);
+		}
+
+		public LLVMValueRef constant(float value) {
+			return LLVM.LLVMConstReal(floatType(), value);
+		}
+
+		public LLVMValueRef constant(double value) {
+			return LLVM.LLVMConstReal(doubleType(), value);
+		}
+
+		// ------------------------------------------- arithmetic -----------------------------------------------
+
+		public LLVMValueRef add(LLVMValueRef a, LLVMValueRef b) {
+			return isFloatingPoint(a) ? LLVM.LLVMBuildFAdd(builder, a, b, "") : LLVM.LLVMBuildAdd(builder, a, b, "");
+		}
+
+		public LLVMValueRef sub(LLVMValueRef a, LLVMValueRef b) {
+			return isFloatingPoint(a) ? LLVM.LLVMBuildFSub(builder, a, b, "") : LLVM.LLVMBuildSub(builder, a, b, "");
+		}
+
+		public LLVMValueRef mul(LLVMValueRef a, LLVMValueRef b) {
+			return isFloatingPoint(a) ? LLVM.LLVMBuildFMul(builder, a, b, "") : LLVM.LLVMBuildMul(builder, a, b, "");
+		}
+
+		/**
+		 * Signed integer or floating point division
+		 */
+		public LLVMValueRef div(LLVMValueRef a, LLVMValueRef b) {
+			return isFloatingPoint(a) ? LLVM.LLVMBuildFDiv(builder, a, b, "") : LLVM.LLVMBuildSDiv(builder, a, b, "");
+		}
+
+		/**
+		 * Signed integer or floating point remainder
+		 */
+		public LLVMValueRef rem(LLVMValueRef a, LLVMValueRef b) {
+			return isFloatingPoint(a) ? LLVM.LLVMBuildFRem(builder, a, b, "") : LLVM.LLVMBuildSRem(builder, a, b, "");
+		}
+
+		public LLVMValueRef min(LLVMValueRef a, LLVMValueRef b) {
+			return select(lt(a, b), a, b);
+		}
+
+		public LLVMValueRef max(LLVMValueRef a, LLVMValueRef b) {
+			return select(gt(a, b), a, b);
+		}
+
+		// ------------------------------------------- comparison -----------------------------------------------
+
+		public LLVMValueRef lt(LLVMValueRef a, LLVMValueRef b) {
+			return compare(a, b, LLVM.LLVMIntSLT, LLVM.LLVMRealOLT);
+		}
+
+		public LLVMValueRef le(LLVMValueRef a, LLVMValueRef b) {
+			return compare(a, b, LLVM.LLVMIntSLE, LLVM.LLVMRealOLE);
+		}
+
+		public LLVMValueRef gt(LLVMValueRef a, LLVMValueRef b) {
+			return compare(a, b, LLVM.LLVMIntSGT, LLVM.LLVMRealOGT);
+		}
+
+		public LLVMValueRef ge(LLVMValueRef a, LLVMValueRef b) {
+			return compare(a, b, LLVM.LLVMIntSGE, LLVM.LLVMRealOGE);
+		}
+
+		public LLVMValueRef eq(LLVMValueRef a, LLVMValueRef b) {
+			return compare(a, b, LLVM.LLVMIntEQ, LLVM.LLVMRealOEQ);
+		}
+
+		public LLVMValueRef ne(LLVMValueRef a, LLVMValueRef b) {
+			return compare(a, b, LLVM.LLVMIntNE, LLVM.LLVMRealONE);
+		}
+
+		protected LLVMValueRef compare(LLVMValueRef a, LLVMValueRef b, int intPredicate, int realPredicate) {
+			return isFloatingPoint(a) ? LLVM.LLVMBuildFCmp(builder, realPredicate, a, b, "") : LLVM.LLVMBuildICmp(builder, intPredicate, a, b, "");
+		}
+
+		public LLVMValueRef and(LLVMValueRef a, LLVMValueRef b) {
+			return LLVM.LLVMBuildAnd(builder, a, b, "");
+		}
+
+		public LLVMValueRef or(LLVMValueRef a, LLVMValueRef b) {
+			return LLVM.LLVMBuildOr(builder, a, b, "");
+		}
+
+		public LLVMValueRef not(LLVMValueRef a) {
+			return LLVM.LLVMBuildNot(builder, a, "");
+		}
+
+		public LLVMValueRef select(LLVMValueRef condition, LLVMValueRef a, LLVMValueRef b) {
+			return LLVM.LLVMBuildSelect(builder, condition, a, b, "");
+		}
+
+		/**
+		 * Convert between integer and floating point types of any width.
+		 * Integers are treated as signed values.
+		 *
+		 * @param value to convert
+		 * @param type target type
+		 * @return converted value
+		 */
+		public LLVMValueRef convert(LLVMValueRef value, LLVMTypeRef type) {
+			final LLVMTypeRef valueType = LLVM.LLVMTypeOf(value);
+			final boolean fromFloat = isFloatingPoint(valueType);
+			final boolean toFloat = isFloatingPoint(type);
+			if(fromFloat && toFloat)
+				return LLVM.LLVMBuildFPCast(builder, value, type, "");
+			else if(fromFloat)
+				return LLVM.LLVMBuildFPToSI(builder, value, type, "");
+			else if(toFloat)
+				return LLVM.LLVMBuildSIToFP(builder, value, type, "");
+			return LLVM.LLVMBuildIntCast2(builder, value, type, 1, "");
+		}
+
+		// ------------------------------------------- memory ---------------------------------------------------
+
+		/**
+		 * Address of the element at the index, like &amp;ptr[index] in C
+		 *
+		 * @param ptr pointer to the first element
+		 * @param index element index
+		 * @return pointer to the element
+		 */
+		public LLVMValueRef elementPointer(LLVMValueRef ptr, LLVMValueRef index) {
+			return LLVM.LLVMBuildInBoundsGEP(builder, ptr, new PointerPointer<>(new LLVMValueRef[] { index }), 1, "");
+		}
+
+		public LLVMValueRef load(LLVMValueRef ptr, LLVMValueRef index) {
+			return LLVM.LLVMBuildLoad(builder, elementPointer(ptr, index), "");
+		}
+
+		public void store(LLVMValueRef ptr, LLVMValueRef index, LLVMValueRef value) {
+			LLVM.LLVMBuildStore(builder, value, elementPointer(ptr, index));
+		}
+
+		/**
+		 * Load consecutive elements beginning at ptr[index] as a vector.
+		 * The address only needs to be aligned to the element size.
+		 *
+		 * @param ptr pointer to the first element
+		 * @param index element index
+		 * @param width number of elements
+		 * @return vector value
+		 */
+		public LLVMValueRef loadVector(LLVMValueRef ptr, LLVMValueRef index, int width) {
+			final LLVMTypeRef elementType = LLVM.LLVMGetElementType(LLVM.LLVMTypeOf(ptr));
+			final LLVMValueRef vectorPtr = LLVM.LLVMBuildBitCast(builder, elementPointer(ptr, index), pointerType(vectorType(elementType, width)), "");
+			final LLVMValueRef load = LLVM.LLVMBuildLoad(builder, vectorPtr, "");
+			LLVM.LLVMSetAlignment(load, elementAlignment(elementType));
+			return load;
+		}
+
+		/**
+		 * Store the vector to consecutive elements beginning at ptr[index]
+		 *
+		 * @param ptr pointer to the first element
+		 * @param index element index
+		 * @param vector vector value
+		 */
+		public void storeVector(LLVMValueRef ptr, LLVMValueRef index, LLVMValueRef vector) {
+			final LLVMTypeRef elementType = LLVM.LLVMGetElementType(LLVM.LLVMTypeOf(ptr));
+			final LLVMValueRef vectorPtr = LLVM.LLVMBuildBitCast(builder, elementPointer(ptr, index), pointerType(LLVM.LLVMTypeOf(vector)), "");
+			final LLVMValueRef store = LLVM.LLVMBuildStore(builder, vector, vectorPtr);
+			LLVM.LLVMSetAlignment(store, elementAlignment(elementType));
+		}
+
+		protected static int elementAlignment(LLVMTypeRef elementType) {
+			switch (LLVM.LLVMGetTypeKind(elementType)) {
+			case LLVM.LLVMFloatTypeKind:
+				return 4;
+			case LLVM.LLVMDoubleTypeKind:
+				return 8;
+			case LLVM.LLVMIntegerTypeKind:
+				return Math.max(1, LLVM.LLVMGetIntTypeWidth(elementType) / 8);
+			default:
+				return 1;
+			}
+		}
+
+		// ------------------------------------------- vectors --------------------------------------------------
+
+		/**
+		 * Vector with all elements set to the scalar value
+		 *
+		 * @param value scalar
+		 * @param width number of elements
+		 * @return vector value
+		 */
+		public LLVMValueRef splat(LLVMValueRef value, int width) {
+			final LLVMTypeRef type = vectorType(LLVM.LLVMTypeOf(value), width);
+			final LLVMValueRef single = LLVM.LLVMBuildInsertElement(builder, LLVM.LLVMGetUndef(type), value, constant(0), "");
+			final LLVMValueRef zeroMask = LLVM.LLVMConstNull(vectorType(int32Type(), width));
+			return LLVM.LLVMBuildShuffleVector(builder, single, LLVM.LLVMGetUndef(type), zeroMask, "");
+		}
+
+		public LLVMValueRef extract(LLVMValueRef vector, int index) {
+			return LLVM.LLVMBuildExtractElement(builder, vector, constant(index), "");
+		}
+
+		/**
+		 * Struct value with the given fields, e.g. to return multiple values at once
+		 *
+		 * @param fields field values
+		 * @return struct value
+		 */
+		public LLVMValueRef struct(LLVMValueRef ... fields) {
+			final LLVMTypeRef[] fieldTypes = new LLVMTypeRef[fields.length];
+			for (int i = 0; i < fields.length; i++)
+				fieldTypes[i] = LLVM.LLVMTypeOf(fields[i]);
+			LLVMValueRef struct = LLVM.LLVMGetUndef(structType(fieldTypes));
+			for (int i = 0; i < fields.length; i++)
+				struct = LLVM.LLVMBuildInsertValue(builder, struct, fields[i], i, "");
+			return struct;
+		}
+
+		public LLVMValueRef field(LLVMValueRef struct, int index) {
+			return LLVM.LLVMBuildExtractValue(builder, struct, index, "");
+		}
+
+		/**
+		 * Sum of all elements in the vector
+		 *
+		 * @param vector vector value
+		 * @return scalar sum
+		 */
+		public LLVMValueRef reduceAdd(LLVMValueRef vector) {
+			final int width = LLVM.LLVMGetVectorSize(LLVM.LLVMTypeOf(vector));
+			LLVMValueRef sum = extract(vector, 0);
+			for (int i = 1; i < width; i++)
+				sum = add(sum, extract(vector, i));
+			return sum;
+		}
+
+		// ------------------------------------------- control flow ---------------------------------------------
+
+		/**
+		 * Call another function of the module
+		 *
+		 * @param functionName name of the function
+		 * @param args arguments
+		 * @return return value of the call
+		 */
+		public LLVMValueRef call(String functionName, LLVMValueRef ... args) {
+			final LLVMValueRef callee = LLVM.LLVMGetNamedFunction(module, functionName);
+			if(callee == null || callee.isNull())
+				throw new IllegalArgumentException("Unknown function "+functionName+" in module");
+			return LLVM.LLVMBuildCall(builder, callee, new PointerPointer<>(args), args.length, "");
+		}
+
+		/**
+		 * Counted loop for (index = start; index &lt; end; index++)
+		 *
+		 * @param start first index
+		 * @param end exclusive last index
+		 * @param body generates the instructions of an iteration
+		 */
+		public void forLoop(LLVMValueRef start, LLVMValueRef end, LoopBody body) {
+			loop(start, end, LLVM.LLVMConstInt(LLVM.LLVMTypeOf(start), 1, 1), new LLVMValueRef[0], (index, carried) -> {
+				body.build(index);
+				return carried;
+			});
+		}
+
+		/**
+		 * Counted loop which accumulates a value, e.g. a sum
+		 *
+		 * @param start first index
+		 * @param end exclusive last index
+		 * @param init initial value of the accumulator
+		 * @param body computes the new accumulator value
+		 * @return final value of the accumulator
+		 */
+		public LLVMValueRef reduce(LLVMValueRef start, LLVMValueRef end, LLVMValueRef init, ReductionBody body) {
+			return loop(start, end, LLVM.LLVMConstInt(LLVM.LLVMTypeOf(start), 1, 1), new LLVMValueRef[] { init }, (index, carried) -> {
+				return new LLVMValueRef[] { body.build(index, carried[0]) };
+			})[0];
+		}
+
+		/**
+		 * Counted loop for (index = start; index &lt; end; index += step) with any number of loop-carried values.
+		 * The phi nodes of the index and the carried values are created by this method.
+		 *
+		 * @param start first index
+		 * @param end exclusive last index
+		 * @param step increment of the index
+		 * @param init initial values of the carried values
+		 * @param body computes the carried values for the next iteration
+		 * @return the carried values after the last iteration
+		 */
+		public LLVMValueRef[] loop(LLVMValueRef start, LLVMValueRef end, LLVMValueRef step, LLVMValueRef[] init, LoopCarriedBody body) {
+			final LLVMBasicBlockRef preheaderBB = LLVM.LLVMGetInsertBlock(builder);
+			final LLVMBasicBlockRef headerBB = LLVM.LLVMAppendBasicBlock(function, "loop");
+			final LLVMBasicBlockRef bodyBB = LLVM.LLVMAppendBasicBlock(function, "body");
+			final LLVMBasicBlockRef exitBB = LLVM.LLVMAppendBasicBlock(function, "exit");
+			LLVM.LLVMBuildBr(builder, headerBB);
+
+			// index and carried values
+			LLVM.LLVMPositionBuilderAtEnd(builder, headerBB);
+			final LLVMValueRef index = LLVM.LLVMBuildPhi(builder, LLVM.LLVMTypeOf(start), "i");
+			LLVM.LLVMAddIncoming(index, start, preheaderBB, 1);
+			final LLVMValueRef[] carried = new LLVMValueRef[init.length];
+			for (int i = 0; i < init.length; i++) {
+				carried[i] = LLVM.LLVMBuildPhi(builder, LLVM.LLVMTypeOf(init[i]), "");
+				LLVM.LLVMAddIncoming(carried[i], init[i], preheaderBB, 1);
+			}
+			LLVM.LLVMBuildCondBr(builder, lt(index, end), bodyBB, exitBB);
+
+			// the body might add more blocks, the phi nodes need the last one
+			LLVM.LLVMPositionBuilderAtEnd(builder, bodyBB);
+			final LLVMValueRef[] next = body.build(index, carried.clone());
+			if(next.length != carried.length)
+				throw new IllegalArgumentException("Expected "+carried.length+" carried values from the loop body but got "+next.length);
+			final LLVMBasicBlockRef latchBB = LLVM.LLVMGetInsertBlock(builder);
+			final LLVMValueRef terminator = LLVM.LLVMGetBasicBlockTerminator(latchBB);
+			if(terminator == null || terminator.isNull()) {
+				final LLVMValueRef nextIndex = LLVM.LLVMBuildAdd(builder, index, step, "");
+				LLVM.LLVMBuildBr(builder, headerBB);
+				LLVM.LLVMAddIncoming(index, nextIndex, latchBB, 1);
+				for (int i = 0; i < carried.length; i++)
+					LLVM.LLVMAddIncoming(carried[i], next[i], latchBB, 1);
+			}
+
+			// the header dominates the exit, its phi nodes hold the final values
+			LLVM.LLVMPositionBuilderAtEnd(builder, exitBB);
+			return carried;
+		}
+
+		/**
+		 * Execute the instructions only if the condition is true
+		 *
+		 * @param condition i1 value
+		 * @param then generates the instructions of the branch
+		 */
+		public void ifThen(LLVMValueRef condition, Runnable then) {
+			final LLVMBasicBlockRef thenBB = LLVM.LLVMAppendBasicBlock(function, "then");
+			final LLVMBasicBlockRef mergeBB = LLVM.LLVMAppendBasicBlock(function, "merge");
+			LLVM.LLVMBuildCondBr(builder, condition, thenBB, mergeBB);
+
+			LLVM.LLVMPositionBuilderAtEnd(builder, thenBB);
+			then.run();
+			branchIfOpen(mergeBB);
+
+			LLVM.LLVMPositionBuilderAtEnd(builder, mergeBB);
+		}
+
+		/**
+		 * Conditional with a result value, like condition ? then : otherwise in C but
+		 * each branch can contain any number of instructions.
+		 *
+		 * @param condition i1 value
+		 * @param then generates the instructions of the true branch, returns its value or null
+		 * @param otherwise generates the instructions of the false branch, returns its value or null
+		 * @return value of the executed branch or null if the branches do not return values
+		 */
+		public LLVMValueRef ifThenElse(LLVMValueRef condition, Supplier<LLVMValueRef> then, Supplier<LLVMValueRef> otherwise) {
+			final LLVMBasicBlockRef thenBB = LLVM.LLVMAppendBasicBlock(function, "then");
+			final LLVMBasicBlockRef elseBB = LLVM.LLVMAppendBasicBlock(function, "else");
+			final LLVMBasicBlockRef mergeBB = LLVM.LLVMAppendBasicBlock(function, "merge");
+			LLVM.LLVMBuildCondBr(builder, condition, thenBB, elseBB);
+
+			LLVM.LLVMPositionBuilderAtEnd(builder, thenBB);
+			final LLVMValueRef thenValue = then.get();
+			final LLVMBasicBlockRef thenEndBB = LLVM.LLVMGetInsertBlock(builder);
+			final boolean thenMerges = branchIfOpen(mergeBB);
+
+			LLVM.LLVMPositionBuilderAtEnd(builder, elseBB);
+			final LLVMValueRef elseValue = otherwise.get();
+			final LLVMBasicBlockRef elseEndBB = LLVM.LLVMGetInsertBlock(builder);
+			final boolean elseMerges = branchIfOpen(mergeBB);
+
+			// a branch which returned early does not contribute to the result
+			LLVM.LLVMPositionBuilderAtEnd(builder, mergeBB);
+			if((thenMerges && thenValue == null) || (elseMerges && elseValue == null) || (thenMerges == false && elseMerges == false))
+				return null;
+			final LLVMValueRef result = LLVM.LLVMBuildPhi(builder, LLVM.LLVMTypeOf(thenMerges ? thenValue : elseValue), "");
+			if(thenMerges)
+				LLVM.LLVMAddIncoming(result, thenValue, thenEndBB, 1);
+			if(elseMerges)
+				LLVM.LLVMAddIncoming(result, elseValue, elseEndBB, 1);
+			return result;
+		}
+
+		/**
+		 * Branch to the target unless the current block already ends with a terminator, e.g. a return.
+		 *
+		 * @param target block to continue with
+		 * @return true if the branch was added
+		 */
+		protected boolean branchIfOpen(LLVMBasicBlockRef target) {
+			final LLVMValueRef terminator = LLVM.LLVMGetBasicBlockTerminator(LLVM.LLVMGetInsertBlock(builder));
+			if(terminator != null && terminator.isNull() == false)
+				return false;
+			LLVM.LLVMBuildBr(builder, target);
+			return true;
+		}
+
+		/**
+		 * Return from the function. Must be the last instruction of the function body.
+		 *
+		 * @param value return value
+		 */
+		public void ret(LLVMValueRef value) {
+			LLVM.LLVMBuildRet(builder, value);
+		}
+
+		public void retVoid() {
+			LLVM.LLVMBuildRetVoid(builder);
+		}
+
+		// ------------------------------------------- helper ---------------------------------------------------
+
+		protected static boolean isFloatingPoint(LLVMValueRef value) {
+			return isFloatingPoint(LLVM.LLVMTypeOf(value));
+		}
+
+		protected static boolean isFloatingPoint(LLVMTypeRef type) {
+			int kind = LLVM.LLVMGetTypeKind(type);
+			if(kind == LLVM.LLVMVectorTypeKind)
+				kind = LLVM.LLVMGetTypeKind(LLVM.LLVMGetElementType(type));
+			return kind == LLVM.LLVMFloatTypeKind || kind == LLVM.LLVMDoubleTypeKind || kind == LLVM.LLVMHalfTypeKind;
+		}
+	}
+}
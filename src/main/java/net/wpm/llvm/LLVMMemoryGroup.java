@@ -0,0 +1,159 @@
+package net.wpm.llvm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts the native memory of the programs compiled for a tenant or another group of programs, see
+ * {@link LLVMCompiler#setMemoryGroup(LLVMMemoryGroup)}. The memory is measured by the {@link LLVMMemoryManager}
+ * of the compiler: the pages holding code and read-only data plus the writable data of every program.
+ *
+ * A group can have a quota. It gets checked after a new program got compiled, before the program is handed
+ * to the caller. If the group exceeds its quota, the least recently used programs of the group are evicted or,
+ * without eviction, the new program gets rejected. A program is used when its invocation interface or one of
+ * its method handles is requested or when it gets pinned. Evicted programs are disposed and must no longer be 
+ * called, callers can get notified via {@link LLVMProgram#addDisposeListener(Runnable)}.
+ *
+ * Calls through method handles are not tracked. Code which caches a method handle must pin the program with 
+ * {@link LLVMProgram#pin()} as long as it calls the handle. Pinned programs and programs retained by other 
+ * programs, e.g. the first tier of a {@link LLVMTieredProgram} or the providers of a {@link LLVMFunctionLibrary},
+ * are never evicted since their memory could not be freed. If no other program can be evicted, the new program 
+ * gets rejected.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMMemoryGroup {
+
+	public static final long UNLIMITED = Long.MAX_VALUE;
+
+	protected final String name;
+	protected final boolean evictLeastRecentlyUsed;
+	protected final AtomicLong reservedBytes;
+	protected final Set<LLVMProgram<?>> programs;
+	protected volatile long quota;
+
+	/**
+	 * Group without a quota, only accounts the memory
+	 *
+	 * @param name of the group, e.g. the tenant
+	 */
+	public LLVMMemoryGroup(String name) {
+		this(name, UNLIMITED, false);
+	}
+
+	/**
+	 * @param name of the group, e.g. the tenant
+	 * @param quota maximal number of bytes of all programs of the group
+	 * @param evictLeastRecentlyUsed dispose the least recently used programs if the quota gets exceeded, otherwise the new program is rejected
+	 */
+	public LLVMMemoryGroup(String name, long quota, boolean evictLeastRecentlyUsed) {
+		if(quota < 0)
+			throw new IllegalArgumentException("The quota must not be negative, got "+quota);
+		this.name = name;
+		this.quota = quota;
+		this.evictLeastRecentlyUsed = evictLeastRecentlyUsed;
+		this.reservedBytes = new AtomicLong();
+		this.programs = new LinkedHashSet<>();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getQuota() {
+		return quota;
+	}
+
+	/**
+	 * Change the quota, it gets checked with the next compilation
+	 *
+	 * @param quota maximal number of bytes of all programs of the group
+	 */
+	public void setQuota(long quota) {
+		if(quota < 0)
+			throw new IllegalArgumentException("The quota must not be negative, got "+quota);
+		this.quota = quota;
+	}
+
+	public boolean isEvictingLeastRecentlyUsed() {
+		return evictLeastRecentlyUsed;
+	}
+
+	/**
+	 * Native memory of all programs of the group, including disposed programs which are still retained by others
+	 *
+	 * @return number of bytes
+	 */
+	public long getReservedBytes() {
+		return reservedBytes.get();
+	}
+
+	/**
+	 * Programs of the group which are not disposed or evicted
+	 *
+	 * @return copy of the programs
+	 */
+	public synchronized List<LLVMProgram<?>> getPrograms() {
+		return new ArrayList<>(programs);
+	}
+
+	/**
+	 * Called by the {@link LLVMMemoryManager} whenever memory of the group is allocated or freed
+	 *
+	 * @param bytes positive or negative number of bytes
+	 */
+	protected void addReserved(long bytes) {
+		reservedBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Add a new program to the group and enforce the quota.
+	 *
+	 * @param program new program whose machine code has been generated
+	 * @throws IllegalStateException if the program got rejected because the group exceeds its quota
+	 */
+	protected void add(LLVMProgram<?> program) {
+		synchronized (this) {
+			programs.add(program);
+		}
+		program.addDisposeListener(() -> remove(program));
+
+		// the programs are disposed without holding the lock, the memory manager updates the group while freeing
+		while(reservedBytes.get() > quota) {
+			final LLVMProgram<?> victim = evictLeastRecentlyUsed ? removeLeastRecentlyUsed(program) : null;
+			if(victim == null) {
+				remove(program);
+				program.dispose();
+				throw new IllegalStateException("The memory group "+name+" exceeds its quota of "+quota+" bytes with "+reservedBytes.get()+" bytes");
+			}
+			victim.dispose();
+		}
+	}
+
+	/**
+	 * Evict and remove the least recently used program of the group, except the given one.
+	 * Pinned programs and programs retained by others are skipped.
+	 *
+	 * @param except program to keep
+	 * @return evicted program or null if there is none which could be evicted
+	 */
+	protected synchronized LLVMProgram<?> removeLeastRecentlyUsed(LLVMProgram<?> except) {
+		final List<LLVMProgram<?>> candidates = new ArrayList<>(programs);
+		candidates.remove(except);
+		candidates.sort((a, b) -> Long.signum(a.getLastUsed() - b.getLastUsed()));
+		for (LLVMProgram<?> candidate : candidates) {
+			if(candidate.tryEvict()) {
+				programs.remove(candidate);
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	protected synchronized void remove(LLVMProgram<?> program) {
+		programs.remove(program);
+	}
+}
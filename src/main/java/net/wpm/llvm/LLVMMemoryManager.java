@@ -0,0 +1,815 @@
+package net.wpm.llvm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.LLVMExecutionEngineRef;
+import org.bytedeco.llvm.LLVM.LLVMMCJITMemoryManagerRef;
+import org.bytedeco.llvm.LLVM.LLVMMemoryManagerAllocateCodeSectionCallback;
+import org.bytedeco.llvm.LLVM.LLVMMemoryManagerAllocateDataSectionCallback;
+import org.bytedeco.llvm.LLVM.LLVMMemoryManagerDestroyCallback;
+import org.bytedeco.llvm.LLVM.LLVMMemoryManagerFinalizeMemoryCallback;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+
+import com.kenai.jffi.Library;
+import com.kenai.jffi.MemoryIO;
+import com.kenai.jffi.PageManager;
+
+/**
+ * Places the machine code of many programs into a few large memory arenas, see {@link LLVMCompiler#setMemoryManager(LLVMMemoryManager)}.
+ * The default memory manager of MCJIT maps separate pages for the code, read-only and writable data of every
+ * execution engine. Thousands of small programs waste megabytes of memory and thrash the iTLB.
+ *
+ * The code and read-only data of a program are packed into pages exclusive to the program. They are writable
+ * during the compilation and become read-only and executable once the engine finalizes the program, no page
+ * is ever writable and executable at the same time (W^X). Writable data of all programs is packed into shared
+ * pages which are never executable. The arenas can be aligned to 2 MB and advised to be backed by transparent
+ * huge pages. The executable pages of consecutive programs merge into one mapping, which the kernel can collapse
+ * into huge pages.
+ *
+ * With shared code pages the code and read-only data of all programs are packed byte-wise into the same pages,
+ * a small program occupies only the bytes of its sections instead of at least one page. Since MCJIT writes and
+ * relocates the sections of a program while the code of other programs in the same page is already running,
+ * the page currently being filled is readable, writable and executable at the same time. It becomes read-only
+ * and executable as soon as it is full and no program writes into it anymore. This trades W^X for memory density
+ * and is therefore disabled by default. Freed bytes in a shared page are not reused, the page returns to the
+ * arena when all programs using it are disposed.
+ *
+ * The memory of a program returns to the arenas when its execution engine gets disposed, usually by
+ * {@link LLVMProgram#dispose()}. The arenas themselves stay reserved as long as the process runs.
+ * Only available on Linux.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMMemoryManager {
+
+	public static final long HUGE_PAGE_SIZE = 2 << 20;
+	public static final long DEFAULT_ARENA_SIZE = 64 << 20;
+
+	protected static final int PROT_READ = 0x1, PROT_WRITE = 0x2, PROT_EXEC = 0x4;
+	protected static final int MAP_PRIVATE = 0x02, MAP_ANONYMOUS = 0x20, MAP_NORESERVE = 0x4000;
+	protected static final int MADV_DONTNEED = 4, MADV_HUGEPAGE = 14;
+	protected static final long MAP_FAILED = -1;
+
+	protected static MethodHandle mmap;
+	protected static MethodHandle munmap;
+	protected static MethodHandle mprotect;
+	protected static MethodHandle madvise;
+
+	// the callbacks are shared by all memory managers, the opaque pointer identifies the execution engine
+	protected static final Map<Long, Allocation> allocations = new ConcurrentHashMap<>();
+	protected static final Map<Long, Allocation> engineAllocations = new ConcurrentHashMap<>();
+	protected static final AtomicLong nextAllocationId = new AtomicLong(1);
+	protected static LLVMMemoryManagerAllocateCodeSectionCallback allocateCodeCallback;
+	protected static LLVMMemoryManagerAllocateDataSectionCallback allocateDataCallback;
+	protected static LLVMMemoryManagerFinalizeMemoryCallback finalizeCallback;
+	protected static LLVMMemoryManagerDestroyCallback destroyCallback;
+
+	protected final long arenaSize;
+	protected final boolean hugePages;
+	protected final boolean sharedCodePages;
+	protected final long pageSize;
+	protected final List<Arena> codeArenas;
+	protected final List<Arena> dataArenas;
+	protected long codeBytes;
+	protected long dataBytes;
+
+	// shared code pages which are still filled with the sections of new programs
+	protected CodePages openCodePages;
+
+	/**
+	 * Memory manager with arenas of {@link #DEFAULT_ARENA_SIZE} without huge pages
+	 */
+	public LLVMMemoryManager() {
+		this(DEFAULT_ARENA_SIZE, false);
+	}
+
+	/**
+	 * @param arenaSize number of bytes reserved at once for code or data, larger sections get their own arena
+	 * @param hugePages align the arenas to {@link #HUGE_PAGE_SIZE} and advise the kernel to use transparent huge pages
+	 * @throws UnsupportedOperationException if the platform is not Linux
+	 */
+	public LLVMMemoryManager(long arenaSize, boolean hugePages) {
+		this(arenaSize, hugePages, false);
+	}
+
+	/**
+	 * @param arenaSize number of bytes reserved at once for code or data, larger sections get their own arena
+	 * @param hugePages align the arenas to {@link #HUGE_PAGE_SIZE} and advise the kernel to use transparent huge pages
+	 * @param sharedCodePages pack the code of all programs into the same pages, which gives up W^X for the page being filled
+	 * @throws UnsupportedOperationException if the platform is not Linux
+	 */
+	public LLVMMemoryManager(long arenaSize, boolean hugePages, boolean sharedCodePages) {
+		if(Loader.getPlatform().startsWith("linux") == false)
+			throw new UnsupportedOperationException("The LLVM memory manager is only available on Linux, not on "+Loader.getPlatform());
+		if(arenaSize <= 0)
+			throw new IllegalArgumentException("The arena size must be positive, got "+arenaSize);
+		initialize();
+
+		this.pageSize = PageManager.getInstance().pageSize();
+		this.hugePages = hugePages;
+		this.sharedCodePages = sharedCodePages;
+		this.arenaSize = align(arenaSize, hugePages ? HUGE_PAGE_SIZE : pageSize);
+		this.codeArenas = new ArrayList<>();
+		this.dataArenas = new ArrayList<>();
+	}
+
+	/**
+	 * Bind the memory functions of the C library and create the callbacks for LLVM
+	 */
+	protected static synchronized void initialize() {
+		if(mmap != null)
+			return;
+
+		final Library libc = Library.getDefault();
+		mmap = LLVMMethodHandleBinder.bind(libc.getSymbolAddress("mmap"), MethodType.methodType(long.class, long.class, long.class, int.class, int.class, int.class, long.class));
+		munmap = LLVMMethodHandleBinder.bind(libc.getSymbolAddress("munmap"), MethodType.methodType(int.class, long.class, long.class));
+		mprotect = LLVMMethodHandleBinder.bind(libc.getSymbolAddress("mprotect"), MethodType.methodType(int.class, long.class, long.class, int.class));
+		madvise = LLVMMethodHandleBinder.bind(libc.getSymbolAddress("madvise"), MethodType.methodType(int.class, long.class, long.class, int.class));
+
+		// LLVM aborts the process if a section can not be allocated, instead the error is recorded and the 
+		// section is placed in scratch memory. The program never runs, see checkAllocation(LLVMExecutionEngineRef, LLVMModuleRef).
+		allocateCodeCallback = new LLVMMemoryManagerAllocateCodeSectionCallback() {
+			@Override
+			public BytePointer call(Pointer opaque, long size, int alignment, int sectionID, BytePointer sectionName) {
+				final Allocation allocation = allocations.get(opaque.address());
+				try {
+					return toPointer(allocation.manager.allocateCode(allocation, size, alignment, false));
+				} catch (RuntimeException | Error e) {
+					return toPointer(allocation.fail(e, size, alignment));
+				}
+			}
+		};
+		allocateDataCallback = new LLVMMemoryManagerAllocateDataSectionCallback() {
+			@Override
+			public BytePointer call(Pointer opaque, long size, int alignment, int sectionID, BytePointer sectionName, int isReadOnly) {
+				final Allocation allocation = allocations.get(opaque.address());
+				try {
+					// read-only data can share the pages of the code
+					if(isReadOnly != 0)
+						return toPointer(allocation.manager.allocateCode(allocation, size, alignment, true));
+					return toPointer(allocation.manager.allocateData(allocation, size, alignment));
+				} catch (RuntimeException | Error e) {
+					return toPointer(allocation.fail(e, size, alignment));
+				}
+			}
+		};
+		finalizeCallback = new LLVMMemoryManagerFinalizeMemoryCallback() {
+			@Override
+			@SuppressWarnings("rawtypes") // the javacpp callback declares the raw type, a type argument would not override it
+			public int call(Pointer opaque, PointerPointer errorMessage) {
+				final Allocation allocation = allocations.get(opaque.address());
+				try {
+					allocation.manager.finalizeCode(allocation);
+				} catch (RuntimeException | Error e) {
+					allocation.fail(e);
+				}
+
+				// MCJIT ignores the result, the error is thrown by checkAllocation
+				final Throwable error = allocation.error;
+				if(error == null)
+					return 0;
+				errorMessage.put(0, LLVM.LLVMCreateMessage(new BytePointer(String.valueOf(error.getMessage()))));
+				return 1;
+			}
+		};
+		destroyCallback = new LLVMMemoryManagerDestroyCallback() {
+			@Override
+			public void call(Pointer opaque) {
+				final Allocation allocation = allocations.remove(opaque.address());
+				engineAllocations.remove(allocation.engine, allocation);
+				allocation.manager.free(allocation);
+			}
+		};
+	}
+
+	/**
+	 * Reserved bytes of all arenas
+	 *
+	 * @return number of bytes
+	 */
+	public synchronized long getReservedBytes() {
+		long reserved = 0;
+		for (Arena arena : codeArenas)
+			reserved += arena.size;
+		for (Arena arena : dataArenas)
+			reserved += arena.size;
+		return reserved;
+	}
+
+	/**
+	 * Bytes of all pages holding code and read-only data of the existing programs,
+	 * including the free bytes of shared code pages
+	 *
+	 * @return number of bytes
+	 */
+	public synchronized long getCodeBytes() {
+		return codeBytes;
+	}
+
+	/**
+	 * Bytes of writable data of the existing programs
+	 *
+	 * @return number of bytes
+	 */
+	public synchronized long getDataBytes() {
+		return dataBytes;
+	}
+
+	/**
+	 * Memory of an execution engine created by a memory manager
+	 *
+	 * @param engine execution engine
+	 * @return memory of the engine or null if the engine does not use a memory manager
+	 */
+	public static Allocation getAllocation(LLVMExecutionEngineRef engine) {
+		return (engine == null) ? null : engineAllocations.get(engine.address());
+	}
+
+	/**
+	 * Generate the machine code of a module compiled by {@link #createJITCompiler(LLVMExecutionEngineRef, LLVMModuleRef, BytePointer, int, LLVMMemoryGroup)}
+	 * and check if all of its sections got allocated. Must be called after the external symbols of the module are mapped.
+	 * Does nothing if the engine does not use a memory manager.
+	 *
+	 * @param engine execution engine
+	 * @param module the module inside the engine
+	 * @throws RuntimeException if a section could not be allocated or finalized, the engine must be disposed
+	 */
+	public static void checkAllocation(LLVMExecutionEngineRef engine, LLVMModuleRef module) {
+		final Allocation allocation = getAllocation(engine);
+		if(allocation == null)
+			return;
+
+		// MCJIT generates and finalizes the code of the whole module when the first function address is requested
+		for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(module); func != null && func.isNull() == false; func = LLVM.LLVMGetNextFunction(func)) {
+			final int linkage = LLVM.LLVMGetLinkage(func);
+			if(LLVM.LLVMIsDeclaration(func) == 0 && linkage != LLVM.LLVMInternalLinkage && linkage != LLVM.LLVMPrivateLinkage) {
+				LLVM.LLVMGetFunctionAddress(engine, LLVM.LLVMGetValueName(func).getString());
+				break;
+			}
+		}
+
+		final Throwable error = allocation.error;
+		if(error != null)
+			throw new RuntimeException("Could not allocate the machine code of the module: "+error.getMessage(), error);
+	}
+
+	/**
+	 * Create a MCJIT execution engine for the module, which places the machine code into the arenas of this
+	 * memory manager. The engine takes the ownership of the module. MCJIT does not get the target cpu via the
+	 * C API, therefore every function is annotated with the cpu and its features.
+	 *
+	 * @param engine reference to be filled with the new engine
+	 * @param module LLVM module
+	 * @param device target cpu
+	 * @param optLevel 0 (none) to 3 (aggressive)
+	 * @param group accounts the memory of the engine, can be null
+	 * @throws RuntimeException if the engine could not be created
+	 */
+	public void createJITCompiler(LLVMExecutionEngineRef engine, LLVMModuleRef module, BytePointer device, int optLevel, LLVMMemoryGroup group) {
+		final long id = nextAllocationId.getAndIncrement();
+		final Allocation allocation = new Allocation(this, group);
+		allocations.put(id, allocation);
+		final Pointer opaque = new Pointer() {{ this.address = id; }};
+		final LLVMMCJITMemoryManagerRef memoryManager = LLVM.LLVMCreateSimpleMCJITMemoryManager(opaque, allocateCodeCallback, allocateDataCallback, finalizeCallback, destroyCallback);
+
+		// a failed creation destroys the memory manager
+		LLVMCompiler.createJITCompiler(engine, module, device, optLevel, memoryManager);
+		allocation.engine = engine.address();
+		engineAllocations.put(allocation.engine, allocation);
+	}
+
+	/**
+	 * Allocate code or read-only data in the writable pages of the execution engine.
+	 * New pages are taken from the code arenas if there is not enough space left.
+	 *
+	 * @param allocation of the execution engine
+	 * @param size number of bytes
+	 * @param alignment of the address
+	 * @param isReadOnly is the section read-only data instead of code
+	 * @return address
+	 */
+	protected synchronized long allocateCode(Allocation allocation, long size, long alignment, boolean isReadOnly) {
+		alignment = Math.max(1, alignment);
+		if(sharedCodePages)
+			return allocateSharedCode(allocation, size, alignment, isReadOnly);
+
+		long address = align(allocation.codeNext, alignment);
+		if(allocation.codeNext == 0 || address + size > allocation.codeEnd) {
+			final long pages = align(size + Math.max(0, alignment - pageSize), pageSize);
+			final long start = allocate(codeArenas, pages, pageSize);
+			allocation.codePages.add(new long[] { start, pages });
+			allocation.codeEnd = start + pages;
+			address = align(start, alignment);
+			codeBytes += pages;
+			allocation.addReserved(pages);
+		}
+		allocation.codeNext = address + size;
+		if(isReadOnly)
+			allocation.readOnlyBytes += size;
+		else {
+			allocation.codeBytes += size;
+			allocation.codeSections.add(new long[] { address, size });
+		}
+		return address;
+	}
+
+	/**
+	 * Allocate code or read-only data in the open shared code pages. If there is not enough space left the
+	 * open pages are closed and new pages are taken from the code arenas.
+	 *
+	 * @param allocation of the execution engine
+	 * @param size number of bytes
+	 * @param alignment of the address
+	 * @param isReadOnly is the section read-only data instead of code
+	 * @return address
+	 */
+	protected long allocateSharedCode(Allocation allocation, long size, long alignment, boolean isReadOnly) {
+		CodePages pages = openCodePages;
+		long address = (pages == null) ? 0 : align(pages.next, alignment);
+		if(pages == null || address + size > pages.start + pages.size) {
+			if(pages != null)
+				close(pages);
+
+			final long length = align(size + Math.max(0, alignment - pageSize), pageSize);
+			final long start = allocate(codeArenas, length, pageSize);
+			try {
+				protect(start, length, PROT_READ | PROT_WRITE | PROT_EXEC);
+			} catch (RuntimeException e) {
+				release(codeArenas, start, length);
+				throw e;
+			}
+			pages = openCodePages = new CodePages(start, length);
+			address = align(start, alignment);
+			codeBytes += length;
+		}
+		pages.next = address + size;
+
+		if(allocation.sharedPages.contains(pages) == false) {
+			allocation.sharedPages.add(pages);
+			pages.users++;
+		}
+		if(allocation.writingPages.contains(pages) == false) {
+			allocation.writingPages.add(pages);
+			pages.writers++;
+		}
+		allocation.sharedBytes += size;
+		allocation.addReserved(size);
+		if(isReadOnly)
+			allocation.readOnlyBytes += size;
+		else {
+			allocation.codeBytes += size;
+			allocation.codeSections.add(new long[] { address, size });
+		}
+		return address;
+	}
+
+	/**
+	 * No new sections are placed in the shared code pages anymore. They become read-only and executable 
+	 * once no program writes into them.
+	 *
+	 * @param pages open shared code pages
+	 */
+	protected void close(CodePages pages) {
+		if(openCodePages == pages)
+			openCodePages = null;
+		pages.closed = true;
+		if(pages.writers == 0)
+			protect(pages.start, pages.size, PROT_READ | PROT_EXEC);
+	}
+
+	/**
+	 * The execution engine does not write into the shared code pages anymore
+	 *
+	 * @param allocation of the execution engine
+	 */
+	protected void stopWriting(Allocation allocation) {
+		for (CodePages pages : allocation.writingPages) {
+			pages.writers--;
+			if(pages.closed && pages.writers == 0 && pages.users > 0)
+				protect(pages.start, pages.size, PROT_READ | PROT_EXEC);
+		}
+		allocation.writingPages.clear();
+	}
+
+	/**
+	 * Allocate writable data in the shared data arenas
+	 *
+	 * @param allocation of the execution engine
+	 * @param size number of bytes
+	 * @param alignment of the address
+	 * @return address
+	 */
+	protected synchronized long allocateData(Allocation allocation, long size, long alignment) {
+		size = Math.max(1, size);
+		final long address = allocate(dataArenas, size, Math.max(1, alignment));
+		allocation.dataChunks.add(new long[] { address, size });
+		dataBytes += size;
+		allocation.dataBytes += size;
+		allocation.addReserved(size);
+		return address;
+	}
+
+	/**
+	 * Make all code pages of the execution engine read-only and executable.
+	 * Following allocations of the engine start on new pages.
+	 *
+	 * @param allocation of the execution engine
+	 */
+	protected synchronized void finalizeCode(Allocation allocation) {
+		stopWriting(allocation);
+		for (; allocation.finalizedPages < allocation.codePages.size(); allocation.finalizedPages++) {
+			final long[] pages = allocation.codePages.get(allocation.finalizedPages);
+			protect(pages[0], pages[1], PROT_READ | PROT_EXEC);
+		}
+		allocation.codeNext = 0;
+		allocation.codeEnd = 0;
+	}
+
+	/**
+	 * Return the memory of the execution engine to the arenas. The code pages become writable
+	 * again and their physical memory is released, reused pages are zero filled.
+	 *
+	 * @param allocation of the disposed execution engine
+	 */
+	protected synchronized void free(Allocation allocation) {
+		stopWriting(allocation);
+		for (CodePages pages : allocation.sharedPages) {
+			pages.users--;
+			if(pages.users > 0)
+				continue;
+			if(openCodePages == pages)
+				openCodePages = null;
+			protect(pages.start, pages.size, PROT_READ | PROT_WRITE);
+			advise(pages.start, pages.size, MADV_DONTNEED);
+			release(codeArenas, pages.start, pages.size);
+			codeBytes -= pages.size;
+		}
+		allocation.addReserved(-allocation.sharedBytes);
+		for (long[] pages : allocation.codePages) {
+			protect(pages[0], pages[1], PROT_READ | PROT_WRITE);
+			advise(pages[0], pages[1], MADV_DONTNEED);
+			release(codeArenas, pages[0], pages[1]);
+			codeBytes -= pages[1];
+			allocation.addReserved(-pages[1]);
+		}
+		for (long[] chunk : allocation.dataChunks) {
+			release(dataArenas, chunk[0], chunk[1]);
+			dataBytes -= chunk[1];
+			allocation.addReserved(-chunk[1]);
+		}
+		for (Long scratch : allocation.scratchMemory)
+			MemoryIO.getInstance().freeMemory(scratch);
+		allocation.codePages.clear();
+		allocation.codeSections.clear();
+		allocation.sharedPages.clear();
+		allocation.dataChunks.clear();
+		allocation.scratchMemory.clear();
+		allocation.sharedBytes = 0;
+		allocation.codeBytes = 0;
+		allocation.readOnlyBytes = 0;
+		allocation.dataBytes = 0;
+	}
+
+	/**
+	 * Allocate memory in the first arena with enough space, a new arena is reserved if none has
+	 *
+	 * @param arenas code or data arenas
+	 * @param size number of bytes
+	 * @param alignment of the address
+	 * @return address
+	 */
+	protected long allocate(List<Arena> arenas, long size, long alignment) {
+		for (Arena arena : arenas) {
+			final long address = arena.allocate(size, alignment);
+			if(address != 0)
+				return address;
+		}
+
+		final Arena arena = reserve(Math.max(arenaSize, align(size + alignment, hugePages ? HUGE_PAGE_SIZE : pageSize)));
+		arenas.add(arena);
+		return arena.allocate(size, alignment);
+	}
+
+	protected static void release(List<Arena> arenas, long address, long size) {
+		for (Arena arena : arenas) {
+			if(arena.contains(address)) {
+				arena.free(address, size);
+				return;
+			}
+		}
+		throw new IllegalArgumentException("The address "+Long.toHexString(address)+" does not belong to an arena");
+	}
+
+	/**
+	 * Map a new readable and writable arena. With huge pages the mapping gets aligned to
+	 * {@link #HUGE_PAGE_SIZE} by mapping more than necessary and unmapping the ends.
+	 *
+	 * @param size number of bytes, a multiple of the page size
+	 * @return arena
+	 */
+	protected Arena reserve(long size) {
+		final long padding = hugePages ? HUGE_PAGE_SIZE : 0;
+		final long mapping;
+		try {
+			mapping = (long) mmap.invokeExact(0L, size + padding, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS | MAP_NORESERVE, -1, 0L);
+		} catch (Throwable e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+		if(mapping == MAP_FAILED || mapping == 0)
+			throw new OutOfMemoryError("Could not map an arena of "+size+" bytes");
+
+		if(hugePages == false)
+			return new Arena(mapping, size);
+
+		final long start = align(mapping, HUGE_PAGE_SIZE);
+		unmap(mapping, start - mapping);
+		unmap(start + size, mapping + padding - start);
+
+		// transparent huge pages might be disabled, the arena works without them
+		advise(start, size, MADV_HUGEPAGE);
+		return new Arena(start, size);
+	}
+
+	protected static void unmap(long address, long size) {
+		if(size == 0)
+			return;
+		try {
+			if((int) munmap.invokeExact(address, size) != 0)
+				throw new RuntimeException("Could not unmap "+size+" bytes at "+Long.toHexString(address));
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	protected static void protect(long address, long size, int protection) {
+		try {
+			if((int) mprotect.invokeExact(address, size, protection) != 0)
+				throw new RuntimeException("Could not change the protection of "+size+" bytes at "+Long.toHexString(address));
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * The advice is only a hint, the kernel might not support it
+	 *
+	 * @param address start of the pages
+	 * @param size number of bytes
+	 * @param advice MADV_* constant
+	 * @return true if the kernel accepted the advice
+	 */
+	protected static boolean advise(long address, long size, int advice) {
+		try {
+			return (int) madvise.invokeExact(address, size, advice) == 0;
+		} catch (Throwable e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	protected static long align(long value, long alignment) {
+		return (value + alignment - 1) / alignment * alignment;
+	}
+
+	protected static BytePointer toPointer(long start) {
+		return new BytePointer(new Pointer() {{ this.address = start; }});
+	}
+
+	/**
+	 * Memory of one execution engine, see {@link LLVMProgram#getMemoryUsage()}.
+	 * The sizes are modified by the memory manager while it holds its lock.
+	 *
+	 * @author Nico Hezel
+	 */
+	public static class Allocation {
+
+		protected final LLVMMemoryManager manager;
+		protected final LLVMMemoryGroup group;
+		protected long engine;
+
+		// bytes of the sections and of the pages and data chunks holding them
+		protected volatile long codeBytes = 0;
+		protected volatile long readOnlyBytes = 0;
+		protected volatile long dataBytes = 0;
+		protected volatile long reservedBytes = 0;
+
+		// start address and size of the code pages, the first ones are finalized
+		protected final List<long[]> codePages = new ArrayList<>();
+
+		// start address and size of the code sections, without read-only data
+		protected final List<long[]> codeSections = new ArrayList<>();
+		protected int finalizedPages = 0;
+
+		// free space in the last writable code pages
+		protected long codeNext = 0;
+		protected long codeEnd = 0;
+
+		// start address and size of the writable data
+		protected final List<long[]> dataChunks = new ArrayList<>();
+
+		// shared code pages holding sections of the engine and those the engine might still write into
+		protected final List<CodePages> sharedPages = new ArrayList<>();
+		protected final List<CodePages> writingPages = new ArrayList<>();
+		protected long sharedBytes = 0;
+
+		// first error of the callbacks and the memory of the sections which could not be allocated
+		protected volatile Throwable error;
+		protected final List<Long> scratchMemory = new ArrayList<>();
+
+		protected Allocation(LLVMMemoryManager manager, LLVMMemoryGroup group) {
+			this.manager = manager;
+			this.group = group;
+		}
+
+		/**
+		 * Record the error of a callback
+		 *
+		 * @param e error
+		 */
+		protected synchronized void fail(Throwable e) {
+			if(error == null)
+				error = e;
+		}
+
+		/**
+		 * Record the error and provide scratch memory for a section which could not be allocated.
+		 * The scratch memory is never executed and released with the other memory of the engine.
+		 *
+		 * @param e error
+		 * @param size number of bytes
+		 * @param alignment of the address
+		 * @return address or 0 if not even the scratch memory could be allocated
+		 */
+		protected long fail(Throwable e, long size, long alignment) {
+			fail(e);
+			alignment = Math.max(1, alignment);
+			final long memory = MemoryIO.getInstance().allocateMemory(Math.max(1, size) + alignment, true);
+			if(memory == 0)
+				return 0;
+			synchronized (manager) {
+				scratchMemory.add(memory);
+			}
+			return align(memory, alignment);
+		}
+
+		protected void addReserved(long bytes) {
+			reservedBytes += bytes;
+			if(group != null)
+				group.addReserved(bytes);
+		}
+
+		/**
+		 * End of the code section containing the address
+		 *
+		 * @param address of machine code of the engine
+		 * @return address behind the section or 0 if the address is not in a code section of the engine
+		 */
+		public long getCodeSectionEnd(long address) {
+			synchronized (manager) {
+				for (long[] section : codeSections)
+					if(section[0] <= address && address < section[0] + section[1])
+						return section[0] + section[1];
+			}
+			return 0;
+		}
+
+		/**
+		 * @return bytes of machine code
+		 */
+		public long getCodeBytes() {
+			return codeBytes;
+		}
+
+		/**
+		 * @return bytes of read-only data, e.g. constants
+		 */
+		public long getReadOnlyBytes() {
+			return readOnlyBytes;
+		}
+
+		/**
+		 * @return bytes of writable data, e.g. global variables
+		 */
+		public long getDataBytes() {
+			return dataBytes;
+		}
+
+		/**
+		 * Bytes of the pages holding the code and read-only data plus the writable data, 
+		 * which is the memory counted by the quota of a {@link LLVMMemoryGroup}. With
+		 * shared code pages only the bytes of the sections are counted instead of the pages.
+		 *
+		 * @return number of bytes
+		 */
+		public long getReservedBytes() {
+			return reservedBytes;
+		}
+	}
+
+	/**
+	 * Shared code pages of several execution engines
+	 *
+	 * @author Nico Hezel
+	 */
+	protected static class CodePages {
+
+		protected final long start;
+		protected final long size;
+
+		// next free byte, freed bytes are not reused
+		protected long next;
+
+		// engines with sections in the pages and engines which are not finalized yet
+		protected int users = 0;
+		protected int writers = 0;
+		protected boolean closed = false;
+
+		public CodePages(long start, long size) {
+			this.start = start;
+			this.size = size;
+			this.next = start;
+		}
+	}
+
+	/**
+	 * Continuous memory with a first fit allocator. Adjacent free ranges get merged.
+	 *
+	 * @author Nico Hezel
+	 */
+	protected static class Arena {
+
+		protected final long start;
+		protected final long size;
+
+		// start address to size of the free ranges
+		protected final TreeMap<Long, Long> freeRanges = new TreeMap<>();
+
+		public Arena(long start, long size) {
+			this.start = start;
+			this.size = size;
+			this.freeRanges.put(start, size);
+		}
+
+		public boolean contains(long address) {
+			return start <= address && address < start + size;
+		}
+
+		/**
+		 * @param length number of bytes
+		 * @param alignment of the address
+		 * @return address or 0 if there is no free range large enough
+		 */
+		public long allocate(long length, long alignment) {
+			for (Map.Entry<Long, Long> range : freeRanges.entrySet()) {
+				final long rangeStart = range.getKey(), rangeEnd = rangeStart + range.getValue();
+				final long address = align(rangeStart, alignment);
+				if(address + length > rangeEnd)
+					continue;
+
+				freeRanges.remove(rangeStart);
+				if(address > rangeStart)
+					freeRanges.put(rangeStart, address - rangeStart);
+				if(address + length < rangeEnd)
+					freeRanges.put(address + length, rangeEnd - address - length);
+				return address;
+			}
+			return 0;
+		}
+
+		/**
+		 * @param address of an allocation
+		 * @param length number of bytes of the allocation
+		 */
+		public void free(long address, long length) {
+			long rangeStart = address, rangeEnd = address + length;
+
+			final Map.Entry<Long, Long> previous = freeRanges.floorEntry(address);
+			if(previous != null && previous.getKey() + previous.getValue() == address) {
+				rangeStart = previous.getKey();
+				freeRanges.remove(rangeStart);
+			}
+			final Long nextLength = freeRanges.get(rangeEnd);
+			if(nextLength != null) {
+				freeRanges.remove(rangeEnd);
+				rangeEnd += nextLength;
+			}
+			freeRanges.put(rangeStart, rangeEnd - rangeStart);
+		}
+	}
+}
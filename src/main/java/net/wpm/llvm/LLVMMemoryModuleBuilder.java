@@ -0,0 +1,151 @@
+package net.wpm.llvm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.llvm.LLVM.LLVMMemoryBufferRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.global.LLVM;
+
+
+/**
+ * Parse LLVM IR code or bitcode from a string, byte array or {@link ByteBuffer} without touching the disk.
+ * Creates a LLVM module and provides it via the {@link LLVMModuleBuilder#build()} method. Bitcode is detected
+ * by its magic number, everything else is parsed as IR code.
+ * <br><br>
+ * The content of a direct {@link ByteBuffer} is not copied, LLVM reads it in place. This works for bitcode and
+ * for IR code ending with a zero byte, the IR text parser needs a null terminated buffer. Other IR code and
+ * heap buffers are copied once into a LLVM memory buffer. The content between position and limit of the buffer
+ * is used, the buffer must not be changed while {@link #build()} is running.
+ *
+ * @author Nico Hezel
+ *
+ * @param <T> invocation interface
+ */
+public class LLVMMemoryModuleBuilder<T> implements LLVMModuleBuilder<T> {
+
+	// 'BC' 0xC0DE of raw bitcode and 0x0B17C0DE of the bitcode wrapper header
+	protected static final int BITCODE_MAGIC = 0xDEC04342;
+	protected static final int BITCODE_WRAPPER_MAGIC = 0x0B17C0DE;
+
+	protected final ByteBuffer content;
+	protected final String name;
+	protected final Class<T> invocationInterface;
+
+	/**
+	 * LLVM module from IR code
+	 *
+	 * @param ir LLVM IR code
+	 * @param invocationInterface a class object to a java interface
+	 */
+	public LLVMMemoryModuleBuilder(String ir, Class<T> invocationInterface) {
+		this(ir.getBytes(StandardCharsets.UTF_8), "ir", invocationInterface);
+	}
+
+	/**
+	 * LLVM module from IR code or bitcode
+	 *
+	 * @param content IR code or bitcode
+	 * @param name of the module, used in error messages
+	 * @param invocationInterface a class object to a java interface
+	 */
+	public LLVMMemoryModuleBuilder(byte[] content, String name, Class<T> invocationInterface) {
+		this(ByteBuffer.wrap(content), name, invocationInterface);
+	}
+
+	/**
+	 * LLVM module from IR code or bitcode between position and limit of the buffer.
+	 * Direct buffers are read in place, the builder keeps a reference to the buffer.
+	 *
+	 * @param content IR code or bitcode
+	 * @param name of the module, used in error messages
+	 * @param invocationInterface a class object to a java interface
+	 */
+	public LLVMMemoryModuleBuilder(ByteBuffer content, String name, Class<T> invocationInterface) {
+		this.content = content;
+		this.name = name;
+		this.invocationInterface = invocationInterface;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return true if the content starts with the magic number of bitcode
+	 */
+	public boolean isBitcode() {
+		return isBitcode(content);
+	}
+
+	/**
+	 * Check the magic number of the content between position and limit
+	 *
+	 * @param content IR code or bitcode
+	 * @return true if the content is bitcode
+	 */
+	public static boolean isBitcode(ByteBuffer content) {
+		if(content.remaining() < 4)
+			return false;
+		final int magic = content.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt();
+		return magic == BITCODE_MAGIC || magic == BITCODE_WRAPPER_MAGIC;
+	}
+
+	@Override
+	public LLVMModuleRef build() {
+		final boolean bitcode = isBitcode(content);
+		final LLVMMemoryBufferRef memory = createMemoryBuffer(content, name, !bitcode);
+		try {
+			if(bitcode) {
+				try {
+					return LLVMStoredModuleBuilder.parseBitcode(memory);
+				} finally {
+
+					// the bitcode parser does not take ownership of the memory buffer
+					LLVM.LLVMDisposeMemoryBuffer(memory);
+				}
+			} else
+				return LLVMStoredModuleBuilder.parseIR(memory);
+		} catch (ParseException e) {
+			throw new RuntimeException("Unable to parse module "+name+": "+e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Create a LLVM memory buffer of the content between position and limit. Direct buffers are wrapped
+	 * without copying if the content does not need a null terminator or already ends with one.
+	 *
+	 * @param content IR code or bitcode
+	 * @param name name of the memory buffer
+	 * @param requiresNullTerminator the content gets parsed as IR code
+	 * @return memory buffer, only valid as long as a direct buffer is reachable
+	 */
+	protected static LLVMMemoryBufferRef createMemoryBuffer(ByteBuffer content, String name, boolean requiresNullTerminator) {
+		final int length = content.remaining();
+		if(content.isDirect()) {
+			final BytePointer data = new BytePointer(content);
+			if(requiresNullTerminator == false)
+				return LLVM.LLVMCreateMemoryBufferWithMemoryRange(data, length, new BytePointer(name), 0);
+			if(length > 0 && content.get(content.limit() - 1) == 0)
+				return LLVM.LLVMCreateMemoryBufferWithMemoryRange(data, length - 1, new BytePointer(name), 1);
+
+			// the copy gets a null terminator
+			return LLVM.LLVMCreateMemoryBufferWithMemoryRangeCopy(data, length, new BytePointer(name));
+		}
+
+		if(content.hasArray() && content.arrayOffset() == 0 && content.position() == 0 && content.limit() == content.array().length)
+			return LLVMStoredModuleBuilder.readBytes(content.array(), name);
+
+		final byte[] data = new byte[length];
+		content.duplicate().get(data);
+		return LLVMStoredModuleBuilder.readBytes(data, name);
+	}
+
+	@Override
+	public Class<T> getInvocationInterface() {
+		return invocationInterface;
+	}
+}
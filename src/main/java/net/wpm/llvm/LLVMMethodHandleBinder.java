@@ -0,0 +1,757 @@
+package net.wpm.llvm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.LLVMTypeRef;
+import org.bytedeco.llvm.global.LLVM;
+
+import com.kenai.jffi.ArrayFlags;
+import com.kenai.jffi.CallContext;
+import com.kenai.jffi.CallingConvention;
+import com.kenai.jffi.Function;
+import com.kenai.jffi.HeapInvocationBuffer;
+import com.kenai.jffi.Invoker;
+import com.kenai.jffi.MemoryIO;
+import com.kenai.jffi.Struct;
+import com.kenai.jffi.Type;
+
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import jnr.ffi.provider.ParameterFlags;
+
+
+/**
+ * Binds native function addresses to {@link MethodHandle}s of a given {@link MethodType} without generating any classes.
+ * On Java 22+ signatures with only primitives and pointers are bound with a downcall handle of the foreign function API, 
+ * which the JIT can inline. All other signatures and older Java versions use the jffi invoker of JNR. Up to six primitive 
+ * or pointer parameters are passed to the numeric jffi entry points without boxing, everything else goes through a 
+ * generic invocation buffer. The supported Java types are the same as in 
+ * {@link LLVMProgram#checkLLVMTypeCompatibility(org.bytedeco.llvm.LLVM.LLVMTypeRef, Class)}.
+ * 
+ * Structs passed or returned by value are represented as {@link ByteBuffer}s in native byte order, their 
+ * layout is taken from the LLVM function type see {@link #bind(long, MethodType, LLVMTypeRef)}.
+ * 
+ * Pointer parameters can also be direct buffers or, on Java 22+, native memory segments. They are passed by the 
+ * address of their current position without copying, see {@link #isMemoryArgument(Class)}.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMMethodHandleBinder {
+
+	/**
+	 * Maximal number of parameters of the numeric jffi entry points
+	 */
+	protected static final int MAX_NUMERIC_PARAMETERS = 6;
+
+	protected static final MethodHandle INVOKE;
+	protected static final MethodHandle BUFFER_TO_POINTER;
+	protected static final MethodHandle SEGMENT_TO_POINTER;
+	protected static final MethodHandle[] INVOKE_NUMERIC = new MethodHandle[MAX_NUMERIC_PARAMETERS + 1];
+	protected static final Map<Class<?>, MethodHandle> TO_NUMERIC = new HashMap<>();
+	protected static final Map<Class<?>, MethodHandle> FROM_NUMERIC = new HashMap<>();
+	static {
+		try {
+			final MethodHandles.Lookup lookup = MethodHandles.lookup();
+			INVOKE = lookup.findStatic(LLVMMethodHandleBinder.class, "invoke", MethodType.methodType(Object.class, Function.class, MethodType.class, Object[].class));
+			BUFFER_TO_POINTER = lookup.findStatic(LLVMMethodHandleBinder.class, "bufferToPointer", MethodType.methodType(Pointer.class, Buffer.class));
+			SEGMENT_TO_POINTER = lookup.findStatic(LLVMMethodHandleBinder.class, "segmentToPointer", MethodType.methodType(Pointer.class, Object.class));
+
+			// long invokeN3(CallContext ctx, long function, long n1, long n2, long n3) 
+			for (int i = 0; i < INVOKE_NUMERIC.length; i++) {
+				final Class<?>[] params = new Class<?>[i + 2];
+				Arrays.fill(params, long.class);
+				params[0] = CallContext.class;
+				INVOKE_NUMERIC[i] = lookup.findVirtual(Invoker.class, "invokeN"+i, MethodType.methodType(long.class, params)).bindTo(Invoker.getInstance());
+			}
+
+			// Java value <-> raw bits in a long
+			for (Class<?> type : new Class<?>[] { boolean.class, byte.class, short.class, int.class, long.class, float.class, double.class, Pointer.class }) {
+				TO_NUMERIC.put(type, lookup.findStatic(LLVMMethodHandleBinder.class, "toNumeric", MethodType.methodType(long.class, type)));
+				final String name = "numericTo"+Character.toUpperCase(type.getSimpleName().charAt(0))+type.getSimpleName().substring(1);
+				FROM_NUMERIC.put(type, lookup.findStatic(LLVMMethodHandleBinder.class, name, MethodType.methodType(type, long.class)));
+			}
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Create a method handle calling the native function at the address
+	 *
+	 * @param address of the native function
+	 * @param type Java signature of the native function
+	 * @return method handle of the given type
+	 */
+	public static MethodHandle bind(long address, MethodType type) {
+		if(ForeignLinker.isSupported(type))
+			return ForeignLinker.bind(address, type);
+
+		// buffers and memory segments are passed as pointers
+		final MethodType pointerType = toPointerType(type, null);
+		if(pointerType.equals(type) == false)
+			return toPointerArguments(bind(address, pointerType), type);
+		return bindInvoker(address, type);
+	}
+
+	/**
+	 * Create a method handle calling the native function at the address. In contrast to {@link #bind(long, MethodType)}
+	 * the signature may contain structs passed or returned by value, whose layouts are defined by the LLVM function type.
+	 *
+	 * @param address of the native function
+	 * @param type Java signature of the native function
+	 * @param funcType LLVM type of the native function
+	 * @return method handle of the given type
+	 */
+	public static MethodHandle bind(long address, MethodType type, LLVMTypeRef funcType) {
+		final int parameterCount = LLVM.LLVMCountParamTypes(funcType);
+		final PointerPointer<LLVMTypeRef> ptr = new PointerPointer<>(new LLVMTypeRef[parameterCount]);
+		LLVM.LLVMGetParamTypes(funcType, ptr);
+		final LLVMTypeRef[] llvmParamTypes = new LLVMTypeRef[parameterCount];
+		for (int i = 0; i < parameterCount; i++)
+			llvmParamTypes[i] = new LLVMTypeRef(ptr.get(i));
+
+		// a byte buffer is either a struct passed by value or a pointer
+		final MethodType pointerType = toPointerType(type, llvmParamTypes);
+		if(type.returnType() != ByteBuffer.class && pointerType.parameterList().contains(ByteBuffer.class) == false)
+			return bind(address, type);
+
+		final Type[] paramTypes = new Type[parameterCount];
+		for (int i = 0; i < parameterCount; i++)
+			paramTypes[i] = toNativeType(llvmParamTypes[i]);
+		return toPointerArguments(bindInvoker(address, pointerType, toNativeType(LLVM.LLVMGetReturnType(funcType)), paramTypes), type);
+	}
+
+	/**
+	 * Can arguments of this type be passed as pointers to native memory. Direct {@link ByteBuffer}s, 
+	 * {@link ShortBuffer}s, {@link IntBuffer}s, {@link LongBuffer}s, {@link FloatBuffer}s and {@link DoubleBuffer}s 
+	 * are passed by the address of their position. The same goes for native memory segments of Java 22+. 
+	 * Heap buffers and heap segments are rejected when the function gets called.
+	 * 
+	 * @param javaType declared parameter type
+	 * @return true for buffers and memory segments
+	 */
+	public static boolean isMemoryArgument(Class<?> javaType) {
+		return getBufferElementShift(javaType) >= 0 || isMemorySegment(javaType);
+	}
+
+	/**
+	 * Is the type the memory segment of the foreign function API
+	 * 
+	 * @param javaType Java type
+	 * @return true for java.lang.foreign.MemorySegment on Java 22+
+	 */
+	public static boolean isMemorySegment(Class<?> javaType) {
+		return ForeignLinker.MEMORY_SEGMENT != null && javaType == ForeignLinker.MEMORY_SEGMENT;
+	}
+
+	/**
+	 * Type of the elements in a typed buffer. A {@link ByteBuffer} has no element type, it can point to anything.
+	 * 
+	 * @param bufferType buffer class
+	 * @return primitive element type, null for byte buffers and other types
+	 */
+	public static Class<?> getBufferElementType(Class<?> bufferType) {
+		if(ShortBuffer.class.isAssignableFrom(bufferType))
+			return short.class;
+		else if(IntBuffer.class.isAssignableFrom(bufferType))
+			return int.class;
+		else if(LongBuffer.class.isAssignableFrom(bufferType))
+			return long.class;
+		else if(FloatBuffer.class.isAssignableFrom(bufferType))
+			return float.class;
+		else if(DoubleBuffer.class.isAssignableFrom(bufferType))
+			return double.class;
+		return null;
+	}
+
+	/**
+	 * Base two logarithm of the element size of a supported buffer type
+	 * 
+	 * @param bufferType buffer class
+	 * @return shift of the element size or -1 if the type is not supported
+	 */
+	protected static int getBufferElementShift(Class<?> bufferType) {
+		if(ByteBuffer.class.isAssignableFrom(bufferType))
+			return 0;
+		else if(ShortBuffer.class.isAssignableFrom(bufferType))
+			return 1;
+		else if(IntBuffer.class.isAssignableFrom(bufferType) || FloatBuffer.class.isAssignableFrom(bufferType))
+			return 2;
+		else if(LongBuffer.class.isAssignableFrom(bufferType) || DoubleBuffer.class.isAssignableFrom(bufferType))
+			return 3;
+		return -1;
+	}
+
+	/**
+	 * Native address of the element at the position of a direct buffer
+	 * 
+	 * @param buffer direct buffer
+	 * @return address of the position
+	 * @throws IllegalArgumentException if the buffer is not direct or of an unsupported type
+	 */
+	public static long getAddress(Buffer buffer) {
+		final int shift = getBufferElementShift(buffer.getClass());
+		if(buffer.isDirect() == false || shift < 0)
+			throw new IllegalArgumentException("Only direct buffers can be passed to native functions, got "+buffer);
+		return MemoryIO.getInstance().getDirectBufferAddress(buffer) + ((long) buffer.position() << shift);
+	}
+
+	/**
+	 * Native address of a memory segment
+	 * 
+	 * @param segment native memory segment of Java 22+
+	 * @return address of the segment
+	 * @throws IllegalArgumentException if the segment is not native
+	 */
+	public static long getSegmentAddress(Object segment) {
+		try {
+			if((boolean) ForeignLinker.SEGMENT_IS_NATIVE.invoke(segment) == false)
+				throw new IllegalArgumentException("Only native memory segments can be passed to native functions, got "+segment);
+			return (long) ForeignLinker.SEGMENT_ADDRESS.invoke(segment);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Byte size of a memory segment
+	 * 
+	 * @param segment memory segment of Java 22+
+	 * @return size in bytes
+	 */
+	public static long getSegmentSize(Object segment) {
+		try {
+			return (long) ForeignLinker.SEGMENT_BYTE_SIZE.invoke(segment);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	protected static Pointer bufferToPointer(Buffer buffer) {
+		return (buffer == null) ? null : Pointer.wrap(Runtime.getSystemRuntime(), getAddress(buffer));
+	}
+
+	protected static Pointer segmentToPointer(Object segment) {
+		return (segment == null) ? null : Pointer.wrap(Runtime.getSystemRuntime(), getSegmentAddress(segment));
+	}
+
+	/**
+	 * Replace the buffer and memory segment parameters by {@link Pointer}s, except byte buffers 
+	 * representing structs passed by value
+	 * 
+	 * @param type Java signature of the native function
+	 * @param llvmParamTypes LLVM parameter types or null if there are no structs
+	 * @return signature with pointers
+	 */
+	protected static MethodType toPointerType(MethodType type, LLVMTypeRef[] llvmParamTypes) {
+		MethodType pointerType = type;
+		for (int i = 0; i < type.parameterCount(); i++) {
+			final Class<?> paramType = type.parameterType(i);
+			final boolean isStruct = paramType == ByteBuffer.class && llvmParamTypes != null && LLVM.LLVMGetTypeKind(llvmParamTypes[i]) == LLVM.LLVMStructTypeKind;
+			if(isMemoryArgument(paramType) && isStruct == false)
+				pointerType = pointerType.changeParameterType(i, Pointer.class);
+		}
+		return pointerType;
+	}
+
+	/**
+	 * Adapt the pointer parameters of the handle to the buffers and memory segments of the signature
+	 * 
+	 * @param handle method handle with pointer parameters, see {@link #toPointerType(MethodType, LLVMTypeRef[])}
+	 * @param type Java signature of the native function
+	 * @return method handle of the given type
+	 */
+	protected static MethodHandle toPointerArguments(MethodHandle handle, MethodType type) {
+		for (int i = 0; i < type.parameterCount(); i++) {
+			final Class<?> paramType = type.parameterType(i);
+			if(paramType == handle.type().parameterType(i))
+				continue;
+			final MethodHandle toPointer = isMemorySegment(paramType) ? SEGMENT_TO_POINTER : BUFFER_TO_POINTER;
+			handle = MethodHandles.filterArguments(handle, i, toPointer.asType(MethodType.methodType(Pointer.class, paramType)));
+		}
+		return handle;
+	}
+
+	/**
+	 * Is the foreign function API of Java 22+ available
+	 *
+	 * @return true if downcall handles are used for primitive signatures
+	 */
+	public static boolean isForeignLinkerAvailable() {
+		return ForeignLinker.LINKER != null;
+	}
+
+	/**
+	 * Create a method handle calling the native function at the address via the jffi invoker
+	 *
+	 * @param address of the native function
+	 * @param type Java signature of the native function
+	 * @return method handle of the given type
+	 */
+	protected static MethodHandle bindInvoker(long address, MethodType type) {
+		final Type[] paramTypes = new Type[type.parameterCount()];
+		for (int i = 0; i < paramTypes.length; i++)
+			paramTypes[i] = toNativeType(type.parameterType(i));
+		return bindInvoker(address, type, toNativeType(type.returnType()), paramTypes);
+	}
+
+	/**
+	 * Create a method handle calling the native function at the address via the jffi invoker
+	 *
+	 * @param address of the native function
+	 * @param type Java signature of the native function
+	 * @param returnType native return type
+	 * @param paramTypes native parameter types
+	 * @return method handle of the given type
+	 */
+	protected static MethodHandle bindInvoker(long address, MethodType type, Type returnType, Type[] paramTypes) {
+		final CallContext context = CallContext.getCallContext(returnType, paramTypes, CallingConvention.DEFAULT, false);
+		if(isNumeric(type))
+			return bindNumeric(address, type, context);
+
+		final Function function = new Function(address, context);
+		return MethodHandles.insertArguments(INVOKE, 0, function, type)
+				.asCollector(Object[].class, type.parameterCount())
+				.asType(type);
+	}
+
+	/**
+	 * Can the signature be bound to the numeric jffi entry points, which take every argument as a long 
+	 * and return the result as a long. Primitives are stored in the lower bits of the long, therefore
+	 * only little endian platforms are supported.
+	 *
+	 * @param type Java signature
+	 * @return true for up to six primitive or pointer parameters and a primitive, pointer or void return type
+	 */
+	protected static boolean isNumeric(MethodType type) {
+		if(ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN || type.parameterCount() > MAX_NUMERIC_PARAMETERS)
+			return false;
+		if(type.returnType() != void.class && FROM_NUMERIC.containsKey(type.returnType()) == false)
+			return false;
+		for (Class<?> paramType : type.parameterArray())
+			if(TO_NUMERIC.containsKey(paramType) == false)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Bind the function to the numeric jffi entry point with the same number of parameters. The 
+	 * arguments and the return value are converted without boxing, see {@link #isNumeric(MethodType)}.
+	 *
+	 * @param address of the native function
+	 * @param type Java signature of the native function
+	 * @param context call context with the native types of the signature
+	 * @return method handle of the given type
+	 */
+	protected static MethodHandle bindNumeric(long address, MethodType type, CallContext context) {
+		MethodHandle handle = MethodHandles.insertArguments(INVOKE_NUMERIC[type.parameterCount()], 0, context, address);
+		for (int i = 0; i < type.parameterCount(); i++)
+			handle = MethodHandles.filterArguments(handle, i, TO_NUMERIC.get(type.parameterType(i)));
+		if(type.returnType() != void.class)
+			handle = MethodHandles.filterReturnValue(handle, FROM_NUMERIC.get(type.returnType()));
+		return handle.asType(type);
+	}
+
+	protected static long toNumeric(boolean value) {
+		return value ? 1 : 0;
+	}
+
+	protected static long toNumeric(byte value) {
+		return value;
+	}
+
+	protected static long toNumeric(short value) {
+		return value;
+	}
+
+	protected static long toNumeric(int value) {
+		return value;
+	}
+
+	protected static long toNumeric(long value) {
+		return value;
+	}
+
+	protected static long toNumeric(float value) {
+		return Float.floatToRawIntBits(value) & 0xFFFFFFFFL;
+	}
+
+	protected static long toNumeric(double value) {
+		return Double.doubleToRawLongBits(value);
+	}
+
+	protected static long toNumeric(Pointer pointer) {
+		if(pointer == null)
+			return 0;
+		if(pointer.isDirect() == false)
+			throw new IllegalArgumentException("Only direct pointers can be passed to native functions");
+		return pointer.address();
+	}
+
+	protected static boolean numericToBoolean(long value) {
+		return (value & 0xFF) != 0;
+	}
+
+	protected static byte numericToByte(long value) {
+		return (byte) value;
+	}
+
+	protected static short numericToShort(long value) {
+		return (short) value;
+	}
+
+	protected static int numericToInt(long value) {
+		return (int) value;
+	}
+
+	protected static long numericToLong(long value) {
+		return value;
+	}
+
+	protected static float numericToFloat(long value) {
+		return Float.intBitsToFloat((int) value);
+	}
+
+	protected static double numericToDouble(long value) {
+		return Double.longBitsToDouble(value);
+	}
+
+	protected static Pointer numericToPointer(long value) {
+		return Pointer.wrap(Runtime.getSystemRuntime(), value);
+	}
+
+	/**
+	 * Native type of the jffi call context for a Java type
+	 *
+	 * @param javaType Java type
+	 * @return native type
+	 */
+	protected static Type toNativeType(Class<?> javaType) {
+		if(javaType == void.class)
+			return Type.VOID;
+		else if(javaType == boolean.class)
+			return Type.UINT8;
+		else if(javaType == byte.class)
+			return Type.SINT8;
+		else if(javaType == short.class)
+			return Type.SINT16;
+		else if(javaType == int.class)
+			return Type.SINT32;
+		else if(javaType == long.class)
+			return Type.SINT64;
+		else if(javaType == float.class)
+			return Type.FLOAT;
+		else if(javaType == double.class)
+			return Type.DOUBLE;
+		else if(javaType == Pointer.class || javaType.isArray() || jnr.ffi.Struct.class.isAssignableFrom(javaType))
+			return Type.POINTER;
+		throw new IllegalArgumentException("Unsupported type "+javaType+" in native function signature");
+	}
+
+	/**
+	 * Native type of the jffi call context for a LLVM type. Structs and arrays 
+	 * become aggregates with the same layout.
+	 *
+	 * @param llvmType LLVM type
+	 * @return native type
+	 */
+	protected static Type toNativeType(LLVMTypeRef llvmType) {
+		switch (LLVM.LLVMGetTypeKind(llvmType)) {
+		case LLVM.LLVMVoidTypeKind:
+			return Type.VOID;
+		case LLVM.LLVMFloatTypeKind:
+			return Type.FLOAT;
+		case LLVM.LLVMDoubleTypeKind:
+			return Type.DOUBLE;
+		case LLVM.LLVMPointerTypeKind:
+			return Type.POINTER;
+		case LLVM.LLVMIntegerTypeKind:
+			switch (LLVM.LLVMGetIntTypeWidth(llvmType)) {
+			case 64:
+				return Type.SINT64;
+			case 32:
+				return Type.SINT32;
+			case 16:
+				return Type.SINT16;
+			case 8:
+			case 1:
+				return Type.SINT8;
+			default:
+				break;
+			}
+			break;
+		case LLVM.LLVMArrayTypeKind:
+			return com.kenai.jffi.Array.newArray(toNativeType(LLVM.LLVMGetElementType(llvmType)), LLVM.LLVMGetArrayLength(llvmType));
+		case LLVM.LLVMStructTypeKind:
+			if(LLVM.LLVMIsPackedStruct(llvmType) != 0)
+				throw new IllegalArgumentException("Packed structs are not supported in native function signatures");
+			final int fieldCount = LLVM.LLVMCountStructElementTypes(llvmType);
+			final Type[] fields = new Type[fieldCount];
+			for (int i = 0; i < fieldCount; i++)
+				fields[i] = toNativeType(LLVM.LLVMStructGetTypeAtIndex(llvmType, i));
+			return Struct.newStruct(fields);
+		default:
+			break;
+		}
+		throw new IllegalArgumentException("Unsupported type "+LLVMProgram.getTypekindName(LLVM.LLVMGetTypeKind(llvmType))+" in native function signature");
+	}
+
+	/**
+	 * Generic invocation of a native function for signatures the numeric entry points do not support, e.g. arrays and structs.
+	 *
+	 * @param function native function and its call context
+	 * @param type Java signature of the native function
+	 * @param args arguments
+	 * @return boxed return value or null
+	 */
+	protected static Object invoke(Function function, MethodType type, Object[] args) {
+		final HeapInvocationBuffer buffer = new HeapInvocationBuffer(function);
+		for (int i = 0; i < args.length; i++)
+			putArgument(buffer, type.parameterType(i), args[i]);
+
+		final Invoker invoker = Invoker.getInstance();
+		final Class<?> returnType = type.returnType();
+		if(returnType == void.class) {
+			invoker.invokeInt(function, buffer);
+			return null;
+		} else if(returnType == boolean.class)
+			return (invoker.invokeInt(function, buffer) & 0xFF) != 0;
+		else if(returnType == byte.class)
+			return (byte) invoker.invokeInt(function, buffer);
+		else if(returnType == short.class)
+			return (short) invoker.invokeInt(function, buffer);
+		else if(returnType == int.class)
+			return invoker.invokeInt(function, buffer);
+		else if(returnType == long.class)
+			return invoker.invokeLong(function, buffer);
+		else if(returnType == float.class)
+			return invoker.invokeFloat(function, buffer);
+		else if(returnType == double.class)
+			return invoker.invokeDouble(function, buffer);
+		else if(returnType == Pointer.class)
+			return Pointer.wrap(Runtime.getSystemRuntime(), invoker.invokeAddress(function, buffer));
+		else if(returnType == ByteBuffer.class)
+			return ByteBuffer.wrap(invoker.invokeStruct(function, buffer)).order(ByteOrder.nativeOrder());
+		throw new IllegalArgumentException("Unsupported return type "+returnType+" in native function signature");
+	}
+
+	/**
+	 * Copy an argument into the invocation buffer. Arrays are copied into native memory before
+	 * the call and back into the Java array afterwards.
+	 *
+	 * @param buffer invocation buffer
+	 * @param javaType declared parameter type
+	 * @param arg argument value
+	 */
+	protected static void putArgument(HeapInvocationBuffer buffer, Class<?> javaType, Object arg) {
+		final int flags = ArrayFlags.IN | ArrayFlags.OUT;
+		if(javaType == boolean.class)
+			buffer.putByte(((Boolean) arg) ? 1 : 0);
+		else if(javaType == byte.class)
+			buffer.putByte((Byte) arg);
+		else if(javaType == short.class)
+			buffer.putShort((Short) arg);
+		else if(javaType == int.class)
+			buffer.putInt((Integer) arg);
+		else if(javaType == long.class)
+			buffer.putLong((Long) arg);
+		else if(javaType == float.class)
+			buffer.putFloat((Float) arg);
+		else if(javaType == double.class)
+			buffer.putDouble((Double) arg);
+		else if(arg == null)
+			buffer.putAddress(0);
+		else if(javaType == Pointer.class) {
+			final Pointer pointer = (Pointer) arg;
+			if(pointer.isDirect() == false)
+				throw new IllegalArgumentException("Only direct pointers can be passed to native functions");
+			buffer.putAddress(pointer.address());
+		} else if(javaType == ByteBuffer.class) {
+			final ByteBuffer struct = ((ByteBuffer) arg).duplicate();
+			final byte[] bytes = new byte[struct.remaining()];
+			struct.get(bytes);
+			buffer.putStruct(bytes, 0);
+		} else if(jnr.ffi.Struct.class.isAssignableFrom(javaType)) {
+			buffer.putAddress(jnr.ffi.Struct.getMemory((jnr.ffi.Struct) arg, ParameterFlags.DIRECT).address());
+		} else if(javaType == byte[].class) {
+			final byte[] array = (byte[]) arg;
+			buffer.putArray(array, 0, array.length, flags);
+		} else if(javaType == short[].class) {
+			final short[] array = (short[]) arg;
+			buffer.putArray(array, 0, array.length, flags);
+		} else if(javaType == int[].class) {
+			final int[] array = (int[]) arg;
+			buffer.putArray(array, 0, array.length, flags);
+		} else if(javaType == long[].class) {
+			final long[] array = (long[]) arg;
+			buffer.putArray(array, 0, array.length, flags);
+		} else if(javaType == float[].class) {
+			final float[] array = (float[]) arg;
+			buffer.putArray(array, 0, array.length, flags);
+		} else if(javaType == double[].class) {
+			final double[] array = (double[]) arg;
+			buffer.putArray(array, 0, array.length, flags);
+		} else
+			throw new IllegalArgumentException("Unsupported parameter type "+javaType+" in native function signature");
+	}
+
+	/**
+	 * Access to the foreign function API (java.lang.foreign) of Java 22+ via reflection,
+	 * since this library is compiled for Java 8.
+	 *
+	 * @author Nico Hezel
+	 */
+	protected static class ForeignLinker {
+
+		protected static final Object LINKER;
+		protected static final Class<?> MEMORY_LAYOUT;
+		protected static final Class<?> MEMORY_SEGMENT;
+		protected static final MethodHandle OF_FUNCTION;
+		protected static final MethodHandle OF_VOID_FUNCTION;
+		protected static final MethodHandle DOWNCALL;
+		protected static final MethodHandle POINTER_TO_SEGMENT;
+		protected static final MethodHandle SEGMENT_TO_POINTER;
+		protected static final MethodHandle SEGMENT_ADDRESS;
+		protected static final MethodHandle SEGMENT_IS_NATIVE;
+		protected static final MethodHandle SEGMENT_BYTE_SIZE;
+		protected static final Map<Class<?>, Object> LAYOUTS = new HashMap<>();
+		static {
+			Object linker = null;
+			Class<?> memoryLayout = null, memorySegment = null;
+			MethodHandle ofFunction = null, ofVoidFunction = null, downcall = null, pointerToSegment = null, segmentToPointer = null;
+			MethodHandle segmentAddress = null, segmentIsNative = null, segmentByteSize = null;
+			try {
+				if(javaVersion() >= 22) {
+					final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+					final Class<?> linkerClass = Class.forName("java.lang.foreign.Linker");
+					final Class<?> optionClass = Class.forName("java.lang.foreign.Linker$Option");
+					final Class<?> valueLayout = Class.forName("java.lang.foreign.ValueLayout");
+					final Class<?> descriptor = Class.forName("java.lang.foreign.FunctionDescriptor");
+					memoryLayout = Class.forName("java.lang.foreign.MemoryLayout");
+					memorySegment = Class.forName("java.lang.foreign.MemorySegment");
+
+					LAYOUTS.put(boolean.class, valueLayout.getField("JAVA_BOOLEAN").get(null));
+					LAYOUTS.put(byte.class, valueLayout.getField("JAVA_BYTE").get(null));
+					LAYOUTS.put(short.class, valueLayout.getField("JAVA_SHORT").get(null));
+					LAYOUTS.put(int.class, valueLayout.getField("JAVA_INT").get(null));
+					LAYOUTS.put(long.class, valueLayout.getField("JAVA_LONG").get(null));
+					LAYOUTS.put(float.class, valueLayout.getField("JAVA_FLOAT").get(null));
+					LAYOUTS.put(double.class, valueLayout.getField("JAVA_DOUBLE").get(null));
+					LAYOUTS.put(Pointer.class, valueLayout.getField("ADDRESS").get(null));
+					LAYOUTS.put(memorySegment, valueLayout.getField("ADDRESS").get(null));
+
+					final Class<?> layoutArray = Array.newInstance(memoryLayout, 0).getClass();
+					final Class<?> optionArray = Array.newInstance(optionClass, 0).getClass();
+					// the array arguments are passed as arrays and must not be collected again
+					ofFunction = lookup.findStatic(descriptor, "of", MethodType.methodType(descriptor, memoryLayout, layoutArray)).asFixedArity();
+					ofVoidFunction = lookup.findStatic(descriptor, "ofVoid", MethodType.methodType(descriptor, layoutArray)).asFixedArity();
+					downcall = lookup.findVirtual(linkerClass, "downcallHandle", MethodType.methodType(MethodHandle.class, memorySegment, descriptor, optionArray)).asFixedArity();
+
+					// jnr.ffi.Pointer <-> MemorySegment
+					final MethodHandle ofAddress = lookup.findStatic(memorySegment, "ofAddress", MethodType.methodType(memorySegment, long.class));
+					segmentAddress = lookup.findVirtual(memorySegment, "address", MethodType.methodType(long.class));
+					segmentIsNative = lookup.findVirtual(memorySegment, "isNative", MethodType.methodType(boolean.class));
+					segmentByteSize = lookup.findVirtual(memorySegment, "byteSize", MethodType.methodType(long.class));
+					final MethodHandle wrap = lookup.findStatic(Pointer.class, "wrap", MethodType.methodType(Pointer.class, Runtime.class, long.class))
+													.bindTo(Runtime.getSystemRuntime());
+
+					// null and indirect pointers are handled like in the jffi invoker
+					final MethodHandle pointerToNumeric = MethodHandles.lookup().findStatic(LLVMMethodHandleBinder.class, "toNumeric", MethodType.methodType(long.class, Pointer.class));
+					pointerToSegment = MethodHandles.filterReturnValue(pointerToNumeric, ofAddress);
+					segmentToPointer = MethodHandles.filterReturnValue(segmentAddress, wrap);
+
+					linker = linkerClass.getMethod("nativeLinker").invoke(null);
+				}
+			} catch (Throwable e) {
+				linker = null;
+				memorySegment = null;
+			}
+			LINKER = linker;
+			MEMORY_LAYOUT = memoryLayout;
+			MEMORY_SEGMENT = memorySegment;
+			OF_FUNCTION = ofFunction;
+			OF_VOID_FUNCTION = ofVoidFunction;
+			DOWNCALL = downcall;
+			POINTER_TO_SEGMENT = pointerToSegment;
+			SEGMENT_TO_POINTER = segmentToPointer;
+			SEGMENT_ADDRESS = segmentAddress;
+			SEGMENT_IS_NATIVE = segmentIsNative;
+			SEGMENT_BYTE_SIZE = segmentByteSize;
+		}
+
+		/**
+		 * Major version of the running Java
+		 */
+		protected static int javaVersion() {
+			final String version = System.getProperty("java.specification.version");
+			return version.startsWith("1.") ? Integer.parseInt(version.substring(2)) : Integer.parseInt(version);
+		}
+
+		/**
+		 * Can the signature be bound with a downcall handle
+		 *
+		 * @param type Java signature
+		 * @return true if the foreign function API is available and supports all types
+		 */
+		protected static boolean isSupported(MethodType type) {
+			if(LINKER == null)
+				return false;
+			if(type.returnType() != void.class && LAYOUTS.containsKey(type.returnType()) == false)
+				return false;
+			for (Class<?> paramType : type.parameterArray())
+				if(LAYOUTS.containsKey(paramType) == false)
+					return false;
+			return true;
+		}
+
+		/**
+		 * Create a downcall handle and adapt the pointer parameters and return value to {@link Pointer}
+		 *
+		 * @param address of the native function
+		 * @param type Java signature of the native function
+		 * @return method handle of the given type
+		 */
+		protected static MethodHandle bind(long address, MethodType type) {
+			try {
+				final Object[] argLayouts = (Object[]) Array.newInstance(MEMORY_LAYOUT, type.parameterCount());
+				for (int i = 0; i < argLayouts.length; i++)
+					argLayouts[i] = LAYOUTS.get(type.parameterType(i));
+				final Object descriptor = (type.returnType() == void.class)
+						? OF_VOID_FUNCTION.invoke(argLayouts)
+						: OF_FUNCTION.invoke(LAYOUTS.get(type.returnType()), argLayouts);
+				final Object symbol = POINTER_TO_SEGMENT.invoke(Pointer.wrap(Runtime.getSystemRuntime(), address));
+				final Object options = Array.newInstance(DOWNCALL.type().parameterType(3).getComponentType(), 0);
+				MethodHandle handle = (MethodHandle) DOWNCALL.invoke(LINKER, symbol, descriptor, options);
+
+				// MemorySegment <-> jnr.ffi.Pointer
+				for (int i = 0; i < type.parameterCount(); i++)
+					if(type.parameterType(i) == Pointer.class)
+						handle = MethodHandles.filterArguments(handle, i, POINTER_TO_SEGMENT);
+				if(type.returnType() == Pointer.class)
+					handle = MethodHandles.filterReturnValue(handle, SEGMENT_TO_POINTER);
+				return handle.asType(type);
+			} catch (Throwable e) {
+				throw new IllegalStateException("Could not create a downcall handle for "+type, e);
+			}
+		}
+	}
+}
@@ -30,4 +30,25 @@ public interface LLVMModuleBuilder<T> {
 	 * @return a class object to a java interface
 	 */
 	public Class<T> getInvocationInterface();
+
+	/**
+	 * Build an already optimized version of the LLVM module, e.g. from a cache. 
+	 * The {@link LLVMCompiler} skips the optimization of such a module.
+	 * 
+	 * @param compilerKey configuration of the compiler see {@link LLVMCompiler#getConfigurationKey()}
+	 * @return optimized LLVM module or null if there is none for this compiler configuration
+	 */
+	public default LLVMModuleRef buildOptimized(String compilerKey) {
+		return null;
+	}
+
+	/**
+	 * Called by the {@link LLVMCompiler} after it optimized a module built with {@link #build()}.
+	 * Implementations can store the module and provide it via {@link #buildOptimized(String)} afterwards.
+	 * 
+	 * @param module optimized LLVM module, still owned by the compiled program
+	 * @param compilerKey configuration of the compiler see {@link LLVMCompiler#getConfigurationKey()}
+	 */
+	public default void storeOptimized(LLVMModuleRef module, String compilerKey) {
+	}
 }
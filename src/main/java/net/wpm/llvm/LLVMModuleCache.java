@@ -0,0 +1,329 @@
+package net.wpm.llvm;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A content-addressed directory of compiler artifacts (c code, LLVM IR, bitcode, optimized bitcode).
+ * Every artifact is identified by a key and a file extension. The key should be computed with
+ * {@link #computeKey(String...)} from everything which influences the content of the artifact,
+ * e.g. the source code, the compiler flags and the compiler version.
+ * <br><br>
+ * The directory can be shared by many threads and processes at once. Artifacts are written to
+ * a temporary file and atomically moved into place, while a lock file per key makes sure only
+ * one process produces a missing artifact. If the directory grows above its maximum size the
+ * least recently used keys are deleted together with all their artifacts, e.g. a c source file
+ * is never evicted while its bitcode is still in use.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMModuleCache {
+
+	/**
+	 * Writes an artifact to the given file.
+	 */
+	@FunctionalInterface
+	public static interface ArtifactWriter {
+		public void write(Path file) throws IOException;
+	}
+
+	/**
+	 * Default cache directory in the temporary directory of the system, limited to 1GB
+	 */
+	public static final Path DEFAULT_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"), "llvm_jnr");
+	public static final long DEFAULT_MAX_SIZE = 1L << 30;
+
+	/**
+	 * Artifacts which have been used recently are never evicted, since another process might just read them.
+	 */
+	protected static final long EVICTION_GRACE_PERIOD_MS = 60 * 1000;
+
+	protected static final String LOCK_EXTENSION = ".lock";
+	protected static final String TEMP_EXTENSION = ".tmp";
+
+	protected static LLVMModuleCache defaultCache;
+
+	// file locks are held by the whole JVM, threads need to be synchronized separately
+	protected static final ReentrantLock[] threadLocks = new ReentrantLock[64];
+	static {
+		for (int i = 0; i < threadLocks.length; i++)
+			threadLocks[i] = new ReentrantLock();
+	}
+
+	protected final Path directory;
+	protected final long maxSize;
+
+	/**
+	 * Cache in the given directory
+	 *
+	 * @param directory cache directory, will be created if it does not exist
+	 * @param maxSize maximal size of all artifacts in bytes, zero or less means unlimited
+	 * @throws IOException could not create the directory
+	 */
+	public LLVMModuleCache(Path directory, long maxSize) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Cache shared by all workers on this host, see {@link #DEFAULT_DIRECTORY}.
+	 *
+	 * @return default cache
+	 * @throws IOException could not create the cache directory
+	 */
+	public static synchronized LLVMModuleCache getDefault() throws IOException {
+		if(defaultCache == null)
+			defaultCache = new LLVMModuleCache(DEFAULT_DIRECTORY, DEFAULT_MAX_SIZE);
+		return defaultCache;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Location of an artifact, it might not exist
+	 *
+	 * @param key content key
+	 * @param extension file extension including the dot
+	 * @return path to the artifact
+	 */
+	public Path resolve(String key, String extension) {
+		return directory.resolve(key + extension);
+	}
+
+	/**
+	 * Get an existing artifact and mark it as recently used.
+	 *
+	 * @param key content key
+	 * @param extension file extension including the dot
+	 * @return path to the artifact or null if it does not exist
+	 */
+	public Path get(String key, String extension) {
+		final Path file = resolve(key, extension);
+		return touch(file) ? file : null;
+	}
+
+	/**
+	 * Get an existing artifact or produce it with the writer. The writer is called at most
+	 * once across all threads and processes which share the cache directory.
+	 *
+	 * @param key content key
+	 * @param extension file extension including the dot
+	 * @param writer produces the artifact in a temporary file
+	 * @return path to the artifact
+	 * @throws IOException could not write the artifact
+	 */
+	public Path computeIfAbsent(String key, String extension, ArtifactWriter writer) throws IOException {
+
+		// fast path without locking
+		final Path file = get(key, extension);
+		if(file != null)
+			return file;
+
+		final ReentrantLock threadLock = threadLocks[Math.floorMod(key.hashCode(), threadLocks.length)];
+		final Path lockFile = resolve(key, LOCK_EXTENSION);
+		threadLock.lock();
+		try(FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock processLock = channel.lock()) {
+			try {
+
+				// another process might have produced the artifact in the meantime
+				final Path target = resolve(key, extension);
+				if(touch(target))
+					return target;
+
+				write(target, writer);
+			} finally {
+
+				// remove the lock file while still holding the lock. A process waiting on the deleted file
+				// finds the artifact once it gets the lock, at worst a failed write is repeated concurrently.
+				if(processLock.isValid())
+					Files.deleteIfExists(lockFile);
+			}
+		} finally {
+			threadLock.unlock();
+		}
+
+		evict();
+		return resolve(key, extension);
+	}
+
+	/**
+	 * Store an artifact, an existing artifact is replaced atomically.
+	 *
+	 * @param key content key
+	 * @param extension file extension including the dot
+	 * @param writer produces the artifact in a temporary file
+	 * @return path to the artifact
+	 * @throws IOException could not write the artifact
+	 */
+	public Path put(String key, String extension, ArtifactWriter writer) throws IOException {
+		final Path target = resolve(key, extension);
+		write(target, writer);
+		evict();
+		return target;
+	}
+
+	/**
+	 * Let the writer produce a temporary file in the cache directory and move it in place.
+	 *
+	 * @param target final artifact
+	 * @param writer produces the artifact
+	 * @throws IOException could not write or move the artifact
+	 */
+	protected void write(Path target, ArtifactWriter writer) throws IOException {
+		final Path tmp = Files.createTempFile(directory, target.getFileName().toString(), TEMP_EXTENSION);
+		try {
+			writer.write(tmp);
+			Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Update the last modified time of the file, which is used as the last access time for the eviction.
+	 *
+	 * @param file artifact
+	 * @return false if the file does not exist
+	 */
+	protected static boolean touch(Path file) {
+		try {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Delete the least recently used keys until the size of the cache is below its maximum.
+	 * All artifacts of a key are deleted together and a key counts as used when any of its
+	 * artifacts has been used.
+	 *
+	 * @throws IOException could not list the cache directory
+	 */
+	public void evict() throws IOException {
+		if(maxSize <= 0)
+			return;
+
+		// collect all artifacts grouped by their key
+		long size = 0;
+		final Map<String, KeyGroup> groups = new HashMap<>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path file : stream) {
+				final String name = file.getFileName().toString();
+				if(name.endsWith(LOCK_EXTENSION) || name.endsWith(TEMP_EXTENSION))
+					continue;
+				try {
+					final BasicFileAttributes attr = Files.readAttributes(file, BasicFileAttributes.class);
+					if(attr.isRegularFile() == false)
+						continue;
+					groups.computeIfAbsent(keyOf(name), k -> new KeyGroup()).add(file, attr);
+					size += attr.size();
+				} catch (NoSuchFileException e) {
+					// evicted by another process
+				}
+			}
+		}
+		if(size <= maxSize)
+			return;
+
+		// oldest first
+		final List<KeyGroup> order = new ArrayList<>(groups.values());
+		order.sort(Comparator.comparingLong(g -> g.lastUsed));
+
+		final long graceTime = System.currentTimeMillis() - EVICTION_GRACE_PERIOD_MS;
+		for (int i = 0; i < order.size() && size > maxSize; i++) {
+			final KeyGroup group = order.get(i);
+			if(group.lastUsed > graceTime)
+				break;
+			for (int f = 0; f < group.files.size(); f++)
+				if(Files.deleteIfExists(group.files.get(f)))
+					size -= group.sizes.get(f);
+		}
+	}
+
+	/**
+	 * The key of an artifact is the file name up to the first dot, keys never contain dots.
+	 *
+	 * @param fileName name of an artifact
+	 * @return key of the artifact
+	 */
+	protected static String keyOf(String fileName) {
+		final int dot = fileName.indexOf('.');
+		return (dot < 0) ? fileName : fileName.substring(0, dot);
+	}
+
+	/**
+	 * All artifacts of a key
+	 *
+	 * @author Nico Hezel
+	 */
+	protected static class KeyGroup {
+		protected final List<Path> files = new ArrayList<>();
+		protected final List<Long> sizes = new ArrayList<>();
+		protected long lastUsed = Long.MIN_VALUE;
+
+		protected void add(Path file, BasicFileAttributes attr) {
+			files.add(file);
+			sizes.add(attr.size());
+			lastUsed = Math.max(lastUsed, attr.lastModifiedTime().toMillis());
+		}
+	}
+
+	/**
+	 * Compute a content key from all the given parts
+	 *
+	 * @param parts everything influencing the content of an artifact
+	 * @return hex string of the SHA-256 hash
+	 * @throws NoSuchAlgorithmException SHA-256 is not available
+	 */
+	public static String computeKey(String ... parts) throws NoSuchAlgorithmException {
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		for (String part : parts) {
+			md.update(part.getBytes(StandardCharsets.UTF_8));
+			md.update((byte) 0);
+		}
+		return bytesToHex(md.digest());
+	}
+
+	/**
+	 * Convert to HEX values
+	 */
+	protected static String bytesToHex(byte[] bytes) {
+	    char[] hexChars = new char[bytes.length * 2];
+	    for (int j = 0; j < bytes.length; j++) {
+	        int v = bytes[j] & 0xFF;
+	        hexChars[j * 2] = HEX_ARRAY[v >>> 4];
+	        hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
+	    }
+	    return new String(hexChars);
+	}
+	private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
+}
@@ -0,0 +1,193 @@
+package net.wpm.llvm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.llvm.global.LLVM;
+
+/**
+ * Control over the OpenMP runtime which executes the parallel loops generated by polly.
+ * The runtime (libiomp5) is loaded into the process by the first {@link LLVMCompiler}
+ * using polly parallel or by {@link #isAvailable()}.
+ *
+ * The thread count is a setting of the calling thread and is used by all following
+ * parallel regions started from this thread, see {@link LLVMProgram#setNumThreads(int)}
+ * to set it per program. The affinity can only be changed before the first parallel region.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMOpenMP {
+
+	protected static boolean isLoaded = false;
+	protected static String unavailabilityReason = "OpenMP runtime has not been loaded";
+
+	protected static MethodHandle setNumThreads;
+	protected static MethodHandle getMaxThreads;
+	protected static MethodHandle setDefaults;
+
+	// thread count last set on each thread via this class, 0 if never set
+	protected static final ThreadLocal<int[]> appliedNumThreads = ThreadLocal.withInitial(() -> new int[1]);
+
+	/**
+	 * Load the OpenMP runtime into the process, repeated calls have no effect.
+	 *
+	 * @return true if the runtime is available
+	 */
+	public static synchronized boolean load() {
+		if(isLoaded)
+			return unavailabilityReason == null;
+		isLoaded = true;
+
+		final String platform = Loader.getPlatform();
+		final String omplib = platform.startsWith("linux") ? "libiomp5.so"
+				: platform.startsWith("macosx") ? "libiomp5.dylib"
+						: platform.startsWith("windows") ? "libiomp5md.dll"
+								: null;
+		if(omplib == null) {
+			unavailabilityReason = "No OpenMP runtime known for the platform "+platform;
+			return false;
+		}
+		if(LLVM.LLVMLoadLibraryPermanently(omplib) != 0) {
+			unavailabilityReason = "Could not load the OpenMP runtime "+omplib;
+			return false;
+		}
+
+		final long setNumThreadsAddr = findSymbol("omp_set_num_threads");
+		final long getMaxThreadsAddr = findSymbol("omp_get_max_threads");
+		if(setNumThreadsAddr == 0 || getMaxThreadsAddr == 0) {
+			unavailabilityReason = "The library "+omplib+" is not an OpenMP runtime";
+			return false;
+		}
+		setNumThreads = LLVMMethodHandleBinder.bind(setNumThreadsAddr, MethodType.methodType(void.class, int.class));
+		getMaxThreads = LLVMMethodHandleBinder.bind(getMaxThreadsAddr, MethodType.methodType(int.class));
+
+		// only available in the LLVM and Intel runtime
+		final long setDefaultsAddr = findSymbol("kmp_set_defaults");
+		if(setDefaultsAddr != 0)
+			setDefaults = LLVMMethodHandleBinder.bind(setDefaultsAddr, MethodType.methodType(void.class, byte[].class));
+
+		unavailabilityReason = null;
+		return true;
+	}
+
+	/**
+	 * Is the OpenMP runtime available. Loads the runtime if necessary.
+	 *
+	 * @return true if the runtime is available
+	 */
+	public static boolean isAvailable() {
+		return load();
+	}
+
+	/**
+	 * Why the OpenMP runtime is not available
+	 *
+	 * @return reason or null if the runtime is available
+	 */
+	public static synchronized String getUnavailabilityReason() {
+		load();
+		return unavailabilityReason;
+	}
+
+	/**
+	 * Number of threads used by the following parallel regions started from the calling thread
+	 *
+	 * @param numThreads number of threads, at least 1
+	 * @throws IllegalStateException if the OpenMP runtime is not available
+	 */
+	public static void setNumThreads(int numThreads) {
+		if(numThreads < 1)
+			throw new IllegalArgumentException("The number of OpenMP threads must be at least 1, got "+numThreads);
+		checkAvailable();
+		final int[] applied = appliedNumThreads.get();
+		try {
+			setNumThreads.invokeExact(numThreads);
+		} catch (Throwable e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+		applied[0] = numThreads;
+	}
+
+	/**
+	 * Same as {@link #setNumThreads(int)} but calls the OpenMP runtime only if the thread count differs from 
+	 * the last one set on the calling thread via this class. Settings made directly in the runtime are not noticed.
+	 *
+	 * @param numThreads number of threads, at least 1
+	 * @throws IllegalStateException if the OpenMP runtime is not available
+	 */
+	public static void applyNumThreads(int numThreads) {
+		if(appliedNumThreads.get()[0] != numThreads)
+			setNumThreads(numThreads);
+	}
+
+	/**
+	 * Maximal number of threads a parallel region started from the calling thread can use
+	 *
+	 * @return number of threads
+	 * @throws IllegalStateException if the OpenMP runtime is not available
+	 */
+	public static int getMaxThreads() {
+		checkAvailable();
+		try {
+			return (int) getMaxThreads.invokeExact();
+		} catch (Throwable e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Pin the OpenMP threads. Must be called before the first parallel region of the process,
+	 * see OMP_PLACES and OMP_PROC_BIND in the OpenMP specification.
+	 *
+	 * Examples:
+	 * <ul>
+	 * <li>one thread per physical core, close to the master thread: places "cores", bind "close"</li>
+	 * <li>spread the threads over the NUMA nodes: places "numa_domains", bind "spread"</li>
+	 * <li>explicit cores: places "{0},{1},{2},{3}", bind "close"</li>
+	 * </ul>
+	 *
+	 * @param places OMP_PLACES value
+	 * @param procBind OMP_PROC_BIND value
+	 * @throws IllegalStateException if the OpenMP runtime is not available
+	 * @throws UnsupportedOperationException if the runtime does not support setting defaults
+	 */
+	public static void setAffinity(String places, String procBind) {
+		setDefaults("OMP_PLACES="+places, "OMP_PROC_BIND="+procBind);
+	}
+
+	/**
+	 * Set OpenMP environment variables of the process, e.g. "KMP_BLOCKTIME=0".
+	 * Must be called before the first parallel region of the process.
+	 *
+	 * @param settings NAME=value pairs
+	 * @throws IllegalStateException if the OpenMP runtime is not available
+	 * @throws UnsupportedOperationException if the runtime does not support setting defaults
+	 */
+	public static void setDefaults(String ... settings) {
+		checkAvailable();
+		if(setDefaults == null)
+			throw new UnsupportedOperationException("The OpenMP runtime does not support kmp_set_defaults");
+
+		// null terminated list of settings separated by |
+		final byte[] str = String.join("|", settings).getBytes(StandardCharsets.US_ASCII);
+		try {
+			setDefaults.invokeExact(Arrays.copyOf(str, str.length + 1));
+		} catch (Throwable e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	protected static void checkAvailable() {
+		if(isAvailable() == false)
+			throw new IllegalStateException(getUnavailabilityReason());
+	}
+
+	protected static long findSymbol(String name) {
+		final Pointer symbol = LLVM.LLVMSearchForAddressOfSymbol(name);
+		return (symbol == null) ? 0 : symbol.address();
+	}
+}
@@ -0,0 +1,314 @@
+package net.wpm.llvm;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executes a kernel in parallel on partitions of a range with a {@link ForkJoinPool},
+ * as an alternative to polly parallel which needs an OpenMP runtime. Every partition
+ * calls the same native function with its own sub range, e.g. the rows of a matrix
+ * multiplication. Pointers into the data of a partition can be created with
+ * {@link jnr.ffi.Pointer#slice(long)}.
+ *
+ * The range is split recursively until the partitions are not larger than the grain size.
+ * Submitted executions can be cancelled, partitions which have not started yet are skipped.
+ * Native code which is already running can not be interrupted. The number of pending
+ * executions can be limited, further submits block until a pending execution finished.
+ * A cancelled execution stays pending until its running partitions are done.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMParallelFor {
+
+	/**
+	 * Processes the range [start, end)
+	 */
+	@FunctionalInterface
+	public static interface RangeKernel {
+		public void run(int start, int end) throws Throwable;
+	}
+
+	/**
+	 * Processes the tile [rowStart, rowEnd) x [colStart, colEnd)
+	 */
+	@FunctionalInterface
+	public static interface TileKernel {
+		public void run(int rowStart, int rowEnd, int colStart, int colEnd) throws Throwable;
+	}
+
+	protected final ForkJoinPool pool;
+	protected final int grainSize;
+	protected final Semaphore pending;
+
+	/**
+	 * Execute the partitions in the common pool with unlimited pending executions.
+	 *
+	 * @param grainSize maximal size of a partition
+	 */
+	public LLVMParallelFor(int grainSize) {
+		this(ForkJoinPool.commonPool(), grainSize, 0);
+	}
+
+	/**
+	 * @param pool executes the partitions
+	 * @param grainSize maximal size of a partition
+	 * @param maxPending maximal number of submitted but unfinished executions or 0 for unlimited
+	 */
+	public LLVMParallelFor(ForkJoinPool pool, int grainSize, int maxPending) {
+		if(grainSize < 1)
+			throw new IllegalArgumentException("The grain size must be at least 1, got "+grainSize);
+		if(maxPending < 0)
+			throw new IllegalArgumentException("The maximal number of pending executions can not be negative, got "+maxPending);
+		this.pool = pool;
+		this.grainSize = grainSize;
+		this.pending = (maxPending == 0) ? null : new Semaphore(maxPending);
+	}
+
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	public int getGrainSize() {
+		return grainSize;
+	}
+
+	/**
+	 * Run the kernel on all partitions of the range and wait for them.
+	 *
+	 * @param start first index of the range
+	 * @param end end of the range (exclusive)
+	 * @param kernel processes a partition
+	 * @throws RuntimeException if a kernel failed
+	 */
+	public void run(int start, int end, RangeKernel kernel) {
+		final ParallelTask task = new ParallelTask(start, end, kernel);
+		if(ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == pool)
+			task.invoke();
+		else
+			pool.invoke(task);
+	}
+
+	/**
+	 * Run the kernel on all tiles of a rows x cols space and wait for them.
+	 * The space is split along its larger dimension until a tile has at most
+	 * grain size rows and columns.
+	 *
+	 * @param rows number of rows
+	 * @param cols number of columns
+	 * @param kernel processes a tile
+	 * @throws RuntimeException if a kernel failed
+	 */
+	public void run(int rows, int cols, TileKernel kernel) {
+		final ParallelTask task = new ParallelTask(0, rows, 0, cols, kernel);
+		if(ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == pool)
+			task.invoke();
+		else
+			pool.invoke(task);
+	}
+
+	/**
+	 * Submit the execution of the kernel on all partitions of the range. Blocks if
+	 * the maximal number of pending executions is reached.
+	 *
+	 * @param start first index of the range
+	 * @param end end of the range (exclusive)
+	 * @param kernel processes a partition
+	 * @return the execution, can be cancelled
+	 * @throws InterruptedException if interrupted while waiting for a pending execution
+	 */
+	public ForkJoinTask<Void> submit(int start, int end, RangeKernel kernel) throws InterruptedException {
+		return submit(new ParallelTask(start, end, kernel));
+	}
+
+	/**
+	 * Submit the execution of the kernel on all tiles of a rows x cols space. Blocks if
+	 * the maximal number of pending executions is reached.
+	 *
+	 * @param rows number of rows
+	 * @param cols number of columns
+	 * @param kernel processes a tile
+	 * @return the execution, can be cancelled
+	 * @throws InterruptedException if interrupted while waiting for a pending execution
+	 */
+	public ForkJoinTask<Void> submit(int rows, int cols, TileKernel kernel) throws InterruptedException {
+		return submit(new ParallelTask(0, rows, 0, cols, kernel));
+	}
+
+	protected ForkJoinTask<Void> submit(ParallelTask task) throws InterruptedException {
+		if(pending != null) {
+			pending.acquire();
+			task.permit.set(true);
+		}
+		try {
+			return pool.submit(task);
+		} catch (RuntimeException e) {
+			task.releasePermit();
+			throw e;
+		}
+	}
+
+	/**
+	 * A range kernel calling a method handle, whose parameters at the given positions are
+	 * the start and end of the range. All other arguments are the same for every partition.
+	 *
+	 * @param handle native function e.g. {@link LLVMProgram#getMethodHandle(String)}
+	 * @param startParam position of the range start parameter (int)
+	 * @param endParam position of the range end parameter (int)
+	 * @param args arguments of the native function, the values at the range positions are ignored
+	 * @return kernel for {@link #run(int, int, RangeKernel)}
+	 */
+	public static RangeKernel of(MethodHandle handle, int startParam, int endParam, Object ... args) {
+		if(handle.type().parameterCount() != args.length)
+			throw new IllegalArgumentException("The native function expects "+handle.type().parameterCount()+" arguments, got "+args.length);
+		if(handle.type().parameterType(startParam) != int.class || handle.type().parameterType(endParam) != int.class)
+			throw new IllegalArgumentException("The range parameters of "+handle.type()+" must be of type int");
+
+		final MethodHandle spreader = handle.asSpreader(Object[].class, args.length);
+		return (start, end) -> {
+			final Object[] partitionArgs = args.clone();
+			partitionArgs[startParam] = start;
+			partitionArgs[endParam] = end;
+			spreader.invoke(partitionArgs);
+		};
+	}
+
+	/**
+	 * A range kernel calling a function of the program, see {@link #of(MethodHandle, int, int, Object...)}.
+	 * The program is pinned while a partition runs and can not be evicted by its {@link LLVMMemoryGroup}.
+	 *
+	 * @param program containing the function
+	 * @param funcName name of the native function
+	 * @param startParam position of the range start parameter (int)
+	 * @param endParam position of the range end parameter (int)
+	 * @param args arguments of the native function, the values at the range positions are ignored
+	 * @return kernel for {@link #run(int, int, RangeKernel)}, fails if the program got disposed or evicted
+	 */
+	public static RangeKernel of(LLVMProgram<?> program, String funcName, int startParam, int endParam, Object ... args) {
+		final RangeKernel kernel = of(program.getMethodHandle(funcName), startParam, endParam, args);
+		return (start, end) -> {
+			program.pin();
+			try {
+				kernel.run(start, end);
+			} finally {
+				program.unpin();
+			}
+		};
+	}
+
+	/**
+	 * The root task of an execution, knows if the execution was cancelled.
+	 *
+	 * @author Nico Hezel
+	 */
+	protected class ParallelTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		protected final int rowStart, rowEnd, colStart, colEnd;
+		protected final RangeKernel rangeKernel;
+		protected final TileKernel tileKernel;
+		protected final AtomicBoolean permit = new AtomicBoolean();
+		protected final AtomicBoolean started = new AtomicBoolean();
+		protected volatile boolean cancelled = false;
+
+		protected ParallelTask(int start, int end, RangeKernel kernel) {
+			this.rowStart = start;
+			this.rowEnd = end;
+			this.colStart = 0;
+			this.colEnd = 0;
+			this.rangeKernel = kernel;
+			this.tileKernel = null;
+		}
+
+		protected ParallelTask(int rowStart, int rowEnd, int colStart, int colEnd, TileKernel kernel) {
+			this.rowStart = rowStart;
+			this.rowEnd = rowEnd;
+			this.colStart = colStart;
+			this.colEnd = colEnd;
+			this.rangeKernel = null;
+			this.tileKernel = kernel;
+		}
+
+		@Override
+		protected void compute() {
+
+			// cancelled before it started, the permit is released already
+			if(started.compareAndSet(false, true) == false)
+				return;
+			try {
+				new Partition(this, rowStart, rowEnd, colStart, colEnd).compute();
+			} finally {
+				releasePermit();
+			}
+		}
+
+		/**
+		 * Partitions which have not started yet are skipped. Running partitions finish 
+		 * their work and the pending execution ends with the last of them.
+		 */
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			cancelled = true;
+			final boolean result = super.cancel(mayInterruptIfRunning);
+			if(result && started.compareAndSet(false, true))
+				releasePermit();
+			return result;
+		}
+
+		protected void releasePermit() {
+			if(permit.compareAndSet(true, false))
+				pending.release();
+		}
+	}
+
+	/**
+	 * A part of the range or tile space, which gets split or processed by the kernel.
+	 *
+	 * @author Nico Hezel
+	 */
+	protected class Partition extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		protected final ParallelTask root;
+		protected final int rowStart, rowEnd, colStart, colEnd;
+
+		protected Partition(ParallelTask root, int rowStart, int rowEnd, int colStart, int colEnd) {
+			this.root = root;
+			this.rowStart = rowStart;
+			this.rowEnd = rowEnd;
+			this.colStart = colStart;
+			this.colEnd = colEnd;
+		}
+
+		@Override
+		protected void compute() {
+			if(root.cancelled)
+				throw new CancellationException();
+
+			final int rows = rowEnd - rowStart;
+			final int cols = colEnd - colStart;
+			if(rows > grainSize && rows >= cols) {
+				final int mid = rowStart + ((rowEnd - rowStart) >>> 1);
+				invokeAll(new Partition(root, rowStart, mid, colStart, colEnd), new Partition(root, mid, rowEnd, colStart, colEnd));
+			} else if(root.tileKernel != null && cols > grainSize) {
+				final int mid = colStart + ((colEnd - colStart) >>> 1);
+				invokeAll(new Partition(root, rowStart, rowEnd, colStart, mid), new Partition(root, rowStart, rowEnd, mid, colEnd));
+			} else if(rows > 0 && (root.tileKernel == null || cols > 0)) {
+				try {
+					if(root.tileKernel != null)
+						root.tileKernel.run(rowStart, rowEnd, colStart, colEnd);
+					else
+						root.rangeKernel.run(rowStart, rowEnd);
+				} catch (RuntimeException | Error e) {
+					throw e;
+				} catch (Throwable e) {
+					throw new RuntimeException(e.getMessage(), e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package net.wpm.llvm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.SizeTPointer;
+import org.bytedeco.llvm.global.LLVM;
+
+/**
+ * Writes the machine code addresses of compiled programs into a perf map file
+ * (/tmp/perf-&lt;pid&gt;.map), which is read by Linux perf, async-profiler and other
+ * profilers to name the JIT compiled functions, see {@link LLVMCompiler#setPerfMap(LLVMPerfMap)}.
+ *
+ * Every entry is named after the module and the function. Only functions with a symbol in
+ * the machine code are listed, the code of internal functions is attributed to the preceding
+ * function. The sizes are computed with {@link LLVMProgram#getCodeSizes()}. The entries of a
+ * program are removed from the file when the program gets disposed, since its addresses might
+ * be reused by other programs afterwards.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMPerfMap {
+
+	protected static LLVMPerfMap defaultMap;
+
+	protected final Path file;
+
+	/**
+	 * @param file perf map file, entries are appended
+	 */
+	public LLVMPerfMap(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * The perf map of this process in the temporary directory /tmp
+	 *
+	 * @return perf map
+	 */
+	public static synchronized LLVMPerfMap getDefault() {
+		if(defaultMap == null) {
+			final String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+			defaultMap = new LLVMPerfMap(Paths.get("/tmp", "perf-" + pid + ".map"));
+		}
+		return defaultMap;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Append all functions of the program to the perf map, they are removed when the program gets disposed
+	 *
+	 * @param program compiled program
+	 * @throws UncheckedIOException if the file could not be written
+	 */
+	public void write(LLVMProgram<?> program) {
+		final SizeTPointer length = new SizeTPointer(1);
+		final BytePointer moduleName = LLVM.LLVMGetModuleIdentifier(program.module, length);
+		final String prefix = moduleName.getString() + "::";
+
+		final Map<String, Long> symbols = program.getSymbols();
+		final Set<String> entries = new LinkedHashSet<>();
+		for (Map.Entry<String, Long> entry : program.getCodeSizes().entrySet())
+			entries.add(Long.toHexString(symbols.get(entry.getKey())) + ' ' + Long.toHexString(entry.getValue()) + ' ' + prefix + entry.getKey());
+		append(entries.stream().map(entry -> entry + '\n').collect(Collectors.joining()));
+		program.addDisposeListener(() -> remove(entries));
+	}
+
+	/**
+	 * Append the entries to the file, the map is shared by all threads of the process
+	 *
+	 * @param entries lines of the perf map
+	 */
+	protected synchronized void append(String entries) {
+		try {
+			Files.write(file, entries.getBytes(StandardCharsets.US_ASCII), StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write the perf map "+file, e);
+		}
+	}
+
+	/**
+	 * Rewrite the file without the entries. Called while the program gets disposed, 
+	 * if the file can not be rewritten the entries stay.
+	 *
+	 * @param entries lines of the perf map
+	 * @return true if the entries are no longer in the file
+	 */
+	protected synchronized boolean remove(Set<String> entries) {
+		try {
+			if(Files.exists(file) == false)
+				return true;
+			final List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+			if(lines.removeAll(entries))
+				Files.write(file, lines, StandardCharsets.US_ASCII, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
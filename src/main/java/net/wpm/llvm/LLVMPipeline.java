@@ -0,0 +1,291 @@
+package net.wpm.llvm;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+
+/**
+ * Overlaps the marshalling of heap data with the execution of a kernel, e.g. for a stream of inference requests
+ * arriving as Java arrays. The pipeline owns a fixed number of native staging buffers. The submitting thread copies
+ * the next input into a free buffer while a compute thread runs the kernel on the previous one and a drain thread
+ * copies the results of finished buffers back to the heap. With two buffers this is classic double buffering.
+ *
+ * The queues between the stages are bounded by the number of buffers. If all buffers are in flight the next submit
+ * blocks until the drain thread returned a buffer, which slows down the producer to the speed of the kernel. Inputs
+ * are processed and drained in the order of their submission. The futures are completed on the drain thread, long
+ * running callbacks should use the async variants of {@link CompletableFuture}.
+ *
+ * @author Nico Hezel
+ *
+ * @param <I> input data e.g. float[]
+ * @param <O> result data
+ */
+public class LLVMPipeline<I, O> implements AutoCloseable {
+
+	/**
+	 * Copies the input into the native input buffer
+	 */
+	@FunctionalInterface
+	public static interface Stager<I> {
+		public void stage(I input, Pointer buffer) throws Throwable;
+	}
+
+	/**
+	 * Processes the staged input buffer and writes into the output buffer
+	 */
+	@FunctionalInterface
+	public static interface Kernel {
+		public void run(Pointer input, Pointer output) throws Throwable;
+	}
+
+	/**
+	 * Copies the result out of the native output buffer
+	 */
+	@FunctionalInterface
+	public static interface Drainer<I, O> {
+		public O drain(I input, Pointer output) throws Throwable;
+	}
+
+	protected final Stager<I> stager;
+	protected final Kernel kernel;
+	protected final Drainer<I, O> drainer;
+
+	protected final int bufferCount;
+	protected final BlockingQueue<Slot<I, O>> free;
+	protected final BlockingQueue<Slot<I, O>> staged;
+	protected final BlockingQueue<Slot<I, O>> computed;
+	protected final Slot<I, O> poison = new Slot<>(null, null);
+
+	protected final Thread computeThread;
+	protected final Thread drainThread;
+	protected volatile boolean closed = false;
+
+	/**
+	 * @param bufferCount number of staging buffers, at least 1 and 2 or more to overlap staging with compute
+	 * @param inputSize number of bytes of an input buffer
+	 * @param outputSize number of bytes of an output buffer or 0 if the kernel works in place on the input buffer
+	 * @param stager copies an input into an input buffer, runs on the submitting thread
+	 * @param kernel processes a staged buffer, runs on the compute thread
+	 * @param drainer creates the result from the output buffer, runs on the drain thread
+	 */
+	public LLVMPipeline(int bufferCount, long inputSize, long outputSize, Stager<I> stager, Kernel kernel, Drainer<I, O> drainer) {
+		if(bufferCount < 1)
+			throw new IllegalArgumentException("The pipeline needs at least one buffer, got "+bufferCount);
+		if(inputSize < 1 || outputSize < 0)
+			throw new IllegalArgumentException("Invalid buffer sizes, input "+inputSize+" bytes and output "+outputSize+" bytes");
+
+		this.stager = stager;
+		this.kernel = kernel;
+		this.drainer = drainer;
+		this.bufferCount = bufferCount;
+
+		// one more place in the stage queues for the poison
+		this.free = new ArrayBlockingQueue<>(bufferCount);
+		this.staged = new ArrayBlockingQueue<>(bufferCount + 1);
+		this.computed = new ArrayBlockingQueue<>(bufferCount + 1);
+
+		final Runtime runtime = Runtime.getSystemRuntime();
+		for (int i = 0; i < bufferCount; i++) {
+			final Pointer input = Memory.allocateDirect(runtime, inputSize);
+			final Pointer output = (outputSize == 0) ? input : Memory.allocateDirect(runtime, outputSize);
+			free.add(new Slot<>(input, output));
+		}
+
+		this.computeThread = new Thread(this::compute, "llvm-pipeline-compute");
+		this.computeThread.setDaemon(true);
+		this.drainThread = new Thread(this::drain, "llvm-pipeline-drain");
+		this.drainThread.setDaemon(true);
+		this.computeThread.start();
+		this.drainThread.start();
+	}
+
+	public int getBufferCount() {
+		return bufferCount;
+	}
+
+	/**
+	 * @return number of submitted inputs which are not yet drained
+	 */
+	public int getPending() {
+		return bufferCount - free.size();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Stage the input and queue it for the kernel. Blocks while all buffers are in flight.
+	 *
+	 * @param input data to process
+	 * @return the result once the kernel processed the input and the output was drained
+	 * @throws InterruptedException if interrupted while waiting for a free buffer
+	 * @throws IllegalStateException if the pipeline is closed
+	 * @throws RuntimeException if the stager failed
+	 */
+	public CompletableFuture<O> submit(I input) throws InterruptedException {
+		checkOpen();
+		return submit(free.take(), input);
+	}
+
+	/**
+	 * Stage the input and queue it for the kernel, if a buffer gets free within the timeout.
+	 *
+	 * @param input data to process
+	 * @param timeout how long to wait for a free buffer
+	 * @param unit of the timeout
+	 * @return the result or null if no buffer got free in time
+	 * @throws InterruptedException if interrupted while waiting for a free buffer
+	 * @throws IllegalStateException if the pipeline is closed
+	 * @throws RuntimeException if the stager failed
+	 */
+	public CompletableFuture<O> trySubmit(I input, long timeout, TimeUnit unit) throws InterruptedException {
+		checkOpen();
+		final Slot<I, O> slot = free.poll(timeout, unit);
+		return (slot == null) ? null : submit(slot, input);
+	}
+
+	protected CompletableFuture<O> submit(Slot<I, O> slot, I input) {
+		try {
+			stager.stage(input, slot.input);
+		} catch (Throwable e) {
+			free.add(slot);
+			if(e instanceof RuntimeException)
+				throw (RuntimeException) e;
+			if(e instanceof Error)
+				throw (Error) e;
+			throw new RuntimeException(e.getMessage(), e);
+		}
+
+		final CompletableFuture<O> result = new CompletableFuture<>();
+		slot.item = input;
+		slot.result = result;
+		slot.error = null;
+		synchronized (this) {
+			if(closed) {
+				slot.item = null;
+				slot.result = null;
+				free.add(slot);
+				throw new IllegalStateException("The pipeline is closed");
+			}
+			staged.add(slot);
+		}
+		return result;
+	}
+
+	protected void checkOpen() {
+		if(closed)
+			throw new IllegalStateException("The pipeline is closed");
+	}
+
+	/**
+	 * Run the kernel on the staged buffers, failures are passed on to the drain thread
+	 */
+	protected void compute() {
+		try {
+			while(true) {
+				final Slot<I, O> slot = staged.take();
+				if(slot != poison) {
+					try {
+						kernel.run(slot.input, slot.output);
+					} catch (Throwable e) {
+						slot.error = e;
+					}
+				}
+				computed.add(slot);
+				if(slot == poison)
+					return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Drain the computed buffers, return them to the free queue and complete their futures
+	 */
+	protected void drain() {
+		try {
+			while(true) {
+				final Slot<I, O> slot = computed.take();
+				if(slot == poison)
+					return;
+
+				O value = null;
+				Throwable error = slot.error;
+				if(error == null) {
+					try {
+						value = drainer.drain(slot.item, slot.output);
+					} catch (Throwable e) {
+						error = e;
+					}
+				}
+
+				// the buffer is free before the callbacks of the future run
+				final CompletableFuture<O> result = slot.result;
+				slot.item = null;
+				slot.result = null;
+				slot.error = null;
+				free.add(slot);
+
+				if(error == null)
+					result.complete(value);
+				else
+					result.completeExceptionally(error);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops accepting inputs, waits until all submitted inputs are drained and stops the threads.
+	 * The native buffers are released by the garbage collector.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if(closed)
+				return;
+			closed = true;
+			staged.add(poison);
+		}
+
+		boolean interrupted = false;
+		while(computeThread.isAlive() || drainThread.isAlive()) {
+			try {
+				computeThread.join();
+				drainThread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * A staging buffer and the input currently in flight
+	 *
+	 * @author Nico Hezel
+	 */
+	protected static class Slot<I, O> {
+
+		protected final Pointer input;
+		protected final Pointer output;
+
+		protected volatile I item;
+		protected volatile CompletableFuture<O> result;
+		protected volatile Throwable error;
+
+		protected Slot(Pointer input, Pointer output) {
+			this.input = input;
+			this.output = output;
+		}
+	}
+}
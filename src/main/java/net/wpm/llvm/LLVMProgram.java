@@ -2,14 +2,25 @@ package net.wpm.llvm;
 
 
 import java.lang.instrument.IllegalClassFormatException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Parameter;
-import java.util.Collection;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
 
 import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.PointerPointer;
@@ -30,48 +41,153 @@ import jnr.ffi.provider.jffi.LLVMModuleLoader;
  * The LLVMProgram creates an implementation of the interface in which calls to the Java methods
  * invoke the corresponding native functions from the LLVM machine code.
  * 
+ * Without an invocation interface all exported functions of the module are accessible as 
+ * {@link MethodHandle}s, whose types are derived from the LLVM function signatures. 
+ * 
+ * How the invocation interface is implemented is defined by the {@link LLVMBinding}. 
+ * 
+ * Structs passed or returned by value are represented by a {@link ByteBuffer} in native byte order
+ * and are only supported by {@link LLVMBinding#METHOD_HANDLE}. Those functions are called via an adapter taking the
+ * structs as pointers, see {@link LLVMStructAdapter}. Pointers to structs can be {@link jnr.ffi.Struct}s.
+ * Pointer parameters can be direct buffers, e.g. a {@link java.nio.FloatBuffer} for a float*, or native memory 
+ * segments on Java 22+. Their memory is passed without copying, see {@link LLVMMethodHandleBinder#isMemoryArgument(Class)}.
+ * LLVM vectors can only be passed via pointers, e.g. as a Java array of the vector element type.
+ * 
+ * Functions instrumented by the {@link LLVMBoundsChecker} throw an {@link IndexOutOfBoundsException} 
+ * instead of accessing memory outside of their arguments. They are always bound via method handles.
+ * 
  * If the LLVM program is no longer needed is should be disposed to free the reserved memory of
- * the LLVM program.
+ * the LLVM program. Programs whose functions are used by other programs are reference counted, 
+ * their machine code is freed when the last user got disposed.
  * 
  * @author Nico Hezel
  *
  * @param <T> invocation interface 
  */
 public class LLVMProgram<T> implements AutoCloseable {
+	
+	protected static final MethodHandle APPLY_NUM_THREADS;
+	static {
+		try {
+			APPLY_NUM_THREADS = MethodHandles.lookup().findVirtual(LLVMProgram.class, "applyNumThreads", MethodType.methodType(void.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 
 	protected final LLVMExecutionEngineRef engine;
 	protected final LLVMModuleRef module;
+	protected final ToLongFunction<String> symbolResolver;
 	protected final T invocationInterface;
 	protected final Map<String, Long> funcNameToAddress;
+	protected final Map<String, MethodType> funcNameToType;
+	protected final Map<String, MethodHandle> funcNameToHandle;
+	protected final Set<String> checkedFunctions;
+	protected final AtomicInteger references = new AtomicInteger(1);
+	protected final AtomicInteger pins = new AtomicInteger();
+	protected final List<LLVMProgram<?>> dependencies = new CopyOnWriteArrayList<>();
+	protected final List<Runnable> disposeListeners = new CopyOnWriteArrayList<>();
+	protected final boolean usesOpenMP;
+	protected volatile int numThreads;
+	protected volatile long lastUsed = System.nanoTime();
+	protected volatile LLVMMemoryManager.Allocation memoryUsage;
+	protected volatile LLVMModuleRef sourceModule;
+	protected volatile boolean quickOptimized;
+	protected volatile Map<String, Long> symbolSizes;
 
 	/**
 	 * A wrapper around the machine code in LLVM execution engine. The interface provides function names and signature 
 	 * to the symbols in the engine.
 	 * 
 	 * @param engine LLVM execution engine containing compiled LLVM machine code
-	 * @param invocationInterface invocation interface with method names and signature identical to the functions in the engine
+	 * @param module the module inside the engine
+	 * @param invocationInterface invocation interface with method names and signature identical to the functions in the engine,
+	 * 			or null to make all exported functions of the module available via {@link #getMethodHandle(String)}
 	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
 	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
 	 */
 	public LLVMProgram(LLVMExecutionEngineRef engine, LLVMModuleRef module, Class<T> invocationInterface) throws NoSuchMethodException, IllegalClassFormatException {
+		this(engine, module, invocationInterface, LLVMBinding.JNR);
+	}
+
+	/**
+	 * A wrapper around the machine code in LLVM execution engine. The interface provides function names and signature 
+	 * to the symbols in the engine.
+	 * 
+	 * @param engine LLVM execution engine containing compiled LLVM machine code
+	 * @param module the module inside the engine
+	 * @param invocationInterface invocation interface with method names and signature identical to the functions in the engine,
+	 * 			or null to make all exported functions of the module available via {@link #getMethodHandle(String)}
+	 * @param binding how the invocation interface gets implemented
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	public LLVMProgram(LLVMExecutionEngineRef engine, LLVMModuleRef module, Class<T> invocationInterface, LLVMBinding binding) throws NoSuchMethodException, IllegalClassFormatException {
+		this(engine, module, invocationInterface, binding, funcName -> LLVM.LLVMGetFunctionAddress(engine, funcName));
+	}
+
+	/**
+	 * A wrapper around machine code which might not be inside an LLVM execution engine, e.g. a loaded
+	 * shared library. The module provides the function signatures and gets disposed with the program
+	 * if there is no engine.
+	 * 
+	 * @param engine LLVM execution engine containing compiled LLVM machine code or null
+	 * @param module the module inside the engine or the module the machine code was compiled from
+	 * @param invocationInterface invocation interface with method names and signature identical to the functions in the module,
+	 * 			or null to make all exported functions of the module available via {@link #getMethodHandle(String)}
+	 * @param binding how the invocation interface gets implemented
+	 * @param symbolResolver native address of a symbol or 0 if it does not exist, null if there is no machine code
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	protected LLVMProgram(LLVMExecutionEngineRef engine, LLVMModuleRef module, Class<T> invocationInterface, LLVMBinding binding, ToLongFunction<String> symbolResolver) throws NoSuchMethodException, IllegalClassFormatException {
 		this.engine = engine;
 		this.module = module;
+		this.symbolResolver = symbolResolver;
 
 		// check if all methods in the invocation class exist in the LLVM engine
-		Collection<String> funcNames = verifyInvocationInterface(engine, invocationInterface);
+		// or derive the signatures from the LLVM module
+		funcNameToType = (invocationInterface == null) ? getFunctionTypes(module) : 
+			(engine == null) ? verifyInvocationInterface(module, invocationInterface) : verifyInvocationInterface(engine, invocationInterface);
+		if(invocationInterface != null && binding == LLVMBinding.JNR)
+			for (Map.Entry<String, MethodType> entry : funcNameToType.entrySet())
+				if(isPassingStructs(getFunctionType(LLVM.LLVMGetNamedFunction(module, entry.getKey()))))
+					throw new IllegalClassFormatException("Structs passed by value in "+invocationInterface.getCanonicalName()+"#"+entry.getKey()+" require LLVMBinding.METHOD_HANDLE");
+		funcNameToHandle = new ConcurrentHashMap<>();
+		usesOpenMP = isUsingOpenMP(module);
+		
+		// instrumented functions need a bounds block which JNR can not provide
+		checkedFunctions = new HashSet<>();
+		for (String funcName : funcNameToType.keySet()) 
+			if(LLVMBoundsChecker.isChecked(LLVM.LLVMGetNamedFunction(module, funcName)))
+				checkedFunctions.add(funcName);
+		if(checkedFunctions.isEmpty() == false || symbolResolver == null)
+			binding = LLVMBinding.METHOD_HANDLE;
+
+		// JNR does not know the memory segments of the foreign function API
+		for (MethodType type : funcNameToType.values()) 
+			for (Class<?> paramType : type.parameterArray()) 
+				if(LLVMMethodHandleBinder.isMemorySegment(paramType))
+					binding = LLVMBinding.METHOD_HANDLE;
 
-		// setup a JNR invocation interface
+		// get the addresses of all functions, there are none without machine code
 		funcNameToAddress = new HashMap<>();
-		for (String funcName : funcNames) {
-			long fnAddr = LLVM.LLVMGetFunctionAddress(engine, funcName);
+		for (String funcName : (symbolResolver == null) ? Collections.<String>emptySet() : funcNameToType.keySet()) {
+			long fnAddr = symbolResolver.applyAsLong(funcName);
+			if(fnAddr == 0)
+				throw new NoSuchMethodException("There is no machine code for the LLVM function "+funcName);
 			funcNameToAddress.put(funcName, fnAddr);
 		}
 		
-		// TODO might be possible with LLVMGetNamedFunction and LLVMRunFunction without JNR
-		// https://github.com/bytedeco/javacpp-presets/blob/231ec19685f18fdbddaeadeabe07b57f464af4d6/llvm/samples/llvm/EmitBitcode.java#L190
-		
-		LibraryLoader<T> libraryLoader = new LLVMModuleLoader<T>(invocationInterface, funcNameToAddress);
-		this.invocationInterface = libraryLoader.load("llvm");
+		// setup the invocation interface
+		if(invocationInterface == null)
+			this.invocationInterface = null;
+		else if(binding == LLVMBinding.METHOD_HANDLE)
+			this.invocationInterface = LLVMInvocationGenerator.implement(invocationInterface, this::getMethodHandle);
+		else {
+			LibraryLoader<T> libraryLoader = new LLVMModuleLoader<T>(invocationInterface, funcNameToAddress);
+			this.invocationInterface = libraryLoader.load("llvm");
+		}
 	}
 
 	/**
@@ -84,68 +200,462 @@ public class LLVMProgram<T> implements AutoCloseable {
 		return this.funcNameToAddress.get(funcName);
 	}
 	
+	/**
+	 * Native address of any symbol in the machine code, including functions 
+	 * which are not accessible via the invocation interface.
+	 * 
+	 * @param name symbol name
+	 * @return address or 0 if there is no such symbol
+	 */
+	public long getSymbolAddress(String name) {
+		return (symbolResolver == null) ? 0 : symbolResolver.applyAsLong(name);
+	}
+	
 	public LLVMModuleRef getOptimizedModule() {
 		return module;
 	}
+	
+	/**
+	 * Copy of the module before it got linked, instrumented and optimized, only retained if requested 
+	 * via {@link LLVMCompiler#compileInPlace(LLVMModuleRef, Class, boolean, LLVMBinding, boolean)}.
+	 * The module belongs to the program and gets disposed with it.
+	 * 
+	 * @return unoptimized module or null
+	 */
+	public LLVMModuleRef getSourceModule() {
+		return sourceModule;
+	}
+	
+	/**
+	 * The program got only a few fast optimizations without polly, e.g. because the full optimization 
+	 * exceeded its time budget or as first tier of a {@link LLVMTieredProgram}.
+	 * 
+	 * @return true if the program is not fully optimized
+	 */
+	public boolean isQuickOptimized() {
+		return quickOptimized;
+	}
+	
+	/**
+	 * The optimized module as LLVM IR text
+	 * 
+	 * @return LLVM IR
+	 */
+	public String getOptimizedIR() {
+		final BytePointer ir = LLVM.LLVMPrintModuleToString(module);
+		try {
+			return ir.getString();
+		} finally {
+			LLVM.LLVMDisposeMessage(ir);
+		}
+	}
+	
+	/**
+	 * Native addresses of all functions with a symbol in the machine code, including functions 
+	 * which are not accessible via the invocation interface. Internal functions have no symbol.
+	 * 
+	 * @return function name to address
+	 */
+	public Map<String, Long> getSymbols() {
+		final Map<String, Long> symbols = new HashMap<>();
+		for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(module); func != null && func.isNull() == false; func = LLVM.LLVMGetNextFunction(func)) {
+			if(LLVM.LLVMIsDeclaration(func) != 0)
+				continue;
+			final String name = LLVM.LLVMGetValueName(func).getString();
+			final long address = getSymbolAddress(name);
+			if(address != 0)
+				symbols.put(name, address);
+		}
+		return symbols;
+	}
+	
+	/**
+	 * Size of the machine code of every function in {@link #getSymbols()}. Functions of a shared
+	 * library have the sizes of their symbols. Otherwise the code of a function reaches up to the 
+	 * next function or the end of its code section, internal functions count to the preceding function.
+	 * The sections are only known if the program was compiled with a {@link LLVMMemoryManager}, 
+	 * without one the code of the last function ends before the zero filled rest of its memory mapping.
+	 * 
+	 * @return function name to number of bytes
+	 */
+	public Map<String, Long> getCodeSizes() {
+		final Map<String, Long> symbols = getSymbols();
+		final Map<String, Long> sizes = new HashMap<>();
+		final Map<String, Long> knownSizes = symbolSizes;
+		if(knownSizes != null) {
+			for (String name : symbols.keySet())
+				if(knownSizes.containsKey(name))
+					sizes.put(name, knownSizes.get(name));
+			return sizes;
+		}
+
+		final TreeMap<Long, String> addressToName = new TreeMap<>();
+		for (Map.Entry<String, Long> entry : symbols.entrySet()) 
+			addressToName.put(entry.getValue(), entry.getKey());
+		
+		final LLVMMemoryManager.Allocation allocation = LLVMMemoryManager.getAllocation(engine);
+		try(LLVMDisassembler disassembler = new LLVMDisassembler()) {
+			for (Map.Entry<Long, String> entry : addressToName.entrySet()) {
+				final long start = entry.getKey();
+				final Long next = addressToName.higherKey(start);
+				final long sectionEnd = (allocation == null) ? 0 : allocation.getCodeSectionEnd(start);
+				final long size;
+				if(sectionEnd != 0)
+					size = ((next != null) ? Math.min(next, sectionEnd) : sectionEnd) - start;
+				else
+					size = (next != null) ? next - start : disassembler.measure(start, LLVMDisassembler.getMappingEnd(start) - start);
+				sizes.put(entry.getValue(), size);
+			}
+		}
+		return sizes;
+	}
+	
+	/**
+	 * Disassemble the machine code of a function, see {@link #getCodeSizes()}
+	 * 
+	 * @param funcName name of a function in {@link #getSymbols()}
+	 * @param intelSyntax print the instructions in Intel instead of AT&amp;T syntax
+	 * @return one instruction per line, starting with its address
+	 * @throws IllegalArgumentException if the function has no machine code symbol
+	 */
+	public String disassemble(String funcName, boolean intelSyntax) {
+		final Long size = getCodeSizes().get(funcName);
+		if(size == null)
+			throw new IllegalArgumentException("There is no machine code symbol "+funcName+" in the LLVM program");
+		try(LLVMDisassembler disassembler = new LLVMDisassembler(intelSyntax)) {
+			return disassembler.disassemble(getSymbolAddress(funcName), size);
+		}
+	}
+	
+	/**
+	 * Java signatures of all accessible functions
+	 * 
+	 * @return function name to method type
+	 */
+	public Map<String, MethodType> getFunctionTypes() {
+		return Collections.unmodifiableMap(funcNameToType);
+	}
+	
+	/**
+	 * Method handle calling the native function. The type of the handle is the signature of the
+	 * method in the invocation interface or the one derived from the LLVM function.
+	 * 
+	 * @param funcName name of the native function
+	 * @return method handle of the function
+	 * @throws IllegalArgumentException if there is no such function in the program
+	 */
+	public MethodHandle getMethodHandle(String funcName) {
+		final MethodType type = funcNameToType.get(funcName);
+		if(type == null)
+			throw new IllegalArgumentException("There is no accessible function "+funcName+" in the LLVM program");
+		lastUsed = System.nanoTime();
+		return funcNameToHandle.computeIfAbsent(funcName, name -> {
+			final LLVMValueRef func = LLVM.LLVMGetNamedFunction(module, name);
+			final MethodType nativeType = checkedFunctions.contains(name) ? type.appendParameterTypes(Pointer.class) : type;
+			final LLVMTypeRef funcType = getFunctionType(func);
+			
+			// structs passed by value go through the adapter of the function
+			MethodHandle handle;
+			if(isPassingStructs(funcType)) {
+				final long adapterAddress = getSymbolAddress(LLVMStructAdapter.getAdapterName(name));
+				if(adapterAddress == 0)
+					throw new IllegalStateException("There is no struct adapter for the LLVM function "+name);
+				handle = LLVMStructAdapter.bind(adapterAddress, nativeType, funcType, LLVM.LLVMGetModuleDataLayout(module));
+			} else
+				handle = LLVMMethodHandleBinder.bind(getAddress(name), nativeType, funcType);
+			if(checkedFunctions.contains(name))
+				handle = LLVMBoundsChecker.guard(name, handle);
+			
+			// apply the OpenMP thread count of the program before every call, if it has parallel loops
+			return usesOpenMP ? MethodHandles.foldArguments(handle, APPLY_NUM_THREADS.bindTo(this)) : handle;
+		});
+	}
+	
+	/**
+	 * Method handles of all accessible functions see {@link #getMethodHandle(String)}
+	 * 
+	 * @return function name to method handle
+	 */
+	public Map<String, MethodHandle> getMethodHandles() {
+		final Map<String, MethodHandle> handles = new HashMap<>();
+		for (String funcName : funcNameToType.keySet()) 
+			handles.put(funcName, getMethodHandle(funcName));
+		return handles;
+	}
+
+	/**
+	 * Number of OpenMP threads used by parallel loops of this program. The setting is applied 
+	 * to the calling thread by {@link #invoke()} and before every call of a method handle, if 
+	 * the program contains parallel loops and the calling thread uses another thread count.
+	 * 
+	 * @param numThreads number of threads or 0 to use the current setting of the calling thread
+	 * @throws IllegalStateException if the OpenMP runtime is not available
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads < 0)
+			throw new IllegalArgumentException("The number of OpenMP threads can not be negative, got "+numThreads);
+		if(numThreads > 0)
+			LLVMOpenMP.checkAvailable();
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * @return number of OpenMP threads of this program or 0 if not set
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+	
+	/**
+	 * Apply the OpenMP thread count of the program to the calling thread, 
+	 * the runtime is only called if the thread uses a different count
+	 */
+	protected void applyNumThreads() {
+		final int threads = numThreads;
+		if(threads > 0)
+			LLVMOpenMP.applyNumThreads(threads);
+	}
+
+	/**
+	 * Does the module start parallel regions of the OpenMP runtime, e.g. loops parallelized by polly
+	 * 
+	 * @param module LLVM module
+	 * @return true if the module calls the fork function of the OpenMP runtime
+	 */
+	protected static boolean isUsingOpenMP(LLVMModuleRef module) {
+		final LLVMValueRef fork = LLVM.LLVMGetNamedFunction(module, "__kmpc_fork_call");
+		return fork != null && fork.isNull() == false;
+	}
 
 	/**
 	 * Implementation of the invocation interface, every call to a method in this class 
 	 * will invoke a function with the same name and signature in the native space.
 	 * 
-	 * @return implementation of the invocation interface 
+	 * The OpenMP thread count of the program is applied to the calling thread, 
+	 * the returned object should therefore be used by the calling thread only.
+	 * 
+	 * @return implementation of the invocation interface or null if the program has none
 	 */
 	public T invoke() {
+		applyNumThreads();
+		lastUsed = System.nanoTime();
+		return invocationInterface;
+	}
+	
+	/**
+	 * Same as {@link #invoke()} but the parallel loops of the next calls from this thread 
+	 * use the given number of OpenMP threads.
+	 * 
+	 * @param numThreads number of OpenMP threads
+	 * @return implementation of the invocation interface or null if the program has none
+	 * @throws IllegalStateException if the OpenMP runtime is not available
+	 */
+	public T invoke(int numThreads) {
+		LLVMOpenMP.setNumThreads(numThreads);
+		lastUsed = System.nanoTime();
 		return invocationInterface;
 	}
 
 	/**
-	 * Dispose the machine code in the LLVM execution engine. The {@link LLVMProgram#invoke()} method will not work anymore afterwards.
+	 * Time of the last request of the invocation interface or a method handle, see {@link System#nanoTime()}
+	 * 
+	 * @return nano time
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Native memory of the machine code and data of the program. Only available if the 
+	 * program got compiled with a {@link LLVMCompiler#setMemoryManager(LLVMMemoryManager)}.
+	 * 
+	 * @return memory usage or null if unknown
+	 */
+	public LLVMMemoryManager.Allocation getMemoryUsage() {
+		return memoryUsage;
+	}
+
+	/**
+	 * Protect the program from being evicted by its {@link LLVMMemoryGroup}, e.g. while one of its method 
+	 * handles is cached or called. Every pin must be released with {@link #unpin()}. Counts as use of the program.
+	 * 
+	 * @return this
+	 * @throws IllegalStateException if the program is already disposed or evicted
+	 */
+	public LLVMProgram<T> pin() {
+		int count;
+		do {
+			count = pins.get();
+			if(count < 0 || isDisposed())
+				throw new IllegalStateException("The LLVM program is already disposed or evicted");
+		} while(pins.compareAndSet(count, count + 1) == false);
+		lastUsed = System.nanoTime();
+		return this;
+	}
+
+	/**
+	 * Release a pin of {@link #pin()}
+	 */
+	public void unpin() {
+		pins.decrementAndGet();
+		lastUsed = System.nanoTime();
+	}
+
+	/**
+	 * @return true if the program can not be evicted
+	 */
+	public boolean isPinned() {
+		return pins.get() > 0;
+	}
+
+	/**
+	 * Mark the program as evicted if it is neither pinned nor retained by other programs, 
+	 * afterwards it can not be pinned anymore. Disposing an evicted program frees its memory.
+	 * 
+	 * @return true if the program got evicted
+	 */
+	protected boolean tryEvict() {
+		return references.get() == 1 && pins.compareAndSet(0, -1);
+	}
+
+	/**
+	 * Add a reference to the program, which must be released with {@link #dispose()}.
+	 * The machine code stays valid until the last reference got released.
+	 * 
+	 * @return this
+	 * @throws IllegalStateException if the program is already disposed
+	 */
+	public LLVMProgram<T> retain() {
+		int count;
+		do {
+			count = references.get();
+			if(count == 0)
+				throw new IllegalStateException("The LLVM program is already disposed");
+		} while(references.compareAndSet(count, count + 1) == false);
+		return this;
+	}
+	
+	/**
+	 * The program calls functions of another program. The other program is retained 
+	 * and released once this program gets disposed.
+	 * 
+	 * @param program used by this program
+	 */
+	public void addDependency(LLVMProgram<?> program) {
+		dependencies.add(program.retain());
+	}
+	
+	/**
+	 * @return programs whose functions are called by this program
+	 */
+	public List<LLVMProgram<?>> getDependencies() {
+		return Collections.unmodifiableList(dependencies);
+	}
+	
+	/**
+	 * The listener gets called after the machine code got disposed
+	 * 
+	 * @param listener called once
+	 */
+	public void addDisposeListener(Runnable listener) {
+		disposeListeners.add(listener);
+	}
+	
+	/**
+	 * @return true if the machine code got disposed
+	 */
+	public boolean isDisposed() {
+		return references.get() == 0;
+	}
+
+	/**
+	 * Release a reference to the program. Without any other reference (see {@link #retain()}) the machine 
+	 * code in the LLVM execution engine gets disposed. The {@link LLVMProgram#invoke()} method will not 
+	 * work anymore afterwards.
 	 */
 	public void dispose() {
+		int count;
+		do {
+			count = references.get();
+			if(count == 0)
+				return;
+		} while(references.compareAndSet(count, count - 1) == false);
+		if(count > 1)
+			return;
+		
 		if(engine != null) {
 
 			// Disposes all modules as well. No need to call LLVMDisposeModule()
 			// https://stackoverflow.com/questions/27103943/llvm-api-correct-way-to-create-dispose#comment42836250_27169381
 			LLVM.LLVMDisposeExecutionEngine(engine);
-		}
+		} else
+			LLVM.LLVMDisposeModule(module);
+		if(sourceModule != null)
+			LLVM.LLVMDisposeModule(sourceModule);
+		for (Runnable listener : disposeListeners) 
+			listener.run();
+		for (LLVMProgram<?> dependency : dependencies) 
+			dependency.dispose();
 	}
 
 	@Override
 	public void close() {
 		dispose();
 	}
-
-
+	
 	/**
 	 * Check if the LLVM module has the same function names and functions signatures than the invocation class.
 	 * 
 	 * @param <T> invocation interface 
 	 * @param engine LLVM execution engine containing compiled LLVM machine code
 	 * @param invocationInterface invocation interface with method names and signature identical to the functions in the engine
-	 * @return a collection of all valid functions in the native space
+	 * @return all valid functions in the native space and their java signatures
 	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
 	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
 	 */
-	protected static <T> Collection<String> verifyInvocationInterface(LLVMExecutionEngineRef engine, Class<T> invocationInterface) throws IllegalClassFormatException, NoSuchMethodException {
+	protected static <T> Map<String, MethodType> verifyInvocationInterface(LLVMExecutionEngineRef engine, Class<T> invocationInterface) throws IllegalClassFormatException, NoSuchMethodException {
+		return verifyInvocationInterface(invocationInterface, funcName -> {
+			final LLVMValueRef func = new LLVMValueRef();
+			return (LLVM.LLVMFindFunction(engine, new BytePointer(funcName), func) == 1) ? null : func;
+		});
+	}
+	
+	/**
+	 * Check if the LLVM module has the same function names and functions signatures than the invocation class.
+	 * 
+	 * @param <T> invocation interface 
+	 * @param module LLVM module with the functions
+	 * @param invocationInterface invocation interface with method names and signature identical to the functions in the module
+	 * @return all valid functions in the native space and their java signatures
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the LLVM code does not contain all the functions as in the invocation interface
+	 */
+	protected static <T> Map<String, MethodType> verifyInvocationInterface(LLVMModuleRef module, Class<T> invocationInterface) throws IllegalClassFormatException, NoSuchMethodException {
+		return verifyInvocationInterface(invocationInterface, funcName -> {
+			final LLVMValueRef func = LLVM.LLVMGetNamedFunction(module, funcName);
+			return (func == null || func.isNull() || LLVM.LLVMIsDeclaration(func) != 0) ? null : func;
+		});
+	}
+	
+	protected static <T> Map<String, MethodType> verifyInvocationInterface(Class<T> invocationInterface, Function<String, LLVMValueRef> functions) throws IllegalClassFormatException, NoSuchMethodException {
 
 		// accept only interfaces
 		if(Modifier.isInterface(invocationInterface.getModifiers()) == false)
 			throw new IllegalClassFormatException(invocationInterface.getCanonicalName()+" is not an interface.");
 
 		// scan all methods of the interface
-		final Set<String> funcNames = new HashSet<>();
+		final Map<String, MethodType> funcNames = new HashMap<>();
 		for (Method method : invocationInterface.getMethods()) {
 			final String funcName = method.getName();
 
 			// no method overloading is allowed in the invocation class
-			if(funcNames.contains(funcName))
+			if(funcNames.containsKey(funcName))
 				throw new IllegalClassFormatException("Method overloading is allowed in LLVM invocation class got "+invocationInterface.getCanonicalName()+"#"+funcName+" at least twice.");
-			funcNames.add(funcName);
+			funcNames.put(funcName, MethodType.methodType(method.getReturnType(), method.getParameterTypes()));
 			
 			// every method in the invocation class must exist in the module
-			final LLVMValueRef func = new LLVMValueRef();
-			final int error = LLVM.LLVMFindFunction(engine, new BytePointer(funcName), func);
-			if(error == 1)
+			final LLVMValueRef func = functions.apply(funcName);
+			if(func == null)
 				throw new NoSuchMethodException("Every method in the LLVm invocation class must be in the LLVM IR. Missing "+funcName);
 
 			// the signature of the method must be the same
@@ -165,13 +675,13 @@ public class LLVMProgram<T> implements AutoCloseable {
 			// get java input parameters
 			final Parameter[] parameters = method.getParameters();
 
-			// get the type count of the input parameters from the LLVM IR function
-			final int parameterCount = LLVM.LLVMCountParamTypes(funcType);
+			// get the type count of the input parameters from the LLVM IR function, without the bounds block of checked functions
+			final int parameterCount = LLVM.LLVMCountParamTypes(funcType) - (LLVMBoundsChecker.isChecked(func) ? 1 : 0);
 			if(parameterCount != parameters.length)
 				throw new IllegalArgumentException("Expected the LLVM IR function "+funcName+" to have "+parameters.length+" input parameters, but got "+parameterCount);
 
 			// get the types of the input parameters from the LLVM IR function
-			final PointerPointer<LLVMTypeRef> ptr = new PointerPointer<>(new LLVMTypeRef[parameterCount]);
+			final PointerPointer<LLVMTypeRef> ptr = new PointerPointer<>(new LLVMTypeRef[LLVM.LLVMCountParamTypes(funcType)]);
 			LLVM.LLVMGetParamTypes(funcType, ptr);
 			for (int i = 0; i < parameterCount; i++) {
 				LLVMTypeRef llvmParam = new LLVMTypeRef(ptr.get(i));
@@ -180,9 +690,10 @@ public class LLVMProgram<T> implements AutoCloseable {
 					throw new IllegalArgumentException("Expected the "+i+". input parameter of the LLVM IR function "+funcName+" to be "+javaType+" but got "+getTypekindName(LLVM.LLVMGetTypeKind(llvmParam)));
 			}
 			
-			// check the return type
+			// check the return type, buffers and memory segments are only supported as parameters
 			final LLVMTypeRef returnType = LLVM.LLVMGetReturnType(funcType);
-			if(checkLLVMTypeCompatibility(returnType, method.getReturnType()) == false)
+			final boolean isMemoryReturn = LLVM.LLVMGetTypeKind(returnType) == LLVM.LLVMPointerTypeKind && LLVMMethodHandleBinder.isMemoryArgument(method.getReturnType());
+			if(checkLLVMTypeCompatibility(returnType, method.getReturnType()) == false || isMemoryReturn)
 				throw new IllegalArgumentException("Expected the LLVM IR function "+funcName+" to have the return type "+method.getReturnType());
 
 		}
@@ -190,6 +701,147 @@ public class LLVMProgram<T> implements AutoCloseable {
 		// return a list of valid function names that exists in the module and the invocation class
 		return funcNames;
 	}
+	
+	/**
+	 * Derive the java signatures of all exported functions defined in the LLVM module, using the 
+	 * same type rules as {@link #checkLLVMTypeCompatibility(LLVMTypeRef, Class)}. Functions with
+	 * parameter or return types which have no java counterpart are skipped.
+	 * 
+	 * @param module LLVM module
+	 * @return function name to java signature
+	 */
+	public static Map<String, MethodType> getFunctionTypes(LLVMModuleRef module) {
+		final Map<String, MethodType> funcNameToType = new HashMap<>();
+		for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(module); func != null && func.isNull() == false; func = LLVM.LLVMGetNextFunction(func)) {
+			
+			// only exported functions with a body
+			if(LLVM.LLVMIsDeclaration(func) != 0 || LLVM.LLVMGetLinkage(func) != LLVM.LLVMExternalLinkage || LLVMStructAdapter.isAdapter(func))
+				continue;
+			
+			MethodType type = toMethodType(getFunctionType(func));
+			if(type != null && LLVMBoundsChecker.isChecked(func))
+				type = type.dropParameterTypes(type.parameterCount() - 1, type.parameterCount());
+			if(type != null)
+				funcNameToType.put(LLVM.LLVMGetValueName(func).getString(), type);
+		}
+		return funcNameToType;
+	}
+	
+	/**
+	 * Get the function type of a function value
+	 * 
+	 * @param func LLVM function
+	 * @return LLVM function type
+	 */
+	protected static LLVMTypeRef getFunctionType(LLVMValueRef func) {
+		LLVMTypeRef funcType = LLVM.LLVMTypeOf(func);
+		while(LLVM.LLVMGetTypeKind(funcType) == LLVM.LLVMPointerTypeKind)
+			funcType = LLVM.LLVMGetElementType(funcType);
+		return funcType;
+	}
+	
+	/**
+	 * Java signature of a LLVM function type
+	 * 
+	 * @param funcType LLVM function type
+	 * @return java signature or null if some types have no java counterpart
+	 */
+	protected static MethodType toMethodType(LLVMTypeRef funcType) {
+		final Class<?> returnType = toJavaType(LLVM.LLVMGetReturnType(funcType));
+		if(returnType == null)
+			return null;
+		
+		final int parameterCount = LLVM.LLVMCountParamTypes(funcType);
+		final PointerPointer<LLVMTypeRef> ptr = new PointerPointer<>(new LLVMTypeRef[parameterCount]);
+		LLVM.LLVMGetParamTypes(funcType, ptr);
+		final Class<?>[] parameterTypes = new Class<?>[parameterCount];
+		for (int i = 0; i < parameterCount; i++) {
+			parameterTypes[i] = toJavaType(new LLVMTypeRef(ptr.get(i)));
+			if(parameterTypes[i] == null || parameterTypes[i] == void.class)
+				return null;
+		}
+		return MethodType.methodType(returnType, parameterTypes);
+	}
+	
+	/**
+	 * The java type of a LLVM type, the counterpart of {@link #checkLLVMTypeCompatibility(LLVMTypeRef, Class)}.
+	 * Pointers are mapped to {@link Pointer} and structs to {@link ByteBuffer}. Vectors have no java counterpart.
+	 * 
+	 * @param llvmType LLVM type
+	 * @return java type or null if there is none
+	 */
+	protected static Class<?> toJavaType(LLVMTypeRef llvmType) {
+		switch (LLVM.LLVMGetTypeKind(llvmType)) {
+		case LLVM.LLVMVoidTypeKind:
+			return void.class;
+		case LLVM.LLVMFloatTypeKind:
+			return float.class;
+		case LLVM.LLVMDoubleTypeKind:
+			return double.class;
+		case LLVM.LLVMPointerTypeKind:
+			return Pointer.class;
+		case LLVM.LLVMStructTypeKind:
+			return isStructSupported(llvmType) ? ByteBuffer.class : null;
+		case LLVM.LLVMIntegerTypeKind:
+			switch (LLVM.LLVMGetIntTypeWidth(llvmType)) {
+			case 64:
+				return long.class;
+			case 32:
+				return int.class;
+			case 16:
+				return short.class;
+			case 8:
+				return byte.class;
+			case 1:
+				return boolean.class;
+			default:
+				return null;
+			}
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Can the struct be passed by value. Only non-packed structs consisting of 
+	 * scalars, pointers, arrays and other supported structs are allowed.
+	 * 
+	 * @param structType LLVM struct type
+	 * @return true if the struct has a java counterpart
+	 */
+	protected static boolean isStructSupported(LLVMTypeRef structType) {
+		if(LLVM.LLVMIsPackedStruct(structType) != 0 || LLVM.LLVMIsOpaqueStruct(structType) != 0)
+			return false;
+		
+		final int fieldCount = LLVM.LLVMCountStructElementTypes(structType);
+		for (int i = 0; i < fieldCount; i++) {
+			LLVMTypeRef fieldType = LLVM.LLVMStructGetTypeAtIndex(structType, i);
+			while(LLVM.LLVMGetTypeKind(fieldType) == LLVM.LLVMArrayTypeKind)
+				fieldType = LLVM.LLVMGetElementType(fieldType);
+			final Class<?> javaType = toJavaType(fieldType);
+			if(javaType == null || javaType == void.class)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Does the function pass or return a struct by value
+	 * 
+	 * @param funcType LLVM function type
+	 * @return true if a parameter or the return type is a struct
+	 */
+	protected static boolean isPassingStructs(LLVMTypeRef funcType) {
+		if(LLVM.LLVMGetTypeKind(LLVM.LLVMGetReturnType(funcType)) == LLVM.LLVMStructTypeKind)
+			return true;
+		final int parameterCount = LLVM.LLVMCountParamTypes(funcType);
+		final PointerPointer<LLVMTypeRef> ptr = new PointerPointer<>(new LLVMTypeRef[parameterCount]);
+		LLVM.LLVMGetParamTypes(funcType, ptr);
+		for (int i = 0; i < parameterCount; i++)
+			if(LLVM.LLVMGetTypeKind(new LLVMTypeRef(ptr.get(i))) == LLVM.LLVMStructTypeKind)
+				return true;
+		return false;
+	}
 
 	/**
 	 * Return string name for a LLVMTypeKind. Useful for debugging.
@@ -272,9 +924,28 @@ public class LLVMProgram<T> implements AutoCloseable {
 		} else if(typeKind == LLVM.LLVMArrayTypeKind && javaType == Pointer.class) {
 			return true;
 		} else if(typeKind == LLVM.LLVMPointerTypeKind && javaType.isArray()) {
-			return checkLLVMTypeCompatibility(LLVM.LLVMGetElementType(llvmType), javaType.getComponentType());
+			LLVMTypeRef elementType = LLVM.LLVMGetElementType(llvmType);
+			
+			// a pointer to vectors is a pointer to consecutive vector elements
+			if(LLVM.LLVMGetTypeKind(elementType) == LLVM.LLVMVectorTypeKind)
+				elementType = LLVM.LLVMGetElementType(elementType);
+			return checkLLVMTypeCompatibility(elementType, javaType.getComponentType());
 		} else if(typeKind == LLVM.LLVMPointerTypeKind && javaType == Pointer.class) {
 			return true;
+		} else if(typeKind == LLVM.LLVMPointerTypeKind && LLVMMethodHandleBinder.isMemoryArgument(javaType)) {
+			
+			// typed buffers must match the element type, byte buffers and memory segments can point to anything
+			final Class<?> bufferElementType = LLVMMethodHandleBinder.getBufferElementType(javaType);
+			if(bufferElementType == null)
+				return true;
+			LLVMTypeRef elementType = LLVM.LLVMGetElementType(llvmType);
+			if(LLVM.LLVMGetTypeKind(elementType) == LLVM.LLVMVectorTypeKind)
+				elementType = LLVM.LLVMGetElementType(elementType);
+			return checkLLVMTypeCompatibility(elementType, bufferElementType);
+		} else if(typeKind == LLVM.LLVMPointerTypeKind && jnr.ffi.Struct.class.isAssignableFrom(javaType)) {
+			return LLVM.LLVMGetTypeKind(LLVM.LLVMGetElementType(llvmType)) == LLVM.LLVMStructTypeKind;
+		} else if(typeKind == LLVM.LLVMStructTypeKind && javaType == ByteBuffer.class) {
+			return isStructSupported(llvmType);
 		}
 
 		return false;
@@ -0,0 +1,259 @@
+package net.wpm.llvm;
+
+import java.io.IOException;
+import java.lang.instrument.IllegalClassFormatException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.llvm.LLVM.LLVMBinaryRef;
+import org.bytedeco.llvm.LLVM.LLVMMemoryBufferRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMSymbolIteratorRef;
+import org.bytedeco.llvm.LLVM.LLVMTargetDataRef;
+import org.bytedeco.llvm.LLVM.LLVMTargetMachineRef;
+import org.bytedeco.llvm.LLVM.LLVMTargetRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+
+import com.kenai.jffi.Library;
+
+/**
+ * Stores the machine code of optimized modules as shared libraries in a {@link LLVMModuleCache}.
+ * The libraries are mapped into the process with dlopen, processes loading the same library share
+ * the physical memory of its code. Every process using the same cache directory compiles a module
+ * only once, all others load the existing library.
+ *
+ * The code is compiled position independent for the host cpu and linked with clang. The libraries
+ * can only call functions which the dynamic linker finds in the process, e.g. of the C library.
+ * Symbols of the {@link LLVMSymbols} which are mapped to addresses of the current process and shared
+ * functions of a {@link LLVMFunctionLibrary} are not available.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMSharedCodeCache {
+
+	public static final String LIBRARY_EXTENSION = ".so";
+	protected static final String OBJECT_EXTENSION = ".o";
+
+	protected final LLVMModuleCache cache;
+	protected final Map<Path, Library> libraries;
+
+	/**
+	 * Shared libraries in the default cache {@link LLVMModuleCache#getDefault()}
+	 *
+	 * @throws IOException could not create the cache directory
+	 */
+	public LLVMSharedCodeCache() throws IOException {
+		this(LLVMModuleCache.getDefault());
+	}
+
+	/**
+	 * @param cache directory for the shared libraries, can be shared between processes
+	 */
+	public LLVMSharedCodeCache(LLVMModuleCache cache) {
+		this.cache = cache;
+		this.libraries = new ConcurrentHashMap<>();
+	}
+
+	public LLVMModuleCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Identifies the machine code of the module
+	 *
+	 * @param module unoptimized module with all libraries and instrumentations
+	 * @param configurationKey see {@link LLVMCompiler#getTargetKey()}
+	 * @return cache key
+	 */
+	public static String computeKey(LLVMModuleRef module, String configurationKey) {
+		final BytePointer ir = LLVM.LLVMPrintModuleToString(module);
+		try {
+			return LLVMModuleCache.computeKey(configurationKey, LIBRARY_EXTENSION, ir.getString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			LLVM.LLVMDisposeMessage(ir);
+		}
+	}
+
+	/**
+	 * Get the shared library of the key or compile the module into a new one.
+	 *
+	 * @param key see {@link #computeKey(LLVMModuleRef, String)}
+	 * @param module unoptimized module, a copy gets compiled if the library does not exist
+	 * @param device target cpu
+	 * @return path to the shared library
+	 * @throws IOException could not compile or link the module
+	 */
+	public Path computeIfAbsent(String key, LLVMModuleRef module, BytePointer device) throws IOException {
+		return cache.computeIfAbsent(key, LIBRARY_EXTENSION, file -> {
+			final LLVMModuleRef copy = LLVM.LLVMCloneModule(module);
+			final Path objectFile = Paths.get(file.toString() + OBJECT_EXTENSION);
+			try {
+				compileObjectFile(copy, device, objectFile);
+				linkSharedLibrary(objectFile, file);
+			} finally {
+				LLVM.LLVMDisposeModule(copy);
+				Files.deleteIfExists(objectFile);
+			}
+		});
+	}
+
+	/**
+	 * Load the shared library and create a program of its functions. 
+	 * The library stays loaded as long as this cache exists.
+	 *
+	 * @param <T> invocation interface
+	 * @param libraryFile shared library
+	 * @param module the module of the library, provides the function signatures and gets disposed with the program
+	 * @param invocationInterface class or null
+	 * @param binding implementation of the invocation interface
+	 * @return program calling the functions of the library
+	 * @throws IllegalClassFormatException if the invocation interface has invalid statements like overloaded methods
+	 * @throws NoSuchMethodException if the library does not contain all the functions as in the invocation interface
+	 */
+	public <T> LLVMProgram<T> load(Path libraryFile, LLVMModuleRef module, Class<T> invocationInterface, LLVMBinding binding) throws NoSuchMethodException, IllegalClassFormatException {
+		final Library library = Library.getCachedInstance(libraryFile.toAbsolutePath().toString(), Library.NOW | Library.LOCAL);
+		if(library == null)
+			throw new RuntimeException("Could not load "+libraryFile+": "+Library.getLastError());
+
+		// the machine code can not be unloaded while other threads might still run it
+		libraries.putIfAbsent(libraryFile.toAbsolutePath(), library);
+		final Map<String, Long> symbolSizes = readSymbolSizes(libraryFile);
+		final LLVMProgram<T> program = new LLVMProgram<>(null, module, invocationInterface, binding, library::getSymbolAddress);
+		program.symbolSizes = symbolSizes;
+		return program;
+	}
+
+	/**
+	 * Sizes of the symbols in the symbol table of the shared library
+	 *
+	 * @param libraryFile shared library
+	 * @return symbol name to number of bytes
+	 * @throws RuntimeException if the library could not be read
+	 */
+	protected static Map<String, Long> readSymbolSizes(Path libraryFile) {
+		final Map<String, Long> sizes = new HashMap<>();
+		final LLVMMemoryBufferRef buffer = new LLVMMemoryBufferRef();
+		final BytePointer error = new BytePointer((Pointer) null);
+		try {
+			if(LLVM.LLVMCreateMemoryBufferWithContentsOfFile(new BytePointer(libraryFile.toString()), buffer, error) != 0)
+				throw new RuntimeException("Could not read "+libraryFile+": "+error.getString());
+			try {
+				// the binary does not take the ownership of the buffer
+				final LLVMBinaryRef binary = LLVM.LLVMCreateBinary(buffer, null, error);
+				if(binary == null || binary.isNull())
+					throw new RuntimeException("Could not read "+libraryFile+": "+error.getString());
+				try {
+					final LLVMSymbolIteratorRef symbol = LLVM.LLVMObjectFileCopySymbolIterator(binary);
+					try {
+						for (; LLVM.LLVMObjectFileIsSymbolIteratorAtEnd(binary, symbol) == 0; LLVM.LLVMMoveToNextSymbol(symbol)) {
+							final BytePointer name = LLVM.LLVMGetSymbolName(symbol);
+							if(name != null && name.isNull() == false)
+								sizes.put(name.getString(), LLVM.LLVMGetSymbolSize(symbol));
+						}
+					} finally {
+						LLVM.LLVMDisposeSymbolIterator(symbol);
+					}
+				} finally {
+					LLVM.LLVMDisposeBinary(binary);
+				}
+			} finally {
+				LLVM.LLVMDisposeMemoryBuffer(buffer);
+			}
+		} finally {
+			LLVM.LLVMDisposeMessage(error);
+		}
+		return sizes;
+	}
+
+	/**
+	 * Check if the module can be stored in a shared library
+	 *
+	 * @param module LLVM module
+	 * @param symbols symbols of the compiler
+	 * @throws IllegalArgumentException if the module uses a symbol which is only known to this process
+	 */
+	public static void verifyModule(LLVMModuleRef module, LLVMSymbols symbols) {
+		for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(module); func != null && func.isNull() == false; func = LLVM.LLVMGetNextFunction(func))
+			verifyDeclaration(func, symbols);
+		for (LLVMValueRef global = LLVM.LLVMGetFirstGlobal(module); global != null && global.isNull() == false; global = LLVM.LLVMGetNextGlobal(global))
+			verifyDeclaration(global, symbols);
+	}
+
+	protected static void verifyDeclaration(LLVMValueRef value, LLVMSymbols symbols) {
+		if(LLVM.LLVMIsDeclaration(value) == 0 || LLVM.LLVMGetIntrinsicID(value) != 0)
+			return;
+		final String name = LLVM.LLVMGetValueName(value).getString();
+		if(symbols.getAddress(name) != null)
+			throw new IllegalArgumentException("The symbol "+name+" is mapped to an address of this process and can not be used by a shared library");
+	}
+
+	/**
+	 * Optimize and compile the module into a position independent object file for the host cpu
+	 *
+	 * @param module unoptimized module
+	 * @param device target cpu
+	 * @param objectFile output file
+	 * @throws IOException could not emit the object file
+	 */
+	protected static void compileObjectFile(LLVMModuleRef module, BytePointer device, Path objectFile) throws IOException {
+		final BytePointer triple = LLVM.LLVMGetDefaultTargetTriple();
+		final BytePointer features = LLVM.LLVMGetHostCPUFeatures();
+		final BytePointer error = new BytePointer((Pointer) null);
+		try {
+			final LLVMTargetRef target = new LLVMTargetRef();
+			if(LLVM.LLVMGetTargetFromTriple(triple, target, error) != 0)
+				throw new IOException(error.getString());
+
+			final LLVMTargetMachineRef machine = LLVM.LLVMCreateTargetMachine(target, triple, device, features, LLVM.LLVMCodeGenLevelAggressive, LLVM.LLVMRelocPIC, LLVM.LLVMCodeModelDefault);
+			try {
+				final LLVMTargetDataRef dataLayout = LLVM.LLVMCreateTargetDataLayout(machine);
+				LLVM.LLVMSetTarget(module, triple);
+				LLVM.LLVMSetModuleDataLayout(module, dataLayout);
+				LLVM.LLVMDisposeTargetData(dataLayout);
+				
+				LLVMCompiler.optimizeModule(module, device);
+				if(LLVM.LLVMTargetMachineEmitToFile(machine, module, new BytePointer(objectFile.toString()), LLVM.LLVMObjectFile, error) != 0)
+					throw new IOException(error.getString());
+			} finally {
+				LLVM.LLVMDisposeTargetMachine(machine);
+			}
+		} finally {
+			LLVM.LLVMDisposeMessage(error);
+			LLVM.LLVMDisposeMessage(features);
+			LLVM.LLVMDisposeMessage(triple);
+		}
+	}
+
+	/**
+	 * Link the object file into a shared library with clang
+	 *
+	 * @param objectFile position independent object file
+	 * @param libraryFile output file
+	 * @throws IOException clang failed
+	 */
+	protected static void linkSharedLibrary(Path objectFile, Path libraryFile) throws IOException {
+		final Process process = new ProcessBuilder(LLVMClangModuleBuilder.getClang(), "-shared", "-o", libraryFile.toString(), objectFile.toString())
+				.redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.INHERIT)
+				.start();
+		try {
+			final int exitCode = process.waitFor();
+			if(exitCode != 0)
+				throw new IOException("clang failed to link "+libraryFile+" with exit code "+exitCode);
+		} catch (InterruptedException e) {
+			process.destroy();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while linking "+libraryFile, e);
+		}
+	}
+}
@@ -89,6 +89,17 @@ public class LLVMStoredModuleBuilder<T> implements LLVMModuleBuilder<T> {
 		return memory;
 	}
 
+	/**
+	 * Copy the content of the byte array into a memory buffer
+	 * 
+	 * @param data content for the memory buffer
+	 * @param name name of the memory buffer
+	 * @return memory filled with the content of the array
+	 */
+	protected static LLVMMemoryBufferRef readBytes(byte[] data, String name) {
+		return LLVM.LLVMCreateMemoryBufferWithMemoryRangeCopy(new BytePointer(data), data.length, new BytePointer(name));
+	}
+
 	/**
 	 * Read and parse the LLVM IR from the memory buffer to create an in-memory module object.
 	 *  
@@ -113,11 +124,22 @@ public class LLVMStoredModuleBuilder<T> implements LLVMModuleBuilder<T> {
 	}
 	
 	protected static LLVMModuleRef parseBitcode(LLVMMemoryBufferRef memory) throws ParseException {
-		final LLVMContextRef context = LLVM.LLVMGetGlobalContext();
+		return parseBitcode(LLVM.LLVMGetGlobalContext(), memory);
+	}
+	
+	/**
+	 * Parse the bitcode in the memory buffer into a module of the given context.
+	 * 
+	 * @param context LLVM context of the new module
+	 * @param memory bitcode, the caller needs to dispose it
+	 * @return LLVM module of the bitcode
+	 * @throws ParseException unable to parse the bitcode
+	 */
+	protected static LLVMModuleRef parseBitcode(LLVMContextRef context, LLVMMemoryBufferRef memory) throws ParseException {
 		final LLVMModuleRef outModule = new LLVMModuleRef();
 		final BytePointer error = new BytePointer((Pointer) null);
 		try {
-			// consumes memory, no need to dispose it 
+			// does not take ownership of the memory, the caller needs to dispose it
 			if (LLVM.LLVMParseBitcodeInContext2(context, memory, outModule) != 0) {
 				throw new ParseException(error.getString(), 0);
 			}
@@ -127,14 +149,64 @@ public class LLVMStoredModuleBuilder<T> implements LLVMModuleBuilder<T> {
 		return outModule;
 	}	
 	
+	/**
+	 * Parse the bitcode into a module of the given context. Together with {@link #writeBitcode(LLVMModuleRef)}
+	 * a module can be moved into another context, e.g. to work on it in another thread.
+	 * 
+	 * @param bitcode content of a bitcode file
+	 * @param context LLVM context of the new module
+	 * @return LLVM module of the bitcode
+	 */
+	protected static LLVMModuleRef readBitcode(byte[] bitcode, LLVMContextRef context) {
+		final LLVMMemoryBufferRef memory = readBytes(bitcode, "bitcode");
+		try {
+			return parseBitcode(context, memory);
+		} catch (ParseException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			LLVM.LLVMDisposeMemoryBuffer(memory);
+		}
+	}
+	
+	/**
+	 * Serialize the module to bitcode
+	 * 
+	 * @param module LLVM module
+	 * @return content of a bitcode file
+	 */
+	protected static byte[] writeBitcode(LLVMModuleRef module) {
+		final LLVMMemoryBufferRef memory = LLVM.LLVMWriteBitcodeToMemoryBuffer(module);
+		try {
+			final byte[] bitcode = new byte[(int) LLVM.LLVMGetBufferSize(memory)];
+			LLVM.LLVMGetBufferStart(memory).get(bitcode);
+			return bitcode;
+		} finally {
+			LLVM.LLVMDisposeMemoryBuffer(memory);
+		}
+	}
+	
 	@Override
 	public LLVMModuleRef build() {			
+		return readModule(file);
+	}
+	
+	/**
+	 * Read and parse a file containing IR code (.ll) or bitcode (.bc)
+	 * 
+	 * @param file path to the IR
+	 * @return LLVM module of the file
+	 */
+	protected static LLVMModuleRef readModule(Path file) {
 		try {			
 
 			final LLVMMemoryBufferRef memory = readFile(file);
-			if(file.toString().endsWith(".bc"))
-				return parseBitcode(memory);
-			else
+			if(file.toString().endsWith(".bc")) {
+				try {
+					return parseBitcode(memory);
+				} finally {
+					LLVM.LLVMDisposeMemoryBuffer(memory);
+				}
+			} else
 				return parseIR(memory);
 			
 		} catch (Exception e) {
@@ -225,8 +297,11 @@ public class LLVMStoredModuleBuilder<T> implements LLVMModuleBuilder<T> {
 		BytePointer error = new BytePointer((Pointer) null);
 		try {
 			final LLVMMemoryBufferRef memory = readFile(file);
-			final LLVMModuleRef module = parseBitcode(memory);			
-			return module;
+			try {
+				return parseBitcode(memory);
+			} finally {
+				LLVM.LLVMDisposeMemoryBuffer(memory);
+			}
 			
 		} finally {
 			LLVM.LLVMDisposeMessage(error);
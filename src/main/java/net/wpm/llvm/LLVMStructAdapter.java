@@ -0,0 +1,252 @@
+package net.wpm.llvm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.LLVMBuilderRef;
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMTargetDataRef;
+import org.bytedeco.llvm.LLVM.LLVMTypeRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+
+/**
+ * Adds an adapter to every exported function which passes or returns structs by value. LLVM lowers
+ * first class aggregates differently than the C calling convention, e.g. a returned {float, float, float}
+ * lives in three xmm registers instead of being packed into two. Therefore those functions are never
+ * called directly, their adapters take the structs as pointers to memory and return a struct through
+ * a result pointer given as first parameter.
+ *
+ * The method handles created by {@link #bind(long, MethodType, LLVMTypeRef, LLVMTargetDataRef)} keep the
+ * signature of the original function, structs are {@link ByteBuffer}s in native byte order whose layout
+ * is defined by the data layout of the module.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMStructAdapter {
+
+	/**
+	 * String attribute of the adapter functions
+	 */
+	public static final String ADAPTER_ATTRIBUTE = "llvm-jnr-struct-adapter";
+
+	protected static final MethodHandle ALLOCATE_STRUCT;
+	protected static final MethodHandle TO_STRUCT_ARGUMENT;
+	static {
+		try {
+			final MethodHandles.Lookup lookup = MethodHandles.lookup();
+			ALLOCATE_STRUCT = lookup.findStatic(LLVMStructAdapter.class, "allocateStruct", MethodType.methodType(ByteBuffer.class, int.class));
+			TO_STRUCT_ARGUMENT = lookup.findStatic(LLVMStructAdapter.class, "toStructArgument", MethodType.methodType(ByteBuffer.class, int.class, int.class, ByteBuffer.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Native copies of struct arguments from heap buffers of the current thread, one per parameter
+	 */
+	protected static final ThreadLocal<List<ByteBuffer>> STRUCT_COPIES = ThreadLocal.withInitial(ArrayList::new);
+
+	/**
+	 * Add the adapters to all exported functions passing structs by value, which do not have one yet
+	 *
+	 * @param module LLVM module
+	 */
+	public static void addAdapters(LLVMModuleRef module) {
+		final List<LLVMValueRef> entries = new ArrayList<>();
+		for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(module); isNull(func) == false; func = LLVM.LLVMGetNextFunction(func))
+			if(LLVM.LLVMIsDeclaration(func) == 0 && LLVM.LLVMGetLinkage(func) == LLVM.LLVMExternalLinkage && isAdapter(func) == false
+					&& LLVMProgram.isPassingStructs(LLVMProgram.getFunctionType(func))
+					&& isNull(LLVM.LLVMGetNamedFunction(module, getAdapterName(LLVM.LLVMGetValueName(func).getString()))))
+				entries.add(func);
+
+		final LLVMBuilderRef builder = LLVM.LLVMCreateBuilder();
+		try {
+			for (LLVMValueRef func : entries)
+				addAdapter(module, builder, func);
+		} finally {
+			LLVM.LLVMDisposeBuilder(builder);
+		}
+	}
+
+	/**
+	 * Is the function an adapter of another function
+	 *
+	 * @param func LLVM function
+	 * @return true if it is an adapter
+	 */
+	public static boolean isAdapter(LLVMValueRef func) {
+		return isNull(LLVM.LLVMGetStringAttributeAtIndex(func, LLVM.LLVMAttributeFunctionIndex, ADAPTER_ATTRIBUTE, ADAPTER_ATTRIBUTE.length())) == false;
+	}
+
+	/**
+	 * Name of the adapter function
+	 *
+	 * @param funcName name of the function passing structs by value
+	 * @return symbol name of its adapter
+	 */
+	public static String getAdapterName(String funcName) {
+		return funcName + ".struct_adapter";
+	}
+
+	/**
+	 * Create a method handle with the signature of the original function, which calls its adapter.
+	 *
+	 * @param address of the adapter function
+	 * @param type Java signature of the original function
+	 * @param funcType LLVM type of the original function
+	 * @param dataLayout data layout of the module
+	 * @return method handle of the given type
+	 */
+	public static MethodHandle bind(long address, MethodType type, LLVMTypeRef funcType, LLVMTargetDataRef dataLayout) {
+		final LLVMTypeRef returnType = LLVM.LLVMGetReturnType(funcType);
+		final boolean isStructReturn = isStruct(returnType);
+		final LLVMTypeRef[] paramTypes = getParamTypes(funcType);
+
+		// structs are passed as byte buffers pointing to their memory
+		final MethodType adapterType = isStructReturn ? type.changeReturnType(void.class).insertParameterTypes(0, ByteBuffer.class) : type;
+		MethodHandle handle = LLVMMethodHandleBinder.bind(address, adapterType);
+		final int offset = isStructReturn ? 1 : 0;
+		for (int i = 0; i < paramTypes.length; i++) {
+			if(isStruct(paramTypes[i])) {
+				final int size = (int) LLVM.LLVMABISizeOfType(dataLayout, paramTypes[i]);
+				handle = MethodHandles.filterArguments(handle, i + offset, MethodHandles.insertArguments(TO_STRUCT_ARGUMENT, 0, size, i));
+			}
+		}
+
+		// allocate the result and return it after the call
+		if(isStructReturn) {
+			final int size = (int) LLVM.LLVMABISizeOfType(dataLayout, returnType);
+			final MethodHandle returnResult = MethodHandles.dropArguments(MethodHandles.identity(ByteBuffer.class), 1, type.parameterList());
+			handle = MethodHandles.foldArguments(returnResult, handle);
+			handle = MethodHandles.foldArguments(handle, MethodHandles.insertArguments(ALLOCATE_STRUCT, 0, size));
+		}
+		return handle;
+	}
+
+	/**
+	 * Memory for a returned struct
+	 *
+	 * @param size byte size of the struct
+	 * @return direct buffer in native byte order
+	 */
+	protected static ByteBuffer allocateStruct(int size) {
+		return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Check a struct argument and copy it into native memory of the current thread if necessary.
+	 * The adapter loads the struct before anything else runs on this thread.
+	 *
+	 * @param size byte size of the struct
+	 * @param index parameter index
+	 * @param struct struct from the position of the buffer
+	 * @return direct buffer with the struct at its position
+	 * @throws IllegalArgumentException if the buffer has less remaining bytes than the struct
+	 */
+	protected static ByteBuffer toStructArgument(int size, int index, ByteBuffer struct) {
+		if(struct == null)
+			throw new IllegalArgumentException("Structs passed by value can not be null");
+		if(struct.remaining() < size)
+			throw new IllegalArgumentException("The struct needs "+size+" bytes but the buffer has only "+struct.remaining()+" remaining");
+		if(struct.isDirect())
+			return struct;
+
+		final List<ByteBuffer> copies = STRUCT_COPIES.get();
+		while(copies.size() <= index)
+			copies.add(null);
+		ByteBuffer copy = copies.get(index);
+		if(copy == null || copy.capacity() < size) {
+			copy = ByteBuffer.allocateDirect(Math.max(size, 64));
+			copies.set(index, copy);
+		}
+		copy.clear();
+		final ByteBuffer source = struct.duplicate();
+		source.limit(source.position() + size);
+		copy.put(source);
+		copy.flip();
+		return copy;
+	}
+
+
+
+	// --------------------------------------------------------------------------------------------------------------
+	// ------------------------------------------------ Adapters ----------------------------------------------------
+	// --------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Add an exported adapter, which loads the struct arguments from pointers, calls the function
+	 * and stores a returned struct into the memory of the first parameter.
+	 *
+	 * @param module LLVM module
+	 * @param builder instruction builder
+	 * @param func exported function passing structs by value
+	 */
+	protected static void addAdapter(LLVMModuleRef module, LLVMBuilderRef builder, LLVMValueRef func) {
+		final LLVMContextRef context = LLVM.LLVMGetModuleContext(module);
+		final String name = LLVM.LLVMGetValueName(func).getString();
+		final LLVMTypeRef funcType = LLVMProgram.getFunctionType(func);
+		final LLVMTypeRef returnType = LLVM.LLVMGetReturnType(funcType);
+		final boolean isStructReturn = isStruct(returnType);
+		final LLVMTypeRef[] paramTypes = getParamTypes(funcType);
+
+		// structs become pointers, a returned struct the first parameter
+		final int offset = isStructReturn ? 1 : 0;
+		final LLVMTypeRef[] adapterParamTypes = new LLVMTypeRef[paramTypes.length + offset];
+		if(isStructReturn)
+			adapterParamTypes[0] = LLVM.LLVMPointerType(returnType, 0);
+		for (int i = 0; i < paramTypes.length; i++)
+			adapterParamTypes[i + offset] = isStruct(paramTypes[i]) ? LLVM.LLVMPointerType(paramTypes[i], 0) : paramTypes[i];
+		final LLVMTypeRef adapterReturnType = isStructReturn ? LLVM.LLVMVoidTypeInContext(context) : returnType;
+		final LLVMTypeRef adapterType = LLVM.LLVMFunctionType(adapterReturnType, new PointerPointer<>(adapterParamTypes), adapterParamTypes.length, 0);
+
+		final String adapterName = getAdapterName(name);
+		final LLVMValueRef adapter = LLVM.LLVMAddFunction(module, adapterName, adapterType);
+		LLVM.LLVMAddAttributeAtIndex(adapter, LLVM.LLVMAttributeFunctionIndex, LLVM.LLVMCreateStringAttribute(context, ADAPTER_ATTRIBUTE, ADAPTER_ATTRIBUTE.length(), "", 0));
+		LLVM.LLVMPositionBuilderAtEnd(builder, LLVM.LLVMAppendBasicBlockInContext(context, adapter, "entry"));
+
+		// the buffers of the structs have no particular alignment
+		final LLVMValueRef[] args = new LLVMValueRef[paramTypes.length];
+		for (int i = 0; i < paramTypes.length; i++) {
+			args[i] = LLVM.LLVMGetParam(adapter, i + offset);
+			if(isStruct(paramTypes[i])) {
+				args[i] = LLVM.LLVMBuildLoad(builder, args[i], "");
+				LLVM.LLVMSetAlignment(args[i], 1);
+			}
+		}
+		final LLVMValueRef call = LLVM.LLVMBuildCall(builder, func, new PointerPointer<>(args), args.length, "");
+		LLVM.LLVMSetInstructionCallConv(call, LLVM.LLVMGetFunctionCallConv(func));
+		if(isStructReturn) {
+			LLVM.LLVMSetAlignment(LLVM.LLVMBuildStore(builder, call, LLVM.LLVMGetParam(adapter, 0)), 1);
+			LLVM.LLVMBuildRetVoid(builder);
+		} else if(LLVM.LLVMGetTypeKind(returnType) == LLVM.LLVMVoidTypeKind)
+			LLVM.LLVMBuildRetVoid(builder);
+		else
+			LLVM.LLVMBuildRet(builder, call);
+	}
+
+	protected static LLVMTypeRef[] getParamTypes(LLVMTypeRef funcType) {
+		final int parameterCount = LLVM.LLVMCountParamTypes(funcType);
+		final PointerPointer<LLVMTypeRef> ptr = new PointerPointer<>(new LLVMTypeRef[parameterCount]);
+		LLVM.LLVMGetParamTypes(funcType, ptr);
+		final LLVMTypeRef[] paramTypes = new LLVMTypeRef[parameterCount];
+		for (int i = 0; i < parameterCount; i++)
+			paramTypes[i] = new LLVMTypeRef(ptr.get(i));
+		return paramTypes;
+	}
+
+	protected static boolean isStruct(LLVMTypeRef type) {
+		return LLVM.LLVMGetTypeKind(type) == LLVM.LLVMStructTypeKind;
+	}
+
+	protected static boolean isNull(org.bytedeco.javacpp.Pointer pointer) {
+		return pointer == null || pointer.isNull();
+	}
+}
@@ -0,0 +1,264 @@
+package net.wpm.llvm;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.llvm.LLVM.LLVMExecutionEngineRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+
+import jnr.ffi.Runtime;
+
+/**
+ * External symbols which can be used by the modules of a {@link LLVMCompiler}. Functions and
+ * globals declared but not defined in a module are resolved against these symbols before the
+ * machine code gets linked. A symbol can be
+ * <ul>
+ * <li>the address of any native function or variable</li>
+ * <li>a function of another {@link LLVMProgram}, calls between the programs stay native</li>
+ * <li>a Java callback, called via a JNR closure</li>
+ * <li>a function of a library module, which gets linked into the compiled modules and can be inlined</li>
+ * <li>a helper function compiled by another program, see {@link LLVMFunctionLibrary}</li>
+ * </ul>
+ * Symbols without a mapping are searched in the process e.g. the C library.
+ *
+ * Objects providing the symbols must not be disposed or garbage collected as long as programs
+ * using them exist. This class keeps references to the callbacks and programs.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMSymbols {
+
+	protected final Map<String, Long> nameToAddress;
+	protected final List<Object> references;
+	protected final List<LLVMModuleRef> libraries;
+	protected String libraryKey;
+	protected LLVMFunctionLibrary functionLibrary;
+
+	public LLVMSymbols() {
+		this.nameToAddress = new ConcurrentHashMap<>();
+		this.references = Collections.synchronizedList(new ArrayList<>());
+		this.libraries = new ArrayList<>();
+		this.libraryKey = "";
+	}
+
+	/**
+	 * Resolve the symbol to a native address
+	 *
+	 * @param name symbol name in the LLVM module
+	 * @param address native address
+	 * @return this
+	 */
+	public LLVMSymbols add(String name, long address) {
+		if(address == 0)
+			throw new IllegalArgumentException("Symbol "+name+" can not be mapped to a null address");
+		nameToAddress.put(name, address);
+		return this;
+	}
+
+	/**
+	 * Resolve the symbol to a function of another program. The program must not
+	 * be disposed as long as programs calling the function exist.
+	 *
+	 * @param name symbol name in the LLVM module
+	 * @param program compiled program
+	 * @param funcName name of the function in the program
+	 * @return this
+	 */
+	public LLVMSymbols add(String name, LLVMProgram<?> program, String funcName) {
+		final Long address = program.getFunctionTypes().containsKey(funcName) ? program.getAddress(funcName) : null;
+		if(address == null)
+			throw new IllegalArgumentException("There is no accessible function "+funcName+" in the LLVM program");
+		references.add(program);
+		return add(name, address);
+	}
+
+	/**
+	 * Resolve the symbol to a Java callback. The callback interface must have a single
+	 * method annotated with {@link jnr.ffi.annotations.Delegate} whose signature matches
+	 * the declaration in the module.
+	 *
+	 * @param <C> callback interface
+	 * @param name symbol name in the LLVM module
+	 * @param callbackInterface class of the callback interface
+	 * @param callback implementation
+	 * @return this
+	 */
+	public <C> LLVMSymbols addCallback(String name, Class<C> callbackInterface, C callback) {
+		final jnr.ffi.Pointer closure = Runtime.getSystemRuntime().getClosureManager().getClosurePointer(callbackInterface, callback);
+		references.add(callback);
+		references.add(closure);
+		return add(name, closure.address());
+	}
+
+	/**
+	 * Functions of the library module get linked into every module compiled afterwards,
+	 * so that they can be inlined. The definitions are linked with linkonce_odr linkage,
+	 * modules can therefore define functions with the same name. The library is copied,
+	 * the module itself is not changed.
+	 *
+	 * @param library module with function definitions
+	 * @return this
+	 */
+	public synchronized LLVMSymbols addLibrary(LLVMModuleRef library) {
+		final LLVMModuleRef copy = LLVM.LLVMCloneModule(library);
+		for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(copy); func != null && func.isNull() == false; func = LLVM.LLVMGetNextFunction(func))
+			if(LLVM.LLVMIsDeclaration(func) == 0 && LLVM.LLVMGetLinkage(func) == LLVM.LLVMExternalLinkage)
+				LLVM.LLVMSetLinkage(func, LLVM.LLVMLinkOnceODRLinkage);
+		libraries.add(copy);
+
+		// the optimized module depends on the libraries
+		final BytePointer ir = LLVM.LLVMPrintModuleToString(copy);
+		try {
+			libraryKey = LLVMModuleCache.computeKey(libraryKey, ir.getString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			LLVM.LLVMDisposeMessage(ir);
+		}
+		return this;
+	}
+
+	/**
+	 * Share identical helper functions of the modules compiled afterwards. Optimized modules 
+	 * depend on the content of the function library, see {@link #getLibraryKey()}.
+	 *
+	 * @param functionLibrary library of the shared functions or null to disable sharing
+	 * @return this
+	 */
+	public synchronized LLVMSymbols setFunctionLibrary(LLVMFunctionLibrary functionLibrary) {
+		this.functionLibrary = functionLibrary;
+		return this;
+	}
+
+	/**
+	 * @return library of the shared functions or null
+	 */
+	public synchronized LLVMFunctionLibrary getFunctionLibrary() {
+		return functionLibrary;
+	}
+
+	/**
+	 * Native address of a symbol
+	 *
+	 * @param name symbol name
+	 * @return address or null if the symbol is unknown
+	 */
+	public Long getAddress(String name) {
+		final Long address = nameToAddress.get(name);
+		final LLVMFunctionLibrary library = getFunctionLibrary();
+		return (address == null && library != null) ? library.getAddress(name) : address;
+	}
+
+	/**
+	 * @return names of all symbols with an address
+	 */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(nameToAddress.keySet());
+	}
+
+	/**
+	 * Identifies the content of all libraries and the function library, empty if there are none.
+	 *
+	 * @return hash of the libraries
+	 */
+	public synchronized String getLibraryKey() {
+		return (functionLibrary == null) ? libraryKey : libraryKey + ";functions=" + functionLibrary.getKey();
+	}
+
+	/**
+	 * Link all libraries into the module
+	 *
+	 * @param module target module
+	 */
+	protected synchronized void link(LLVMModuleRef module) {
+		for (LLVMModuleRef library : libraries) {
+
+			// linking destroys the source module
+			if(LLVM.LLVMLinkModules2(module, LLVM.LLVMCloneModule(library)) != 0)
+				throw new RuntimeException("Could not link a library into the module");
+		}
+	}
+
+	/**
+	 * Replace helper functions of the module with shared functions of the function library.
+	 *
+	 * @param module unoptimized module with all libraries
+	 */
+	protected void deduplicate(LLVMModuleRef module) {
+		final LLVMFunctionLibrary library = getFunctionLibrary();
+		if(library != null)
+			library.deduplicate(module);
+	}
+
+	/**
+	 * Let the program use and provide shared functions of the function library.
+	 *
+	 * @param program compiled program
+	 */
+	protected void attach(LLVMProgram<?> program) {
+		final LLVMFunctionLibrary library = getFunctionLibrary();
+		if(library != null)
+			library.attach(program);
+	}
+
+	/**
+	 * Let the replacement provide the shared functions of the program.
+	 *
+	 * @param program current provider
+	 * @param replacement compiled from the same module as the program
+	 */
+	protected void replaceProvider(LLVMProgram<?> program, LLVMProgram<?> replacement) {
+		final LLVMFunctionLibrary library = getFunctionLibrary();
+		if(library != null)
+			library.replaceProvider(program, replacement);
+	}
+
+	/**
+	 * Map the declarations in the module to the addresses of the symbols. Must be called
+	 * before any function address of the engine is requested.
+	 *
+	 * @param engine execution engine containing the module
+	 * @param module compiled module
+	 * @throws IllegalArgumentException if a used declaration can not be resolved
+	 */
+	protected void map(LLVMExecutionEngineRef engine, LLVMModuleRef module) {
+		for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(module); func != null && func.isNull() == false; func = LLVM.LLVMGetNextFunction(func))
+			mapDeclaration(engine, func);
+		for (LLVMValueRef global = LLVM.LLVMGetFirstGlobal(module); global != null && global.isNull() == false; global = LLVM.LLVMGetNextGlobal(global))
+			mapDeclaration(engine, global);
+	}
+
+	/**
+	 * Map a declaration to the address of a symbol
+	 *
+	 * @param engine execution engine containing the module
+	 * @param value function or global variable
+	 */
+	protected void mapDeclaration(LLVMExecutionEngineRef engine, LLVMValueRef value) {
+		if(LLVM.LLVMIsDeclaration(value) == 0 || LLVM.LLVMGetIntrinsicID(value) != 0)
+			return;
+
+		final String name = LLVM.LLVMGetValueName(value).getString();
+		final Long address = getAddress(name);
+		if(address != null) {
+			final long addr = address;
+			LLVM.LLVMAddGlobalMapping(engine, value, new Pointer() {{ this.address = addr; }});
+			return;
+		}
+
+		// the JIT would abort the process for unresolved symbols
+		final Pointer processSymbol = LLVM.LLVMSearchForAddressOfSymbol(name);
+		final boolean isUsed = LLVM.LLVMGetFirstUse(value) != null && LLVM.LLVMGetFirstUse(value).isNull() == false;
+		if(isUsed && (processSymbol == null || processSymbol.isNull()))
+			throw new IllegalArgumentException("Unresolved external symbol "+name+", add it to the LLVMSymbols of the compiler");
+	}
+}
@@ -0,0 +1,314 @@
+package net.wpm.llvm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.global.LLVM;
+
+/**
+ * A program which starts with quickly compiled machine code and gets recompiled with all
+ * optimizations (including polly if enabled in the compiler) once one of its functions is hot.
+ * A function is hot if it got called a certain number of times or the time spent in it exceeds
+ * a threshold. The recompilation runs in the background on its own LLVM context, meanwhile
+ * the first tier stays in use.
+ *
+ * All calls go through {@link MutableCallSite}s whose targets are switched to the optimized
+ * machine code at once. The first tier counts and times every call, the optimized tier is
+ * called directly. The first tier gets disposed as soon as no call is running in it anymore.
+ *
+ * Tiered programs are always bound via method handles, see {@link LLVMBinding#METHOD_HANDLE}.
+ * Both tiers are pinned while in use and can not be evicted by a {@link LLVMMemoryGroup}.
+ *
+ * @author Nico Hezel
+ *
+ * @param <T> invocation interface
+ */
+public class LLVMTieredProgram<T> implements AutoCloseable {
+
+	protected static final MethodHandle INVOKE_TIER1;
+	static {
+		try {
+			INVOKE_TIER1 = MethodHandles.lookup().findVirtual(LLVMTieredProgram.class, "invokeTier1", MethodType.methodType(Object.class, FunctionTier.class, Object[].class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	protected final LLVMCompiler compiler;
+	protected final Class<T> invocationInterface;
+	protected final byte[] bitcode;
+	protected final long callThreshold;
+	protected final long timeThreshold;
+	protected final Consumer<LLVMModuleRef> onOptimized;
+
+	protected final LLVMProgram<T> tier1;
+	protected final T invocationProxy;
+	protected final Map<String, MutableCallSite> funcNameToCallSite;
+	protected final Map<String, FunctionTier> funcNameToTier;
+
+	protected volatile boolean promoting = false;
+	protected final AtomicBoolean tier1Disposed = new AtomicBoolean();
+	protected final AtomicInteger tier1Calls = new AtomicInteger();
+	protected volatile boolean tier1Retired = false;
+	protected Future<?> promotion;
+	protected LLVMProgram<T> tier2;
+	protected boolean closed = false;
+
+	/**
+	 * A program without a first tier, its machine code is already fully optimized.
+	 *
+	 * @param program fully optimized program
+	 * @param invocationInterface class or null
+	 */
+	protected LLVMTieredProgram(LLVMProgram<T> program, Class<T> invocationInterface) {
+		this(null, program, invocationInterface, null, Long.MAX_VALUE, Long.MAX_VALUE, null);
+	}
+
+	/**
+	 * @param compiler recompiles the program
+	 * @param tier1 quickly compiled program
+	 * @param invocationInterface class or null
+	 * @param bitcode of the unoptimized module with all libraries and instrumentations, null if there is nothing to promote
+	 * @param callThreshold number of calls of a function until the program gets promoted
+	 * @param timeThreshold nanoseconds spent in a function until the program gets promoted
+	 * @param onOptimized gets the fully optimized module, can be null
+	 */
+	protected LLVMTieredProgram(LLVMCompiler compiler, LLVMProgram<T> tier1, Class<T> invocationInterface, byte[] bitcode, long callThreshold, long timeThreshold, Consumer<LLVMModuleRef> onOptimized) {
+		if(callThreshold < 1 || timeThreshold < 1)
+			throw new IllegalArgumentException("The thresholds must be positive, got "+callThreshold+" calls and "+timeThreshold+"ns");
+		this.compiler = compiler;
+		this.tier1 = tier1.pin();
+		this.invocationInterface = invocationInterface;
+		this.bitcode = bitcode;
+		this.callThreshold = callThreshold;
+		this.timeThreshold = timeThreshold;
+		this.onOptimized = onOptimized;
+
+		// all calls go through a call site, which points to the counting first tier until the program gets promoted
+		final Map<String, MutableCallSite> callSites = new HashMap<>();
+		final Map<String, FunctionTier> tiers = new HashMap<>();
+		for (Map.Entry<String, MethodType> entry : tier1.getFunctionTypes().entrySet()) {
+			final String funcName = entry.getKey();
+			final MethodType type = entry.getValue();
+			final MethodHandle handle = tier1.getMethodHandle(funcName);
+			if(bitcode == null)
+				callSites.put(funcName, new MutableCallSite(handle));
+			else {
+				final FunctionTier tier = new FunctionTier(handle.asSpreader(Object[].class, type.parameterCount()));
+				final MethodHandle counting = MethodHandles.insertArguments(INVOKE_TIER1.bindTo(this), 0, tier).asCollector(Object[].class, type.parameterCount()).asType(type);
+				callSites.put(funcName, new MutableCallSite(counting));
+				tiers.put(funcName, tier);
+			}
+		}
+		this.funcNameToCallSite = callSites;
+		this.funcNameToTier = tiers;
+		this.promotion = (bitcode == null) ? CompletableFuture.completedFuture(null) : null;
+		this.promoting = (bitcode == null);
+
+		this.invocationProxy = (invocationInterface == null) ? null : LLVMInvocationGenerator.implement(invocationInterface, this::getMethodHandle);
+	}
+
+	/**
+	 * Java signatures of all accessible functions
+	 *
+	 * @return function name to method type
+	 */
+	public Map<String, MethodType> getFunctionTypes() {
+		return tier1.getFunctionTypes();
+	}
+
+	/**
+	 * Method handle calling the native function of the current tier. The handle stays
+	 * valid after a promotion and calls the optimized machine code from then on.
+	 *
+	 * @param funcName name of the native function
+	 * @return method handle of the function
+	 * @throws IllegalArgumentException if there is no such function in the program
+	 */
+	public MethodHandle getMethodHandle(String funcName) {
+		final MutableCallSite callSite = funcNameToCallSite.get(funcName);
+		if(callSite == null)
+			throw new IllegalArgumentException("There is no accessible function "+funcName+" in the LLVM program");
+		return callSite.dynamicInvoker();
+	}
+
+	/**
+	 * Implementation of the invocation interface, calls the machine code of the current tier.
+	 *
+	 * @return implementation of the invocation interface or null if the program has none
+	 */
+	public T invoke() {
+		return invocationProxy;
+	}
+
+	/**
+	 * @return true if the calls are executed by the fully optimized machine code
+	 */
+	public boolean isOptimized() {
+		return bitcode == null || tier1Retired;
+	}
+
+	/**
+	 * Number of calls of a function in the first tier
+	 *
+	 * @param funcName name of the native function
+	 * @return number of calls
+	 */
+	public long getCallCount(String funcName) {
+		final FunctionTier tier = funcNameToTier.get(funcName);
+		return (tier == null) ? 0 : tier.calls.get();
+	}
+
+	/**
+	 * Start the recompilation with all optimizations in the background, if not already done.
+	 * If the optimizer of the compiler is busy the promotion fails and the next hot call tries again.
+	 *
+	 * @return the promotion, completes when the optimized machine code is in use
+	 */
+	public synchronized Future<?> promote() {
+		if(promotion == null) {
+			try {
+				promotion = LLVMCompiler.OPTIMIZER.submit(this::compileTier2);
+			} catch (RejectedExecutionException e) {
+				final CompletableFuture<?> rejected = new CompletableFuture<>();
+				rejected.completeExceptionally(e);
+				return rejected;
+			}
+			promoting = true;
+		}
+		return promotion;
+	}
+
+	/**
+	 * Calls the first tier, counts the calls and measures the time spent in the function.
+	 * Calls which reach the counting code after the switch to the optimized tier are
+	 * forwarded to it, since the first tier might be disposed already.
+	 *
+	 * @param tier function of the first tier
+	 * @param args arguments of the function
+	 * @return result of the function
+	 * @throws Throwable exception of the function
+	 */
+	protected Object invokeTier1(FunctionTier tier, Object[] args) throws Throwable {
+		tier1Calls.incrementAndGet();
+		try {
+			if(tier1Retired)
+				return tier.optimized.invoke(args);
+
+			final long start = System.nanoTime();
+			try {
+				return tier.handle.invoke(args);
+			} finally {
+				final long nanos = tier.nanos.addAndGet(System.nanoTime() - start);
+				if((tier.calls.incrementAndGet() >= callThreshold || nanos >= timeThreshold) && promoting == false)
+					promote();
+			}
+		} finally {
+			if(tier1Calls.decrementAndGet() == 0 && tier1Retired)
+				disposeTier1();
+		}
+	}
+
+	/**
+	 * Compile the program with all optimizations on a private LLVM context
+	 * and switch all call sites to the new machine code.
+	 */
+	protected void compileTier2() {
+		final LLVMContextRef context = LLVM.LLVMContextCreate();
+		final LLVMProgram<T> program;
+		try {
+			program = compiler.compileInPrivateContext(bitcode, context, invocationInterface, onOptimized);
+		} catch (Throwable e) {
+			LLVM.LLVMContextDispose(context);
+			throw new RuntimeException("Recompilation of the LLVM program failed: "+e.getMessage(), e);
+		}
+
+		// the context is needed as long as the program, which might be used by other programs
+		program.addDisposeListener(() -> LLVM.LLVMContextDispose(context));
+
+		synchronized (this) {
+			if(closed) {
+				program.dispose();
+				return;
+			}
+			tier2 = program.pin();
+
+			// helper functions shared with other programs are provided by the optimized tier from now on
+			compiler.getSymbols().replaceProvider(tier1, program);
+
+			// calls which are already in the counting code use the optimized tier after the switch
+			for (Map.Entry<String, FunctionTier> entry : funcNameToTier.entrySet()) {
+				final MethodHandle handle = program.getMethodHandle(entry.getKey());
+				entry.getValue().optimized = handle.asSpreader(Object[].class, handle.type().parameterCount());
+			}
+
+			final MutableCallSite[] callSites = funcNameToCallSite.values().toArray(new MutableCallSite[0]);
+			for (Map.Entry<String, MutableCallSite> entry : funcNameToCallSite.entrySet())
+				entry.getValue().setTarget(program.getMethodHandle(entry.getKey()));
+			MutableCallSite.syncAll(callSites);
+			tier1Retired = true;
+		}
+
+		// no call is running in the first tier, new calls are forwarded to the optimized tier
+		if(tier1Calls.get() == 0)
+			disposeTier1();
+	}
+
+	protected void disposeTier1() {
+		if(tier1Disposed.compareAndSet(false, true)) {
+			tier1.unpin();
+			tier1.dispose();
+		}
+	}
+
+	/**
+	 * Dispose the machine code of all tiers. A running recompilation gets discarded when done.
+	 */
+	public synchronized void dispose() {
+		if(closed)
+			return;
+		closed = true;
+		if(tier2 != null) {
+			tier2.unpin();
+			tier2.dispose();
+		}
+		disposeTier1();
+	}
+
+	@Override
+	public void close() {
+		dispose();
+	}
+
+	/**
+	 * A function of the first tier and its statistics
+	 *
+	 * @author Nico Hezel
+	 */
+	protected static class FunctionTier {
+		protected final MethodHandle handle;
+		protected final AtomicLong calls = new AtomicLong();
+		protected final AtomicLong nanos = new AtomicLong();
+		protected volatile MethodHandle optimized;
+
+		/**
+		 * @param handle spreader calling the function of the first tier
+		 */
+		protected FunctionTier(MethodHandle handle) {
+			this.handle = handle;
+		}
+	}
+}
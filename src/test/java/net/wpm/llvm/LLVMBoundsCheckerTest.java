@@ -0,0 +1,116 @@
+package net.wpm.llvm;
+
+import static net.wpm.llvm.LLVMKernelBuilder.floatType;
+import static net.wpm.llvm.LLVMKernelBuilder.int32Type;
+import static net.wpm.llvm.LLVMKernelBuilder.params;
+import static net.wpm.llvm.LLVMKernelBuilder.pointerType;
+import static net.wpm.llvm.LLVMKernelBuilder.voidType;
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Out of bounds accesses of kernels compiled in checked mode.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMBoundsCheckerTest {
+
+	public static void main(String[] args) throws NoSuchMethodException, IllegalClassFormatException {
+
+		final LLVMBoundsCheckerTest test = new LLVMBoundsCheckerTest();
+		test.testInBounds();
+		test.testOutOfBounds();
+		test.testBufferOutOfBounds();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	/**
+	 * Module with the function void fill(float* data, int length) setting data[i] = i
+	 *
+	 * @return module builder
+	 */
+	protected static LLVMKernelBuilder<FillInterface> fillModule() {
+		return new LLVMKernelBuilder<>("fill_module", FillInterface.class)
+			.function("fill", voidType(), params(pointerType(floatType()), int32Type()), code -> {
+				final LLVMValueRef data = code.param(0);
+				code.forLoop(code.constant(0), code.param(1), i -> code.store(data, i, code.convert(i, floatType())));
+			});
+	}
+
+	@Test
+	public void testInBounds() throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMCompiler compiler = new LLVMCompiler(false, false, new LLVMSymbols(), true);
+		try(LLVMProgram<FillInterface> program = compiler.compile(fillModule(), false)) {
+			final float[] data = new float[16];
+			program.invoke().fill(data, data.length);
+			Assert.assertEquals(15f, data[15], 0);
+		}
+	}
+
+	@Test
+	public void testOutOfBounds() throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMCompiler compiler = new LLVMCompiler(false, false, new LLVMSymbols(), true);
+		try(LLVMProgram<FillInterface> program = compiler.compile(fillModule(), false)) {
+			final float[] data = new float[16];
+			try {
+				program.invoke().fill(data, 1_000_000);
+				Assert.fail("Expected an IndexOutOfBoundsException");
+			} catch (IndexOutOfBoundsException e) {
+				// expected
+			}
+
+			// the accesses within the bounds happened
+			Assert.assertEquals(15f, data[15], 0);
+		}
+	}
+
+	@Test
+	public void testBufferOutOfBounds() throws NoSuchMethodException, IllegalClassFormatException {
+		final FloatBuffer data = ByteBuffer.allocateDirect(16 * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		data.position(4);
+
+		final LLVMCompiler compiler = new LLVMCompiler(false, false, new LLVMSymbols(), true);
+		final LLVMModuleRef module = fillModule().build();
+		try(LLVMProgram<FillBufferInterface> program = compiler.compile(module, FillBufferInterface.class, false)) {
+
+			// the bounds start at the position of the buffer
+			program.invoke().fill(data, 12);
+			Assert.assertEquals(11f, data.get(15), 0);
+			try {
+				program.invoke().fill(data, 13);
+				Assert.fail("Expected an IndexOutOfBoundsException");
+			} catch (IndexOutOfBoundsException e) {
+				// expected
+			}
+		} finally {
+			LLVM.LLVMDisposeModule(module);
+		}
+	}
+
+	/**
+	 * This is a invocation interface for the fill module.
+	 *
+	 * @author Nico Hezel
+	 */
+	public static interface FillInterface {
+		public void fill(float[] data, int length);
+	}
+
+	/**
+	 * @author Nico Hezel
+	 */
+	public static interface FillBufferInterface {
+		public void fill(FloatBuffer data, int length);
+	}
+}
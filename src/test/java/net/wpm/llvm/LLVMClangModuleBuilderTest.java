@@ -83,7 +83,7 @@ public class LLVMClangModuleBuilderTest {
 	@Test
 	public void testCachedFile() throws IOException, InterruptedException, ParseException, NoSuchMethodException, IllegalClassFormatException, URISyntaxException, NoSuchAlgorithmException {
 		final Path cFile = Paths.get(LLVMClangModuleBuilderTest.class.getResource("matmul.c").toURI());
-		final Path cacheDir = Paths.get("i:\\V3C\\generated\\");
+		final Path cacheDir = LLVMModuleCache.DEFAULT_DIRECTORY;
 		
 		final int M = 2000, N = 2000, K = 2000;
 		final Random rand = new Random(7);
@@ -95,25 +95,20 @@ public class LLVMClangModuleBuilderTest {
 		final LLVMCompiler compiler = new LLVMCompiler(true, false);
 		System.out.println("llvm compiler setup after "+(System.currentTimeMillis()-start)+"ms");
 		
+		// the first run stores the bitcode and the optimized module in the cache, later runs just load them
 		final LLVMClangModuleBuilder<MatMulInterface> moduleBuilder = new LLVMClangModuleBuilder<>(cFile, cacheDir, MatMulInterface.class);
-		final boolean isOptimized = Files.exists(moduleBuilder.getLLVMFile());
 		System.out.println("transpile after "+(System.currentTimeMillis()-start)+"ms");
 				
-		try(LLVMProgram<MatMulInterface> program = compiler.compile(moduleBuilder, isOptimized)) {	
+		try(LLVMProgram<MatMulInterface> program = compiler.compile(moduleBuilder)) {	
 			System.out.println("llvm compile after "+(System.currentTimeMillis()-start)+"ms");
 			
 			long calcStart = System.currentTimeMillis();
 			program.invoke().matmul(a, b, c, M, N, K);
 			System.out.println("c[0]"+c[0]+" took "+(System.currentTimeMillis()-calcStart)+"ms");
-			
-			// store and optimized version
-			if(isOptimized == false) {
-				String filename = moduleBuilder.getLLVMFile().getFileName().toString();
-				String bcFilename = filename.substring(0, filename.lastIndexOf('.')) + ".bc";			
-				LLVMStoredModuleBuilder.storeBitcode(program.getOptimizedModule(), cacheDir.resolve(bcFilename));
-				System.out.println("storeBitcode after "+(System.currentTimeMillis()-start)+"ms");
-			}
 		}
+		
+		Assert.assertTrue(Files.exists(moduleBuilder.getLLVMFile()));
+		Assert.assertNotNull(moduleBuilder.buildOptimized(compiler.getConfigurationKey()));
 	}
 	
 	@Test
@@ -147,6 +142,22 @@ public class LLVMClangModuleBuilderTest {
 		}
 	}
 	
+	@Test
+	public void testCCodeInMemory() throws NoSuchMethodException, IllegalClassFormatException {
+		final String cCode = "" +
+				"int compute_abs(const int val)\n" + 
+				"{\n" + 
+				"   return __builtin_abs(val);\n"+
+				"}\n";
+		
+		final LLVMModuleBuilder<AbsInterface> moduleBuilder = new LLVMClangMemoryModuleBuilder<>(cCode, AbsInterface.class);
+		final LLVMCompiler compiler = new LLVMCompiler(true, false);
+		try(LLVMProgram<AbsInterface> program = compiler.compile(moduleBuilder, true)) {
+			int result = program.invoke().compute_abs(-200);
+			Assert.assertEquals(result, 200);
+		}
+	}
+	
 	/**
 	 * This is a invocation interface for the LLVM function compute_abs
 	 * 
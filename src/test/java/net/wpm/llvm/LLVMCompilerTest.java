@@ -0,0 +1,110 @@
+package net.wpm.llvm;
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.wpm.llvm.LLVMProgramTest.AddInterface;
+
+/**
+ * Compile with a time budget for the optimizations or in place without copying the module.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMCompilerTest {
+
+	public static void main(String[] args) throws NoSuchMethodException, IllegalClassFormatException, InterruptedException {
+
+		final LLVMCompilerTest test = new LLVMCompilerTest();
+		test.testBudget();
+		test.testExceededBudget();
+		test.testBusyOptimizer();
+		test.testInterrupted();
+		test.testCompileInPlace();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	@Test
+	public void testBudget() throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMCompiler compiler = new LLVMCompiler(true, false);
+		try(LLVMProgram<AddInterface> program = compiler.compile(LLVMProgramTest.addModule().build(), AddInterface.class, LLVMBinding.JNR, 1, TimeUnit.MINUTES)) {
+			Assert.assertEquals(42, program.invoke().add(40, 2));
+			Assert.assertFalse(program.isQuickOptimized());
+		}
+	}
+
+	@Test
+	public void testExceededBudget() throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMCompiler compiler = new LLVMCompiler(true, false);
+		try(LLVMProgram<AddInterface> program = compiler.compile(LLVMProgramTest.addModule().build(), AddInterface.class, LLVMBinding.JNR, 0, TimeUnit.MILLISECONDS)) {
+			Assert.assertEquals(42, program.invoke().add(40, 2));
+			Assert.assertTrue(program.isQuickOptimized());
+		}
+	}
+
+	@Test
+	public void testBusyOptimizer() throws NoSuchMethodException, IllegalClassFormatException, InterruptedException {
+		final LLVMCompiler compiler = new LLVMCompiler(true, false);
+
+		// occupy all optimizer threads and fill the queue
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			while(true)
+				LLVMCompiler.OPTIMIZER.submit(() -> { release.await(); return null; });
+		} catch (RejectedExecutionException e) {
+			// the optimizer is full
+		}
+
+		// the fast optimizations are used without waiting for the budget
+		try {
+			final long start = System.nanoTime();
+			try(LLVMProgram<AddInterface> program = compiler.compile(LLVMProgramTest.addModule().build(), AddInterface.class, LLVMBinding.JNR, 1, TimeUnit.MINUTES)) {
+				Assert.assertEquals(42, program.invoke().add(40, 2));
+				Assert.assertTrue(program.isQuickOptimized());
+			}
+			Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30));
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void testInterrupted() throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMCompiler compiler = new LLVMCompiler(true, false);
+		Thread.currentThread().interrupt();
+		try {
+			compiler.compile(LLVMProgramTest.addModule().build(), AddInterface.class, LLVMBinding.JNR, 1, TimeUnit.MINUTES).close();
+			Assert.fail("Expected a CancellationException");
+		} catch (CancellationException e) {
+			Assert.assertTrue(Thread.interrupted());
+		}
+	}
+
+	@Test
+	public void testCompileInPlace() throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		final LLVMModuleRef module = LLVMProgramTest.addModule().build();
+		try(LLVMProgram<AddInterface> program = compiler.compileInPlace(module, AddInterface.class, false, LLVMBinding.JNR)) {
+			Assert.assertEquals(module, program.getOptimizedModule());
+			Assert.assertNull(program.getSourceModule());
+			Assert.assertEquals(42, program.invoke().add(40, 2));
+		}
+
+		// keep the unoptimized module to compile it again
+		try(LLVMProgram<AddInterface> program = compiler.compileInPlace(LLVMProgramTest.addModule().build(), AddInterface.class, false, LLVMBinding.JNR, true)) {
+			Assert.assertNotNull(program.getSourceModule());
+			try(LLVMProgram<AddInterface> copy = compiler.compile(program.getSourceModule(), AddInterface.class, false)) {
+				Assert.assertEquals(42, copy.invoke().add(40, 2));
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package net.wpm.llvm;
+
+import static net.wpm.llvm.LLVMKernelBuilder.doubleType;
+import static net.wpm.llvm.LLVMKernelBuilder.int64Type;
+import static net.wpm.llvm.LLVMKernelBuilder.params;
+import static net.wpm.llvm.LLVMKernelBuilder.pointerType;
+import static net.wpm.llvm.LLVMKernelBuilder.voidType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Test;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+
+/**
+ * Sum up a file of doubles chunk by chunk with the {@link LLVMFileScan}.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMFileScanTest {
+
+	protected static final int COUNT = 100_000;
+
+	public static void main(String[] args) throws Throwable {
+
+		final LLVMFileScanTest test = new LLVMFileScanTest();
+		test.testScan();
+		test.testScanParallel();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	/**
+	 * A kernel adding all doubles of a chunk to the sum in the state
+	 *
+	 * @return module with the function void sum(double* chunk, i64 length, double* state)
+	 */
+	protected static LLVMKernelBuilder<Void> sumModule() {
+		return new LLVMKernelBuilder<>("sum_module", Void.class)
+			.function("sum", voidType(), params(pointerType(doubleType()), int64Type(), pointerType(doubleType())), code -> {
+				final LLVMValueRef data = code.param(0), state = code.param(2);
+				final LLVMValueRef count = code.div(code.param(1), code.constant((long) Double.BYTES));
+				final LLVMValueRef sum = code.reduce(code.constant(0L), count, code.load(state, code.constant(0L)), (i, acc) -> code.add(acc, code.load(data, i)));
+				code.store(state, code.constant(0L), sum);
+			});
+	}
+
+	/**
+	 * Write the values 0 to COUNT-1 as little endian doubles into a temporary file
+	 *
+	 * @return the file
+	 * @throws IOException
+	 */
+	protected static Path createFile() throws IOException {
+		final Path file = Files.createTempFile("llvm-file-scan", ".bin");
+		file.toFile().deleteOnExit();
+		final ByteBuffer buffer = ByteBuffer.allocate(COUNT * Double.BYTES).order(ByteOrder.nativeOrder());
+		for (int i = 0; i < COUNT; i++)
+			buffer.putDouble(i);
+		buffer.flip();
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		return file;
+	}
+
+	@Test
+	public void testScan() throws IOException {
+		final Path file = createFile();
+		final Pointer state = Memory.allocateDirect(Runtime.getSystemRuntime(), Double.BYTES);
+		state.putDouble(0, 0);
+
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMProgram<Void> program = compiler.compile(sumModule().build(), false)) {
+			final LLVMFileScan scan = new LLVMFileScan(64 << 10);
+			scan.scan(file, LLVMFileScan.of(program.getMethodHandle("sum")), state);
+		} finally {
+			Files.deleteIfExists(file);
+		}
+
+		Assert.assertEquals((double) COUNT * (COUNT - 1) / 2, state.getDouble(0), 0);
+	}
+
+	@Test
+	public void testScanParallel() throws IOException {
+		final Path file = createFile();
+		final Pointer state = Memory.allocateDirect(Runtime.getSystemRuntime(), Double.BYTES);
+		state.putDouble(0, 0);
+
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try(LLVMProgram<Void> program = compiler.compile(sumModule().build(), false)) {
+			final LLVMFileScan scan = new LLVMFileScan(pool, 64 << 10);
+			scan.scanParallel(file, LLVMFileScan.of(program.getMethodHandle("sum")), state, Double.BYTES,
+					(target, source) -> target.putDouble(0, target.getDouble(0) + source.getDouble(0)));
+		} finally {
+			pool.shutdown();
+			Files.deleteIfExists(file);
+		}
+
+		Assert.assertEquals((double) COUNT * (COUNT - 1) / 2, state.getDouble(0), 0);
+	}
+}
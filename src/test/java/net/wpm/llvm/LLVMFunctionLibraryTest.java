@@ -0,0 +1,156 @@
+package net.wpm.llvm;
+
+import static net.wpm.llvm.LLVMKernelBuilder.int32Type;
+import static net.wpm.llvm.LLVMKernelBuilder.params;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Share identical helper functions between programs with a {@link LLVMFunctionLibrary}.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMFunctionLibraryTest {
+
+	public static void main(String[] args) throws Throwable {
+
+		final LLVMFunctionLibraryTest test = new LLVMFunctionLibraryTest();
+		test.testSharedFunction();
+		test.testTieredProvider();
+		test.testMemoryManager();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	/**
+	 * Module with an internal helper int sumsq(int a, int b) and the exported function
+	 * int name(int a, int b) returning sumsq(a, b) * factor
+	 *
+	 * @param name of the exported function
+	 * @param factor of the exported function
+	 * @return module
+	 */
+	protected static LLVMModuleRef helperModule(String name, int factor) {
+		final LLVMModuleRef module = new LLVMKernelBuilder<>(name + "_module", Void.class)
+			.function("sumsq", int32Type(), params(int32Type(), int32Type()), code -> {
+				code.ret(code.add(code.mul(code.param(0), code.param(0)), code.mul(code.param(1), code.param(1))));
+			})
+			.function(name, int32Type(), params(int32Type(), int32Type()), code -> {
+				code.ret(code.mul(code.call("sumsq", code.param(0), code.param(1)), code.constant(factor)));
+			}).build();
+		final LLVMValueRef sumsq = LLVM.LLVMGetNamedFunction(module, "sumsq");
+		LLVM.LLVMSetLinkage(sumsq, LLVM.LLVMInternalLinkage);
+		LLVM.LLVMAddAttributeAtIndex(sumsq, 1, LLVM.LLVMCreateEnumAttribute(LLVM.LLVMGetModuleContext(module), signext(), 0));
+		return module;
+	}
+
+	protected static int signext() {
+		return LLVM.LLVMGetEnumAttributeKindForName("signext", "signext".length());
+	}
+
+	/**
+	 * Compile the helper module, the module itself gets disposed
+	 *
+	 * @param compiler with a function library
+	 * @param name of the exported function
+	 * @param factor of the exported function
+	 * @return program
+	 */
+	protected static LLVMProgram<Void> compileHelper(LLVMCompiler compiler, String name, int factor) {
+		final LLVMModuleRef module = helperModule(name, factor);
+		try {
+			return compiler.compile(module, false);
+		} finally {
+			LLVM.LLVMDisposeModule(module);
+		}
+	}
+
+	/**
+	 * The shared function of the library
+	 *
+	 * @param program using the shared function
+	 * @return declaration or definition of the shared function
+	 */
+	protected static LLVMValueRef sharedFunction(LLVMProgram<?> program) {
+		for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(program.getOptimizedModule()); func != null && func.isNull() == false; func = LLVM.LLVMGetNextFunction(func))
+			if(LLVM.LLVMGetValueName(func).getString().startsWith(LLVMFunctionLibrary.SHARED_PREFIX))
+				return func;
+		return null;
+	}
+
+	@Test
+	public void testSharedFunction() throws Throwable {
+		final LLVMFunctionLibrary library = new LLVMFunctionLibrary(1);
+		final LLVMCompiler compiler = new LLVMCompiler(false, false, new LLVMSymbols().setFunctionLibrary(library));
+
+		final LLVMProgram<Void> first = compileHelper(compiler, "first", 1);
+		Assert.assertEquals(1, library.size());
+		Assert.assertEquals(25, (int) first.getMethodHandle("first").invokeExact(3, 4));
+
+		try(LLVMProgram<Void> second = compileHelper(compiler, "second", 2)) {
+			Assert.assertEquals(1, library.size());
+			Assert.assertTrue(second.getDependencies().contains(first));
+
+			// the declaration keeps the parameter attributes of the definition
+			final LLVMValueRef declaration = sharedFunction(second);
+			Assert.assertNotEquals(0, LLVM.LLVMIsDeclaration(declaration));
+			Assert.assertFalse(LLVM.LLVMGetEnumAttributeAtIndex(declaration, 1, signext()).isNull());
+
+			// the library and the second program keep the machine code of the first program
+			first.dispose();
+			Assert.assertFalse(first.isDisposed());
+			Assert.assertEquals(50, (int) second.getMethodHandle("second").invokeExact(3, 4));
+		}
+
+		library.clear();
+		Assert.assertTrue(first.isDisposed());
+		Assert.assertEquals(0, library.size());
+	}
+
+	@Test
+	public void testTieredProvider() throws Throwable {
+		final LLVMFunctionLibrary library = new LLVMFunctionLibrary(1);
+		final LLVMCompiler compiler = new LLVMCompiler(false, false, new LLVMSymbols().setFunctionLibrary(library));
+
+		final LLVMModuleRef module = helperModule("first", 1);
+		try(LLVMTieredProgram<Void> tiered = compiler.compileTiered(module, null, Long.MAX_VALUE, 1, TimeUnit.HOURS)) {
+			final String name = library.getNames().iterator().next();
+			Assert.assertEquals(tiered.tier1.getSymbolAddress(name), (long) library.getAddress(name));
+
+			// the optimized tier takes over the shared function, the first tier gets released
+			tiered.promote().get(1, TimeUnit.MINUTES);
+			Assert.assertEquals(tiered.tier2.getSymbolAddress(name), (long) library.getAddress(name));
+			Assert.assertTrue(tiered.tier1.isDisposed());
+
+			try(LLVMProgram<Void> second = compileHelper(compiler, "second", 2)) {
+				Assert.assertTrue(second.getDependencies().contains(tiered.tier2));
+				Assert.assertEquals(50, (int) second.getMethodHandle("second").invokeExact(3, 4));
+			}
+		} finally {
+			LLVM.LLVMDisposeModule(module);
+		}
+		library.clear();
+	}
+
+	@Test
+	public void testMemoryManager() throws Throwable {
+		final LLVMFunctionLibrary library = new LLVMFunctionLibrary(1);
+		final LLVMCompiler compiler = new LLVMCompiler(false, false, new LLVMSymbols().setFunctionLibrary(library)).setMemoryManager(new LLVMMemoryManager());
+
+		// the calls of the second program are relocated to the shared function in the arena of the first program
+		try(LLVMProgram<Void> first = compileHelper(compiler, "first", 1);
+			LLVMProgram<Void> second = compileHelper(compiler, "second", 2)) {
+			Assert.assertTrue(second.getDependencies().contains(first));
+			Assert.assertEquals(25, (int) first.getMethodHandle("first").invokeExact(3, 4));
+			Assert.assertEquals(50, (int) second.getMethodHandle("second").invokeExact(3, 4));
+		}
+		library.clear();
+	}
+}
@@ -0,0 +1,116 @@
+package net.wpm.llvm;
+
+import static net.wpm.llvm.LLVMKernelBuilder.floatType;
+import static net.wpm.llvm.LLVMKernelBuilder.int32Type;
+import static net.wpm.llvm.LLVMKernelBuilder.params;
+import static net.wpm.llvm.LLVMKernelBuilder.pointerType;
+import static net.wpm.llvm.LLVMKernelBuilder.voidType;
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.wpm.llvm.LLVMProgramTest.AddInterface;
+import net.wpm.llvm.LLVMStoredModuleBuilderTest.MatMulInterface;
+
+/**
+ * Run modules in the LLVM interpreter via {@link LLVMInterpretedProgram}.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMInterpretedProgramTest {
+
+	public static void main(String[] args) throws Throwable {
+
+		final LLVMInterpretedProgramTest test = new LLVMInterpretedProgramTest();
+		test.testInterpreter();
+		test.testArrays();
+		test.testAutomaticTier();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	@Test
+	public void testInterpreter() throws Throwable {
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMInterpretedProgram<AddInterface> program = compiler.interpret(LLVMProgramTest.addModule().build(), AddInterface.class)) {
+			Assert.assertEquals(42, program.invoke().add(40, 2));
+			Assert.assertEquals(-3, (int) program.getMethodHandle("add").invokeExact(-5, 2));
+
+			// the native address belongs to a compiled copy of the module
+			Assert.assertTrue(program.getSymbols().containsKey("add"));
+			final MethodHandle add = LLVMMethodHandleBinder.bind(program.getAddress("add"), MethodType.methodType(int.class, int.class, int.class));
+			Assert.assertEquals(42, (int) add.invokeExact(40, 2));
+			Assert.assertTrue(program.getCodeSizes().get("add") > 0);
+		}
+	}
+
+	@Test
+	public void testArrays() throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMKernelBuilder<MatMulInterface> moduleBuilder = new LLVMKernelBuilder<>("matmul_module", MatMulInterface.class)
+			.function("matmul", voidType(), params(pointerType(floatType()), pointerType(floatType()), pointerType(floatType()), int32Type(), int32Type(), int32Type()), code -> {
+				final LLVMValueRef pa = code.param(0), pb = code.param(1), pc = code.param(2);
+				final LLVMValueRef pM = code.param(3), pN = code.param(4), pK = code.param(5);
+				code.forLoop(code.constant(0), pM, m ->
+					code.forLoop(code.constant(0), pN, n -> {
+						final LLVMValueRef s = code.reduce(code.constant(0), pK, code.constant(0f), (k, acc) -> {
+							final LLVMValueRef av = code.load(pa, code.add(code.mul(m, pK), k));
+							final LLVMValueRef bv = code.load(pb, code.add(code.mul(k, pN), n));
+							return code.add(acc, code.mul(av, bv));
+						});
+						code.store(pc, code.add(code.mul(m, pN), n), s);
+					}));
+			});
+
+		final float[] a = { 1, 2, 3, 4 }, b = { 5, 6, 7, 8 }, c = new float[4];
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMInterpretedProgram<MatMulInterface> program = compiler.interpret(moduleBuilder.build(), MatMulInterface.class)) {
+			program.invoke().matmul(a, b, c, 2, 2, 2);
+			Assert.assertArrayEquals(new float[] { 19, 22, 43, 50 }, c, 0);
+		}
+	}
+
+	@Test
+	public void testAutomaticTier() throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMProgram<AddInterface> program = compiler.compile(LLVMProgramTest.addModule().build(), AddInterface.class, 1)) {
+			Assert.assertTrue(program instanceof LLVMInterpretedProgram);
+			Assert.assertEquals(42, program.invoke().add(40, 2));
+		}
+		try(LLVMProgram<AddInterface> program = compiler.compile(LLVMProgramTest.addModule().build(), AddInterface.class, 1000)) {
+			Assert.assertFalse(program instanceof LLVMInterpretedProgram);
+			Assert.assertEquals(42, program.invoke().add(40, 2));
+		}
+
+		// only the optimized module of the JIT compiled program gets stored
+		final AtomicInteger stored = new AtomicInteger();
+		final LLVMModuleBuilder<Void> moduleBuilder = new LLVMModuleBuilder<Void>() {
+			public LLVMModuleRef build() {
+				return LLVMProgramTest.addModule().build();
+			}
+			public Class<Void> getInvocationInterface() {
+				return null;
+			}
+			public void storeOptimized(LLVMModuleRef module, String compilerKey) {
+				Assert.assertEquals(compiler.getConfigurationKey(), compilerKey);
+				stored.incrementAndGet();
+			}
+		};
+		try(LLVMProgram<Void> program = compiler.compile(moduleBuilder, 1)) {
+			Assert.assertTrue(program instanceof LLVMInterpretedProgram);
+			Assert.assertEquals(0, stored.get());
+		}
+		try(LLVMProgram<Void> program = compiler.compile(moduleBuilder, 1000)) {
+			Assert.assertFalse(program instanceof LLVMInterpretedProgram);
+			Assert.assertEquals(1, stored.get());
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package net.wpm.llvm;
+
+import static net.wpm.llvm.LLVMKernelBuilder.floatType;
+import static net.wpm.llvm.LLVMKernelBuilder.int32Type;
+import static net.wpm.llvm.LLVMKernelBuilder.params;
+import static net.wpm.llvm.LLVMKernelBuilder.pointerType;
+import static net.wpm.llvm.LLVMKernelBuilder.voidType;
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.util.Random;
+
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.wpm.llvm.LLVMStoredModuleBuilderTest.MatMulInterface;
+import net.wpm.llvm.module.LLVMMatMulTest;
+
+/**
+ * Build kernels with the {@link LLVMKernelBuilder} and compare their results with Java code.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMKernelBuilderTest {
+
+	public static void main(String[] args) throws NoSuchMethodException, IllegalClassFormatException {
+
+		final LLVMKernelBuilderTest test = new LLVMKernelBuilderTest();
+		test.testMatMul();
+		test.testVectorSum();
+		test.testEarlyReturn();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	@Test
+	public void testMatMul() throws NoSuchMethodException, IllegalClassFormatException {
+		final int M = 20, N = 20, K = 20;
+		final Random rand = new Random(7);
+		final float[] a = LLVMMatMulTest.createRandomArray(rand, M, K);
+		final float[] b = LLVMMatMulTest.createRandomArray(rand, K, N);
+		final float[] c = new float[M * N];
+
+		final LLVMKernelBuilder<MatMulInterface> moduleBuilder = new LLVMKernelBuilder<>("matmul_module", MatMulInterface.class)
+			.function("matmul", voidType(), params(pointerType(floatType()), pointerType(floatType()), pointerType(floatType()), int32Type(), int32Type(), int32Type()), code -> {
+				final LLVMValueRef pa = code.param(0), pb = code.param(1), pc = code.param(2);
+				final LLVMValueRef pM = code.param(3), pN = code.param(4), pK = code.param(5);
+				code.forLoop(code.constant(0), pM, m ->
+					code.forLoop(code.constant(0), pN, n -> {
+						final LLVMValueRef s = code.reduce(code.constant(0), pK, code.constant(0f), (k, acc) -> {
+							final LLVMValueRef av = code.load(pa, code.add(code.mul(m, pK), k));
+							final LLVMValueRef bv = code.load(pb, code.add(code.mul(k, pN), n));
+							return code.add(acc, code.mul(av, bv));
+						});
+						code.store(pc, code.add(code.mul(m, pN), n), s);
+					}));
+			});
+
+		final LLVMCompiler compiler = new LLVMCompiler(true, false);
+		try(LLVMProgram<MatMulInterface> program = compiler.compile(moduleBuilder)) {
+			program.invoke().matmul(a, b, c, M, N, K);
+			Assert.assertEquals(c[0], 7.0694447, 0.0002);
+		}
+	}
+
+	@Test
+	public void testVectorSum() throws NoSuchMethodException, IllegalClassFormatException {
+		final float[] values = LLVMMatMulTest.createRandomArray(new Random(7), 16, 16);
+		float expected = 0;
+		for (float v : values)
+			expected += v;
+
+		final int width = 8;
+		final LLVMKernelBuilder<SumInterface> moduleBuilder = new LLVMKernelBuilder<>("sum_module", SumInterface.class)
+			.function("sum", floatType(), params(pointerType(floatType()), int32Type()), code -> {
+				final LLVMValueRef data = code.param(0), length = code.param(1);
+				final LLVMValueRef init = code.splat(code.constant(0f), width);
+				final LLVMValueRef sum = code.loop(code.constant(0), length, code.constant(width), new LLVMValueRef[] { init }, (i, acc) -> {
+					return new LLVMValueRef[] { code.add(acc[0], code.loadVector(data, i, width)) };
+				})[0];
+				code.ret(code.reduceAdd(sum));
+			});
+
+		final LLVMCompiler compiler = new LLVMCompiler(true, false);
+		try(LLVMProgram<SumInterface> program = compiler.compile(moduleBuilder)) {
+			Assert.assertEquals(expected, program.invoke().sum(values, values.length), 0.001);
+		}
+	}
+
+	@Test
+	public void testEarlyReturn() throws NoSuchMethodException, IllegalClassFormatException {
+
+		// branches which return do not get a branch to the merge block
+		final LLVMKernelBuilder<ClampInterface> moduleBuilder = new LLVMKernelBuilder<>("clamp_module", ClampInterface.class)
+			.function("clamp", int32Type(), params(int32Type()), code -> {
+				final LLVMValueRef x = code.param(0);
+				code.ifThen(code.lt(x, code.constant(0)), () -> code.ret(code.constant(0)));
+				final LLVMValueRef y = code.ifThenElse(code.gt(x, code.constant(100)), () -> {
+					code.ret(code.constant(100));
+					return null;
+				}, () -> code.add(x, code.constant(1)));
+				code.ret(y);
+			})
+			.function("sign", int32Type(), params(int32Type()), code -> {
+				final LLVMValueRef x = code.param(0);
+				code.ifThenElse(code.lt(x, code.constant(0)), () -> {
+					code.ret(code.constant(-1));
+					return null;
+				}, () -> {
+					code.ret(code.constant(1));
+					return null;
+				});
+			});
+
+		final LLVMCompiler compiler = new LLVMCompiler(true, false);
+		try(LLVMProgram<ClampInterface> program = compiler.compile(moduleBuilder)) {
+			Assert.assertEquals(0, program.invoke().clamp(-5));
+			Assert.assertEquals(51, program.invoke().clamp(50));
+			Assert.assertEquals(100, program.invoke().clamp(500));
+			Assert.assertEquals(-1, program.invoke().sign(-5));
+			Assert.assertEquals(1, program.invoke().sign(5));
+		}
+	}
+
+	/**
+	 * This is a invocation interface for the early return kernels.
+	 *
+	 * @author Nico Hezel
+	 */
+	public static interface ClampInterface {
+		public int clamp(int x);
+		public int sign(int x);
+	}
+
+	/**
+	 * This is a invocation interface for the vector sum kernel.
+	 *
+	 * @author Nico Hezel
+	 */
+	public static interface SumInterface {
+		public float sum(float[] values, int length);
+	}
+}
@@ -0,0 +1,104 @@
+package net.wpm.llvm;
+
+import java.lang.invoke.MethodHandle;
+
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Account the memory of programs in a {@link LLVMMemoryGroup} and enforce its quota.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMMemoryGroupTest {
+
+	public static void main(String[] args) throws Throwable {
+
+		final LLVMMemoryGroupTest test = new LLVMMemoryGroupTest();
+		test.testAccounting();
+		test.testEviction();
+		test.testRejection();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	@Test
+	public void testAccounting() {
+		final LLVMMemoryGroup group = new LLVMMemoryGroup("tenant");
+		final LLVMCompiler compiler = new LLVMCompiler(false, false).setMemoryManager(new LLVMMemoryManager()).setMemoryGroup(group);
+		try(LLVMProgram<Void> program = compiler.compile(LLVMProgramTest.addModule().build(), false)) {
+			final LLVMMemoryManager.Allocation usage = program.getMemoryUsage();
+			Assert.assertTrue(usage.getCodeBytes() > 0);
+			Assert.assertTrue(usage.getReservedBytes() >= usage.getCodeBytes() + usage.getReadOnlyBytes() + usage.getDataBytes());
+			Assert.assertEquals(usage.getReservedBytes(), group.getReservedBytes());
+			Assert.assertEquals(1, group.getPrograms().size());
+		}
+		Assert.assertEquals(0, group.getReservedBytes());
+		Assert.assertEquals(0, group.getPrograms().size());
+	}
+
+	@Test
+	public void testEviction() throws Throwable {
+		final LLVMMemoryManager memoryManager = new LLVMMemoryManager();
+		final LLVMCompiler compiler = new LLVMCompiler(false, false).setMemoryManager(memoryManager);
+		final long programSize;
+		try(LLVMProgram<Void> program = compiler.compile(LLVMProgramTest.addModule().build(), false)) {
+			programSize = program.getMemoryUsage().getReservedBytes();
+		}
+
+		// room for a single program
+		final LLVMMemoryGroup group = new LLVMMemoryGroup("tenant", programSize, true);
+		compiler.setMemoryGroup(group);
+		final LLVMProgram<Void> first = compiler.compile(LLVMProgramTest.addModule().build(), false);
+		final MethodHandle firstAdd = first.getMethodHandle("add");
+
+		// a pinned program or one retained by another program is not evicted, the new program gets rejected instead
+		first.pin();
+		assertRejected(compiler);
+		first.unpin();
+		first.retain();
+		assertRejected(compiler);
+		first.dispose();
+		Assert.assertEquals(42, (int) firstAdd.invokeExact(40, 2));
+		Assert.assertEquals(programSize, group.getReservedBytes());
+
+		// a kernel of the evicted program fails instead of calling the freed machine code
+		final LLVMParallelFor.RangeKernel kernel = LLVMParallelFor.of(first, "add", 0, 1, 0, 0);
+		kernel.run(0, 1);
+		try(LLVMProgram<Void> second = compiler.compile(LLVMProgramTest.addModule().build(), false)) {
+			Assert.assertTrue(first.isDisposed());
+			Assert.assertEquals(42, (int) second.getMethodHandle("add").invokeExact(40, 2));
+			Assert.assertEquals(programSize, group.getReservedBytes());
+			try {
+				kernel.run(0, 1);
+				Assert.fail("The program is evicted");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+		}
+	}
+
+	protected static void assertRejected(LLVMCompiler compiler) {
+		try {
+			compiler.compile(LLVMProgramTest.addModule().build(), false).close();
+			Assert.fail("The program exceeds the quota");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testRejection() {
+		final LLVMMemoryGroup group = new LLVMMemoryGroup("tenant", 1, false);
+		final LLVMCompiler compiler = new LLVMCompiler(false, false).setMemoryManager(new LLVMMemoryManager()).setMemoryGroup(group);
+		try {
+			compiler.compile(LLVMProgramTest.addModule().build(), false);
+			Assert.fail("The program exceeds the quota");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals(0, group.getReservedBytes());
+			Assert.assertEquals(0, group.getPrograms().size());
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package net.wpm.llvm;
+
+import java.lang.invoke.MethodType;
+
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Pack the machine code of several programs into the arenas of a {@link LLVMMemoryManager}.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMMemoryManagerTest {
+
+	public static void main(String[] args) throws Throwable {
+
+		final LLVMMemoryManagerTest test = new LLVMMemoryManagerTest();
+		test.testSharedArena();
+		test.testHugePages();
+		test.testSharedCodePages();
+		test.testAllocationFailure();
+		if(LLVMMethodHandleBinder.isForeignLinkerAvailable())
+			test.testForeignLinker();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	@Test
+	public void testSharedArena() throws Throwable {
+		final LLVMMemoryManager memoryManager = new LLVMMemoryManager(1 << 20, false);
+		final LLVMCompiler compiler = new LLVMCompiler(false, false).setMemoryManager(memoryManager);
+
+		final LLVMProgram<Void> first = compiler.compile(LLVMProgramTest.addModule().build(), false);
+		final LLVMProgram<Void> second = compiler.compile(LLVMProgramTest.addModule().build(), false);
+		Assert.assertEquals(42, (int) first.getMethodHandle("add").invokeExact(40, 2));
+		Assert.assertEquals(42, (int) second.getMethodHandle("add").invokeExact(40, 2));
+
+		// both programs use the same code arena
+		Assert.assertEquals(1, memoryManager.codeArenas.size());
+		Assert.assertTrue(Math.abs(first.getAddress("add") - second.getAddress("add")) < (1 << 20));
+		Assert.assertTrue(memoryManager.getCodeBytes() > 0);
+
+		first.dispose();
+		Assert.assertEquals(42, (int) second.getMethodHandle("add").invokeExact(40, 2));
+		second.dispose();
+		Assert.assertEquals(0, memoryManager.getCodeBytes());
+		Assert.assertEquals(0, memoryManager.getDataBytes());
+	}
+
+	@Test
+	public void testHugePages() throws Throwable {
+		final LLVMMemoryManager memoryManager = new LLVMMemoryManager(1, true);
+		final LLVMCompiler compiler = new LLVMCompiler(false, false).setMemoryManager(memoryManager);
+		try(LLVMProgram<Void> program = compiler.compile(LLVMProgramTest.addModule().build(), false)) {
+			Assert.assertEquals(42, (int) program.getMethodHandle("add").invokeExact(40, 2));
+			Assert.assertEquals(0, memoryManager.codeArenas.get(0).start % LLVMMemoryManager.HUGE_PAGE_SIZE);
+		}
+	}
+
+	@Test
+	public void testSharedCodePages() throws Throwable {
+		final LLVMMemoryManager memoryManager = new LLVMMemoryManager(1 << 20, false, true);
+		final LLVMCompiler compiler = new LLVMCompiler(false, false).setMemoryManager(memoryManager);
+
+		final LLVMProgram<Void> first = compiler.compile(LLVMProgramTest.addModule().build(), false);
+		final LLVMProgram<Void> second = compiler.compile(LLVMProgramTest.addModule().build(), false);
+		Assert.assertEquals(42, (int) first.getMethodHandle("add").invokeExact(40, 2));
+		Assert.assertEquals(42, (int) second.getMethodHandle("add").invokeExact(40, 2));
+
+		// the code of both programs is in the same page, the code size ends at the section of the program
+		Assert.assertEquals(memoryManager.pageSize, memoryManager.getCodeBytes());
+		Assert.assertEquals(2, first.disassemble("add", false).split("\n").length);
+		Assert.assertEquals(2, second.disassemble("add", false).split("\n").length);
+		Assert.assertEquals(first.getAddress("add") / memoryManager.pageSize, second.getAddress("add") / memoryManager.pageSize);
+		Assert.assertTrue(first.getMemoryUsage().getReservedBytes() < memoryManager.pageSize);
+
+		first.dispose();
+		Assert.assertEquals(memoryManager.pageSize, memoryManager.getCodeBytes());
+		Assert.assertEquals(42, (int) second.getMethodHandle("add").invokeExact(40, 2));
+		second.dispose();
+		Assert.assertEquals(0, memoryManager.getCodeBytes());
+		Assert.assertEquals(0, memoryManager.getDataBytes());
+	}
+
+	@Test
+	public void testAllocationFailure() throws Throwable {
+		final LLVMMemoryManager memoryManager = new LLVMMemoryManager(1 << 20, false) {
+			@Override
+			protected synchronized long allocateCode(Allocation allocation, long size, long alignment, boolean isReadOnly) {
+				throw new OutOfMemoryError("No code memory left");
+			}
+		};
+		final LLVMCompiler compiler = new LLVMCompiler(false, false).setMemoryManager(memoryManager);
+
+		// the error of the callback is thrown by the compiler instead of aborting the process
+		try {
+			compiler.compile(LLVMProgramTest.addModule().build(), false).close();
+			Assert.fail("Expected a RuntimeException");
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getCause() instanceof OutOfMemoryError);
+		}
+		Assert.assertEquals(0, memoryManager.getCodeBytes());
+		Assert.assertEquals(0, memoryManager.getDataBytes());
+	}
+
+	@Test
+	public void testForeignLinker() throws Throwable {
+		Assume.assumeTrue("The foreign function API needs Java 22+", LLVMMethodHandleBinder.isForeignLinkerAvailable());
+
+		// the memory functions of the C library are bound via the foreign linker
+		Assert.assertTrue(LLVMMethodHandleBinder.ForeignLinker.isSupported(MethodType.methodType(long.class, long.class, long.class, int.class, int.class, int.class, long.class)));
+		final LLVMMemoryManager memoryManager = new LLVMMemoryManager(1 << 20, false, true);
+		final LLVMCompiler compiler = new LLVMCompiler(false, false).setMemoryManager(memoryManager);
+		try(LLVMProgram<Void> program = compiler.compile(LLVMProgramTest.addModule().build(), false)) {
+			Assert.assertEquals(42, (int) program.getMethodHandle("add").invokeExact(40, 2));
+			Assert.assertTrue(memoryManager.getReservedBytes() >= (1 << 20));
+		}
+		Assert.assertEquals(0, memoryManager.getCodeBytes());
+	}
+}
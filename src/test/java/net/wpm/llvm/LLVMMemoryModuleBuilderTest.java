@@ -0,0 +1,87 @@
+package net.wpm.llvm;
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.wpm.llvm.LLVMProgramTest.AddInterface;
+
+/**
+ * Parse IR code and bitcode from memory with the {@link LLVMMemoryModuleBuilder}.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMMemoryModuleBuilderTest {
+
+	protected static final String ADD_IR = "define i32 @add(i32 %a, i32 %b) {\n"
+										 + "  %sum = add i32 %a, %b\n"
+										 + "  ret i32 %sum\n"
+										 + "}\n";
+
+	public static void main(String[] args) throws Throwable {
+
+		final LLVMMemoryModuleBuilderTest test = new LLVMMemoryModuleBuilderTest();
+		test.testIR();
+		test.testBitcode();
+		test.testDirectBuffer();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	@Test
+	public void testIR() throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMMemoryModuleBuilder<AddInterface> moduleBuilder = new LLVMMemoryModuleBuilder<>(ADD_IR, AddInterface.class);
+		Assert.assertFalse(moduleBuilder.isBitcode());
+
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMProgram<AddInterface> program = compiler.compile(moduleBuilder, false)) {
+			Assert.assertEquals(42, program.invoke().add(40, 2));
+		}
+	}
+
+	@Test
+	public void testBitcode() throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMModuleRef module = LLVMProgramTest.addModule().build();
+		final byte[] bitcode = LLVMStoredModuleBuilder.writeBitcode(module);
+		LLVM.LLVMDisposeModule(module);
+
+		final LLVMMemoryModuleBuilder<AddInterface> moduleBuilder = new LLVMMemoryModuleBuilder<>(bitcode, "add", AddInterface.class);
+		Assert.assertTrue(moduleBuilder.isBitcode());
+
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMProgram<AddInterface> program = compiler.compile(moduleBuilder, false)) {
+			Assert.assertEquals(42, program.invoke().add(40, 2));
+		}
+	}
+
+	@Test
+	public void testDirectBuffer() throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMModuleRef module = LLVMProgramTest.addModule().build();
+		final byte[] bitcode = LLVMStoredModuleBuilder.writeBitcode(module);
+		LLVM.LLVMDisposeModule(module);
+
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		final ByteBuffer bitcodeBuffer = ByteBuffer.allocateDirect(bitcode.length + 8);
+		bitcodeBuffer.position(8);
+		bitcodeBuffer.put(bitcode).flip().position(8);
+		try(LLVMProgram<AddInterface> program = compiler.compile(new LLVMMemoryModuleBuilder<>(bitcodeBuffer, "add", AddInterface.class), false)) {
+			Assert.assertEquals(42, program.invoke().add(40, 2));
+		}
+
+		// with and without null terminator
+		final byte[] ir = ADD_IR.getBytes(StandardCharsets.UTF_8);
+		for (int terminator = 0; terminator < 2; terminator++) {
+			final ByteBuffer irBuffer = ByteBuffer.allocateDirect(ir.length + terminator);
+			irBuffer.put(ir).put(new byte[terminator]).flip();
+			try(LLVMProgram<AddInterface> program = compiler.compile(new LLVMMemoryModuleBuilder<>(irBuffer, "add", AddInterface.class), false)) {
+				Assert.assertEquals(42, program.invoke().add(40, 2));
+			}
+		}
+	}
+}
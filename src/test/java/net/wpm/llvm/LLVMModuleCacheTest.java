@@ -0,0 +1,85 @@
+package net.wpm.llvm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the {@link LLVMModuleCache} without any LLVM code involved.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMModuleCacheTest {
+
+	@Test
+	public void testComputeIfAbsent() throws IOException, NoSuchAlgorithmException {
+		final LLVMModuleCache cache = new LLVMModuleCache(Files.createTempDirectory("llvm_jnr_test"), 0);
+		final String key = LLVMModuleCache.computeKey("int main() { return 0; }", "-O3");
+
+		final AtomicInteger writes = new AtomicInteger();
+		final Path first = cache.computeIfAbsent(key, ".ll", file -> {
+			writes.incrementAndGet();
+			Files.write(file, new byte[] { 1, 2, 3 });
+		});
+		final Path second = cache.computeIfAbsent(key, ".ll", file -> writes.incrementAndGet());
+
+		Assert.assertEquals(first, second);
+		Assert.assertEquals(1, writes.get());
+		Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(first));
+		Assert.assertNull(cache.get(key, ".bc"));
+		Assert.assertFalse(Files.exists(cache.resolve(key, ".lock")));
+	}
+
+	@Test
+	public void testComputeKey() throws NoSuchAlgorithmException {
+		Assert.assertEquals(LLVMModuleCache.computeKey("code", "-O3"), LLVMModuleCache.computeKey("code", "-O3"));
+		Assert.assertNotEquals(LLVMModuleCache.computeKey("code", "-O3"), LLVMModuleCache.computeKey("code", "-O2"));
+		Assert.assertNotEquals(LLVMModuleCache.computeKey("ab", "c"), LLVMModuleCache.computeKey("a", "bc"));
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+		final LLVMModuleCache cache = new LLVMModuleCache(Files.createTempDirectory("llvm_jnr_test"), 150);
+		final long now = System.currentTimeMillis();
+
+		// two old artifacts, the first one is the least recently used
+		final Path oldest = cache.put("A", ".bc", file -> Files.write(file, new byte[100]));
+		Files.setLastModifiedTime(oldest, FileTime.fromMillis(now - 3_600_000));
+		final Path older = cache.put("B", ".bc", file -> Files.write(file, new byte[100]));
+		Files.setLastModifiedTime(older, FileTime.fromMillis(now - 1_800_000));
+		cache.evict();
+
+		Assert.assertFalse(Files.exists(oldest));
+		Assert.assertTrue(Files.exists(older));
+	}
+
+	@Test
+	public void testEvictKeyTogether() throws IOException {
+		final LLVMModuleCache cache = new LLVMModuleCache(Files.createTempDirectory("llvm_jnr_test"), 250);
+		final long now = System.currentTimeMillis();
+
+		// the old source belongs to a recently used bitcode and is kept
+		final Path source = Files.write(cache.resolve("A", ".c"), new byte[100]);
+		Files.setLastModifiedTime(source, FileTime.fromMillis(now - 3_600_000));
+		final Path bitcode = Files.write(cache.resolve("A", ".bc"), new byte[100]);
+		Files.setLastModifiedTime(bitcode, FileTime.fromMillis(now - 600_000));
+
+		// both artifacts of the least recently used key are deleted
+		final Path otherSource = Files.write(cache.resolve("B", ".c"), new byte[10]);
+		Files.setLastModifiedTime(otherSource, FileTime.fromMillis(now - 1_800_000));
+		final Path otherBitcode = Files.write(cache.resolve("B", ".bc"), new byte[100]);
+		Files.setLastModifiedTime(otherBitcode, FileTime.fromMillis(now - 1_800_000));
+		cache.evict();
+
+		Assert.assertTrue(Files.exists(source));
+		Assert.assertTrue(Files.exists(bitcode));
+		Assert.assertFalse(Files.exists(otherSource));
+		Assert.assertFalse(Files.exists(otherBitcode));
+	}
+}
@@ -0,0 +1,62 @@
+package net.wpm.llvm;
+
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Control the OpenMP runtime used by polly parallel.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMOpenMPTest {
+
+	public static void main(String[] args) throws Throwable {
+
+		final LLVMOpenMPTest test = new LLVMOpenMPTest();
+		test.testNumThreads();
+		test.testProgramNumThreads();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	@Test
+	public void testNumThreads() {
+		Assume.assumeTrue(LLVMOpenMP.getUnavailabilityReason(), LLVMOpenMP.isAvailable());
+
+		LLVMOpenMP.setNumThreads(3);
+		Assert.assertEquals(3, LLVMOpenMP.getMaxThreads());
+		LLVMOpenMP.setNumThreads(1);
+		Assert.assertEquals(1, LLVMOpenMP.getMaxThreads());
+
+		// only changes of the thread count reach the runtime
+		LLVMOpenMP.applyNumThreads(1);
+		Assert.assertEquals(1, LLVMOpenMP.getMaxThreads());
+		LLVMOpenMP.applyNumThreads(2);
+		Assert.assertEquals(2, LLVMOpenMP.getMaxThreads());
+	}
+
+	@Test
+	public void testProgramNumThreads() throws Throwable {
+		Assume.assumeTrue(LLVMOpenMP.getUnavailabilityReason(), LLVMOpenMP.isAvailable());
+
+		final LLVMCompiler compiler = new LLVMCompiler(true, true);
+		Assert.assertTrue(compiler.isParallel());
+		try(LLVMProgram<Void> program = compiler.compile(LLVMProgramTest.addModule().build(), false)) {
+			LLVMOpenMP.setNumThreads(1);
+			program.setNumThreads(2);
+			program.invoke();
+			Assert.assertEquals(2, LLVMOpenMP.getMaxThreads());
+
+			program.invoke(4);
+			Assert.assertEquals(4, LLVMOpenMP.getMaxThreads());
+
+			// the add function has no parallel loops, its method handle does not touch the runtime
+			LLVMOpenMP.setNumThreads(1);
+			Assert.assertEquals(42, (int) program.getMethodHandle("add").invokeExact(40, 2));
+			Assert.assertEquals(1, LLVMOpenMP.getMaxThreads());
+		}
+	}
+}
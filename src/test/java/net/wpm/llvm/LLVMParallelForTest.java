@@ -0,0 +1,127 @@
+package net.wpm.llvm;
+
+import static net.wpm.llvm.LLVMKernelBuilder.floatType;
+import static net.wpm.llvm.LLVMKernelBuilder.int32Type;
+import static net.wpm.llvm.LLVMKernelBuilder.params;
+import static net.wpm.llvm.LLVMKernelBuilder.pointerType;
+import static net.wpm.llvm.LLVMKernelBuilder.voidType;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Test;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+
+/**
+ * Run kernels on partitions of their data with the {@link LLVMParallelFor}.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMParallelForTest {
+
+	public static void main(String[] args) throws Throwable {
+
+		final LLVMParallelForTest test = new LLVMParallelForTest();
+		test.testRangeKernel();
+		test.testCancel();
+		test.testNegativeRange();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	@Test
+	public void testRangeKernel() {
+		final LLVMKernelBuilder<Void> moduleBuilder = new LLVMKernelBuilder<>("scale_module", Void.class)
+			.function("scale", voidType(), params(pointerType(floatType()), int32Type(), int32Type(), floatType()), code -> {
+				final LLVMValueRef data = code.param(0), factor = code.param(3);
+				code.forLoop(code.param(1), code.param(2), i -> code.store(data, i, code.mul(code.load(data, i), factor)));
+			});
+
+		final int length = 10_000;
+		final Pointer data = Memory.allocateDirect(Runtime.getSystemRuntime(), length * Float.BYTES);
+		for (int i = 0; i < length; i++)
+			data.putFloat(i * Float.BYTES, i);
+
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try(LLVMProgram<Void> program = compiler.compile(moduleBuilder.build(), false)) {
+			final LLVMParallelFor parallel = new LLVMParallelFor(pool, 512, 0);
+			parallel.run(0, length, LLVMParallelFor.of(program.getMethodHandle("scale"), 1, 2, data, 0, 0, 2f));
+		} finally {
+			pool.shutdown();
+		}
+
+		for (int i = 0; i < length; i++)
+			Assert.assertEquals(i * 2f, data.getFloat(i * Float.BYTES), 0);
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		final ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			final LLVMParallelFor parallel = new LLVMParallelFor(pool, 1, 1);
+			final CountDownLatch started = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			final CountDownLatch finished = new CountDownLatch(1);
+			final ForkJoinTask<Void> task = parallel.submit(0, 1, (start, end) -> {
+				started.countDown();
+				release.await();
+				finished.countDown();
+			});
+
+			started.await();
+			task.cancel(true);
+			try {
+				task.join();
+				Assert.fail("Expected a CancellationException");
+			} catch (CancellationException e) {
+				// expected
+			}
+
+			// the running kernel still holds the pending slot
+			Assert.assertEquals(0, parallel.pending.availablePermits());
+			release.countDown();
+			finished.await();
+
+			// the pending slot gets released once the kernel finished
+			parallel.submit(0, 10, (start, end) -> {}).join();
+
+			// cancelled right away, usually before it started, the slot is released either way
+			parallel.submit(0, 10, (start, end) -> {}).cancel(false);
+			parallel.submit(0, 10, (start, end) -> {}).join();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testNegativeRange() {
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			final LLVMParallelFor parallel = new LLVMParallelFor(pool, 16, 0);
+			final AtomicLong count = new AtomicLong();
+			final AtomicLong sum = new AtomicLong();
+			parallel.run(-1000, 500, (start, end) -> {
+				Assert.assertTrue(end - start <= 16);
+				for (int i = start; i < end; i++) {
+					count.incrementAndGet();
+					sum.addAndGet(i);
+				}
+			});
+			Assert.assertEquals(1500, count.get());
+			Assert.assertEquals(-375_750, sum.get());
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
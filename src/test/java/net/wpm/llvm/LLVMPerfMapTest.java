@@ -0,0 +1,49 @@
+package net.wpm.llvm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Write the functions of compiled programs into a perf map.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMPerfMapTest {
+
+	public static void main(String[] args) throws IOException {
+
+		final LLVMPerfMapTest test = new LLVMPerfMapTest();
+		test.testPerfMap();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	@Test
+	public void testPerfMap() throws IOException {
+		final Path file = Files.createTempFile("perf-", ".map");
+		final LLVMCompiler compiler = new LLVMCompiler(false, false).setPerfMap(new LLVMPerfMap(file));
+		try(LLVMProgram<Void> program = compiler.compile(LLVMProgramTest.addModule().build(), false)) {
+			final List<String> lines = Files.readAllLines(file);
+			Assert.assertEquals(1, lines.size());
+
+			// START SIZE NAME in hex without prefix
+			final String[] entry = lines.get(0).split(" ");
+			Assert.assertEquals(program.getAddress("add"), Long.parseUnsignedLong(entry[0], 16));
+			Assert.assertEquals((long) program.getCodeSizes().get("add"), Long.parseLong(entry[1], 16));
+			Assert.assertEquals("add_module::add", entry[2]);
+
+			// the entries of disposed programs are removed
+			program.dispose();
+			Assert.assertTrue(Files.readAllLines(file).isEmpty());
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package net.wpm.llvm;
+
+import static net.wpm.llvm.LLVMKernelBuilder.floatType;
+import static net.wpm.llvm.LLVMKernelBuilder.int32Type;
+import static net.wpm.llvm.LLVMKernelBuilder.params;
+import static net.wpm.llvm.LLVMKernelBuilder.pointerType;
+import static net.wpm.llvm.LLVMKernelBuilder.voidType;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Stream heap arrays through a kernel with the {@link LLVMPipeline}.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMPipelineTest {
+
+	protected static final int LENGTH = 1024;
+
+	public static void main(String[] args) throws Throwable {
+
+		final LLVMPipelineTest test = new LLVMPipelineTest();
+		test.testPipeline();
+		test.testBackPressure();
+		test.testKernelFailure();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	@Test
+	public void testPipeline() throws InterruptedException, ExecutionException {
+		final LLVMKernelBuilder<Void> moduleBuilder = new LLVMKernelBuilder<>("square_module", Void.class)
+			.function("square", voidType(), params(pointerType(floatType()), pointerType(floatType()), int32Type()), code -> {
+				final LLVMValueRef in = code.param(0), out = code.param(1);
+				code.forLoop(code.constant(0), code.param(2), i -> {
+					final LLVMValueRef value = code.load(in, i);
+					code.store(out, i, code.mul(value, value));
+				});
+			});
+
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMProgram<Void> program = compiler.compile(moduleBuilder.build(), false)) {
+			final MethodHandle square = program.getMethodHandle("square");
+			final List<CompletableFuture<float[]>> results = new ArrayList<>();
+			try(LLVMPipeline<float[], float[]> pipeline = new LLVMPipeline<>(2, LENGTH * Float.BYTES, LENGTH * Float.BYTES,
+					(input, buffer) -> buffer.put(0, input, 0, input.length),
+					(input, output) -> { square.invokeExact(input, output, LENGTH); },
+					(input, output) -> {
+						final float[] result = new float[input.length];
+						output.get(0, result, 0, result.length);
+						return result;
+					})) {
+
+				for (int r = 0; r < 100; r++) {
+					final float[] input = new float[LENGTH];
+					for (int i = 0; i < LENGTH; i++)
+						input[i] = r + i;
+					results.add(pipeline.submit(input));
+				}
+			}
+
+			for (int r = 0; r < results.size(); r++) {
+				final float[] result = results.get(r).get();
+				for (int i = 0; i < LENGTH; i++)
+					Assert.assertEquals((float) (r + i) * (r + i), result[i], 0);
+			}
+		}
+	}
+
+	@Test
+	public void testBackPressure() throws InterruptedException, ExecutionException {
+		final CountDownLatch release = new CountDownLatch(1);
+		try(LLVMPipeline<Integer, Integer> pipeline = new LLVMPipeline<>(2, Integer.BYTES, 0,
+				(input, buffer) -> buffer.putInt(0, input),
+				(input, output) -> release.await(),
+				(input, output) -> output.getInt(0))) {
+
+			final CompletableFuture<Integer> first = pipeline.submit(1);
+			final CompletableFuture<Integer> second = pipeline.submit(2);
+			Assert.assertEquals(2, pipeline.getPending());
+
+			// all buffers are in flight
+			Assert.assertNull(pipeline.trySubmit(3, 50, TimeUnit.MILLISECONDS));
+
+			release.countDown();
+			Assert.assertEquals(1, (int) first.get());
+			Assert.assertEquals(2, (int) second.get());
+			Assert.assertEquals(3, (int) pipeline.submit(3).get());
+		}
+	}
+
+	@Test
+	public void testKernelFailure() throws InterruptedException {
+		final LLVMPipeline<Integer, Integer> pipeline = new LLVMPipeline<>(1, Integer.BYTES, 0,
+				(input, buffer) -> buffer.putInt(0, input),
+				(input, output) -> {
+					if(input.getInt(0) < 0)
+						throw new IllegalArgumentException("negative input");
+				},
+				(input, output) -> output.getInt(0));
+
+		try {
+			pipeline.submit(-1).get();
+			Assert.fail("Expected an ExecutionException");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+
+		// the buffer is usable again
+		final CompletableFuture<Integer> result = pipeline.submit(42);
+		pipeline.close();
+		Assert.assertEquals(Integer.valueOf(42), result.getNow(null));
+
+		try {
+			pipeline.submit(1);
+			Assert.fail("Expected an IllegalStateException");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
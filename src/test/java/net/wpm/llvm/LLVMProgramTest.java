@@ -0,0 +1,293 @@
+package net.wpm.llvm;
+
+import static net.wpm.llvm.LLVMKernelBuilder.doubleType;
+import static net.wpm.llvm.LLVMKernelBuilder.floatType;
+import static net.wpm.llvm.LLVMKernelBuilder.int32Type;
+import static net.wpm.llvm.LLVMKernelBuilder.int64Type;
+import static net.wpm.llvm.LLVMKernelBuilder.params;
+import static net.wpm.llvm.LLVMKernelBuilder.pointerType;
+import static net.wpm.llvm.LLVMKernelBuilder.structType;
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import jnr.ffi.Pointer;
+
+/**
+ * Test the different ways to access the functions of a {@link LLVMProgram}.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMProgramTest {
+
+	public static void main(String[] args) throws Throwable {
+
+		final LLVMProgramTest test = new LLVMProgramTest();
+		test.testMethodHandles();
+		test.testMethodHandleBinding();
+		if(LLVMMethodHandleBinder.isForeignLinkerAvailable())
+			test.testForeignLinker();
+		test.testNullPointer();
+		test.testNumericInvoker();
+		test.testStructReturn();
+		test.testIntrospection();
+		test.testBuffers();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	/**
+	 * Module with the function int add(int a, int b)
+	 *
+	 * @return module builder without an invocation interface
+	 */
+	protected static LLVMKernelBuilder<Void> addModule() {
+		return new LLVMKernelBuilder<>("add_module", Void.class)
+			.function("add", int32Type(), params(int32Type(), int32Type()), code -> {
+				final LLVMValueRef sum = code.add(code.param(0), code.param(1));
+				code.ret(sum);
+			});
+	}
+
+	@Test
+	public void testMethodHandles() throws Throwable {
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMProgram<Void> program = compiler.compile(addModule().build(), false)) {
+			Assert.assertNull(program.invoke());
+			Assert.assertEquals(MethodType.methodType(int.class, int.class, int.class), program.getFunctionTypes().get("add"));
+
+			final MethodHandle add = program.getMethodHandle("add");
+			final int result = (int) add.invokeExact(40, 2);
+			Assert.assertEquals(42, result);
+		}
+	}
+
+	@Test
+	public void testMethodHandleBinding() throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMProgram<AddInterface> program = compiler.compile(addModule().build(), AddInterface.class, false, LLVMBinding.METHOD_HANDLE);
+			LLVMProgram<AddInterface> other = compiler.compile(addModule().build(), AddInterface.class, false, LLVMBinding.METHOD_HANDLE)) {
+			final AddInterface add = program.invoke();
+			Assert.assertEquals(42, add.add(40, 2));
+			Assert.assertFalse(Proxy.isProxyClass(add.getClass()));
+
+			// the generated class is shared by all programs with the same interface
+			Assert.assertSame(add.getClass(), other.invoke().getClass());
+			Assert.assertEquals(3, other.invoke().add(1, 2));
+		}
+	}
+
+	@Test
+	public void testForeignLinker() throws Throwable {
+		Assume.assumeTrue("The foreign function API needs Java 22+", LLVMMethodHandleBinder.isForeignLinkerAvailable());
+
+		final MethodType type = MethodType.methodType(int.class, int.class, int.class);
+		Assert.assertTrue(LLVMMethodHandleBinder.ForeignLinker.isSupported(type));
+
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMProgram<Void> program = compiler.compile(addModule().build(), false)) {
+			final MethodHandle add = LLVMMethodHandleBinder.ForeignLinker.bind(program.getSymbolAddress("add"), type);
+			Assert.assertEquals(42, (int) add.invokeExact(40, 2));
+		}
+	}
+
+	@Test
+	public void testNullPointer() throws Throwable {
+		final LLVMKernelBuilder<Void> moduleBuilder = new LLVMKernelBuilder<>("sum_module", Void.class)
+			.function("sum", floatType(), params(pointerType(floatType()), int32Type()), code -> {
+				final LLVMValueRef data = code.param(0);
+				code.ret(code.reduce(code.constant(0), code.param(1), code.constant(0f), (i, acc) -> code.add(acc, code.load(data, i))));
+			});
+
+		// a null pointer is passed as address 0 by the jffi invoker and the foreign function API
+		final MethodType type = MethodType.methodType(float.class, Pointer.class, int.class);
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMProgram<Void> program = compiler.compile(moduleBuilder.build(), false)) {
+			final long address = program.getSymbolAddress("sum");
+			Assert.assertEquals(0, (float) LLVMMethodHandleBinder.bindInvoker(address, type).invokeExact((Pointer) null, 0), 0);
+			Assert.assertEquals(0, (float) LLVMMethodHandleBinder.bind(address, type).invokeExact((Pointer) null, 0), 0);
+			if(LLVMMethodHandleBinder.isForeignLinkerAvailable())
+				Assert.assertEquals(0, (float) LLVMMethodHandleBinder.ForeignLinker.bind(address, type).invokeExact((Pointer) null, 0), 0);
+		}
+	}
+
+	@Test
+	public void testNumericInvoker() throws Throwable {
+		final LLVMKernelBuilder<Void> moduleBuilder = new LLVMKernelBuilder<>("mix_module", Void.class)
+			.function("mix", doubleType(), params(floatType(), doubleType(), int32Type(), int64Type()), code -> {
+				final LLVMValueRef a = code.convert(code.param(0), doubleType());
+				final LLVMValueRef c = code.convert(code.param(2), doubleType());
+				final LLVMValueRef d = code.convert(code.param(3), doubleType());
+				code.ret(code.add(code.add(a, code.param(1)), code.add(c, d)));
+			})
+			.function("half", floatType(), params(floatType()), code -> {
+				code.ret(code.mul(code.param(0), code.constant(0.5f)));
+			});
+
+		// the jffi invoker without the foreign function API, arguments and return values are not boxed
+		final MethodType mixType = MethodType.methodType(double.class, float.class, double.class, int.class, long.class);
+		final MethodType halfType = MethodType.methodType(float.class, float.class);
+		Assert.assertTrue(LLVMMethodHandleBinder.isNumeric(mixType));
+		Assert.assertTrue(LLVMMethodHandleBinder.isNumeric(halfType));
+		Assert.assertFalse(LLVMMethodHandleBinder.isNumeric(MethodType.methodType(void.class, float[].class)));
+
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMProgram<Void> program = compiler.compile(moduleBuilder.build(), false)) {
+			final MethodHandle mix = LLVMMethodHandleBinder.bindInvoker(program.getSymbolAddress("mix"), mixType);
+			Assert.assertEquals(1.5 + 0.25 - 3 + (1L << 40), (double) mix.invokeExact(1.5f, 0.25, -3, 1L << 40), 0);
+			final MethodHandle half = LLVMMethodHandleBinder.bindInvoker(program.getSymbolAddress("half"), halfType);
+			Assert.assertEquals(-1.25f, (float) half.invokeExact(-2.5f), 0);
+		}
+	}
+
+	@Test
+	public void testIntrospection() throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMProgram<Void> program = compiler.compile(addModule().build(), false)) {
+			Assert.assertTrue(program.getOptimizedIR().contains("define i32 @add("));
+			Assert.assertEquals(program.getSymbolAddress("add"), (long) program.getSymbols().get("add"));
+
+			final long size = program.getCodeSizes().get("add");
+			Assert.assertTrue(size > 0);
+
+			// the sum of both arguments and the return, e.g. lea and ret on x86-64 or add and ret on AArch64
+			final String[] assembly = program.disassemble("add", false).split("\n");
+			Assert.assertEquals(2, assembly.length);
+			Assert.assertTrue(assembly[1].contains("ret"));
+		}
+	}
+
+	@Test
+	public void testStructReturn() throws NoSuchMethodException, IllegalClassFormatException {
+		final float[] values = { 3, -1, 4, 1, 5 };
+		final LLVMKernelBuilder<StatsInterface> moduleBuilder = new LLVMKernelBuilder<>("stats_module", StatsInterface.class)
+			.function("stats", structType(floatType(), floatType(), floatType()), params(pointerType(floatType()), int32Type()), code -> {
+				final LLVMValueRef data = code.param(0), length = code.param(1);
+				final LLVMValueRef first = code.load(data, code.constant(0));
+				final LLVMValueRef[] minMaxSum = code.loop(code.constant(0), length, code.constant(1), new LLVMValueRef[] { first, first, code.constant(0f) }, (i, acc) -> {
+					final LLVMValueRef value = code.load(data, i);
+					return new LLVMValueRef[] { code.min(acc[0], value), code.max(acc[1], value), code.add(acc[2], value) };
+				});
+				code.ret(code.struct(minMaxSum));
+			})
+			.function("range", floatType(), params(structType(floatType(), floatType(), floatType())), code -> {
+				code.ret(code.sub(code.field(code.param(0), 1), code.field(code.param(0), 0)));
+			});
+
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMProgram<StatsInterface> program = compiler.compile(moduleBuilder, false, LLVMBinding.METHOD_HANDLE)) {
+			final ByteBuffer stats = program.invoke().stats(values, values.length);
+			Assert.assertEquals(-1, stats.getFloat(0), 0);
+			Assert.assertEquals(5, stats.getFloat(4), 0);
+			Assert.assertEquals(12, stats.getFloat(8), 0);
+
+			// structs passed by value can be direct or heap buffers
+			Assert.assertEquals(6, program.invoke().range(stats), 0);
+			final ByteBuffer heapStats = ByteBuffer.allocate(12).order(ByteOrder.nativeOrder()).putFloat(2).putFloat(10).putFloat(0);
+			heapStats.flip();
+			Assert.assertEquals(8, program.invoke().range(heapStats), 0);
+			Assert.assertEquals(ByteBuffer.class, LLVMProgram.getFunctionTypes(program.getOptimizedModule()).get("stats").returnType());
+		}
+
+		// the JNR binding can not return structs by value
+		try {
+			compiler.compile(moduleBuilder, false, LLVMBinding.JNR).close();
+			Assert.fail("Expected an IllegalClassFormatException");
+		} catch (IllegalClassFormatException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testBuffers() throws NoSuchMethodException, IllegalClassFormatException {
+		final LLVMKernelBuilder<FloatBufferInterface> moduleBuilder = new LLVMKernelBuilder<>("sum_module", FloatBufferInterface.class)
+			.function("sum", floatType(), params(pointerType(floatType()), int32Type()), code -> {
+				final LLVMValueRef data = code.param(0);
+				code.ret(code.reduce(code.constant(0), code.param(1), code.constant(0f), (i, acc) -> code.add(acc, code.load(data, i))));
+			});
+
+		final ByteBuffer bytes = ByteBuffer.allocateDirect(5 * Float.BYTES).order(ByteOrder.nativeOrder());
+		final FloatBuffer floats = bytes.asFloatBuffer();
+		floats.put(new float[] { 1, 2, 3, 4, 5 }).position(1);
+
+		// the address of the buffer position is passed without copying
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		final LLVMModuleRef module = moduleBuilder.build();
+		try {
+			for (LLVMBinding binding : LLVMBinding.values()) {
+				try(LLVMProgram<FloatBufferInterface> program = compiler.compile(moduleBuilder, false, binding)) {
+					Assert.assertEquals(14, program.invoke().sum(floats, 4), 0);
+				}
+				try(LLVMProgram<ByteBufferInterface> program = compiler.compile(module, ByteBufferInterface.class, false, binding)) {
+					Assert.assertEquals(15, program.invoke().sum(bytes, 5), 0);
+				}
+			}
+
+			// the element type of typed buffers gets checked
+			try {
+				compiler.compile(module, IntBufferInterface.class, false).close();
+				Assert.fail("Expected an IllegalArgumentException");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		} finally {
+			LLVM.LLVMDisposeModule(module);
+		}
+	}
+
+	/**
+	 * Invocation interfaces with buffers for the sum module.
+	 *
+	 * @author Nico Hezel
+	 */
+	public static interface FloatBufferInterface {
+		public float sum(FloatBuffer data, int length);
+	}
+
+	/**
+	 * @author Nico Hezel
+	 */
+	public static interface ByteBufferInterface {
+		public float sum(ByteBuffer data, int length);
+	}
+
+	/**
+	 * @author Nico Hezel
+	 */
+	public static interface IntBufferInterface {
+		public float sum(IntBuffer data, int length);
+	}
+
+	/**
+	 * This is a invocation interface for the stats module.
+	 *
+	 * @author Nico Hezel
+	 */
+	public static interface StatsInterface {
+		public ByteBuffer stats(float[] values, int length);
+		public float range(ByteBuffer stats);
+	}
+
+	/**
+	 * This is a invocation interface for the add module.
+	 *
+	 * @author Nico Hezel
+	 */
+	public static interface AddInterface {
+		public int add(int a, int b);
+	}
+}
@@ -0,0 +1,50 @@
+package net.wpm.llvm;
+
+import java.io.IOException;
+import java.lang.instrument.IllegalClassFormatException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.wpm.llvm.LLVMProgramTest.AddInterface;
+
+/**
+ * Compile modules into shared libraries of a {@link LLVMSharedCodeCache}.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMSharedCodeCacheTest {
+
+	public static void main(String[] args) throws Exception {
+
+		final LLVMSharedCodeCacheTest test = new LLVMSharedCodeCacheTest();
+		test.testSharedLibrary();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	@Test
+	public void testSharedLibrary() throws IOException, NoSuchMethodException, IllegalClassFormatException {
+		final Path directory = Files.createTempDirectory("llvm_jnr_shared");
+		final LLVMSharedCodeCache codeCache = new LLVMSharedCodeCache(new LLVMModuleCache(directory, 0));
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+
+		try(LLVMProgram<AddInterface> program = compiler.compile(LLVMProgramTest.addModule().build(), AddInterface.class, codeCache, LLVMBinding.JNR)) {
+			Assert.assertEquals(42, program.invoke().add(40, 2));
+		}
+
+		// the second compilation loads the existing library
+		final String key = LLVMSharedCodeCache.computeKey(LLVMProgramTest.addModule().build(), compiler.getTargetKey());
+		Assert.assertNotNull(codeCache.getCache().get(key, LLVMSharedCodeCache.LIBRARY_EXTENSION));
+		try(LLVMProgram<AddInterface> program = compiler.compile(LLVMProgramTest.addModule().build(), AddInterface.class, codeCache, LLVMBinding.METHOD_HANDLE)) {
+			Assert.assertEquals(42, program.invoke().add(40, 2));
+
+			// the size of the function comes from the symbol table of the library
+			Assert.assertEquals(2, program.disassemble("add", false).split("\n").length);
+		}
+	}
+}
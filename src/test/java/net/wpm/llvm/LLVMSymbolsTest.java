@@ -0,0 +1,115 @@
+package net.wpm.llvm;
+
+import static net.wpm.llvm.LLVMKernelBuilder.int32Type;
+import static net.wpm.llvm.LLVMKernelBuilder.params;
+
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Test;
+
+import jnr.ffi.annotations.Delegate;
+
+/**
+ * Resolve external functions of a module with {@link LLVMSymbols}.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMSymbolsTest {
+
+	public static void main(String[] args) throws Throwable {
+
+		final LLVMSymbolsTest test = new LLVMSymbolsTest();
+		test.testProgramSymbol();
+		test.testAddressSymbol();
+		test.testCallback();
+		test.testLibrary();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	/**
+	 * Module with the function int add3(int a, int b, int c) which calls the external function add
+	 *
+	 * @return module builder without an invocation interface
+	 */
+	protected static LLVMKernelBuilder<Void> add3Module() {
+		return new LLVMKernelBuilder<>("add3_module", Void.class)
+			.declare("add", int32Type(), params(int32Type(), int32Type()))
+			.function("add3", int32Type(), params(int32Type(), int32Type(), int32Type()), code -> {
+				final LLVMValueRef sum = code.call("add", code.call("add", code.param(0), code.param(1)), code.param(2));
+				code.ret(sum);
+			});
+	}
+
+	@Test
+	public void testProgramSymbol() throws Throwable {
+		final LLVMCompiler addCompiler = new LLVMCompiler(false, false);
+		try(LLVMProgram<Void> addProgram = addCompiler.compile(LLVMProgramTest.addModule().build(), false)) {
+			final LLVMCompiler compiler = new LLVMCompiler(false, false, new LLVMSymbols().add("add", addProgram, "add"));
+			try(LLVMProgram<Void> program = compiler.compile(add3Module().build(), false)) {
+				final int result = (int) program.getMethodHandle("add3").invokeExact(1, 2, 3);
+				Assert.assertEquals(6, result);
+			}
+		}
+	}
+
+	@Test
+	public void testAddressSymbol() throws Throwable {
+		final LLVMCompiler addCompiler = new LLVMCompiler(false, false);
+		try(LLVMProgram<Void> addProgram = addCompiler.compile(LLVMProgramTest.addModule().build(), false)) {
+
+			// the machine code gets generated after the mapping, with and without a memory manager
+			final LLVMSymbols symbols = new LLVMSymbols().add("add", addProgram.getSymbolAddress("add"));
+			final LLVMCompiler[] compilers = { new LLVMCompiler(false, false, symbols), new LLVMCompiler(false, false, symbols).setMemoryManager(new LLVMMemoryManager()) };
+			for (LLVMCompiler compiler : compilers) {
+				try(LLVMProgram<Void> program = compiler.compile(add3Module().build(), false)) {
+					final int result = (int) program.getMethodHandle("add3").invokeExact(1, 2, 3);
+					Assert.assertEquals(6, result);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCallback() throws Throwable {
+		final LLVMSymbols symbols = new LLVMSymbols().addCallback("add", AddCallback.class, (a, b) -> a * 10 + b);
+		final LLVMCompiler compiler = new LLVMCompiler(false, false, symbols);
+		try(LLVMProgram<Void> program = compiler.compile(add3Module().build(), false)) {
+			final int result = (int) program.getMethodHandle("add3").invokeExact(1, 2, 3);
+			Assert.assertEquals(123, result);
+		}
+	}
+
+	@Test
+	public void testLibrary() throws Throwable {
+		final LLVMModuleRef library = LLVMProgramTest.addModule().build();
+		final LLVMSymbols symbols = new LLVMSymbols().addLibrary(library);
+		LLVM.LLVMDisposeModule(library);
+
+		final LLVMCompiler compiler = new LLVMCompiler(false, false, symbols);
+		try(LLVMProgram<Void> program = compiler.compile(add3Module().build(), false)) {
+			final int result = (int) program.getMethodHandle("add3").invokeExact(1, 2, 3);
+			Assert.assertEquals(6, result);
+			Assert.assertFalse(program.getFunctionTypes().containsKey("add"));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnresolvedSymbol() {
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		compiler.compile(add3Module().build(), false).close();
+	}
+
+	/**
+	 * Java implementation of int add(int a, int b)
+	 *
+	 * @author Nico Hezel
+	 */
+	public static interface AddCallback {
+		@Delegate
+		public int add(int a, int b);
+	}
+}
@@ -0,0 +1,58 @@
+package net.wpm.llvm;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.llvm.global.LLVM;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.wpm.llvm.LLVMProgramTest.AddInterface;
+
+/**
+ * Promote a hot program from the first tier to the fully optimized machine code.
+ *
+ * @author Nico Hezel
+ */
+public class LLVMTieredProgramTest {
+
+	public static void main(String[] args) throws Throwable {
+
+		final LLVMTieredProgramTest test = new LLVMTieredProgramTest();
+		test.testCallThreshold();
+		test.testMethodHandle();
+
+		LLVM.LLVMShutdown();
+		System.out.println("Finished");
+	}
+
+	@Test
+	public void testCallThreshold() throws Exception {
+		final LLVMCompiler compiler = new LLVMCompiler(true, false);
+		try(LLVMTieredProgram<AddInterface> program = compiler.compileTiered(LLVMProgramTest.addModule().build(), AddInterface.class, 3, 1, TimeUnit.MINUTES)) {
+			Assert.assertFalse(program.isOptimized());
+			for (int i = 0; i < 3; i++)
+				Assert.assertEquals(42, program.invoke().add(40, 2));
+			Assert.assertEquals(3, program.getCallCount("add"));
+
+			// the third call started the recompilation
+			program.promote().get(1, TimeUnit.MINUTES);
+			Assert.assertTrue(program.isOptimized());
+			Assert.assertEquals(42, program.invoke().add(40, 2));
+		}
+	}
+
+	@Test
+	public void testMethodHandle() throws Throwable {
+		final LLVMCompiler compiler = new LLVMCompiler(false, false);
+		try(LLVMTieredProgram<Void> program = compiler.compileTiered(LLVMProgramTest.addModule().build(), null, Long.MAX_VALUE, 1, TimeUnit.HOURS)) {
+			final MethodHandle add = program.getMethodHandle("add");
+			Assert.assertEquals(42, (int) add.invokeExact(40, 2));
+
+			// the handle calls the new machine code after the promotion
+			program.promote().get(1, TimeUnit.MINUTES);
+			Assert.assertEquals(42, (int) add.invokeExact(40, 2));
+			Assert.assertEquals(1, program.getCallCount("add"));
+		}
+	}
+}